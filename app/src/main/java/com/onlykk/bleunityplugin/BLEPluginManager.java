@@ -6,10 +6,12 @@ import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothManager;
 import android.content.Context;
 import android.content.IntentFilter;
+import android.os.Build;
 import android.util.Log;
 
-import java.util.Map;
+import java.nio.ByteBuffer;
 import java.util.UUID;
+import java.util.concurrent.Callable;
 import com.unity3d.player.UnityPlayer;
 
 public class BLEPluginManager {
@@ -29,9 +31,42 @@ public class BLEPluginManager {
 
     private BluetoothStateReceiver bluetoothStateReceiver;
 
+    // Applied to the client and server, which may be created after it is set
+    private volatile BinaryDataListener binaryDataListener;
+
+    // Owns the server, scanner and client state, Unity calls are posted to it as commands
+    private final BleEventLoop loop = new BleEventLoop("BLEEventLoop");
+
+    // Shared by the client and server, so compression settings and statistics cover both directions
+    private final FrameCompressor compressor = new FrameCompressor();
+
+    // Send gates of the client and server, and how long a send waits at them in block mode
+    private volatile SendGate clientSendGate;
+    private volatile SendGate serverSendGate;
+    private volatile boolean blockWhenFull = false;
+    private volatile long maxBlockMs;
+
+    // Time the components were created, read and written on the loop thread
+    private long initNanos;
+
+    // Every event for Unity goes through this bus, delivered immediately or in batches
+    private final UnityEventBus eventBus = new UnityEventBus(new UnityEventBus.Sink() {
+        @Override
+        public void send(String method, String payload) {
+            UnityPlayer.UnitySendMessage("BLEPlugin", method, payload);
+        }
+    }, new UnityEventBus.Scheduler() {
+        @Override
+        public void schedule(Runnable task, long delayMs) {
+            loop.schedule(task, delayMs);
+        }
+    });
+
 
     public static UUID SERVICE_UUID = UUID.fromString("0000180d-0000-1000-8000-00805f9b34fb"); // Default UUID
     public static UUID CHARACTERISTIC_UUID = UUID.fromString("00002a37-0000-1000-8000-00805f9b34fb"); // Default UUID
+    // Read-only characteristic holding the L2CAP PSM of the server, the UUID iOS uses for the same purpose
+    public static final UUID L2CAP_PSM_UUID = UUID.fromString("abdd3056-28fa-441d-a470-55a75a52553a");
 
 
 
@@ -55,24 +90,36 @@ public class BLEPluginManager {
      * @param SERVICE_UUID_HOST String UUID for the service
      * @param CHARACTERISTIC_UUID_HOST String UUID for the characteristic
      */
-    public void initBLEPlugin(Context context, String SERVICE_UUID_HOST, String CHARACTERISTIC_UUID_HOST) {
+    public void initBLEPlugin(final Context context, String SERVICE_UUID_HOST, String CHARACTERISTIC_UUID_HOST) {
 
         this.context = context;
         bluetoothManager = (BluetoothManager) context.getSystemService(Context.BLUETOOTH_SERVICE);
         bluetoothAdapter = bluetoothManager.getAdapter();
+        loop.start();
 
         if (bluetoothAdapter == null) {
-            UnityPlayer.UnitySendMessage("BLEPlugin", "OnBLEPluginInitialized", "BluetoothAdapter is Null!");
+            eventBus.post("OnBLEPluginInitialized", "BluetoothAdapter is Null!");
             return;
         }
 
         CHARACTERISTIC_UUID = UUID.fromString(CHARACTERISTIC_UUID_HOST);
         SERVICE_UUID = UUID.fromString(SERVICE_UUID_HOST);
-        bluetoothStateReceiver = new BluetoothStateReceiver();
-        server = new BluetoothServer(bluetoothAdapter, context);
-        scanner = new BLEScanner(bluetoothAdapter);
-        client = new BluetoothClient(context);
-        UnityPlayer.UnitySendMessage("BLEPlugin", "OnBLEPluginInitialized", "BluetoothAdapter Initialized!");
+        bluetoothStateReceiver = new BluetoothStateReceiver(eventBus);
+        // The components are created on the loop thread, which is the only thread touching them
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                initNanos = loop.nanoTime();
+                server = new BluetoothServer(bluetoothAdapter, context, eventBus, loop, compressor);
+                scanner = new BLEScanner(bluetoothManager, eventBus, loop);
+                client = new BluetoothClient(context, eventBus, loop, compressor);
+                server.setBinaryDataListener(binaryDataListener);
+                client.setBinaryDataListener(binaryDataListener);
+                serverSendGate = server.getSendGate();
+                clientSendGate = client.getSendGate();
+                eventBus.post("OnBLEPluginInitialized", "BluetoothAdapter Initialized!");
+            }
+        });
     }
 
 
@@ -87,17 +134,17 @@ public class BLEPluginManager {
             boolean success = bluetoothAdapter.enable();
             if (success) {
                 Log.d(TAG, "Bluetooth enabled programmatically");
-                UnityPlayer.UnitySendMessage("BLEPlugin", "OnBluetoothEnabled", "Enabled programmatically");
+                eventBus.post("OnBluetoothEnabled", "Enabled programmatically");
             } else {
                 Log.e(TAG, "Failed to enable Bluetooth programmatically");
-                UnityPlayer.UnitySendMessage("BLEPlugin", "OnBluetoothError", "Failed to enable");
+                eventBus.post("OnBluetoothError", "Failed to enable");
             }
         } else if (bluetoothAdapter != null && bluetoothAdapter.isEnabled()) {
             Log.d(TAG, "Bluetooth is already enabled");
-            UnityPlayer.UnitySendMessage("BLEPlugin", "OnBluetoothEnabled", "Already enabled");
+            eventBus.post("OnBluetoothEnabled", "Already enabled");
         } else {
             Log.e(TAG, "Bluetooth adapter is null");
-            UnityPlayer.UnitySendMessage("BLEPlugin", "OnBluetoothError", "Bluetooth not supported");
+            eventBus.post("OnBluetoothError", "Bluetooth not supported");
         }
     }
 
@@ -138,9 +185,9 @@ public class BLEPluginManager {
         try {
             IntentFilter filter = new IntentFilter(BluetoothAdapter.ACTION_STATE_CHANGED);
             context.registerReceiver(bluetoothStateReceiver, filter);
-            UnityPlayer.UnitySendMessage("BLEPlugin", "OnBluetoothStateReceiverEnabled", "ENABLED");
+            eventBus.post("OnBluetoothStateReceiverEnabled", "ENABLED");
         }catch (IllegalArgumentException e) {
-            UnityPlayer.UnitySendMessage("BLEPlugin", "OnBluetoothStateReceiverEnabled", "FAILED");
+            eventBus.post("OnBluetoothStateReceiverEnabled", "FAILED");
         }
     }
 
@@ -150,9 +197,9 @@ public class BLEPluginManager {
     public void disableBluetoothStateReceiver(){
         try {
             context.unregisterReceiver(bluetoothStateReceiver);
-            UnityPlayer.UnitySendMessage("BLEPlugin", "OnBluetoothStateReceiverDisabled", "SUCCESS");
+            eventBus.post("OnBluetoothStateReceiverDisabled", "SUCCESS");
         } catch (IllegalArgumentException e) {
-            UnityPlayer.UnitySendMessage("BLEPlugin", "OnBluetoothStateReceiverDisabled", "FAILED");
+            eventBus.post("OnBluetoothStateReceiverDisabled", "FAILED");
         }
     }
 
@@ -160,9 +207,14 @@ public class BLEPluginManager {
      * Starts the GATT server and begins advertising.
      */
     public void startServer(){
-        if(server != null) {
-            server.startServer();
-        }
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                if(server != null) {
+                    server.startServer();
+                }
+            }
+        });
     }
 
 
@@ -171,9 +223,14 @@ public class BLEPluginManager {
      */
     @SuppressLint("MissingPermission")
     public void stopServer() {
-        if(server != null){
-            server.stopServer();
-        }
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                if(server != null){
+                    server.stopServer();
+                }
+            }
+        });
     }
 
 
@@ -181,9 +238,14 @@ public class BLEPluginManager {
      * Starts scanning for BLE devices.
      */
     public void startScan(){
-        if(scanner != null) {
-            scanner.startScan();
-        }
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                if(scanner != null) {
+                    scanner.startScan();
+                }
+            }
+        });
     }
 
 
@@ -192,53 +254,743 @@ public class BLEPluginManager {
      */
     @SuppressLint("MissingPermission")
     public void stopScan(){
-        if(scanner != null) {
-            scanner.stopScan();
-        }
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                if(scanner != null) {
+                    scanner.stopScan();
+                }
+            }
+        });
+    }
+
+
+    /**
+     * Sets the scan schedule policy, used from the next call to startScan.
+     * @param dutyCycled true to alternate scan windows and idle periods, false to scan continuously at low latency
+     * @param windowMs Length of a scan window
+     * @param idleMs Length of the idle period between windows, 0 to scan continuously
+     * @param adaptive true to pick the scan mode from discovery rate and active GATT connections
+     */
+    public void setScanSchedulePolicy(final boolean dutyCycled, final int windowMs, final int idleMs, final boolean adaptive) {
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                if(scanner != null) {
+                    scanner.setSchedulePolicy(dutyCycled, windowMs, idleMs, adaptive);
+                }
+            }
+        });
+    }
+
+
+    /**
+     * Enables hardware batch scanning for passive discovery. A duty-cycled scan caps the delay at half its scan window.
+     * @param reportDelayMs Report delay in milliseconds, 0 to get a callback per advertisement
+     */
+    public void setScanBatchMode(final int reportDelayMs) {
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                if(scanner != null) {
+                    scanner.setBatchReportDelay(reportDelayMs);
+                }
+            }
+        });
+    }
+
+
+    /**
+     * Configures when an already discovered device is reported to Unity again.
+     * @param rssiThreshold Smoothed RSSI change, in dB, that triggers an update
+     * @param minUpdateIntervalMs Minimum time between two updates of the same device
+     * @param smoothing Weight of a new RSSI sample in the moving average, between 0 and 1
+     */
+    public void setScanDedupPolicy(final int rssiThreshold, final int minUpdateIntervalMs, final float smoothing) {
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                if(scanner != null) {
+                    scanner.setDedupPolicy(rssiThreshold, minUpdateIntervalMs, smoothing);
+                }
+            }
+        });
+    }
+
+
+    /**
+     * Returns details about discovered devices, one entry per device.
+     * @return Array of "name - address" strings
+     */
+    public String[] getDiscoveredDeviceDetails() {
+        return loop.call(new Callable<String[]>() {
+            @Override
+            public String[] call() {
+                return scanner != null ? scanner.getDiscoveredDeviceDetails() : new String[0];
+            }
+        });
+    }
+
+
+    /**
+     * Connects to a specified BLE device, found by the current scan or connected to before.
+     * @param deviceAddress The address of the device to connect to
+     */
+    @SuppressLint("MissingPermission")
+    public void connectToDevice(final String deviceAddress) {
+        connectToDevice(deviceAddress, false);
     }
 
 
     /**
-     * Connects to a specified BLE device.
+     * Connects to a specified BLE device. A device the current scan has not found is connected to
+     * directly by its address, so a device from getKnownDevices can be reconnected at launch without scanning.
+     * This needs the device to keep its address, devices advertising with a rotating private address
+     * are only found again by their address once bonded.
      * @param deviceAddress The address of the device to connect to
+     * @param autoConnect true to let the stack connect whenever the device comes in range, without a timeout
      */
     @SuppressLint("MissingPermission")
-    public void connectToDevice(String deviceAddress) {
-        if(scanner != null) {
-            Map<String, BluetoothDevice> deviceMap = scanner.getDeviceMap();
-            if (client != null && deviceMap.containsKey(deviceAddress)) {
-                client.connectToDevice(deviceMap.get(deviceAddress));
+    public void connectToDevice(final String deviceAddress, final boolean autoConnect) {
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                if(client == null) {
+                    Log.d(TAG, "Client doesn't exist!");
+                    return;
+                }
+                BluetoothDevice device = scanner != null ? scanner.getDeviceMap().get(deviceAddress) : null;
+                if (device == null && BluetoothAdapter.checkBluetoothAddress(deviceAddress)) {
+                    if (client.isKnownDevice(deviceAddress)) {
+                        Log.d(TAG, "Connecting to known device " + deviceAddress + " without scanning for it");
+                    } else {
+                        Log.d(TAG, "Connecting to unknown device " + deviceAddress + " without scanning for it");
+                    }
+                    device = bluetoothAdapter.getRemoteDevice(deviceAddress);
+                }
+                if (device != null) {
+                    client.connectToDevice(device, autoConnect);
+                }
+                else{
+                    Log.d(TAG, "Invalid device address " + deviceAddress);
+                }
             }
-            else{
-                Log.d(TAG, "Client or DeviceMap doesn't exist!");
+        });
+    }
+
+
+    /**
+     * Returns the devices the client connected to before, kept across launches.
+     * @return JSON strings {"name":"...","address":"...","lastSeenMs":n}, most recently seen first
+     */
+    public String[] getKnownDevices() {
+        return loop.call(new Callable<String[]>() {
+            @Override
+            public String[] call() {
+                return client != null ? client.getKnownDevices() : new String[0];
             }
-        }
-        else{
-            Log.d(TAG, "Scanner doesn't exist!");
-        }
+        });
+    }
+
+
+    /**
+     * Removes a device from the devices connected to before.
+     * @param deviceAddress The address of the device
+     * @return true if the device was known
+     */
+    public boolean forgetKnownDevice(final String deviceAddress) {
+        return loop.call(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return client != null && client.forgetKnownDevice(deviceAddress);
+            }
+        });
     }
 
 
     /**
-     * Stops the GATT client.
+     * Stops the GATT client, disconnecting from every connected device.
      */
     @SuppressLint("MissingPermission")
     public void stopClient() {
-        if(client != null) {
-            client.stopClient();
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                if(client != null) {
+                    client.stopClient();
+                }
+            }
+        });
+    }
+
+
+    /**
+     * Disconnects the GATT client from a single device.
+     * @param deviceAddress The address of the device to disconnect from
+     */
+    @SuppressLint("MissingPermission")
+    public void disconnectDevice(final String deviceAddress) {
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                if(client != null) {
+                    client.disconnectDevice(deviceAddress);
+                }
+            }
+        });
+    }
+
+
+    /**
+     * Sets how many devices the GATT client may be connected to at once.
+     * @param maxConnections Maximum number of concurrent connections
+     */
+    public void setMaxClientConnections(final int maxConnections) {
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                if(client != null) {
+                    client.setMaxConnections(maxConnections);
+                }
+            }
+        });
+    }
+
+
+    /**
+     * Enables or disables the automatic reconnection of lost client links, including failed connection attempts.
+     * A lost link is retried with exponential backoff and jitter: the stale GATT handle is closed, a new one is
+     * created, MTU and notifications are set up again, and the messages still queued are sent once it is ready.
+     * Messages sent while the link is down are queued, bounded by setSendBufferPolicy. A link dropped after
+     * OnLinkFailed, because its writes keep failing, is reconnected the same way.
+     * Events: OnReconnectAttempt {"address","attempt","maxAttempts","delayMs","status"} before every attempt,
+     * OnReconnected {"address","attempts","downtimeMs"} once the link is ready again, and OnReconnectFailed
+     * followed by OnDeviceDisconnected when the attempts are used up. OnDeviceDisconnected is not posted before that.
+     * @param enabled true to reconnect lost links
+     * @param maxAttempts Attempts before giving up
+     * @param initialDelayMs Backoff before the first attempt, doubled after every failed one
+     * @param maxDelayMs Largest backoff
+     */
+    public void setReconnectPolicy(final boolean enabled, final int maxAttempts, final int initialDelayMs, final int maxDelayMs) {
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                if(client != null) {
+                    client.setReconnectPolicy(enabled, maxAttempts, initialDelayMs, maxDelayMs);
+                }
+            }
+        });
+    }
+
+
+    /**
+     * Returns the addresses of the devices the GATT client is connected or connecting to.
+     * @return Array of device addresses
+     */
+    public String[] getClientConnections() {
+        return loop.call(new Callable<String[]>() {
+            @Override
+            public String[] call() {
+                return client != null ? client.getConnectedAddresses() : new String[0];
+            }
+        });
+    }
+
+
+    /**
+     * Sends data to every connected GATT server.
+     * @param data The data to send
+     */
+    @SuppressLint("MissingPermission")
+    public void sendDataToServer(final String data) {
+        awaitSendRoom(clientSendGate);
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                if(client != null) {
+                    client.sendDataToServer(data);
+                }
+            }
+        });
+    }
+
+
+    /**
+     * Sends data to a single connected GATT server.
+     * @param deviceAddress The address of the device to send to
+     * @param data The data to send
+     * @return true if the device is connected and the data was queued
+     */
+    @SuppressLint("MissingPermission")
+    public boolean sendDataToDevice(final String deviceAddress, final String data) {
+        awaitDeviceSendRoom(deviceAddress);
+        return loop.call(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return client != null && client.sendDataToDevice(deviceAddress, data);
+            }
+        });
+    }
+
+
+    /**
+     * Sends raw bytes to every connected GATT server.
+     * @param data The bytes to send
+     */
+    public void sendBytesToServer(byte[] data) {
+        if (data.length > 0) {
+            sendFrameToServer(compressor.encodeBinary(data));
         }
     }
 
 
     /**
-     * Sends data to the GATT server.
+     * Sends the remaining bytes of a heap or direct buffer to every connected GATT server.
+     * The bytes are copied before this call returns, so the buffer can be reused right away.
+     * @param data The bytes to send
+     */
+    public void sendBytesToServer(ByteBuffer data) {
+        if (data.hasRemaining()) {
+            sendFrameToServer(compressor.encodeBinary(data));
+        }
+    }
+
+
+    private void sendFrameToServer(final byte[] frame) {
+        awaitSendRoom(clientSendGate);
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                if(client != null) {
+                    client.sendFrameToServer(frame);
+                }
+            }
+        });
+    }
+
+
+    /**
+     * Sends raw bytes to a single connected GATT server.
+     * @param deviceAddress The address of the device to send to
+     * @param data The bytes to send
+     * @return true if the device is connected and the data was queued
+     */
+    public boolean sendBytesToDevice(final String deviceAddress, byte[] data) {
+        if (data.length == 0) {
+            return false;
+        }
+        final byte[] frame = compressor.encodeBinary(data);
+        awaitDeviceSendRoom(deviceAddress);
+        return loop.call(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return client != null && client.sendFrameToDevice(deviceAddress, frame);
+            }
+        });
+    }
+
+
+    /**
+     * Sends a control message to the GATT server, always acknowledged chunk by chunk.
      * @param data The data to send
      */
     @SuppressLint("MissingPermission")
-    public void sendDataToServer(String data) {
-        if(client != null) {
-            client.sendDataToServer(data);
+    public void sendControlToServer(final String data) {
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                if(client != null) {
+                    client.sendDataToServer(data, true);
+                }
+            }
+        });
+    }
+
+
+    /**
+     * Enables or disables the client streaming mode, which sends data as writes without response.
+     * @param enabled true to stream, false to acknowledge every chunk
+     * @param maxInFlight Maximum number of unconfirmed writes in streaming mode
+     */
+    public void setClientStreamingMode(final boolean enabled, final int maxInFlight) {
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                if(client != null) {
+                    client.setStreamingMode(enabled, maxInFlight);
+                }
+            }
+        });
+    }
+
+
+    /**
+     * Enables or disables reliable mode on the client and the server, for connections made afterwards.
+     * Chunks carry sequence numbers and are retransmitted on timeout or when the peer reports a gap,
+     * so a failed write no longer corrupts the message. Both devices must enable it before connecting.
+     * Posts OnLinkFailed with the device JSON if a chunk cannot be delivered and the link is dropped,
+     * which also happens in the other modes when the stack keeps refusing a chunk.
+     * @param enabled true to deliver reliably
+     * @param windowSize Maximum number of unacknowledged chunks per connection, up to 32
+     */
+    public void setReliableMode(final boolean enabled, final int windowSize) {
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                if(client != null) {
+                    client.setReliableMode(enabled, windowSize);
+                }
+
+
+                if(server != null) {
+                    server.setReliableMode(enabled, windowSize);
+                }
+            }
+        });
+    }
+
+
+    /**
+     * Enables or disables adaptive link tuning on the client and the server.
+     * When a link's outbound queue backs up or a bulk message is queued, the client raises the connection
+     * priority to high and both sides ask for the 2M PHY, so bursts get short connection intervals.
+     * After idleMs without traffic the client drops back to balanced, or to low power if lowPowerWhenIdle,
+     * trading the latency of the next message for battery. The 2M PHY is kept.
+     * Posts OnLinkParametersChanged with {"address":"...","priority":"high","txPhy":2,"rxPhy":2,"intervalMs":15.0,...}
+     * whenever the stack reports a new PHY or connection interval.
+     * @param enabled true to adapt the links to their traffic
+     * @param backlogBytes Queued bytes from which a link is boosted
+     * @param bulkBytes Message size from which a link is boosted right away
+     * @param idleMs Time without traffic after which the boost ends
+     * @param lowPowerWhenIdle true to drop to low power instead of balanced
+     */
+    public void setLinkTuning(final boolean enabled, final int backlogBytes, final int bulkBytes, final int idleMs, final boolean lowPowerWhenIdle) {
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                if(client != null) {
+                    client.setLinkTuning(enabled, backlogBytes, bulkBytes, idleMs, lowPowerWhenIdle);
+                }
+
+
+                if(server != null) {
+                    server.setLinkTuning(enabled, backlogBytes, bulkBytes, idleMs);
+                }
+            }
+        });
+    }
+
+
+    /**
+     * Returns the radio parameters of a link: the requested priority and the PHY and interval in effect.
+     * @param address Address of a connected server or client
+     * @return JSON string of the parameters, or null if the device is not connected
+     */
+    public String getLinkParameters(final String address) {
+        return loop.call(new Callable<String>() {
+            @Override
+            public String call() {
+                String parameters = client != null ? client.getLinkParametersJson(address) : null;
+                if (parameters == null && server != null) {
+                    parameters = server.getLinkParametersJson(address);
+                }
+                return parameters;
+            }
+        });
+    }
+
+
+    /**
+     * Enables or disables the L2CAP stream fast path on the client and the server.
+     * The server listens on an L2CAP connection-oriented channel and publishes its PSM over GATT,
+     * and the client opens a stream to it after connecting. Messages from thresholdBytes on are then
+     * written to the stream, without ATT overhead or write round trips, which makes asset and replay
+     * transfers several times faster. Smaller messages and channels keep using the characteristic,
+     * so a large message may arrive before smaller ones sent earlier.
+     * Set it before starting the server and connecting. Needs Android 10 on both devices,
+     * otherwise or if the stream fails, everything falls back to GATT.
+     * Posts OnStreamOpened and OnStreamClosed with the device JSON.
+     * @param enabled true to use streams where available
+     * @param thresholdBytes Encoded message size from which a message takes the stream
+     */
+    public void setStreamMode(final boolean enabled, final int thresholdBytes) {
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                if(client != null) {
+                    client.setStreamEnabled(enabled, thresholdBytes);
+                }
+
+
+                if(server != null) {
+                    server.setStreamEnabled(enabled, thresholdBytes);
+                }
+            }
+        });
+    }
+
+
+    /**
+     * Returns whether this device can use the L2CAP stream fast path.
+     * @return true on Android 10 and later
+     */
+    public boolean isStreamSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q;
+    }
+
+
+    /**
+     * Enables or disables coalescing of small messages on the client and the server.
+     * Messages smaller than the threshold wait up to lingerMs for more to share a packet with,
+     * so a burst of small messages takes a few full packets instead of one packet each.
+     * The receiver splits them up again without any setting. Large messages and urgent ones are sent right away.
+     * The metrics report the coalescingRatio, the average number of messages starting in a packet.
+     * @param enabled true to pack small messages into shared packets
+     * @param lingerMs Time a small message may wait, 0 to only pack messages already queued
+     * @param thresholdBytes Queued bytes that send at once, and the size from which a message is never held, 0 for one packet
+     */
+    public void setCoalescingMode(final boolean enabled, final int lingerMs, final int thresholdBytes) {
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                if(client != null) {
+                    client.setCoalescing(enabled, lingerMs, thresholdBytes);
+                }
+
+
+                if(server != null) {
+                    server.setCoalescing(enabled, lingerMs, thresholdBytes);
+                }
+            }
+        });
+    }
+
+
+    /**
+     * Limits the bytes queued for each connection of the client and the server, so a game sending
+     * faster than the link can carry does not grow the queue and its latency without bound.
+     * OnSendBufferHigh is posted when a queue reaches three quarters of the capacity and OnSendBufferDrained
+     * when it is back to a quarter, both with {"address":"...","queuedBytes":n,"capacity":n,"messagesDropped":n}.
+     * A message that does not fit is handled according to the policy:
+     * 0 rejects it, 1 drops the oldest queued messages that have not started sending,
+     * 2 blocks the calling thread from the high watermark until the queue drains or maxBlockMs passes, then rejects what still does not fit.
+     * A send to a single device waits for that device's queue only, a send to every device waits while any queue is filling up.
+     * Dropped and rejected messages are counted as messagesDropped in the metrics.
+     * @param capacityBytes Capacity of each connection's queue in bytes, 0 for no limit
+     * @param policy 0 to reject, 1 to drop the oldest, 2 to block
+     * @param maxBlockMs Longest time a send blocks with policy 2
+     */
+    public void setSendBufferPolicy(final int capacityBytes, final int policy, final int maxBlockMs) {
+        this.maxBlockMs = Math.max(0, maxBlockMs);
+        blockWhenFull = policy == LinkEndpoint.OVERFLOW_BLOCK;
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                if(client != null) {
+                    client.setSendBuffer(capacityBytes, policy);
+                }
+
+
+                if(server != null) {
+                    server.setSendBuffer(capacityBytes, policy);
+                }
+            }
+        });
+    }
+
+
+    /**
+     * Waits while a send buffer behind the gate is above its high watermark, in block mode only,
+     * for sends to every device. The event loop itself never waits, it is the thread draining the buffers.
+     */
+    private void awaitSendRoom(SendGate gate) {
+        if (blockWhenFull && gate != null && !loop.isLoopThread()) {
+            gate.await(maxBlockMs);
+        }
+    }
+
+
+    /**
+     * Waits while the send buffer of a single connected GATT server is above its high watermark, in block
+     * mode only. A full buffer towards another device does not hold up the send.
+     */
+    private void awaitDeviceSendRoom(final String deviceAddress) {
+        if (!blockWhenFull || loop.isLoopThread()) {
+            return;
+        }
+        SendGate gate = loop.call(new Callable<SendGate>() {
+            @Override
+            public SendGate call() {
+                return client != null ? client.getSendGate(deviceAddress) : null;
+            }
+        });
+        if (gate != null) {
+            gate.await(maxBlockMs);
+        }
+    }
+
+
+    /**
+     * Sends data to every connected GATT server without waiting for coalescing, along with any small messages held back.
+     * @param data The data to send
+     */
+    public void sendUrgentDataToServer(final String data) {
+        awaitSendRoom(clientSendGate);
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                if(client != null) {
+                    client.sendUrgentDataToServer(data);
+                }
+            }
+        });
+    }
+
+
+    /**
+     * Sends data to all connected clients without waiting for coalescing, along with any small messages held back.
+     * @param data The data to send
+     */
+    public void sendUrgentDataToClient(final String data) {
+        awaitSendRoom(serverSendGate);
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                if(server != null) {
+                    server.sendUrgentDataToClient(data);
+                }
+            }
+        });
+    }
+
+
+    /**
+     * Enables or disables logical channels on the client and the server, for connections made afterwards.
+     * Messages on different channels are interleaved chunk by chunk and reassembled separately, so a
+     * message on a heavily weighted channel is not stuck behind a large transfer on another one.
+     * Channel 0 carries the regular data methods. Both devices must enable channels before connecting.
+     * Messages on other channels arrive as OnChannelDataReceivedFromServer and OnChannelDataReceivedFromClient
+     * with {"address":"...","channel":n,"data":"..."}, binary data is Base64 with "binary":true.
+     * @param enabled true to multiplex channels
+     */
+    public void setChannelsEnabled(final boolean enabled) {
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                if(client != null) {
+                    client.setChannelsEnabled(enabled);
+                }
+
+
+                if(server != null) {
+                    server.setChannelsEnabled(enabled);
+                }
+            }
+        });
+    }
+
+
+    /**
+     * Opens a logical channel on the client and the server, or changes its weight.
+     * While several channels have data queued, each gets a share of the link proportional to its weight,
+     * so latency sensitive channels should get a high weight and bulk transfers a low one.
+     * @param channel Channel id, 0 to 255
+     * @param weight Relative weight, 1 to 1000
+     */
+    public void openChannel(final int channel, final int weight) {
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                if(client != null) {
+                    client.openChannel(channel, weight);
+                }
+
+
+                if(server != null) {
+                    server.openChannel(channel, weight);
+                }
+            }
+        });
+    }
+
+
+    /**
+     * Sends data on a logical channel to every connected GATT server.
+     * @param channel Channel id
+     * @param data The data to send
+     */
+    public void sendChannelDataToServer(final int channel, final String data) {
+        awaitSendRoom(clientSendGate);
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                if(client != null) {
+                    client.sendDataOnChannel(channel, data);
+                }
+            }
+        });
+    }
+
+
+    /**
+     * Sends raw bytes on a logical channel to every connected GATT server.
+     * @param channel Channel id
+     * @param data The bytes to send
+     */
+    public void sendChannelBytesToServer(final int channel, byte[] data) {
+        if (data.length == 0) {
+            return;
         }
+        final byte[] frame = compressor.encodeBinary(data);
+        awaitSendRoom(clientSendGate);
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                if(client != null) {
+                    client.sendFrameOnChannel(channel, frame);
+                }
+            }
+        });
+    }
+
+
+    /**
+     * Sends data on a logical channel to all connected clients.
+     * @param channel Channel id
+     * @param data The data to send
+     */
+    public void sendChannelDataToClient(final int channel, final String data) {
+        awaitSendRoom(serverSendGate);
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                if(server != null) {
+                    server.sendDataOnChannel(channel, data);
+                }
+            }
+        });
+    }
+
+
+    /**
+     * Sends raw bytes on a logical channel to all connected clients.
+     * @param channel Channel id
+     * @param data The bytes to send
+     */
+    public void sendChannelBytesToClient(final int channel, byte[] data) {
+        if (data.length == 0) {
+            return;
+        }
+        final byte[] frame = compressor.encodeBinary(data);
+        awaitSendRoom(serverSendGate);
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                if(server != null) {
+                    server.sendFrameOnChannel(channel, frame);
+                }
+            }
+        });
     }
 
 
@@ -247,10 +999,221 @@ public class BLEPluginManager {
      * @param data The data to send
      */
     @SuppressLint("MissingPermission")
-    public void sendDataToClient(String data) {
-        if(server != null) {
-            server.sendDataToClient(data);
+    public void sendDataToClient(final String data) {
+        awaitSendRoom(serverSendGate);
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                if(server != null) {
+                    server.sendDataToClient(data);
+                }
+            }
+        });
+    }
+
+
+    /**
+     * Sends raw bytes to all connected clients.
+     * @param data The bytes to send
+     */
+    public void sendBytesToClient(byte[] data) {
+        if (data.length > 0) {
+            sendFrameToClient(compressor.encodeBinary(data));
         }
     }
 
+
+    /**
+     * Sends the remaining bytes of a heap or direct buffer to all connected clients.
+     * The bytes are copied before this call returns, so the buffer can be reused right away.
+     * @param data The bytes to send
+     */
+    public void sendBytesToClient(ByteBuffer data) {
+        if (data.hasRemaining()) {
+            sendFrameToClient(compressor.encodeBinary(data));
+        }
+    }
+
+
+    private void sendFrameToClient(final byte[] frame) {
+        awaitSendRoom(serverSendGate);
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                if(server != null) {
+                    server.sendFrameToClient(frame);
+                }
+            }
+        });
+    }
+
+
+    /**
+     * Sets the listener receiving binary messages as raw bytes, on both the client and the server.
+     * Without a listener binary messages arrive as OnBinaryDataReceivedFromServer and
+     * OnBinaryDataReceivedFromClient events with a Base64 payload.
+     * @param listener The listener, called on the BLE event loop thread, or null
+     */
+    public void setBinaryDataListener(final BinaryDataListener listener) {
+        binaryDataListener = listener;
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                if(server != null) {
+                    server.setBinaryDataListener(listener);
+                }
+                if(client != null) {
+                    client.setBinaryDataListener(listener);
+                }
+            }
+        });
+    }
+
+
+    /**
+     * Configures compression of outgoing messages, on both the client and the server.
+     * Messages are only sent compressed when that makes them smaller, and received compressed
+     * messages are always decompressed before they reach Unity.
+     * @param enabled true to compress messages that benefit from it
+     * @param minSize Smallest message size, in bytes, worth trying to compress
+     * @param level Deflate level, from 1 (fastest) to 9 (smallest)
+     */
+    public void setCompression(boolean enabled, int minSize, int level) {
+        compressor.configure(enabled, minSize, level);
+    }
+
+
+    /**
+     * Returns the compression statistics of the messages sent so far.
+     * @return JSON string with message counts, bytes before and after compression, ratio and time spent
+     */
+    public String getCompressionStats() {
+        return Utils.getCompressionJson(compressor);
+    }
+
+
+    /**
+     * Returns a snapshot of the runtime metrics of the client, the server and the scanner:
+     * byte and chunk counts, throughput and scan rates since the previous snapshot, queue depths,
+     * refused and failed writes, and chunk write and message latency percentiles in microseconds,
+     * in total and per connection.
+     * @return JSON string with the metrics snapshot
+     */
+    public String getMetrics() {
+        return loop.call(new Callable<String>() {
+            @Override
+            public String call() {
+                return PayloadJson.getMetricsJson((loop.nanoTime() - initNanos) / 1000000,
+                        client != null ? client.getMetricsJson() : null,
+                        server != null ? server.getMetricsJson() : null,
+                        scanner != null ? scanner.getMetricsJson() : null);
+            }
+        });
+    }
+
+
+    /**
+     * Switches event delivery to Unity between immediate and batched mode.
+     * Batches arrive as OnEventBatch with {"events":[{"method":"...","payload":"..."}, ...]}.
+     * @param batched true to coalesce events and deliver them in batches
+     * @param flushIntervalMs Maximum time an event waits before being flushed
+     * @param maxBatchSize Maximum number of events per batch
+     * @param maxPendingEvents Number of pending events that forces an early flush
+     */
+    public void setEventDeliveryMode(boolean batched, int flushIntervalMs, int maxBatchSize, int maxPendingEvents) {
+        eventBus.configure(batched, flushIntervalMs, maxBatchSize, maxPendingEvents);
+    }
+
+
+    /**
+     * Returns the next batch of pending events, so Unity can pull them once per frame.
+     * @return Batch JSON, or null if no event is pending
+     */
+    public String pollEventBatch() {
+        return eventBus.pollBatch();
+    }
+
+
+    /**
+     * Returns the effective ATT MTU of a client connection.
+     * @param deviceAddress Address of the connected device
+     * @return MTU in bytes
+     */
+    public int getClientMtu(final String deviceAddress) {
+        return loop.call(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return client != null ? client.getMtu(deviceAddress) : AttMtu.DEFAULT_MTU;
+            }
+        });
+    }
+
+
+    /**
+     * Returns the transfer statistics of a client connection.
+     * @param deviceAddress Address of the connected device
+     * @return JSON string with the session statistics, or null if the device is not connected
+     */
+    public String getClientSessionStats(final String deviceAddress) {
+        return loop.call(new Callable<String>() {
+            @Override
+            public String call() {
+                if (client == null) {
+                    return null;
+                }
+                PeerSession session = client.getSession(deviceAddress);
+                return session != null ? Utils.getSessionJson(session) : null;
+            }
+        });
+    }
+
+
+    /**
+     * Returns the effective ATT MTU negotiated by a client connected to the server.
+     * @param deviceAddress Address of the connected client
+     * @return MTU in bytes
+     */
+    public int getServerMtu(final String deviceAddress) {
+        return loop.call(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return server != null ? server.getMtu(deviceAddress) : AttMtu.DEFAULT_MTU;
+            }
+        });
+    }
+
+
+    /**
+     * Returns the number of messages still queued for a client connected to the server.
+     * @param deviceAddress Address of the connected client
+     * @return Queue depth in messages
+     */
+    public int getServerQueueDepth(final String deviceAddress) {
+        return loop.call(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return server != null ? server.getQueueDepth(deviceAddress) : 0;
+            }
+        });
+    }
+
+
+    /**
+     * Returns the transfer statistics of a client connected to the server.
+     * @param deviceAddress Address of the connected client
+     * @return JSON string with the session statistics, or null if the client is not connected
+     */
+    public String getServerSessionStats(final String deviceAddress) {
+        return loop.call(new Callable<String>() {
+            @Override
+            public String call() {
+                if (server == null) {
+                    return null;
+                }
+                PeerSession session = server.getSession(deviceAddress);
+                return session != null ? Utils.getSessionJson(session) : null;
+            }
+        });
+    }
+
 }
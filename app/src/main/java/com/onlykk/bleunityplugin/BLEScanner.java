@@ -3,16 +3,17 @@ package com.onlykk.bleunityplugin;
 import android.annotation.SuppressLint;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothManager;
+import android.bluetooth.BluetoothProfile;
 import android.bluetooth.le.BluetoothLeScanner;
 import android.bluetooth.le.ScanCallback;
 import android.bluetooth.le.ScanFilter;
 import android.bluetooth.le.ScanResult;
 import android.bluetooth.le.ScanSettings;
 import android.os.ParcelUuid;
+import android.os.SystemClock;
 import android.util.Log;
 
-import com.unity3d.player.UnityPlayer;
-
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -21,16 +22,76 @@ import java.util.Map;
 public class BLEScanner {
 
     private static final String TAG = "BLEScanner";
+    private BluetoothAdapter bluetoothAdapter;
     private BluetoothLeScanner bluetoothLeScanner;
 
-    private List<String[]> discoveredDevices = new ArrayList<>();
+    // Hardware batching report delay, 0 for a callback per advertisement
+    private long batchReportDelayMs = 0;
+
+    // One entry per discovered address, with smoothed RSSI and rate-limited updates
+    private final ScanDeduplicator discoveredDevices = new ScanDeduplicator();
 
     private boolean scanning = false;
+    // Whether the running scan buffers its results in the controller
+    private boolean batching = false;
 
+    // Scanner state is confined to the event loop thread, scan callbacks are posted onto it
     private Map<String, BluetoothDevice> deviceMap = new HashMap<>();
 
-    BLEScanner(BluetoothAdapter bluetoothAdapter){
+    private final UnityEventBus eventBus;
+    private final BleEventLoop loop;
+
+    // Alternates scan windows and idle periods when duty cycling is enabled
+    private final ScanScheduler scheduler;
+    private boolean dutyCycled = false;
+
+    // Scan callbacks, a batch counts once, results and devices reported to Unity since creation
+    private long scanCallbacks;
+    private long scanResults;
+    private long devicesReported;
+    private final RateMeter callbackRate;
+    private final RateMeter resultRate;
+
+    BLEScanner(final BluetoothManager bluetoothManager, UnityEventBus eventBus, final BleEventLoop loop){
+        this.bluetoothAdapter = bluetoothManager.getAdapter();
         bluetoothLeScanner = bluetoothAdapter.getBluetoothLeScanner();
+        this.eventBus = eventBus;
+        this.loop = loop;
+        this.callbackRate = new RateMeter(loop.nanoTime());
+        this.resultRate = new RateMeter(loop.nanoTime());
+        this.scheduler = new ScanScheduler(new ScanScheduler.Host() {
+            @Override
+            public void startScan(int scanMode) {
+                scanLeDevice(scanMode);
+            }
+
+            @Override
+            public void stopScan() {
+                stopLeScan();
+            }
+
+            @Override
+            public void schedule(Runnable task, long delayMs) {
+                loop.schedule(task, delayMs);
+            }
+
+            @Override
+            public void cancel(Runnable task) {
+                loop.cancel(task);
+            }
+
+            @SuppressLint("MissingPermission")
+            @Override
+            public int getActiveConnectionCount() {
+                return bluetoothManager.getConnectedDevices(BluetoothProfile.GATT).size()
+                        + bluetoothManager.getConnectedDevices(BluetoothProfile.GATT_SERVER).size();
+            }
+        }, new ScanScheduler.Clock() {
+            @Override
+            public long nowMs() {
+                return SystemClock.elapsedRealtime();
+            }
+        });
     }
 
     /**
@@ -39,15 +100,22 @@ public class BLEScanner {
     public void startScan(){
         if(bluetoothLeScanner != null) {
             discoveredDevices.clear();
-            scanLeDevice();
+            // Every start goes through the scheduler, which keeps them within the platform limit
+            if (dutyCycled) {
+                scheduler.start();
+            } else {
+                scheduler.startContinuous();
+            }
+            eventBus.post("OnScanStarted", "");
         }
     }
 
     /**
      * Scans for BLE devices.
+     * @param scanMode One of the ScanSettings.SCAN_MODE_* constants
      */
     @SuppressLint("MissingPermission")
-    private void scanLeDevice() {
+    private void scanLeDevice(int scanMode) {
 
         scanning = true;
         // Set up scan filters
@@ -55,62 +123,158 @@ public class BLEScanner {
         ScanFilter filter = new ScanFilter.Builder().setServiceUuid(new ParcelUuid(BLEPluginManager.SERVICE_UUID)).build();
         filters.add(filter);
 
-        ScanSettings settings = new ScanSettings.Builder()
-                .setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY)
-                .build();
+        ScanSettings.Builder settingsBuilder = new ScanSettings.Builder()
+                .setScanMode(scanMode);
+        batching = false;
+        if (batchReportDelayMs > 0) {
+            if (bluetoothAdapter.isOffloadedScanBatchingSupported()) {
+                // The controller buffers results and the app CPU can sleep between reports
+                settingsBuilder.setReportDelay(getEffectiveReportDelay());
+                batching = true;
+            } else {
+                Log.d(TAG, "Offloaded scan batching not supported, scanning per advertisement");
+            }
+        }
+        ScanSettings settings = settingsBuilder.build();
 
         bluetoothLeScanner.startScan(filters, settings, leScanCallback);
-        UnityPlayer.UnitySendMessage("BLEPlugin", "OnScanStarted", "" );
     }
 
     /**
      * Stops the BLE device scan.
      */
-    @SuppressLint("MissingPermission")
     public void stopScan(){
+        scheduler.stop();
+    }
+
+    @SuppressLint("MissingPermission")
+    private void stopLeScan() {
         if (scanning && bluetoothLeScanner != null) {
             scanning = false;
+            if (batching) {
+                // Results still buffered in the controller are discarded by stopScan
+                bluetoothLeScanner.flushPendingScanResults(leScanCallback);
+                batching = false;
+            }
             bluetoothLeScanner.stopScan(leScanCallback);
         }
     }
 
+    /**
+     * Returns the report delay the scan uses. A duty-cycled scan reports at least twice per window,
+     * so the discovery rate of the window sees its results.
+     * @return Report delay in milliseconds
+     */
+    private long getEffectiveReportDelay() {
+        if (!scheduler.isContinuous()) {
+            return Math.max(1, Math.min(batchReportDelayMs, scheduler.getWindowMs() / 2));
+        }
+        return batchReportDelayMs;
+    }
+
+    /**
+     * Sets the scan schedule policy. Applies from the next call to startScan.
+     * @param dutyCycled true to alternate scan windows and idle periods, false to scan continuously at low latency
+     * @param windowMs Length of a scan window
+     * @param idleMs Length of the idle period between windows, 0 to scan continuously
+     * @param adaptive true to pick the scan mode from discovery rate and active GATT connections
+     */
+    public void setSchedulePolicy(boolean dutyCycled, long windowMs, long idleMs, boolean adaptive) {
+        this.dutyCycled = dutyCycled;
+        scheduler.setPolicy(windowMs, idleMs, adaptive);
+    }
+
     /**
      * Callback for BLE scan results.
      */
     @SuppressLint("MissingPermission")
     private final ScanCallback leScanCallback = new ScanCallback() {
         @Override
-        public void onScanResult(int callbackType, ScanResult result) {
+        public void onScanResult(int callbackType, final ScanResult result) {
             super.onScanResult(callbackType, result);
-            BluetoothDevice device = result.getDevice();
             // Check if the device has the required characteristic
             // if (hasRequiredServiceAndCharacteristic(result)) {
-            Log.d(TAG, "Found Device " + device.getName() + " :" + device.getAddress());
-            String address = device.getAddress();
-            deviceMap.put(address, device);
-            //String deviceItem = device.getName() + " - " + device.getAddress();
-            String deviceItem = Utils.getDeviceJson(device);
-            UnityPlayer.UnitySendMessage("BLEPlugin", "UpdateDeviceList", deviceItem);
-            discoveredDevices.add(new String[]{device.getName(), device.getAddress()});
+            loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    scanCallbacks++;
+                    processScanResult(result);
+                }
+            });
             //  }
         }
 
         @Override
-        public void onBatchScanResults(List<ScanResult> results) {
+        public void onBatchScanResults(final List<ScanResult> results) {
             super.onBatchScanResults(results);
-            // Handle batch scan results
+            // A whole batch goes through the same dedup and dispatch pipeline in one pass
+            loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    scanCallbacks++;
+                    for (ScanResult result : results) {
+                        processScanResult(result);
+                    }
+                }
+            });
         }
 
         @Override
         public void onScanFailed(int errorCode) {
             super.onScanFailed(errorCode);
             // Handle scan failure
-            UnityPlayer.UnitySendMessage("BLEPlugin", "OnScanFailed", String.valueOf(errorCode));
+            eventBus.post("OnScanFailed", String.valueOf(errorCode));
 
         }
     };
 
 
+    /**
+     * Records a scan result and reports the device to Unity if it changed.
+     * @param result The scan result
+     */
+    @SuppressLint("MissingPermission")
+    private void processScanResult(ScanResult result) {
+        scanResults++;
+        BluetoothDevice device = result.getDevice();
+        String address = device.getAddress();
+        deviceMap.put(address, device);
+        // Batched results carry the time they were received, not the time they are delivered
+        long timestampMs = result.getTimestampNanos() / 1000000L;
+        ScanDeduplicator.Entry entry = discoveredDevices.onAdvertisement(address, device.getName(), result.getRssi(), timestampMs);
+        if (entry != null) {
+            Log.d(TAG, "Found Device " + entry.getName() + " :" + address + " rssi " + entry.getRssi());
+            String deviceItem = Utils.getDeviceJson(device, entry.getRssi());
+            eventBus.post("UpdateDeviceList", address, deviceItem);
+            devicesReported++;
+            scheduler.onDeviceReported();
+        }
+    }
+
+    /**
+     * Returns the scan callback and result counts, with their rates since the previous call.
+     * @return JSON string representing the scanner metrics
+     */
+    public String getMetricsJson() {
+        long now = loop.nanoTime();
+        return PayloadJson.getScanMetricsJson(scanCallbacks, scanResults, devicesReported,
+                callbackRate.sample(scanCallbacks, now), resultRate.sample(scanResults, now));
+    }
+
+    /**
+     * Sets the hardware batching report delay. A continuous scan is restarted with the new setting once the
+     * scan start limit allows, a duty-cycled scan picks it up from its next window, capped at half the scan window.
+     * Falls back to a callback per advertisement when offloaded batching is not supported.
+     * @param reportDelayMs Report delay in milliseconds, 0 to disable batching
+     */
+    @SuppressLint("MissingPermission")
+    public void setBatchReportDelay(long reportDelayMs) {
+        batchReportDelayMs = Math.max(0, reportDelayMs);
+        if (scheduler.isRunning() && scheduler.isContinuous()) {
+            scheduler.restart();
+        }
+    }
+
     /**
      * Returns a list of details about discovered devices.
      * @return Array of device details
@@ -127,9 +291,19 @@ public class BLEScanner {
      */
     public String[] getDiscoveredDeviceDetails() {
         List<String> deviceDetails = new ArrayList<>();
-        for (String[] device : discoveredDevices) {
-            deviceDetails.add(device[0] + " - " + device[1]);
+        for (ScanDeduplicator.Entry device : discoveredDevices.getEntries()) {
+            deviceDetails.add(device.getName() + " - " + device.getAddress());
         }
         return deviceDetails.toArray(new String[0]);
     }
+
+    /**
+     * Configures when an already discovered device is reported to Unity again.
+     * @param rssiThreshold Smoothed RSSI change, in dB, that triggers an update
+     * @param minUpdateIntervalMs Minimum time between two updates of the same device
+     * @param smoothing Weight of a new RSSI sample in the moving average, between 0 and 1
+     */
+    public void setDedupPolicy(int rssiThreshold, long minUpdateIntervalMs, float smoothing) {
+        discoveredDevices.configure(rssiThreshold, minUpdateIntervalMs, smoothing);
+    }
 }
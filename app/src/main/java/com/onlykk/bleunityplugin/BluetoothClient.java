@@ -8,112 +8,894 @@ import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothProfile;
+import android.bluetooth.BluetoothSocket;
+import android.bluetooth.BluetoothStatusCodes;
 import android.bluetooth.le.ScanRecord;
 import android.bluetooth.le.ScanResult;
 import android.content.Context;
+import android.os.Build;
 import android.os.ParcelUuid;
+import android.util.Base64;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.RequiresApi;
+import java.io.File;
+import java.io.IOException;
 
-import com.unity3d.player.UnityPlayer;
-
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Queue;
+import java.util.HashMap;
+import java.util.Map;
 
 public class BluetoothClient {
 
 
     private static final String TAG = "ClientManager";
 
-    private BluetoothGatt bluetoothGatt;
-    private BluetoothDevice deviceConnected;
+    // Concurrent connections allowed unless configured otherwise
+    public static final int DEFAULT_MAX_CONNECTIONS = 4;
+    // Devices connected to before, in the no backup files directory so it is not restored to another phone
+    static final String KNOWN_DEVICES_FILE = "ble_known_devices.bin";
+    // Delay before saving the known devices after a connection, the connections made meanwhile share the write
+    private static final long KNOWN_DEVICES_SAVE_DELAY_MS = 5000;
+
+    /**
+     * A link to one peripheral: its GATT handle, its session with write queue, MTU and
+     * reassembly buffer, and its own endpoint pumping writes, so every link progresses independently.
+     * Characteristic writes are the transport of the endpoint, or of the reliable layer in reliable mode.
+     * Large messages take the L2CAP stream instead while one is open.
+     * A lost link keeps its connection and queued messages while it is reconnected.
+     */
+    private final class Connection implements Transport {
+        final BluetoothDevice device;
+        final PeerSession session;
+        final LinkEndpoint link;
+        // Sequence numbers and retransmission between the endpoint and the writes, null unless reliable
+        final ReliableTransport reliable;
+        // Receives the GATT callbacks of the link
+        final Transport.Receiver stackEvents;
+        BluetoothGatt gatt;
+        // L2CAP stream to the server, null unless stream mode opened one
+        StreamLink stream;
+        // Connection priority and PHY of the link
+        final LinkTuner tuner;
+        // Backoff of the attempts to reconnect after the link was lost
+        final ReconnectPolicy reconnectPolicy = new ReconnectPolicy();
+        // Held while the send buffer of this link is filling up, waited at by sends to this device in block mode
+        final SendGate sendGate = new SendGate();
+        // Time the link was lost, 0 while it is up
+        long lostNanos;
+        // Whether the link was up once, later connections are reconnections
+        boolean established;
+        final Runnable reconnect = new Runnable() {
+            @Override
+            public void run() {
+                attemptReconnect(Connection.this);
+            }
+        };
+
+        Connection(BluetoothDevice device) {
+            this.device = device;
+            this.session = new PeerSession(device.getAddress(), sessionListener);
+            if (channelsEnabled) {
+                applyChannels(session);
+            }
+            LinkMetrics linkMetrics = new LinkMetrics(metrics);
+            if (reliableWindow > 0) {
+                reliable = new ReliableTransport(this, loop, linkMetrics);
+                reliable.setWindow(reliableWindow);
+                reliable.setListener(new ReliableTransport.Listener() {
+                    @Override
+                    public void onLinkFailed() {
+                        dropFailedLink(Connection.this, "Packets went unacknowledged");
+                    }
+                });
+                session.setChunkHeaderSize(ReliableTransport.HEADER_SIZE);
+                session.getOutbound().setMaxInFlight(reliable.getWindow());
+                link = new LinkEndpoint(session, reliable, loop, WRITE_RETRY_DELAY_MS, linkMetrics);
+                reliable.setReceiver(link);
+                stackEvents = reliable;
+            } else {
+                reliable = null;
+                session.getOutbound().setMaxInFlight(maxWritesInFlight);
+                link = new LinkEndpoint(session, this, loop, WRITE_RETRY_DELAY_MS, linkMetrics);
+                stackEvents = link;
+            }
+            if (coalescing) {
+                link.setCoalescing(true, lingerMs, coalesceThreshold);
+            }
+            link.setBufferLimit(sendBufferBytes, overflowPolicy);
+            link.setListener(new LinkEndpoint.Listener() {
+                @Override
+                public void onHighWatermark(LinkEndpoint endpoint) {
+                    sendGate.hold();
+                    bufferListener.onHighWatermark(endpoint);
+                }
+
+                @Override
+                public void onDrained(LinkEndpoint endpoint) {
+                    sendGate.release();
+                    bufferListener.onDrained(endpoint);
+                }
+
+                @Override
+                public void onLinkFailed(LinkEndpoint endpoint) {
+                    bufferListener.onLinkFailed(endpoint);
+                }
+            });
+            // Messages sent before the service is discovered wait for the link to be ready
+            link.suspend();
+            tuner = new LinkTuner(new LinkControl() {
+                @SuppressLint("MissingPermission")
+                @Override
+                public boolean requestConnectionPriority(int priority) {
+                    return gatt != null && gatt.requestConnectionPriority(priority);
+                }
+
+                @SuppressLint("MissingPermission")
+                @Override
+                public boolean requestPhy(int phy) {
+                    if (gatt == null) {
+                        return false;
+                    }
+                    int mask = phy == LinkTuner.PHY_LE_2M ? BluetoothDevice.PHY_LE_2M_MASK : BluetoothDevice.PHY_LE_1M_MASK;
+                    gatt.setPreferredPhy(mask, mask, BluetoothDevice.PHY_OPTION_NO_PREFERRED);
+                    return true;
+                }
+            }, loop);
+            applyLinkTuning(tuner);
+            reconnectPolicy.configure(reconnectAttempts, reconnectInitialDelayMs, reconnectMaxDelayMs);
+        }
+
+        /**
+         * Queues an encoded frame on this connection.
+         * @param frame The encoded frame
+         * @param acknowledged true to send every chunk as a write with response
+         * @return true if the frame was queued, false if the send buffer is full
+         */
+        boolean sendFrame(byte[] frame, boolean acknowledged) {
+            return sendFrame(OutboundQueue.DEFAULT_CHANNEL, frame, acknowledged);
+        }
+
+        /**
+         * Queues an encoded frame on a logical channel of this connection.
+         * @param channel Channel id, only the default channel unless the session is multiplexed
+         * @param frame The encoded frame
+         * @param acknowledged true to send every chunk as a write with response
+         * @return true if the frame was queued, false if the send buffer is full
+         */
+        boolean sendFrame(int channel, byte[] frame, boolean acknowledged) {
+            // A stream backed up beyond the send buffer size leaves large messages to the budgeted characteristic
+            if (channel == OutboundQueue.DEFAULT_CHANNEL && stream != null && frame.length >= streamThreshold
+                    && (sendBufferBytes == 0 || stream.getPendingBytes() < sendBufferBytes) && stream.send(frame)) {
+                tuner.onMessageQueued(frame.length, stream.getPendingBytes());
+                return true;
+            }
+            // Reliable mode confirms chunks with its own acks, writes with response would only add round trips
+            if (!link.send(channel, frame, acknowledged && reliable == null)) {
+                return false;
+            }
+            tuner.onMessageQueued(frame.length, session.getOutbound().getPendingBytes());
+            return true;
+        }
+
+        @Override
+        public boolean send(byte[] chunk, boolean acknowledged) {
+            return gatt != null && writeChunk(gatt, chunk, acknowledged);
+        }
+    }
+
+    // Connections by device address, confined to the event loop thread like all client state
+    private final Map<String, Connection> connections = new HashMap<>();
+    private int maxConnections = DEFAULT_MAX_CONNECTIONS;
 
     private Context context;
 
-    private static final String END_MARKER = "END_OF_MSG";
-    private static final int CHUNK_SIZE = 20;
+    // Devices connected to before, loaded at creation and saved shortly after new connections
+    private final File knownDevicesFile;
+    private final KnownDeviceStore knownDevices;
+    private boolean knownDevicesSaveScheduled;
+    private final Runnable knownDevicesSave = new Runnable() {
+        @Override
+        public void run() {
+            knownDevicesSaveScheduled = false;
+            if (knownDevices.isDirty()) {
+                saveKnownDevices();
+            }
+        }
+    };
+
+    // Totals of every connection since the client was created
+    private final LinkMetrics metrics = new LinkMetrics();
+    private final RateMeter sendRate;
+    private final RateMeter receiveRate;
+
+    private final PeerSession.Listener sessionListener = new PeerSession.Listener() {
+        @Override
+        public void onMessage(PeerSession session, int channel, int flags, byte[] payload) {
+            byte[] message = compressor.decode(flags, payload);
+            if (message == null) {
+                Log.e(TAG, "Dropped corrupt compressed frame from " + session.getAddress());
+                return;
+            }
+            if (channel != OutboundQueue.DEFAULT_CHANNEL) {
+                onChannelMessageReceived(session, channel, flags, message);
+            } else if (FrameCodec.isBinary(flags)) {
+                onBinaryMessageReceived(session, message);
+            } else {
+                onMessageReceived(session, new String(message, StandardCharsets.UTF_8));
+            }
+        }
+
+        @Override
+        public void onFrameDropped(PeerSession session, long length) {
+            Log.e(TAG, "Dropped oversized frame of " + length + " bytes from " + session.getAddress());
+        }
+    };
+
+    private final StreamLink.Listener streamListener = new StreamLink.Listener() {
+        @Override
+        public void onFrame(StreamLink link, int flags, byte[] payload) {
+            Connection connection = connections.get(link.getAddress());
+            if (connection != null && connection.stream == link) {
+                sessionListener.onMessage(connection.session, OutboundQueue.DEFAULT_CHANNEL, flags, payload);
+            }
+        }
+
+        @Override
+        public void onClosed(StreamLink link, IOException error, List<byte[]> unsent) {
+            Connection connection = connections.get(link.getAddress());
+            if (connection == null || connection.stream != link) {
+                return;
+            }
+            // Large messages fall back to the characteristic, the ones the stream never wrote included
+            Log.d(TAG, "L2CAP stream to " + link.getAddress() + " closed" + (error != null ? ": " + error.getMessage() : ""));
+            connection.stream = null;
+            int refused = 0;
+            for (byte[] frame : unsent) {
+                // A full send buffer counts the refused message as dropped
+                if (!connection.sendFrame(frame, !streamingMode)) {
+                    refused++;
+                }
+            }
+            if (refused > 0) {
+                Log.e(TAG, "Dropped " + refused + " of " + unsent.size() + " messages the stream to " + link.getAddress() + " left unsent");
+            }
+            eventBus.post("OnStreamClosed", Utils.getDeviceJson(connection.device));
+        }
+    };
+
+    // Posts the fill level changes of every send buffer and holds the send gate while one is filling up
+    private final LinkEndpoint.Listener bufferListener = new LinkEndpoint.Listener() {
+        @Override
+        public void onHighWatermark(LinkEndpoint link) {
+            sendGate.hold();
+            eventBus.post("OnSendBufferHigh", PayloadJson.getSendBufferJson(link));
+        }
+
+        @Override
+        public void onDrained(LinkEndpoint link) {
+            sendGate.release();
+            eventBus.post("OnSendBufferDrained", PayloadJson.getSendBufferJson(link));
+        }
+
+        @Override
+        public void onLinkFailed(LinkEndpoint link) {
+            Connection connection = connections.get(link.getSession().getAddress());
+            if (connection != null && connection.link == link) {
+                dropFailedLink(connection, "Writes keep failing");
+            }
+        }
+    };
+    // Waited at by application threads in block mode
+    private final SendGate sendGate = new SendGate();
+
+    // Receives binary messages as raw bytes, binary messages are posted as Base64 events without it
+    private BinaryDataListener binaryDataListener;
+
+    private final UnityEventBus eventBus;
+    private final BleEventLoop loop;
+    // Encodes outbound messages and inflates compressed inbound ones
+    private final FrameCompressor compressor;
 
-    BluetoothClient(Context context){
+    BluetoothClient(Context context, UnityEventBus eventBus, BleEventLoop loop, FrameCompressor compressor){
         this.context = context;
+        this.eventBus = eventBus;
+        this.loop = loop;
+        this.compressor = compressor;
+        this.sendRate = new RateMeter(loop.nanoTime());
+        this.receiveRate = new RateMeter(loop.nanoTime());
+        // A few hundred bytes at most, read once when the plugin is initialized
+        this.knownDevicesFile = new File(context.getNoBackupFilesDir(), KNOWN_DEVICES_FILE);
+        this.knownDevices = KnownDeviceStore.load(knownDevicesFile, KnownDeviceStore.DEFAULT_MAX_DEVICES);
     }
 
     /**
-     * Stops the GATT client.
+     * Disconnects from every connected device.
      */
     @SuppressLint("MissingPermission")
     public void stopClient() {
-        if (bluetoothGatt == null) {
+        // The devices seen last are saved now rather than when the delay runs out
+        loop.cancel(knownDevicesSave);
+        knownDevicesSave.run();
+        if (connections.isEmpty()) {
             Log.d(TAG, "No Client to Disconnect!");
             return;
         }
 
-        bluetoothGatt.disconnect();
-        bluetoothGatt.close();
-        bluetoothGatt = null;
+        for (Connection connection : new ArrayList<>(connections.values())) {
+            closeConnection(connection);
+        }
+    }
 
-        // Clear the list of connected devices
-        //connectedDevices.clear();
-        deviceConnected = null;
+    /**
+     * Disconnects from a single device.
+     * @param address Address of the device
+     */
+    @SuppressLint("MissingPermission")
+    public void disconnectDevice(String address) {
+        Connection connection = connections.get(address);
+        if (connection == null) {
+            Log.d(TAG, "No connection to " + address);
+            return;
+        }
+        closeConnection(connection);
     }
 
-    private Queue<String> writeQueue = new LinkedList<>();
-    private boolean isWriting = false;
+    /**
+     * Closes the GATT handle of a connection and releases its state.
+     * @param connection The connection to close
+     */
+    @SuppressLint("MissingPermission")
+    private void closeConnection(Connection connection) {
+        if (!connections.remove(connection.device.getAddress(), connection)) {
+            return;
+        }
+        loop.cancel(connection.reconnect);
+        if (connection.gatt != null) {
+            connection.gatt.disconnect();
+            connection.gatt.close();
+            connection.gatt = null;
+        }
+        connection.link.close();
+        if (connection.reliable != null) {
+            connection.reliable.close();
+        }
+        if (connection.stream != null) {
+            connection.stream.close();
+            connection.stream = null;
+        }
+        connection.tuner.close();
+    }
 
     /**
-     * Sends data to the GATT server.
+     * Drops a link that cannot deliver. Part of a message may already have reached the server, so the
+     * link is never carried on: it is reconnected and sends the messages not completed again whole,
+     * or the connection is closed if reconnection is off.
+     * @param connection The failed connection
+     * @param reason What failed, for the log
+     */
+    @SuppressLint("MissingPermission")
+    private void dropFailedLink(Connection connection, String reason) {
+        if (connections.get(connection.device.getAddress()) != connection) {
+            return;
+        }
+        Log.e(TAG, reason + " on the link to " + connection.device.getAddress() + ", disconnecting");
+        String deviceItem = Utils.getDeviceJson(connection.device);
+        if (reconnectEnabled) {
+            eventBus.post("OnLinkFailed", deviceItem);
+            if (connection.gatt != null) {
+                connection.gatt.disconnect();
+            }
+            handleLinkLost(connection, BluetoothGatt.GATT_FAILURE);
+            return;
+        }
+        closeConnection(connection);
+        eventBus.post("OnLinkFailed", deviceItem);
+        eventBus.post("OnDeviceDisconnected", deviceItem);
+    }
+
+    // Writes the stack may hold in streaming mode before one completes
+    private static final int DEFAULT_MAX_WRITES_IN_FLIGHT = 4;
+    // Messages from this size on take the L2CAP stream when one is open
+    static final int DEFAULT_STREAM_THRESHOLD = 1024;
+    // Delay before retrying a write the stack refused because its buffer was full
+    private static final long WRITE_RETRY_DELAY_MS = 5;
+
+    private boolean streamingMode = false;
+    private int maxWritesInFlight = DEFAULT_MAX_WRITES_IN_FLIGHT;
+    // Window of reliable mode for new connections, 0 when reliable mode is off
+    private int reliableWindow = 0;
+    // Whether new connections multiplex logical channels, and the weight of every opened channel
+    private boolean channelsEnabled = false;
+    private final Map<Integer, Integer> channelWeights = new HashMap<>();
+    // Whether large messages take an L2CAP stream where the server offers one
+    private boolean streamEnabled = false;
+    private int streamThreshold = DEFAULT_STREAM_THRESHOLD;
+    // Adaptive connection priority and PHY, applied to every connection
+    private boolean linkTuning = false;
+    private long boostBacklogBytes = LinkTuner.DEFAULT_BACKLOG_BYTES;
+    private int boostBulkBytes = LinkTuner.DEFAULT_BULK_BYTES;
+    private long boostIdleMs = LinkTuner.DEFAULT_IDLE_MS;
+    private boolean lowPowerWhenIdle = false;
+    // Byte budget of the send buffer of every connection, 0 for no limit
+    private long sendBufferBytes = 0;
+    private int overflowPolicy = LinkEndpoint.OVERFLOW_REJECT;
+    // Whether lost links are reconnected, and the budget and backoff of the attempts
+    private boolean reconnectEnabled = false;
+    private int reconnectAttempts = ReconnectPolicy.DEFAULT_MAX_ATTEMPTS;
+    private long reconnectInitialDelayMs = ReconnectPolicy.DEFAULT_INITIAL_DELAY_MS;
+    private long reconnectMaxDelayMs = ReconnectPolicy.DEFAULT_MAX_DELAY_MS;
+    // Coalescing of small messages for new connections
+    private boolean coalescing = false;
+    private long lingerMs;
+    private int coalesceThreshold;
+
+    /**
+     * Sends data to every connected GATT server, using write without response when streaming mode is enabled.
      * @param data The data to send
      */
     @SuppressLint("MissingPermission")
     public void sendDataToServer(String data) {
-        if (bluetoothGatt == null || data.isEmpty()) {
+        sendDataToServer(data, !streamingMode);
+    }
+
+    /**
+     * Sends data to every connected GATT server.
+     * @param data The data to send
+     * @param acknowledged true to send every chunk as a write with response, for control messages
+     */
+    @SuppressLint("MissingPermission")
+    public void sendDataToServer(String data, boolean acknowledged) {
+        if (connections.isEmpty() || data.isEmpty()) {
             // Toast.makeText(context, "No device connected or data empty", Toast.LENGTH_SHORT).show();
             return;
         }
         Log.d(TAG,  "Client sendDataToServer : " +data);
-        data += END_MARKER;
 
-        // Start the write process if not already writing
-        enqueueData(data);
+        sendFrameToServer(compressor.encode(data), acknowledged);
+    }
 
-        // Start the write process if not already writing
-        if (!isWriting) {
-            processNextWrite();
+    /**
+     * Sends raw bytes to every connected GATT server, chunked at byte offsets.
+     * @param data The bytes to send
+     */
+    public void sendBytesToServer(byte[] data) {
+        if (data.length > 0) {
+            sendFrameToServer(compressor.encodeBinary(data), !streamingMode);
         }
     }
 
-    private void enqueueData(String data) {
-        int mtu = 20;
-        int offset = 0;
-        while (offset < data.length()) {
-            int end = Math.min(offset + mtu, data.length());
-            writeQueue.add(data.substring(offset, end));
-            offset = end;
+    /**
+     * Sends the remaining bytes of a heap or direct buffer to every connected GATT server.
+     * @param data The bytes to send, the buffer position is left unchanged
+     */
+    public void sendBytesToServer(ByteBuffer data) {
+        if (data.hasRemaining()) {
+            sendFrameToServer(compressor.encodeBinary(data), !streamingMode);
+        }
+    }
+
+    /**
+     * Queues an encoded frame on every connection.
+     * @param frame The encoded frame
+     * @param acknowledged true to send every chunk as a write with response
+     */
+    void sendFrameToServer(byte[] frame, boolean acknowledged) {
+        // The frame is immutable once encoded, every connection chunks it on its own
+        for (Connection connection : connections.values()) {
+            connection.sendFrame(frame, acknowledged);
         }
     }
 
+    /**
+     * Queues an encoded frame on every connection, acknowledged unless streaming mode is enabled.
+     * @param frame The encoded frame
+     */
+    void sendFrameToServer(byte[] frame) {
+        sendFrameToServer(frame, !streamingMode);
+    }
+
+    /**
+     * Sends data on a logical channel to every connected GATT server that multiplexes channels.
+     * @param channel Channel id
+     * @param data The data to send
+     */
+    public void sendDataOnChannel(int channel, String data) {
+        if (!data.isEmpty()) {
+            sendFrameOnChannel(channel, compressor.encode(data), !streamingMode);
+        }
+    }
+
+    /**
+     * Sends raw bytes on a logical channel to every connected GATT server that multiplexes channels.
+     * @param channel Channel id
+     * @param data The bytes to send
+     */
+    public void sendBytesOnChannel(int channel, byte[] data) {
+        if (data.length > 0) {
+            sendFrameOnChannel(channel, compressor.encodeBinary(data), !streamingMode);
+        }
+    }
+
+    /**
+     * Queues an encoded frame on a logical channel of every connection that can carry it.
+     * @param channel Channel id
+     * @param frame The encoded frame
+     * @param acknowledged true to send every chunk as a write with response
+     */
+    void sendFrameOnChannel(int channel, byte[] frame, boolean acknowledged) {
+        if (!isValidChannel(channel)) {
+            Log.e(TAG, "Invalid channel " + channel);
+            return;
+        }
+        for (Connection connection : connections.values()) {
+            // Connections made before channels were enabled only carry the default channel
+            if (channel == OutboundQueue.DEFAULT_CHANNEL || connection.session.isMultiplexed()) {
+                connection.sendFrame(channel, frame, acknowledged);
+            }
+        }
+    }
+
+    /**
+     * Queues an encoded frame on a logical channel of every connection that can carry it,
+     * acknowledged unless streaming mode is enabled.
+     * @param channel Channel id
+     * @param frame The encoded frame
+     */
+    void sendFrameOnChannel(int channel, byte[] frame) {
+        sendFrameOnChannel(channel, frame, !streamingMode);
+    }
+
+    /**
+     * Sends data to a single connected GATT server, using write without response when streaming mode is enabled.
+     * @param address Address of the device
+     * @param data The data to send
+     * @return true if the device is connected and the data was queued
+     */
+    @SuppressLint("MissingPermission")
+    public boolean sendDataToDevice(String address, String data) {
+        return sendDataToDevice(address, data, !streamingMode);
+    }
+
+    /**
+     * Sends data to a single connected GATT server.
+     * @param address Address of the device
+     * @param data The data to send
+     * @param acknowledged true to send every chunk as a write with response, for control messages
+     * @return true if the device is connected and the data was queued
+     */
     @SuppressLint("MissingPermission")
-    private void processNextWrite() {
-        if (writeQueue.isEmpty()) {
-            isWriting = false;
+    public boolean sendDataToDevice(String address, String data, boolean acknowledged) {
+        Connection connection = connections.get(address);
+        if (connection == null || data.isEmpty()) {
+            return false;
+        }
+        Log.d(TAG,  "Client sendDataToDevice " + address + " : " +data);
+
+        return sendFrameToDevice(address, compressor.encode(data), acknowledged);
+    }
+
+    /**
+     * Sends raw bytes to a single connected GATT server, chunked at byte offsets.
+     * @param address Address of the device
+     * @param data The bytes to send
+     * @return true if the device is connected and the data was queued
+     */
+    public boolean sendBytesToDevice(String address, byte[] data) {
+        return data.length > 0 && sendFrameToDevice(address, compressor.encodeBinary(data), !streamingMode);
+    }
+
+    /**
+     * Sends the remaining bytes of a heap or direct buffer to a single connected GATT server.
+     * @param address Address of the device
+     * @param data The bytes to send, the buffer position is left unchanged
+     * @return true if the device is connected and the data was queued
+     */
+    public boolean sendBytesToDevice(String address, ByteBuffer data) {
+        return data.hasRemaining() && sendFrameToDevice(address, compressor.encodeBinary(data), !streamingMode);
+    }
+
+    /**
+     * Queues an encoded frame on a single connection.
+     * @param address Address of the device
+     * @param frame The encoded frame
+     * @param acknowledged true to send every chunk as a write with response
+     * @return true if the device is connected and the frame was queued
+     */
+    boolean sendFrameToDevice(String address, byte[] frame, boolean acknowledged) {
+        Connection connection = connections.get(address);
+        return connection != null && connection.sendFrame(frame, acknowledged);
+    }
+
+    /**
+     * Queues an encoded frame on a single connection, acknowledged unless streaming mode is enabled.
+     * @param address Address of the device
+     * @param frame The encoded frame
+     * @return true if the device is connected and the frame was queued
+     */
+    boolean sendFrameToDevice(String address, byte[] frame) {
+        return sendFrameToDevice(address, frame, !streamingMode);
+    }
+
+    /**
+     * Sets the listener receiving binary messages as raw bytes.
+     * @param listener The listener, or null to post binary messages as Base64 OnBinaryDataReceivedFromServer events
+     */
+    public void setBinaryDataListener(BinaryDataListener listener) {
+        binaryDataListener = listener;
+    }
+
+    /**
+     * Enables or disables streaming mode on every connection.
+     * In streaming mode chunks are sent as writes without response, with up to maxInFlight writes
+     * handed to the stack at once and pacing driven by the stack accepting or refusing writes.
+     * @param enabled true to stream, false to acknowledge every chunk
+     * @param maxInFlight Maximum number of unconfirmed writes per connection in streaming mode
+     */
+    public void setStreamingMode(boolean enabled, int maxInFlight) {
+        streamingMode = enabled;
+        maxWritesInFlight = maxInFlight;
+        for (Connection connection : connections.values()) {
+            if (connection.reliable == null) {
+                connection.session.getOutbound().setMaxInFlight(maxInFlight);
+            }
+        }
+    }
+
+    /**
+     * Enables or disables reliable mode for the connections made afterwards.
+     * Chunks carry sequence numbers, are sent as writes without response and are retransmitted
+     * until the server acknowledges them. The server must have reliable mode enabled as well.
+     * @param enabled true to deliver reliably
+     * @param windowSize Maximum number of unacknowledged chunks per connection
+     */
+    public void setReliableMode(boolean enabled, int windowSize) {
+        reliableWindow = enabled ? Math.max(1, Math.min(ReliableTransport.MAX_WINDOW, windowSize)) : 0;
+    }
+
+    public boolean isReliableMode() {
+        return reliableWindow > 0;
+    }
+
+    /**
+     * Enables or disables coalescing of small messages on every connection and the ones made afterwards.
+     * Small messages wait up to lingerMs for more to share a packet with, the server needs no setting.
+     * @param enabled true to pack small messages into shared packets
+     * @param lingerMs Time a small message may wait, 0 to only pack messages already queued
+     * @param thresholdBytes Queued bytes that send at once, and the size from which a message is never held, 0 for one packet
+     */
+    public void setCoalescing(boolean enabled, long lingerMs, int thresholdBytes) {
+        coalescing = enabled;
+        this.lingerMs = lingerMs;
+        coalesceThreshold = thresholdBytes;
+        for (Connection connection : connections.values()) {
+            connection.link.setCoalescing(enabled, lingerMs, thresholdBytes);
+        }
+    }
+
+    public boolean isCoalescing() {
+        return coalescing;
+    }
+
+    /**
+     * Limits the bytes queued for every connection and the ones made afterwards.
+     * OnSendBufferHigh is posted when a queue reaches three quarters of the capacity and
+     * OnSendBufferDrained when it is back to a quarter, so the game can throttle itself.
+     * @param capacityBytes Capacity of each connection's queue in bytes, 0 for no limit
+     * @param policy What a message that does not fit does, one of the LinkEndpoint OVERFLOW constants
+     */
+    public void setSendBuffer(long capacityBytes, int policy) {
+        sendBufferBytes = Math.max(0, capacityBytes);
+        overflowPolicy = policy;
+        for (Connection connection : connections.values()) {
+            connection.link.setBufferLimit(sendBufferBytes, policy);
+        }
+    }
+
+    public long getSendBufferBytes() {
+        return sendBufferBytes;
+    }
+
+    /**
+     * Returns the gate held while a send buffer is above its high watermark.
+     * @return The gate, safe to wait at from any thread but the event loop
+     */
+    public SendGate getSendGate() {
+        return sendGate;
+    }
+
+    /**
+     * Returns the gate held while the send buffer of a single connection is above its high watermark.
+     * @param address Address of the device
+     * @return The gate, safe to wait at from any thread but the event loop, or null if the device is not connected
+     */
+    public SendGate getSendGate(String address) {
+        Connection connection = connections.get(address);
+        return connection != null ? connection.sendGate : null;
+    }
+
+    /**
+     * Sends data to every connected GATT server right away, together with any small messages held for coalescing.
+     * @param data The data to send
+     */
+    public void sendUrgentDataToServer(String data) {
+        if (data.isEmpty()) {
             return;
         }
+        byte[] frame = compressor.encode(data);
+        for (Connection connection : connections.values()) {
+            connection.sendFrame(frame, !streamingMode);
+            connection.link.flush();
+        }
+    }
+
+    /**
+     * Enables or disables adaptive link tuning on every connection and the ones made afterwards.
+     * A backlog or a bulk message raises the connection priority to high and asks for the 2M PHY,
+     * and the priority drops back after the link has been idle for idleMs.
+     * @param enabled true to adapt the links to their traffic
+     * @param backlogBytes Queued bytes from which a link is boosted
+     * @param bulkBytes Message size from which a link is boosted right away
+     * @param idleMs Time without traffic after which the boost ends
+     * @param lowPowerWhenIdle true to drop to low power instead of balanced
+     */
+    public void setLinkTuning(boolean enabled, long backlogBytes, int bulkBytes, long idleMs, boolean lowPowerWhenIdle) {
+        linkTuning = enabled;
+        boostBacklogBytes = backlogBytes;
+        boostBulkBytes = bulkBytes;
+        boostIdleMs = idleMs;
+        this.lowPowerWhenIdle = lowPowerWhenIdle;
+        for (Connection connection : connections.values()) {
+            applyLinkTuning(connection.tuner);
+        }
+    }
 
-        isWriting = true;
-        String packet = writeQueue.poll();
+    private void applyLinkTuning(LinkTuner tuner) {
+        tuner.setBoostThresholds(boostBacklogBytes, boostBulkBytes);
+        tuner.setIdlePolicy(boostIdleMs, lowPowerWhenIdle);
+        tuner.setEnabled(linkTuning);
+    }
 
-        BluetoothGattCharacteristic characteristic = bluetoothGatt.getService(BLEPluginManager.SERVICE_UUID).getCharacteristic(BLEPluginManager.CHARACTERISTIC_UUID);
-        characteristic.setValue(packet.getBytes(StandardCharsets.UTF_8));
+    /**
+     * Returns the radio parameters of a connection.
+     * @param address Address of the device
+     * @return JSON string with the requested priority and the PHY and interval in effect, or null if not connected
+     */
+    public String getLinkParametersJson(String address) {
+        Connection connection = connections.get(address);
+        return connection != null ? PayloadJson.getLinkParametersJson(address, connection.tuner) : null;
+    }
 
-        boolean writeSuccess = bluetoothGatt.writeCharacteristic(characteristic);
-        if (!writeSuccess) {
-            Log.e(TAG, "Failed to write characteristic");
-            processNextWrite(); // Try the next packet
-        } else {
-            Log.d(TAG, "Write characteristic initiated: " + packet);
+    /**
+     * Reports new radio parameters of a connection to Unity.
+     * @param connection The connection
+     */
+    private void postLinkParameters(Connection connection) {
+        eventBus.post("OnLinkParametersChanged", PayloadJson.getLinkParametersJson(connection.device.getAddress(), connection.tuner));
+    }
+
+    /**
+     * Enables or disables the L2CAP stream for the connections made afterwards.
+     * When the server publishes a PSM, an L2CAP connection-oriented channel is opened next to the GATT
+     * connection and messages from the threshold size on are written to it instead of the characteristic.
+     * Needs Android 10, older devices keep using the characteristic.
+     * @param enabled true to open streams
+     * @param thresholdBytes Encoded size from which a message takes the stream
+     */
+    public void setStreamEnabled(boolean enabled, int thresholdBytes) {
+        streamEnabled = enabled;
+        streamThreshold = Math.max(1, thresholdBytes);
+    }
+
+    public boolean isStreamEnabled() {
+        return streamEnabled;
+    }
+
+    /**
+     * Returns whether a connection has an open L2CAP stream.
+     * @param address Address of the device
+     * @return true if large messages to the device take the stream
+     */
+    public boolean isStreamOpen(String address) {
+        Connection connection = connections.get(address);
+        return connection != null && connection.stream != null;
+    }
+
+    /**
+     * Enables or disables logical channels for the connections made afterwards.
+     * Every chunk then starts with its channel id, so the server must have channels enabled as well.
+     * @param enabled true to multiplex channels
+     */
+    public void setChannelsEnabled(boolean enabled) {
+        channelsEnabled = enabled;
+    }
+
+    public boolean isChannelsEnabled() {
+        return channelsEnabled;
+    }
+
+    /**
+     * Opens a logical channel, or changes its weight, on every connection that multiplexes channels
+     * and on the ones made afterwards.
+     * @param channel Channel id, 0 to 255
+     * @param weight Relative weight, a channel with a higher weight gets a larger share of the link
+     * @return true if the channel id is valid
+     */
+    public boolean openChannel(int channel, int weight) {
+        if (!isValidChannel(channel)) {
+            Log.e(TAG, "Invalid channel " + channel);
+            return false;
         }
+        channelWeights.put(channel, weight);
+        for (Connection connection : connections.values()) {
+            if (connection.session.isMultiplexed()) {
+                connection.session.getOutbound().setChannelWeight(channel, weight);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Enables multiplexing on a new session and applies the weights of the opened channels.
+     * @param session The session
+     */
+    private void applyChannels(PeerSession session) {
+        session.setMultiplexed(true);
+        for (Map.Entry<Integer, Integer> entry : channelWeights.entrySet()) {
+            session.getOutbound().setChannelWeight(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private static boolean isValidChannel(int channel) {
+        return channel >= 0 && channel < OutboundQueue.MAX_CHANNELS;
+    }
+
+    public boolean isStreamingMode() {
+        return streamingMode;
+    }
+
+    /**
+     * Sets how many devices may be connected at once. Existing connections are kept.
+     * @param maxConnections Maximum number of concurrent connections
+     */
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = Math.max(1, maxConnections);
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * Hands a single chunk to the stack.
+     * @param gatt The GATT handle of the connection
+     * @param packet The chunk to write
+     * @param acknowledged true for a write with response, false for a write without response
+     * @return true if the stack accepted the write
+     */
+    @SuppressLint("MissingPermission")
+    private boolean writeChunk(BluetoothGatt gatt, byte[] packet, boolean acknowledged) {
+        BluetoothGattService service = gatt.getService(BLEPluginManager.SERVICE_UUID);
+        if (service == null) {
+            return false;
+        }
+        BluetoothGattCharacteristic characteristic = service.getCharacteristic(BLEPluginManager.CHARACTERISTIC_UUID);
+        if (characteristic == null) {
+            return false;
+        }
+        int writeType = acknowledged ? BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT : BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE;
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+            return gatt.writeCharacteristic(characteristic, packet, writeType) == BluetoothStatusCodes.SUCCESS;
+        }
+        // Each connection has its own characteristic instance, so the value is not shared across links
+        characteristic.setWriteType(writeType);
+        characteristic.setValue(packet);
+        return gatt.writeCharacteristic(characteristic);
     }
 
 
@@ -134,15 +916,36 @@ public class BluetoothClient {
     }
 
     /**
-     * Connects to a specified BLE device.
+     * Connects to a specified BLE device, alongside the devices already connected.
+     * Posts OnConnectionRejected if the connection limit is reached.
      * @param device The BluetoothDevice to connect to
      */
-    @SuppressLint("MissingPermission")
     public void connectToDevice(BluetoothDevice device) {
+        connectToDevice(device, false);
+    }
+
+    /**
+     * Connects to a specified BLE device, alongside the devices already connected.
+     * Posts OnConnectionRejected if the connection limit is reached.
+     * @param device The BluetoothDevice to connect to, from a scan or from its address
+     * @param autoConnect true to let the stack connect whenever the device comes in range, without a timeout
+     */
+    @SuppressLint("MissingPermission")
+    public void connectToDevice(BluetoothDevice device, boolean autoConnect) {
         if(device != null) {
-            bluetoothGatt = device.connectGatt(context, false, gattCallback);
-           // bluetoothGatt.requestMtu(100);
-            deviceConnected = device;
+            if (connections.containsKey(device.getAddress())) {
+                Log.d(TAG, "Already connected to " + device.getAddress());
+                return;
+            }
+            if (connections.size() >= maxConnections) {
+                Log.d(TAG, "Connection limit of " + maxConnections + " reached");
+                eventBus.post("OnConnectionRejected", Utils.getDeviceJson(device));
+                return;
+            }
+            Connection connection = new Connection(device);
+            connections.put(device.getAddress(), connection);
+            // A device made from its address has no scan record to tell its transport, dual mode devices would default to BR/EDR
+            connection.gatt = device.connectGatt(context, autoConnect, gattCallback, BluetoothDevice.TRANSPORT_LE);
         }
         else{
             Log.d(TAG, "Device doesn't exist!");
@@ -150,128 +953,670 @@ public class BluetoothClient {
     }
 
     /**
-     * Callback for GATT client events.
+     * Returns the connection a GATT callback belongs to.
+     * @param gatt The GATT handle of the callback
+     * @return The connection, or null if it was closed in the meantime
+     */
+    private Connection getConnection(BluetoothGatt gatt) {
+        Connection connection = connections.get(gatt.getDevice().getAddress());
+        return connection != null && connection.gatt == gatt ? connection : null;
+    }
+
+    /**
+     * Callback for GATT client events. Callbacks arrive on binder threads and are posted to the event loop.
      */
     private final BluetoothGattCallback gattCallback = new BluetoothGattCallback() {
-        @SuppressLint("MissingPermission")
         @Override
-        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
-            if (newState == BluetoothProfile.STATE_CONNECTED) {
-                // Successfully connected to the GATT server
-                Log.d(TAG, "onConnectionStateChange Connected");
-                gatt.discoverServices();
-                //gatt.requestMtu(100);
-                BluetoothDevice device = gatt.getDevice();
-
-                String deviceItem = Utils.getDeviceJson(device);
-                UnityPlayer.UnitySendMessage("BLEPlugin", "OnDeviceConnected", deviceItem);
-            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-                // Disconnected from the GATT server
-                Log.d(TAG, "onConnectionStateChange Disconnected");
-                BluetoothDevice device = gatt.getDevice();
-                String deviceItem = Utils.getDeviceJson(device);
-                UnityPlayer.UnitySendMessage("BLEPlugin", "OnDeviceDisconnected", deviceItem);
+        public void onConnectionStateChange(final BluetoothGatt gatt, final int status, final int newState) {
+            loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    handleConnectionStateChange(gatt, status, newState);
+                }
+            });
+        }
 
-            }else {
-                Log.d(TAG, "onConnectionStateChange Random State");
-                BluetoothDevice device = gatt.getDevice();
-                String deviceItem = Utils.getDeviceJson(device);
-                String msg = newState + " : " + status + " : " + newState;
-                UnityPlayer.UnitySendMessage("BLEPlugin", "onConnectionStateChange", msg);
+        @Override
+        public void onServicesDiscovered(final BluetoothGatt gatt, final int status) {
+            loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    handleServicesDiscovered(gatt, status);
+                }
+            });
+        }
 
+        @Override
+        public void onCharacteristicChanged(@NonNull final BluetoothGatt gatt, @NonNull BluetoothGattCharacteristic characteristic, @NonNull final byte[] value) {
+            if (BLEPluginManager.CHARACTERISTIC_UUID.equals(characteristic.getUuid())) {
+                loop.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        Log.d(TAG, "Client CharChanged chunk : " + value.length + " bytes");
+                        Connection connection = getConnection(gatt);
+                        if (connection != null) {
+                            connection.tuner.onActivity();
+                            connection.stackEvents.onChunkReceived(value);
+                        }
+                    }
+                });
             }
-
         }
 
-        @SuppressLint("MissingPermission")
         @Override
-        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                BluetoothGattService service = gatt.getService(BLEPluginManager.SERVICE_UUID);
-                if (service != null) {
-                    BluetoothGattCharacteristic characteristic = service.getCharacteristic(BLEPluginManager.CHARACTERISTIC_UUID);
-                    if (characteristic != null) {
-                        gatt.setCharacteristicNotification(characteristic, true);
-                        BluetoothGattDescriptor descriptor = characteristic.getDescriptor(BLEPluginManager.CHARACTERISTIC_UUID);
-                        if (descriptor != null) {
-                            descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-                            gatt.writeDescriptor(descriptor);
-                            //maintainConnection(gatt);
+        public void onCharacteristicWrite(final BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, final int status) {
+            loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (status == BluetoothGatt.GATT_SUCCESS) {
+                        Log.d(TAG, "Characteristic write successful");
+                    } else {
+                        Log.e(TAG, "Characteristic write failed with status: " + status);
+                    }
+
+                    // Process the next write in the queue of this connection
+                    Connection connection = getConnection(gatt);
+                    if (connection != null) {
+                        connection.tuner.onActivity();
+                        if (status == BluetoothGatt.GATT_SUCCESS) {
+                            connection.stackEvents.onSendComplete();
                         } else {
-                            // If the characteristic is not found, we can disconnect
-                            Log.d(TAG, "Descriptor Discovered is null!");
-                         //   gatt.disconnect();
+                            connection.stackEvents.onSendFailed();
                         }
-                    } else {
-                        // If the service is not found, we can disconnect
-                        Log.d(TAG, "characteristic Discovered is null!");
-                     //   gatt.disconnect();
                     }
-                } else {
-                    // If service discovery failed, we should disconnect
-                    Log.d(TAG, "Service Discovered is null!");
-                    //gatt.disconnect();
                 }
-            }
+            });
         }
 
-        private StringBuilder receivedData = new StringBuilder();
         @Override
-        public void onCharacteristicChanged(@NonNull BluetoothGatt gatt, @NonNull BluetoothGattCharacteristic characteristic, @NonNull byte[] value) {
-            if (BLEPluginManager.CHARACTERISTIC_UUID.equals(characteristic.getUuid())) {
-                String chunk = new String(characteristic.getValue(), StandardCharsets.UTF_8);
-                receivedData.append(chunk);
-                Log.d(TAG, "Client CharChanged chunk : "+  chunk);
-                Log.d(TAG, "Client CharChanged  receivedData: "+  receivedData.toString());
-                // Check if the chunk contains the "END_OF_MSG" marker
-                if (receivedData.toString().contains(END_MARKER)) {
-                    // Extract the complete message by removing the "END_OF_MSG" marker
-                    String completeMessage = receivedData.toString().replace(END_MARKER, "");
-                    Log.d(TAG, "Complete message received: " + completeMessage);
-
-                    // Clear the buffer for the next message
-                    receivedData.setLength(0);
-                    if(completeMessage != null && completeMessage.equals("DisconnectClient"))
-                {
-                    BluetoothDevice device = gatt.getDevice();
-                    String deviceItem = Utils.getDeviceJson(device);
-                    stopClient();
-                    UnityPlayer.UnitySendMessage("BLEPlugin", "OnDeviceDisconnected", deviceItem );
+        public void onDescriptorWrite(final BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+            // Notifications are set up, the link is ready
+            loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    handleLinkReady(gatt);
                 }
-                    else {
-                        // Process the complete message as needed
-                        UnityPlayer.UnitySendMessage("BLEPlugin", "OnDataReceivedFromServer", completeMessage);
+            });
+        }
+
+        @Override
+        public void onCharacteristicRead(@NonNull final BluetoothGatt gatt, @NonNull BluetoothGattCharacteristic characteristic, @NonNull final byte[] value, final int status) {
+            if (BLEPluginManager.L2CAP_PSM_UUID.equals(characteristic.getUuid())) {
+                loop.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        handleStreamPsm(gatt, value, status);
                     }
-                }
+                });
+            }
+        }
 
+        @Override
+        public void onCharacteristicRead(final BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, final int status) {
+            // Called instead of the variant with the value before Android 13
+            if (BLEPluginManager.L2CAP_PSM_UUID.equals(characteristic.getUuid())) {
+                final byte[] value = characteristic.getValue();
+                loop.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        handleStreamPsm(gatt, value, status);
+                    }
+                });
             }
         }
 
         @Override
-        public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                Log.d(TAG, "Characteristic write successful");
+        public void onPhyUpdate(final BluetoothGatt gatt, final int txPhy, final int rxPhy, final int status) {
+            loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    handlePhyUpdate(gatt, txPhy, rxPhy, status);
+                }
+            });
+        }
+
+        @Override
+        public void onPhyRead(final BluetoothGatt gatt, final int txPhy, final int rxPhy, final int status) {
+            loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    handlePhyUpdate(gatt, txPhy, rxPhy, status);
+                }
+            });
+        }
+
+        /**
+         * Called by the stack when the connection parameters change. Hidden in the SDK, so not marked as an override.
+         */
+        public void onConnectionUpdated(final BluetoothGatt gatt, final int interval, final int latency, final int timeout, final int status) {
+            loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Connection connection = getConnection(gatt);
+                    if (connection != null && status == BluetoothGatt.GATT_SUCCESS) {
+                        connection.tuner.onConnectionUpdated(interval, latency, timeout);
+                        postLinkParameters(connection);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onMtuChanged(final BluetoothGatt gatt, final int mtu, final int status) {
+            loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    handleMtuChanged(gatt, mtu, status);
+                }
+            });
+        }
+    };
+
+    @SuppressLint("MissingPermission")
+    private void handleConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+        if (newState == BluetoothProfile.STATE_CONNECTED) {
+            // Successfully connected to the GATT server
+            Log.d(TAG, "onConnectionStateChange Connected");
+            // Negotiate the MTU first, service discovery continues from onMtuChanged
+            if (!gatt.requestMtu(AttMtu.MAX_MTU)) {
+                gatt.discoverServices();
+            }
+            BluetoothDevice device = gatt.getDevice();
+            rememberDevice(device);
+
+            Connection connection = getConnection(gatt);
+            if (connection == null || !connection.established) {
+                // A reconnected link reports OnReconnected once it is ready again
+                if (connection != null) {
+                    connection.established = true;
+                }
+                String deviceItem = Utils.getDeviceJson(device);
+                eventBus.post("OnDeviceConnected", deviceItem);
+            }
+        } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+            // Disconnected from the GATT server
+            Log.d(TAG, "onConnectionStateChange Disconnected, status " + status);
+            BluetoothDevice device = gatt.getDevice();
+            Connection connection = getConnection(gatt);
+            if (connection == null && connections.containsKey(device.getAddress())) {
+                // A handle the connection already dropped, it is being reconnected with a new one
+                gatt.close();
+                return;
+            }
+            if (connection != null && reconnectEnabled) {
+                handleLinkLost(connection, status);
+                return;
+            }
+            if (connection != null) {
+                closeConnection(connection);
             } else {
-                Log.e(TAG, "Characteristic write failed with status: " + status);
+                gatt.close();
             }
+            String deviceItem = Utils.getDeviceJson(device);
+            eventBus.post("OnDeviceDisconnected", deviceItem);
+
+        }else {
+            Log.d(TAG, "onConnectionStateChange Random State");
+            String msg = newState + " : " + status + " : " + newState;
+            eventBus.post("onConnectionStateChange", msg);
 
-            // Process the next write in the queue
-            processNextWrite();
         }
 
-        @Override
-        public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                Log.d(TAG, "MTU size changed successfully to: " + mtu);
+    }
+
+    @SuppressLint("MissingPermission")
+    private void handleServicesDiscovered(BluetoothGatt gatt, int status) {
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+            BluetoothGattService service = gatt.getService(BLEPluginManager.SERVICE_UUID);
+            if (service != null) {
+                BluetoothGattCharacteristic characteristic = service.getCharacteristic(BLEPluginManager.CHARACTERISTIC_UUID);
+                if (characteristic != null) {
+                    gatt.setCharacteristicNotification(characteristic, true);
+                    BluetoothGattDescriptor descriptor = characteristic.getDescriptor(BLEPluginManager.CHARACTERISTIC_UUID);
+                    if (descriptor != null) {
+                        descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+                        if (!gatt.writeDescriptor(descriptor)) {
+                            handleLinkReady(gatt);
+                        }
+                        //maintainConnection(gatt);
+                    } else {
+                        // If the characteristic is not found, we can disconnect
+                        Log.d(TAG, "Descriptor Discovered is null!");
+                        handleLinkReady(gatt);
+                     //   gatt.disconnect();
+                    }
+                } else {
+                    // If the service is not found, we can disconnect
+                    Log.d(TAG, "characteristic Discovered is null!");
+                    handleSetupFailed(gatt, BluetoothGatt.GATT_FAILURE);
+                }
             } else {
-                Log.d(TAG, "Failed to change MTU size, status: " + status);
+                // If service discovery failed, we should disconnect
+                Log.d(TAG, "Service Discovered is null!");
+                handleSetupFailed(gatt, BluetoothGatt.GATT_FAILURE);
             }
+        } else {
+            Log.d(TAG, "Service discovery failed, status " + status);
+            handleSetupFailed(gatt, status);
         }
-    };
+    }
+
+    /**
+     * Hands a reconnected link whose services cannot be set up back to the reconnection, which tries
+     * again within its budget, so the link is either resumed or given up with OnReconnectFailed.
+     * A new link that cannot be set up would never send, it is dropped as failed.
+     * @param gatt The GATT handle of the connection
+     * @param status GATT status of the failure
+     */
+    @SuppressLint("MissingPermission")
+    private void handleSetupFailed(BluetoothGatt gatt, int status) {
+        Connection connection = getConnection(gatt);
+        if (connection == null) {
+            return;
+        }
+        if (connection.lostNanos == 0) {
+            dropFailedLink(connection, "Service setup failed with status " + status);
+            return;
+        }
+        Log.d(TAG, "Setting up the reconnected link to " + connection.device.getAddress() + " failed, status " + status);
+        gatt.disconnect();
+        handleLinkLost(connection, status);
+    }
+
+    private void handlePhyUpdate(BluetoothGatt gatt, int txPhy, int rxPhy, int status) {
+        Connection connection = getConnection(gatt);
+        if (connection != null && status == BluetoothGatt.GATT_SUCCESS) {
+            Log.d(TAG, "PHY of " + gatt.getDevice().getAddress() + " tx " + txPhy + " rx " + rxPhy);
+            connection.tuner.onPhyUpdate(txPhy, rxPhy);
+            postLinkParameters(connection);
+        }
+    }
+
+    @SuppressLint("MissingPermission")
+    private void handleMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+            Log.d(TAG, "MTU size changed successfully to: " + mtu);
+            Connection connection = getConnection(gatt);
+            if (connection != null) {
+                connection.stackEvents.onMtuChanged(mtu);
+            }
+        } else {
+            Log.d(TAG, "Failed to change MTU size, status: " + status);
+        }
+        // The PHY in effect is reported through onPhyRead
+        gatt.readPhy();
+        gatt.discoverServices();
+    }
+
+    /**
+     * Continues once notifications are set up: the link starts sending what it kept queued, before it was
+     * set up or while it was being reconnected, and the L2CAP stream is opened if stream mode is enabled.
+     * @param gatt The GATT handle of the connection
+     */
+    private void handleLinkReady(BluetoothGatt gatt) {
+        Connection connection = getConnection(gatt);
+        if (connection == null) {
+            return;
+        }
+        // A new link starts sending now too, what was sent since OnDeviceConnected is queued
+        connection.link.resume();
+        if (connection.lostNanos != 0) {
+            long downtimeMs = (loop.nanoTime() - connection.lostNanos) / 1000000;
+            int attempts = connection.reconnectPolicy.getAttempts();
+            connection.lostNanos = 0;
+            connection.reconnectPolicy.reset();
+            Log.d(TAG, "Reconnected to " + connection.device.getAddress() + " after " + downtimeMs + " ms");
+            eventBus.post("OnReconnected", PayloadJson.getReconnectResultJson(connection.device.getAddress(), attempts, downtimeMs));
+        }
+        requestStreamPsm(gatt);
+    }
+
+    /**
+     * Takes down the state of a lost link and schedules its reconnection. The connection stays, with
+     * its queued messages, so sends carry on into the queue while the link is down.
+     * @param connection The connection whose link was lost
+     * @param status GATT status of the disconnection
+     */
+    @SuppressLint("MissingPermission")
+    private void handleLinkLost(Connection connection, int status) {
+        // The stale handle must be closed, the stack runs out of client handles and fails with status 133 otherwise
+        if (connection.gatt != null) {
+            connection.gatt.close();
+            connection.gatt = null;
+        }
+        if (connection.stream != null) {
+            connection.stream.close();
+            connection.stream = null;
+        }
+        connection.link.suspend();
+        if (connection.reliable != null) {
+            // The frames of the unacknowledged packets stay queued in the endpoint and go out again
+            connection.reliable.reset();
+        }
+        connection.tuner.reset();
+        // The new connection negotiates its MTU again
+        connection.stackEvents.onMtuChanged(AttMtu.DEFAULT_MTU);
+        if (connection.lostNanos == 0) {
+            connection.lostNanos = loop.nanoTime();
+            Log.d(TAG, "Link to " + connection.device.getAddress() + " lost, status " + status);
+        }
+        scheduleReconnect(connection, status);
+    }
 
+    /**
+     * Schedules the next reconnection attempt, or gives the connection up when its budget is used up.
+     * @param connection The lost connection
+     * @param status GATT status the link was lost or the last attempt failed with
+     */
+    private void scheduleReconnect(Connection connection, int status) {
+        String address = connection.device.getAddress();
+        long delayMs = connection.reconnectPolicy.nextDelayMs();
+        if (delayMs < 0) {
+            int attempts = connection.reconnectPolicy.getAttempts();
+            long downtimeMs = (loop.nanoTime() - connection.lostNanos) / 1000000;
+            Log.e(TAG, "Giving up reconnecting to " + address + " after " + attempts + " attempts");
+            String deviceItem = Utils.getDeviceJson(connection.device);
+            closeConnection(connection);
+            eventBus.post("OnReconnectFailed", PayloadJson.getReconnectResultJson(address, attempts, downtimeMs));
+            eventBus.post("OnDeviceDisconnected", deviceItem);
+            return;
+        }
+        eventBus.post("OnReconnectAttempt", PayloadJson.getReconnectAttemptJson(address,
+                connection.reconnectPolicy.getAttempts(), connection.reconnectPolicy.getMaxAttempts(), delayMs, status));
+        loop.schedule(connection.reconnect, delayMs);
+    }
 
+    /**
+     * Creates a new GATT handle for a lost connection. MTU, PHY and notifications are set up again by the
+     * usual callbacks, and the queued messages are sent once notifications are ready.
+     * @param connection The lost connection
+     */
+    @SuppressLint("MissingPermission")
+    private void attemptReconnect(Connection connection) {
+        if (connections.get(connection.device.getAddress()) != connection || connection.gatt != null) {
+            return;
+        }
+        Log.d(TAG, "Reconnecting to " + connection.device.getAddress() + ", attempt " + connection.reconnectPolicy.getAttempts());
+        // A direct connection fails within the stack timeout, so the budget bounds the time spent
+        connection.gatt = connection.device.connectGatt(context, false, gattCallback, BluetoothDevice.TRANSPORT_LE);
+        if (connection.gatt == null) {
+            scheduleReconnect(connection, BluetoothGatt.GATT_FAILURE);
+        }
+    }
 
+    /**
+     * Enables or disables the reconnection of lost links, for every connection and the ones made afterwards.
+     * A lost link keeps its queued messages, and sends carry on into the queue until it is back.
+     * @param enabled true to reconnect lost links
+     * @param maxAttempts Attempts before giving up
+     * @param initialDelayMs Backoff before the first attempt, doubled after every failed one
+     * @param maxDelayMs Largest backoff
+     */
+    public void setReconnectPolicy(boolean enabled, int maxAttempts, long initialDelayMs, long maxDelayMs) {
+        reconnectEnabled = enabled;
+        reconnectAttempts = maxAttempts;
+        reconnectInitialDelayMs = initialDelayMs;
+        reconnectMaxDelayMs = maxDelayMs;
+        for (Connection connection : connections.values()) {
+            connection.reconnectPolicy.configure(maxAttempts, initialDelayMs, maxDelayMs);
+        }
+    }
 
+    public boolean isReconnectEnabled() {
+        return reconnectEnabled;
+    }
 
+    /**
+     * Reads the L2CAP PSM the server publishes, if stream mode is enabled and the device supports it.
+     * @param gatt The GATT handle of the connection
+     */
+    @SuppressLint("MissingPermission")
+    private void requestStreamPsm(BluetoothGatt gatt) {
+        Connection connection = getConnection(gatt);
+        if (!streamEnabled || Build.VERSION.SDK_INT < Build.VERSION_CODES.Q || connection == null || connection.stream != null) {
+            return;
+        }
+        BluetoothGattService service = gatt.getService(BLEPluginManager.SERVICE_UUID);
+        BluetoothGattCharacteristic psmCharacteristic = service != null ? service.getCharacteristic(BLEPluginManager.L2CAP_PSM_UUID) : null;
+        if (psmCharacteristic == null) {
+            // The server does not offer a stream, every message takes the characteristic
+            return;
+        }
+        if (!gatt.readCharacteristic(psmCharacteristic)) {
+            Log.e(TAG, "Failed to read the L2CAP PSM of " + gatt.getDevice().getAddress());
+        }
+    }
+
+    /**
+     * Opens the L2CAP stream once the PSM of the server was read.
+     * @param gatt The GATT handle of the connection
+     * @param value The PSM, 16 bit little endian
+     * @param status Status of the read
+     */
+    private void handleStreamPsm(BluetoothGatt gatt, byte[] value, int status) {
+        Connection connection = getConnection(gatt);
+        if (connection == null || status != BluetoothGatt.GATT_SUCCESS || value == null || value.length < 2) {
+            return;
+        }
+        int psm = (value[0] & 0xFF) | (value[1] & 0xFF) << 8;
+        if (psm > 0 && Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            openStream(connection.device, psm);
+        }
+    }
+
+    /**
+     * Connects an L2CAP channel on a background thread, connecting blocks until the server accepts.
+     * @param device The server device
+     * @param psm PSM the server listens on
+     */
+    @RequiresApi(Build.VERSION_CODES.Q)
+    @SuppressLint("MissingPermission")
+    private void openStream(final BluetoothDevice device, final int psm) {
+        Thread connector = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                BluetoothSocket socket = null;
+                try {
+                    socket = device.createInsecureL2capChannel(psm);
+                    socket.connect();
+                    final BluetoothSocket connected = socket;
+                    loop.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            onStreamConnected(device, connected);
+                        }
+                    });
+                } catch (IOException e) {
+                    Log.e(TAG, "L2CAP connection to " + device.getAddress() + " failed, staying on GATT: " + e.getMessage());
+                    closeQuietly(socket);
+                }
+            }
+        }, "L2capConnect-" + device.getAddress());
+        connector.setDaemon(true);
+        connector.start();
+    }
+
+    /**
+     * Attaches a connected L2CAP channel to its connection.
+     * @param device The server device
+     * @param socket The connected channel
+     */
+    private void onStreamConnected(BluetoothDevice device, BluetoothSocket socket) {
+        Connection connection = connections.get(device.getAddress());
+        if (connection == null || connection.stream != null) {
+            closeQuietly(socket);
+            return;
+        }
+        try {
+            connection.stream = new StreamLink(device.getAddress(), socket.getInputStream(), socket.getOutputStream(), socket, loop, streamListener);
+        } catch (IOException e) {
+            Log.e(TAG, "L2CAP channel to " + device.getAddress() + " unusable: " + e.getMessage());
+            closeQuietly(socket);
+            return;
+        }
+        connection.stream.start();
+        Log.d(TAG, "L2CAP stream to " + device.getAddress() + " open");
+        eventBus.post("OnStreamOpened", Utils.getDeviceJson(device));
+    }
+
+    private static void closeQuietly(BluetoothSocket socket) {
+        if (socket == null) {
+            return;
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Nothing left to release
+        }
+    }
+
+    /**
+     * Returns the effective ATT MTU of a connection.
+     * @param address Address of the device
+     * @return MTU in bytes
+     */
+    public int getMtu(String address) {
+        Connection connection = connections.get(address);
+        return connection != null ? connection.session.getMtu() : AttMtu.DEFAULT_MTU;
+    }
+
+    /**
+     * Returns the session of a connection.
+     * @param address Address of the device
+     * @return The session, or null if the device is not connected
+     */
+    public PeerSession getSession(String address) {
+        Connection connection = connections.get(address);
+        return connection != null ? connection.session : null;
+    }
+
+    /**
+     * Returns the transfer metrics of the client and of each connection.
+     * Throughput is measured since the previous call.
+     * @return JSON string representing the client metrics
+     */
+    public String getMetricsJson() {
+        long now = loop.nanoTime();
+        List<LinkEndpoint> links = new ArrayList<>();
+        for (Connection connection : connections.values()) {
+            links.add(connection.link);
+        }
+        return PayloadJson.getTransferMetricsJson(metrics, links,
+                sendRate.sample(metrics.getBytesSent(), now),
+                receiveRate.sample(metrics.getBytesReceived(), now));
+    }
+
+    /**
+     * Records a connected device in the known device store. The store is saved after a delay, off the
+     * connection path, and reconnections in a row share a single write.
+     * @param device The device
+     */
+    @SuppressLint("MissingPermission")
+    private void rememberDevice(BluetoothDevice device) {
+        knownDevices.remember(device.getAddress(), device.getName(), System.currentTimeMillis());
+        if (!knownDevicesSaveScheduled) {
+            knownDevicesSaveScheduled = true;
+            loop.schedule(knownDevicesSave, KNOWN_DEVICES_SAVE_DELAY_MS);
+        }
+    }
+
+    private void saveKnownDevices() {
+        try {
+            knownDevices.save(knownDevicesFile);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to save known devices: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Returns whether a device was connected to before.
+     * @param address Address of the device
+     * @return true if the device is in the known device store
+     */
+    public boolean isKnownDevice(String address) {
+        return knownDevices.get(address) != null;
+    }
+
+    /**
+     * Returns the devices connected to before, so they can be reconnected without scanning.
+     * @return JSON strings with name, address and lastSeenMs, most recently seen first
+     */
+    public String[] getKnownDevices() {
+        List<KnownDeviceStore.Device> devices = knownDevices.getDevices();
+        String[] json = new String[devices.size()];
+        for (int i = 0; i < json.length; i++) {
+            json[i] = PayloadJson.getKnownDeviceJson(devices.get(i));
+        }
+        return json;
+    }
+
+    /**
+     * Removes a device from the known device store.
+     * @param address Address of the device
+     * @return true if the device was known
+     */
+    public boolean forgetKnownDevice(String address) {
+        if (!knownDevices.forget(address)) {
+            return false;
+        }
+        saveKnownDevices();
+        return true;
+    }
+
+    /**
+     * Returns the addresses of every connected or connecting device.
+     * @return Device addresses
+     */
+    public String[] getConnectedAddresses() {
+        return connections.keySet().toArray(new String[0]);
+    }
+
+    /**
+     * Handles a complete message received from a server.
+     * @param session The session of the server that sent the message
+     * @param completeMessage The reassembled message
+     */
+    private void onMessageReceived(PeerSession session, String completeMessage) {
+        Log.d(TAG, "Complete message received: " + completeMessage);
+        if (completeMessage.equals("DisconnectClient")) {
+            Connection connection = connections.get(session.getAddress());
+            if (connection == null) {
+                return;
+            }
+            String deviceItem = Utils.getDeviceJson(connection.device);
+            closeConnection(connection);
+            eventBus.post("OnDeviceDisconnected", deviceItem);
+        } else {
+            // Process the complete message as needed
+            eventBus.post("OnDataReceivedFromServer", completeMessage);
+        }
+    }
+
+    /**
+     * Handles a complete message received on a logical channel other than the default one.
+     * @param session The session of the server that sent the message
+     * @param channel Channel id
+     * @param flags Frame flags
+     * @param message The decoded message
+     */
+    private void onChannelMessageReceived(PeerSession session, int channel, int flags, byte[] message) {
+        boolean binary = FrameCodec.isBinary(flags);
+        String data = binary ? Base64.encodeToString(message, Base64.NO_WRAP) : new String(message, StandardCharsets.UTF_8);
+        eventBus.post("OnChannelDataReceivedFromServer", PayloadJson.getChannelMessageJson(session.getAddress(), channel, data, binary));
+    }
+
+    /**
+     * Handles a complete binary message received from a server.
+     * @param session The session of the server that sent the message
+     * @param payload The message bytes
+     */
+    private void onBinaryMessageReceived(PeerSession session, byte[] payload) {
+        Log.d(TAG, "Binary message received: " + payload.length + " bytes from " + session.getAddress());
+        if (binaryDataListener != null) {
+            binaryDataListener.onDataReceivedFromServer(session.getAddress(), payload);
+        } else {
+            eventBus.post("OnBinaryDataReceivedFromServer", Base64.encodeToString(payload, Base64.NO_WRAP));
+        }
+    }
 
 }
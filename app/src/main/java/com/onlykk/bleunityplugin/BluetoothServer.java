@@ -10,16 +10,22 @@ import android.bluetooth.BluetoothGattServerCallback;
 import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothManager;
 import android.bluetooth.BluetoothProfile;
+import android.bluetooth.BluetoothServerSocket;
+import android.bluetooth.BluetoothSocket;
+import android.bluetooth.BluetoothStatusCodes;
 import android.bluetooth.le.AdvertiseCallback;
 import android.bluetooth.le.AdvertiseData;
 import android.bluetooth.le.AdvertiseSettings;
 import android.bluetooth.le.BluetoothLeAdvertiser;
 import android.content.Context;
+import android.os.Build;
 import android.os.ParcelUuid;
+import android.util.Base64;
 import android.util.Log;
+import androidx.annotation.RequiresApi;
 
-import com.unity3d.player.UnityPlayer;
-
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -30,20 +36,177 @@ public class BluetoothServer {
 
     private static final String TAG = "ServerManager";
 
-    private static final String END_MARKER = "END_OF_MSG";
-    private static final int CHUNK_SIZE = 20;
-
+    private final BluetoothAdapter bluetoothAdapter;
     private BluetoothLeAdvertiser bluetoothLeAdvertiser;
     private BluetoothGattServer bluetoothGattServer;
 
     private Context context;
 
+    // Server state is confined to the event loop thread, callbacks are posted onto it
     private List<BluetoothDevice> connectedDevices = new ArrayList<>();
 
+    // Delay before retrying a notification the stack refused
+    private static final long NOTIFY_RETRY_DELAY_MS = 10;
+
+    /**
+     * A link to one connected client: its session and the endpoint pumping notifications,
+     * which are the transport of the endpoint, or of the reliable layer in reliable mode.
+     * Each device is paced by its own onNotificationSent callbacks, so a slow client never stalls the others.
+     */
+    private final class ClientLink implements Transport {
+        final BluetoothDevice device;
+        final PeerSession session;
+        final LinkEndpoint link;
+        // Sequence numbers and retransmission between the endpoint and the notifications, null unless reliable
+        final ReliableTransport reliable;
+        // Receives the GATT server callbacks of the link
+        final Transport.Receiver stackEvents;
+        // L2CAP stream from the client, null unless the client opened one
+        StreamLink stream;
+        // PHY of the link, the connection priority is chosen by the client
+        final LinkTuner tuner;
+
+        ClientLink(final BluetoothDevice device) {
+            this.device = device;
+            this.session = new PeerSession(device.getAddress(), sessionListener);
+            if (channelsEnabled) {
+                applyChannels(session);
+            }
+            LinkMetrics linkMetrics = new LinkMetrics(metrics);
+            if (reliableWindow > 0) {
+                reliable = new ReliableTransport(this, loop, linkMetrics);
+                reliable.setWindow(reliableWindow);
+                reliable.setListener(new ReliableTransport.Listener() {
+                    @Override
+                    public void onLinkFailed() {
+                        dropFailedLink(device, "Packets went unacknowledged");
+                    }
+                });
+                session.setChunkHeaderSize(ReliableTransport.HEADER_SIZE);
+                session.getOutbound().setMaxInFlight(reliable.getWindow());
+                link = new LinkEndpoint(session, reliable, loop, NOTIFY_RETRY_DELAY_MS, linkMetrics);
+                reliable.setReceiver(link);
+                stackEvents = reliable;
+            } else {
+                reliable = null;
+                link = new LinkEndpoint(session, this, loop, NOTIFY_RETRY_DELAY_MS, linkMetrics);
+                stackEvents = link;
+            }
+            if (coalescing) {
+                link.setCoalescing(true, lingerMs, coalesceThreshold);
+            }
+            link.setBufferLimit(sendBufferBytes, overflowPolicy);
+            link.setListener(bufferListener);
+            tuner = new LinkTuner(new LinkControl() {
+                @Override
+                public boolean requestConnectionPriority(int priority) {
+                    // Only the central can request a connection priority
+                    return false;
+                }
+
+                @SuppressLint("MissingPermission")
+                @Override
+                public boolean requestPhy(int phy) {
+                    if (bluetoothGattServer == null) {
+                        return false;
+                    }
+                    int mask = phy == LinkTuner.PHY_LE_2M ? BluetoothDevice.PHY_LE_2M_MASK : BluetoothDevice.PHY_LE_1M_MASK;
+                    bluetoothGattServer.setPreferredPhy(device, mask, mask, BluetoothDevice.PHY_OPTION_NO_PREFERRED);
+                    return true;
+                }
+            }, loop);
+            applyLinkTuning(tuner);
+        }
 
-    BluetoothServer(BluetoothAdapter bluetoothAdapter, Context context){
+        /**
+         * Queues an encoded frame for the client, on the L2CAP stream if it is open and the frame is large.
+         * @param channel Channel id, only the default channel unless the session is multiplexed
+         * @param frame The encoded frame
+         * @return true if the frame was queued, false if the send buffer is full
+         */
+        boolean sendFrame(int channel, byte[] frame) {
+            // A stream backed up beyond the send buffer size leaves large messages to the budgeted notifications
+            if (channel == OutboundQueue.DEFAULT_CHANNEL && stream != null && frame.length >= streamThreshold
+                    && (sendBufferBytes == 0 || stream.getPendingBytes() < sendBufferBytes) && stream.send(frame)) {
+                tuner.onMessageQueued(frame.length, stream.getPendingBytes());
+                return true;
+            }
+            if (!link.send(channel, frame, false)) {
+                return false;
+            }
+            tuner.onMessageQueued(frame.length, session.getOutbound().getPendingBytes());
+            return true;
+        }
+
+        void close() {
+            link.close();
+            if (reliable != null) {
+                reliable.close();
+            }
+            if (stream != null) {
+                stream.close();
+                stream = null;
+            }
+            tuner.close();
+        }
+
+        @Override
+        public boolean send(byte[] chunk, boolean acknowledged) {
+            // Notifications are never confirmed by the client
+            return bluetoothGattServer != null && notifyChunk(device, chunk);
+        }
+    }
+
+    // Link state of every connected device, keyed by device address
+    private final Map<String, ClientLink> links = new HashMap<>();
+
+    // Window of reliable mode for new links, 0 when reliable mode is off
+    private int reliableWindow = 0;
+    // Whether new links multiplex logical channels, and the weight of every opened channel
+    private boolean channelsEnabled = false;
+    private final Map<Integer, Integer> channelWeights = new HashMap<>();
+    // Whether the server listens for L2CAP streams, and the size from which messages take them
+    private boolean streamEnabled = false;
+    private int streamThreshold = BluetoothClient.DEFAULT_STREAM_THRESHOLD;
+    private BluetoothServerSocket streamServerSocket;
+    // PSM of the listening socket, published in the PSM characteristic, 0 when not listening
+    private int streamPsm;
+    // Adaptive PHY, applied to every link
+    private boolean linkTuning = false;
+    private long boostBacklogBytes = LinkTuner.DEFAULT_BACKLOG_BYTES;
+    private int boostBulkBytes = LinkTuner.DEFAULT_BULK_BYTES;
+    private long boostIdleMs = LinkTuner.DEFAULT_IDLE_MS;
+    // Coalescing of small messages for new links
+    private boolean coalescing = false;
+    private long lingerMs;
+    private int coalesceThreshold;
+    // Byte budget of the send buffer of every link, 0 for no limit
+    private long sendBufferBytes = 0;
+    private int overflowPolicy = LinkEndpoint.OVERFLOW_REJECT;
+
+    // Totals of every link since the server was created
+    private final LinkMetrics metrics = new LinkMetrics();
+    private final RateMeter sendRate;
+    private final RateMeter receiveRate;
+
+
+    // Receives binary messages as raw bytes, binary messages are posted as Base64 events without it
+    private BinaryDataListener binaryDataListener;
+
+    private final UnityEventBus eventBus;
+    private final BleEventLoop loop;
+    // Encodes outbound messages and inflates compressed inbound ones
+    private final FrameCompressor compressor;
+
+    BluetoothServer(BluetoothAdapter bluetoothAdapter, Context context, UnityEventBus eventBus, BleEventLoop loop, FrameCompressor compressor){
+        this.bluetoothAdapter = bluetoothAdapter;
         bluetoothLeAdvertiser = bluetoothAdapter.getBluetoothLeAdvertiser();
         this.context = context;
+        this.eventBus = eventBus;
+        this.loop = loop;
+        this.compressor = compressor;
+        this.sendRate = new RateMeter(loop.nanoTime());
+        this.receiveRate = new RateMeter(loop.nanoTime());
     }
 
     /**
@@ -51,6 +214,9 @@ public class BluetoothServer {
      */
     public void startServer(){
         startAdvertising();
+        if (streamEnabled) {
+            startStreamListener();
+        }
         setupGattServer();
     }
 
@@ -63,6 +229,7 @@ public class BluetoothServer {
         // Disconnect connected clients
         stopGattServer();
         stopAdvertising();
+        stopStreamListener();
 
         // Clear the server data
         resetServer();
@@ -97,13 +264,13 @@ public class BluetoothServer {
         @Override
         public void onStartSuccess(AdvertiseSettings settingsInEffect) {
             super.onStartSuccess(settingsInEffect);
-            UnityPlayer.UnitySendMessage("BLEPlugin", "OnAdvertisingStartSuccess", BLEPluginManager.SERVICE_UUID.toString());
+            eventBus.post("OnAdvertisingStartSuccess", BLEPluginManager.SERVICE_UUID.toString());
         }
 
         @Override
         public void onStartFailure(int errorCode) {
             super.onStartFailure(errorCode);
-            UnityPlayer.UnitySendMessage("BLEPlugin", "OnAdvertisingStartFailure", String.valueOf(errorCode));
+            eventBus.post("OnAdvertisingStartFailure", String.valueOf(errorCode));
         }
     };
 
@@ -116,82 +283,611 @@ public class BluetoothServer {
 
         BluetoothGattCharacteristic characteristic = new BluetoothGattCharacteristic(
                 BLEPluginManager.CHARACTERISTIC_UUID,
-                BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_WRITE | BluetoothGattCharacteristic.PROPERTY_NOTIFY,
+                BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_WRITE | BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE | BluetoothGattCharacteristic.PROPERTY_NOTIFY,
                 BluetoothGattCharacteristic.PERMISSION_READ | BluetoothGattCharacteristic.PERMISSION_WRITE
         );
 
         service.addCharacteristic(characteristic);
+        if (streamPsm > 0) {
+            service.addCharacteristic(new BluetoothGattCharacteristic(BLEPluginManager.L2CAP_PSM_UUID,
+                    BluetoothGattCharacteristic.PROPERTY_READ, BluetoothGattCharacteristic.PERMISSION_READ));
+        }
         bluetoothGattServer = ((BluetoothManager) context.getSystemService(Context.BLUETOOTH_SERVICE)).openGattServer(context, gattServerCallback);
         bluetoothGattServer.addService(service);
     }
 
-    private StringBuilder receivedData = new StringBuilder();
+    private final PeerSession.Listener sessionListener = new PeerSession.Listener() {
+        @Override
+        public void onMessage(PeerSession session, int channel, int flags, byte[] payload) {
+            byte[] message = compressor.decode(flags, payload);
+            if (message == null) {
+                Log.e(TAG, "Dropped corrupt compressed frame from " + session.getAddress());
+                return;
+            }
+            if (channel != OutboundQueue.DEFAULT_CHANNEL) {
+                boolean binary = FrameCodec.isBinary(flags);
+                String data = binary ? Base64.encodeToString(message, Base64.NO_WRAP) : new String(message, StandardCharsets.UTF_8);
+                eventBus.post("OnChannelDataReceivedFromClient", PayloadJson.getChannelMessageJson(session.getAddress(), channel, data, binary));
+                return;
+            }
+            if (FrameCodec.isBinary(flags)) {
+                Log.d(TAG, "Server binary message received: " + message.length + " bytes from " + session.getAddress());
+                if (binaryDataListener != null) {
+                    binaryDataListener.onDataReceivedFromClient(session.getAddress(), message);
+                } else {
+                    eventBus.post("OnBinaryDataReceivedFromClient", Base64.encodeToString(message, Base64.NO_WRAP));
+                }
+                return;
+            }
+            String completeMessage = new String(message, StandardCharsets.UTF_8);
+            Log.d(TAG, "Server Complete message received from " + session.getAddress() + ": " + completeMessage);
+            eventBus.post("OnDataReceivedFromClient", completeMessage);
+        }
+
+        @Override
+        public void onFrameDropped(PeerSession session, long length) {
+            Log.e(TAG, "Dropped oversized frame of " + length + " bytes from " + session.getAddress());
+        }
+    };
+
+    /**
+     * Returns the link of a device, creating it if the device has none yet.
+     * A device that is not connected, or whose link was dropped, gets no new link.
+     * @param device The connected device
+     * @return The device's link, or null if the device is not connected
+     */
+    private ClientLink getOrCreateLink(BluetoothDevice device) {
+        ClientLink link = links.get(device.getAddress());
+        if (link == null) {
+            if (!connectedDevices.contains(device)) {
+                return null;
+            }
+            link = new ClientLink(device);
+            links.put(device.getAddress(), link);
+        }
+        return link;
+    }
+
+    /**
+     * Releases the link of a device.
+     * @param device The disconnected device
+     */
+    private void releaseLink(BluetoothDevice device) {
+        ClientLink link = links.remove(device.getAddress());
+        if (link != null) {
+            link.close();
+        }
+    }
+
+    /**
+     * Disconnects a client whose link cannot deliver. Part of a message may already have reached the
+     * client, so the link is never carried on, and its queued messages are dropped with it.
+     * @param device The client
+     * @param reason What failed, for the log
+     */
+    @SuppressLint("MissingPermission")
+    private void dropFailedLink(BluetoothDevice device, String reason) {
+        Log.e(TAG, reason + " on the link to " + device.getAddress() + ", disconnecting");
+        // Chunks still arriving before the disconnect must not open a fresh link mid-message
+        connectedDevices.remove(device);
+        releaseLink(device);
+        eventBus.post("OnLinkFailed", Utils.getDeviceJson(device));
+        if (bluetoothGattServer != null) {
+            bluetoothGattServer.cancelConnection(device);
+        }
+    }
+
+    /**
+     * Enables or disables reliable mode for the clients connecting afterwards.
+     * Chunks carry sequence numbers and notifications are retransmitted until the client
+     * acknowledges them. The client must have reliable mode enabled as well.
+     * @param enabled true to deliver reliably
+     * @param windowSize Maximum number of unacknowledged chunks per client
+     */
+    public void setReliableMode(boolean enabled, int windowSize) {
+        reliableWindow = enabled ? Math.max(1, Math.min(ReliableTransport.MAX_WINDOW, windowSize)) : 0;
+    }
+
+    /**
+     * Enables or disables adaptive link tuning on every link and the ones created afterwards.
+     * A backlog or a bulk message asks for the 2M PHY. The connection priority is up to the client.
+     * @param enabled true to adapt the links to their traffic
+     * @param backlogBytes Queued bytes from which a link is boosted
+     * @param bulkBytes Message size from which a link is boosted right away
+     * @param idleMs Time without traffic after which the boost ends
+     */
+    public void setLinkTuning(boolean enabled, long backlogBytes, int bulkBytes, long idleMs) {
+        linkTuning = enabled;
+        boostBacklogBytes = backlogBytes;
+        boostBulkBytes = bulkBytes;
+        boostIdleMs = idleMs;
+        for (ClientLink clientLink : links.values()) {
+            applyLinkTuning(clientLink.tuner);
+        }
+    }
+
+    private void applyLinkTuning(LinkTuner tuner) {
+        tuner.setBoostThresholds(boostBacklogBytes, boostBulkBytes);
+        tuner.setIdlePolicy(boostIdleMs, false);
+        tuner.setEnabled(linkTuning);
+    }
+
+    /**
+     * Returns the radio parameters of a link.
+     * @param address Address of the connected device
+     * @return JSON string with the PHY and interval in effect, or null if not connected
+     */
+    public String getLinkParametersJson(String address) {
+        ClientLink clientLink = links.get(address);
+        return clientLink != null ? PayloadJson.getLinkParametersJson(address, clientLink.tuner) : null;
+    }
+
+    private void handlePhyUpdate(BluetoothDevice device, int txPhy, int rxPhy, int status) {
+        ClientLink clientLink = links.get(device.getAddress());
+        if (clientLink != null && status == BluetoothGatt.GATT_SUCCESS) {
+            clientLink.tuner.onPhyUpdate(txPhy, rxPhy);
+            eventBus.post("OnLinkParametersChanged", PayloadJson.getLinkParametersJson(device.getAddress(), clientLink.tuner));
+        }
+    }
+
+    /**
+     * Enables or disables the L2CAP stream, taking effect when the server starts.
+     * The server listens on a dynamic PSM and publishes it in a read-only characteristic, and clients
+     * with stream mode enabled open a connection-oriented channel to it. Messages from the threshold
+     * size on are then written to the stream instead of being notified chunk by chunk.
+     * Needs Android 10, older devices keep using the characteristic.
+     * @param enabled true to accept streams
+     * @param thresholdBytes Encoded size from which a message takes the stream
+     */
+    public void setStreamEnabled(boolean enabled, int thresholdBytes) {
+        streamEnabled = enabled;
+        streamThreshold = Math.max(1, thresholdBytes);
+    }
+
+    public boolean isStreamEnabled() {
+        return streamEnabled;
+    }
+
+    /**
+     * Returns the PSM the server listens on for L2CAP streams.
+     * @return PSM, 0 when not listening
+     */
+    public int getStreamPsm() {
+        return streamPsm;
+    }
 
     /**
-     * GATT server callback for handling events.
+     * Starts listening for L2CAP streams, if the device supports them.
+     */
+    @SuppressLint("MissingPermission")
+    private void startStreamListener() {
+        if (streamServerSocket != null) {
+            return;
+        }
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) {
+            Log.d(TAG, "L2CAP streams need Android 10, staying on GATT");
+            return;
+        }
+        try {
+            listenForStreams();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to listen for L2CAP streams, staying on GATT: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Opens the listening socket and accepts streams on a background thread, accepting blocks.
+     */
+    @RequiresApi(Build.VERSION_CODES.Q)
+    @SuppressLint("MissingPermission")
+    private void listenForStreams() throws IOException {
+        final BluetoothServerSocket serverSocket = bluetoothAdapter.listenUsingInsecureL2capChannel();
+        streamServerSocket = serverSocket;
+        streamPsm = serverSocket.getPsm();
+        Log.d(TAG, "Listening for L2CAP streams on PSM " + streamPsm);
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    final BluetoothSocket socket;
+                    try {
+                        socket = serverSocket.accept();
+                    } catch (IOException e) {
+                        // The listening socket was closed
+                        return;
+                    }
+                    loop.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            onStreamAccepted(socket);
+                        }
+                    });
+                }
+            }
+        }, "L2capAccept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * Attaches an accepted L2CAP channel to the link of its client.
+     * @param socket The accepted channel
+     */
+    private void onStreamAccepted(BluetoothSocket socket) {
+        BluetoothDevice device = socket.getRemoteDevice();
+        if (bluetoothGattServer == null) {
+            closeQuietly(socket);
+            return;
+        }
+        ClientLink clientLink = links.get(device.getAddress());
+        if (clientLink == null) {
+            // The channel is only opened by a client connected over GATT, which has a link
+            Log.e(TAG, "L2CAP channel from unknown device " + device.getAddress() + " rejected");
+            closeQuietly(socket);
+            return;
+        }
+        if (clientLink.stream != null) {
+            // The client reconnected the stream, the old one is dead
+            clientLink.stream.close();
+        }
+        try {
+            clientLink.stream = new StreamLink(device.getAddress(), socket.getInputStream(), socket.getOutputStream(), socket, loop, streamListener);
+        } catch (IOException e) {
+            Log.e(TAG, "L2CAP channel from " + device.getAddress() + " unusable: " + e.getMessage());
+            clientLink.stream = null;
+            closeQuietly(socket);
+            return;
+        }
+        clientLink.stream.start();
+        Log.d(TAG, "L2CAP stream from " + device.getAddress() + " open");
+        eventBus.post("OnStreamOpened", Utils.getDeviceJson(device));
+    }
+
+    private void stopStreamListener() {
+        if (streamServerSocket == null) {
+            return;
+        }
+        try {
+            streamServerSocket.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to close the L2CAP listener: " + e.getMessage());
+        }
+        streamServerSocket = null;
+        streamPsm = 0;
+    }
+
+    private static void closeQuietly(BluetoothSocket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Nothing left to release
+        }
+    }
+
+    private final StreamLink.Listener streamListener = new StreamLink.Listener() {
+        @Override
+        public void onFrame(StreamLink link, int flags, byte[] payload) {
+            ClientLink clientLink = links.get(link.getAddress());
+            if (clientLink != null && clientLink.stream == link) {
+                sessionListener.onMessage(clientLink.session, OutboundQueue.DEFAULT_CHANNEL, flags, payload);
+            }
+        }
+
+        @Override
+        public void onClosed(StreamLink link, IOException error, List<byte[]> unsent) {
+            ClientLink clientLink = links.get(link.getAddress());
+            if (clientLink == null || clientLink.stream != link) {
+                return;
+            }
+            // Large messages fall back to notifications, the ones the stream never wrote included
+            Log.d(TAG, "L2CAP stream from " + link.getAddress() + " closed" + (error != null ? ": " + error.getMessage() : ""));
+            clientLink.stream = null;
+            int refused = 0;
+            for (byte[] frame : unsent) {
+                // A full send buffer counts the refused message as dropped
+                if (!clientLink.sendFrame(OutboundQueue.DEFAULT_CHANNEL, frame)) {
+                    refused++;
+                }
+            }
+            if (refused > 0) {
+                Log.e(TAG, "Dropped " + refused + " of " + unsent.size() + " messages the stream to " + link.getAddress() + " left unsent");
+            }
+            eventBus.post("OnStreamClosed", Utils.getDeviceJson(clientLink.device));
+        }
+    };
+
+    // Posts the fill level changes of every send buffer and holds the send gate while one is filling up
+    private final LinkEndpoint.Listener bufferListener = new LinkEndpoint.Listener() {
+        @Override
+        public void onHighWatermark(LinkEndpoint link) {
+            sendGate.hold();
+            eventBus.post("OnSendBufferHigh", PayloadJson.getSendBufferJson(link));
+        }
+
+        @Override
+        public void onDrained(LinkEndpoint link) {
+            sendGate.release();
+            eventBus.post("OnSendBufferDrained", PayloadJson.getSendBufferJson(link));
+        }
+
+        @Override
+        public void onLinkFailed(LinkEndpoint link) {
+            ClientLink clientLink = links.get(link.getSession().getAddress());
+            if (clientLink != null && clientLink.link == link) {
+                dropFailedLink(clientLink.device, "Notifications keep failing");
+            }
+        }
+    };
+    // Waited at by application threads in block mode
+    private final SendGate sendGate = new SendGate();
+
+    /**
+     * Limits the bytes queued for every link and the ones created afterwards.
+     * OnSendBufferHigh is posted when a queue reaches three quarters of the capacity and
+     * OnSendBufferDrained when it is back to a quarter, so the game can throttle itself.
+     * @param capacityBytes Capacity of each link's queue in bytes, 0 for no limit
+     * @param policy What a message that does not fit does, one of the LinkEndpoint OVERFLOW constants
+     */
+    public void setSendBuffer(long capacityBytes, int policy) {
+        sendBufferBytes = Math.max(0, capacityBytes);
+        overflowPolicy = policy;
+        for (ClientLink clientLink : links.values()) {
+            clientLink.link.setBufferLimit(sendBufferBytes, policy);
+        }
+    }
+
+    public long getSendBufferBytes() {
+        return sendBufferBytes;
+    }
+
+    /**
+     * Returns the gate held while a send buffer is above its high watermark.
+     * @return The gate, safe to wait at from any thread but the event loop
+     */
+    public SendGate getSendGate() {
+        return sendGate;
+    }
+
+    /**
+     * Enables or disables coalescing of small messages on every link and the ones created afterwards.
+     * Small messages wait up to lingerMs for more to share a notification with, the client needs no setting.
+     * @param enabled true to pack small messages into shared notifications
+     * @param lingerMs Time a small message may wait, 0 to only pack messages already queued
+     * @param thresholdBytes Queued bytes that send at once, and the size from which a message is never held, 0 for one packet
+     */
+    public void setCoalescing(boolean enabled, long lingerMs, int thresholdBytes) {
+        coalescing = enabled;
+        this.lingerMs = lingerMs;
+        coalesceThreshold = thresholdBytes;
+        for (ClientLink clientLink : links.values()) {
+            clientLink.link.setCoalescing(enabled, lingerMs, thresholdBytes);
+        }
+    }
+
+    public boolean isCoalescing() {
+        return coalescing;
+    }
+
+    /**
+     * Sends data to all connected clients right away, together with any small messages held for coalescing.
+     * @param data The data to send
+     */
+    public void sendUrgentDataToClient(String data) {
+        if (bluetoothGattServer == null || data.isEmpty()) {
+            return;
+        }
+        byte[] frame = compressor.encode(data);
+        // A link failing while sending drops its device from the list
+        for (BluetoothDevice device : new ArrayList<>(connectedDevices)) {
+            ClientLink clientLink = getOrCreateLink(device);
+            if (clientLink != null) {
+                clientLink.sendFrame(OutboundQueue.DEFAULT_CHANNEL, frame);
+                clientLink.link.flush();
+            }
+        }
+    }
+
+    /**
+     * Enables or disables logical channels for the clients connecting afterwards.
+     * Every chunk then starts with its channel id, so the client must have channels enabled as well.
+     * @param enabled true to multiplex channels
+     */
+    public void setChannelsEnabled(boolean enabled) {
+        channelsEnabled = enabled;
+    }
+
+    public boolean isChannelsEnabled() {
+        return channelsEnabled;
+    }
+
+    /**
+     * Opens a logical channel, or changes its weight, on every link that multiplexes channels
+     * and on the ones created afterwards.
+     * @param channel Channel id, 0 to 255
+     * @param weight Relative weight, a channel with a higher weight gets a larger share of the link
+     * @return true if the channel id is valid
+     */
+    public boolean openChannel(int channel, int weight) {
+        if (!isValidChannel(channel)) {
+            Log.e(TAG, "Invalid channel " + channel);
+            return false;
+        }
+        channelWeights.put(channel, weight);
+        for (ClientLink clientLink : links.values()) {
+            if (clientLink.session.isMultiplexed()) {
+                clientLink.session.getOutbound().setChannelWeight(channel, weight);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Enables multiplexing on a new session and applies the weights of the opened channels.
+     * @param session The session
+     */
+    private void applyChannels(PeerSession session) {
+        session.setMultiplexed(true);
+        for (Map.Entry<Integer, Integer> entry : channelWeights.entrySet()) {
+            session.getOutbound().setChannelWeight(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private static boolean isValidChannel(int channel) {
+        return channel >= 0 && channel < OutboundQueue.MAX_CHANNELS;
+    }
+
+    /**
+     * GATT server callback for handling events. Callbacks arrive on binder threads and are posted to the event loop.
      */
     private final BluetoothGattServerCallback gattServerCallback = new BluetoothGattServerCallback() {
         @Override
-        public void onConnectionStateChange(BluetoothDevice device, int status, int newState) {
+        public void onConnectionStateChange(final BluetoothDevice device, int status, final int newState) {
             super.onConnectionStateChange(device, status, newState);
-            if (newState == BluetoothProfile.STATE_CONNECTED) {
-                connectedDevices.add(device);
-                String deviceItem = Utils.getDeviceJson(device);
-                UnityPlayer.UnitySendMessage("BLEPlugin", "OnDeviceConnected", deviceItem);
-
-            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-                connectedDevices.remove(device);
-                String deviceItem = Utils.getDeviceJson(device);
-                UnityPlayer.UnitySendMessage("BLEPlugin", "OnDeviceDisconnected", deviceItem);
-            }
+            loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (newState == BluetoothProfile.STATE_CONNECTED) {
+                        connectedDevices.add(device);
+                        getOrCreateLink(device);
+                        if (bluetoothGattServer != null) {
+                            // The PHY in effect is reported through onPhyRead
+                            bluetoothGattServer.readPhy(device);
+                        }
+                        String deviceItem = Utils.getDeviceJson(device);
+                        eventBus.post("OnDeviceConnected", deviceItem);
+
+                    } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+                        connectedDevices.remove(device);
+                        releaseLink(device);
+                        String deviceItem = Utils.getDeviceJson(device);
+                        eventBus.post("OnDeviceDisconnected", deviceItem);
+                    }
+                }
+            });
         }
 
-        private int mtu = 20;
         @SuppressLint("MissingPermission")
         @Override
-        public void onCharacteristicReadRequest(BluetoothDevice device, int requestId, int offset, BluetoothGattCharacteristic characteristic) {
+        public void onCharacteristicReadRequest(final BluetoothDevice device, final int requestId, final int offset, final BluetoothGattCharacteristic characteristic) {
             super.onCharacteristicReadRequest(device, requestId, offset, characteristic);
+            if (BLEPluginManager.L2CAP_PSM_UUID.equals(characteristic.getUuid())) {
+                loop.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (bluetoothGattServer != null) {
+                            byte[] psm = {(byte) streamPsm, (byte) (streamPsm >> 8)};
+                            bluetoothGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, 0, psm);
+                        }
+                    }
+                });
+                return;
+            }
             if (BLEPluginManager.CHARACTERISTIC_UUID.equals(characteristic.getUuid())) {
-                Log.d(TAG, "Server ReadChanged  : "+  offset);
-                bluetoothGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, offset, characteristic.getValue());
+                loop.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        Log.d(TAG, "Server ReadChanged  : "+  offset);
+                        if (bluetoothGattServer != null) {
+                            bluetoothGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, offset, characteristic.getValue());
+                        }
+                    }
+                });
             }
         }
 
-        private StringBuilder receivedData = new StringBuilder();
         @SuppressLint("MissingPermission")
         @Override
-        public void onCharacteristicWriteRequest(BluetoothDevice device, int requestId, BluetoothGattCharacteristic characteristic, boolean preparedWrite, boolean responseNeeded, int offset, byte[] value) {
+        public void onCharacteristicWriteRequest(final BluetoothDevice device, final int requestId, BluetoothGattCharacteristic characteristic, boolean preparedWrite, final boolean responseNeeded, final int offset, final byte[] value) {
             super.onCharacteristicWriteRequest(device, requestId, characteristic, preparedWrite, responseNeeded, offset, value);
             if (BLEPluginManager.CHARACTERISTIC_UUID.equals(characteristic.getUuid())) {
+                loop.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        Log.d(TAG, "Server chunk received: " + value.length + " bytes from " + device.getAddress());
+                        ClientLink clientLink = getOrCreateLink(device);
+                        if (clientLink != null) {
+                            clientLink.tuner.onActivity();
+                            clientLink.stackEvents.onChunkReceived(value);
+                        }
+
+                        if (responseNeeded && bluetoothGattServer != null) {
+                            bluetoothGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, offset, value);
+                        }
+                    }
+                });
+            }
+        }
 
-                String chunk = new String(value, StandardCharsets.UTF_8);
-                receivedData.append(chunk);
-                Log.d(TAG, "Server message received: " + chunk);
-
-
-                // Check if the chunk contains the "END_OF_MSG" marker
-                if (receivedData.toString().contains(END_MARKER)) {
-                    // Extract the complete message by removing the "END_OF_MSG" marker
-                    String completeMessage = receivedData.toString().replace(END_MARKER, "");
-                    Log.d(TAG, "Server Complete message received: " + completeMessage);
-
-                    // Clear the buffer for the next message
-                    receivedData.setLength(0);
-
-                    // Process the complete message as needed
-                    UnityPlayer.UnitySendMessage("BLEPlugin", "OnDataReceivedFromClient", completeMessage);
+        @Override
+        public void onNotificationSent(final BluetoothDevice device, final int status) {
+            super.onNotificationSent(device, status);
+            loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (status != BluetoothGatt.GATT_SUCCESS) {
+                        Log.e(TAG, "Notification to " + device.getAddress() + " failed with status: " + status);
+                    }
+                    ClientLink link = links.get(device.getAddress());
+                    if (link != null) {
+                        link.tuner.onActivity();
+                        if (status == BluetoothGatt.GATT_SUCCESS) {
+                            link.stackEvents.onSendComplete();
+                        } else {
+                            link.stackEvents.onSendFailed();
+                        }
+                    }
                 }
+            });
+        }
 
-                if (responseNeeded) {
-                    bluetoothGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, offset, value);
+        @Override
+        public void onMtuChanged(final BluetoothDevice device, final int mtu) {
+            loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Log.d(TAG, "MTU size changed to: " + mtu + " : " + device.getAddress());
+                    ClientLink clientLink = getOrCreateLink(device);
+                    if (clientLink != null) {
+                        clientLink.stackEvents.onMtuChanged(mtu);
+                    }
                 }
+            });
+        }
 
-            }
+        @Override
+        public void onPhyUpdate(final BluetoothDevice device, final int txPhy, final int rxPhy, final int status) {
+            loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    handlePhyUpdate(device, txPhy, rxPhy, status);
+                }
+            });
         }
 
         @Override
-        public void onMtuChanged(BluetoothDevice device, int mtu) {
-                Log.d(TAG, "MTU size changed to: " + mtu + " : " + device.getAddress().toString());
+        public void onPhyRead(final BluetoothDevice device, final int txPhy, final int rxPhy, final int status) {
+            loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    handlePhyUpdate(device, txPhy, rxPhy, status);
+                }
+            });
+        }
+
+        /**
+         * Called by the stack when the connection parameters change. Hidden in the SDK, so not marked as an override.
+         */
+        public void onConnectionUpdated(final BluetoothDevice device, final int interval, final int latency, final int timeout, final int status) {
+            loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    ClientLink clientLink = links.get(device.getAddress());
+                    if (clientLink != null && status == BluetoothGatt.GATT_SUCCESS) {
+                        clientLink.tuner.onConnectionUpdated(interval, latency, timeout);
+                        eventBus.post("OnLinkParametersChanged", PayloadJson.getLinkParametersJson(device.getAddress(), clientLink.tuner));
+                    }
+                }
+            });
         }
     };
 
@@ -209,31 +905,163 @@ public class BluetoothServer {
         Log.d(TAG,  "sendDataToClient : " +data);
 
 
-        // Append the "END_OF_MSG" marker to indicate the end of the message
-        String fullMessage = data + END_MARKER;
+        sendFrameToClient(compressor.encode(data));
+    }
+
+    /**
+     * Sends raw bytes to all connected clients, chunked at byte offsets.
+     * @param data The bytes to send
+     */
+    public void sendBytesToClient(byte[] data) {
+        if (data.length > 0) {
+            sendFrameToClient(compressor.encodeBinary(data));
+        }
+    }
+
+    /**
+     * Sends the remaining bytes of a heap or direct buffer to all connected clients.
+     * @param data The bytes to send, the buffer position is left unchanged
+     */
+    public void sendBytesToClient(ByteBuffer data) {
+        if (data.hasRemaining()) {
+            sendFrameToClient(compressor.encodeBinary(data));
+        }
+    }
+
+    /**
+     * Queues an encoded frame for every connected client.
+     * @param frame The encoded frame
+     */
+    void sendFrameToClient(byte[] frame) {
+        if (bluetoothGattServer == null) {
+            return;
+        }
+        // A link failing while sending drops its device from the list
+        for (BluetoothDevice device : new ArrayList<>(connectedDevices)) {
+            ClientLink clientLink = getOrCreateLink(device);
+            if (clientLink != null) {
+                clientLink.sendFrame(OutboundQueue.DEFAULT_CHANNEL, frame);
+            }
+        }
+    }
+
+    /**
+     * Sends data on a logical channel to every connected client that multiplexes channels.
+     * @param channel Channel id
+     * @param data The data to send
+     */
+    public void sendDataOnChannel(int channel, String data) {
+        if (!data.isEmpty()) {
+            sendFrameOnChannel(channel, compressor.encode(data));
+        }
+    }
+
+    /**
+     * Sends raw bytes on a logical channel to every connected client that multiplexes channels.
+     * @param channel Channel id
+     * @param data The bytes to send
+     */
+    public void sendBytesOnChannel(int channel, byte[] data) {
+        if (data.length > 0) {
+            sendFrameOnChannel(channel, compressor.encodeBinary(data));
+        }
+    }
 
+    /**
+     * Queues an encoded frame on a logical channel of every link that can carry it.
+     * @param channel Channel id
+     * @param frame The encoded frame
+     */
+    void sendFrameOnChannel(int channel, byte[] frame) {
+        if (bluetoothGattServer == null) {
+            return;
+        }
+        if (!isValidChannel(channel)) {
+            Log.e(TAG, "Invalid channel " + channel);
+            return;
+        }
+        // A link failing while sending drops its device from the list
+        for (BluetoothDevice device : new ArrayList<>(connectedDevices)) {
+            ClientLink clientLink = getOrCreateLink(device);
+            // Links created before channels were enabled only carry the default channel
+            if (clientLink != null && (channel == OutboundQueue.DEFAULT_CHANNEL || clientLink.session.isMultiplexed())) {
+                clientLink.sendFrame(channel, frame);
+            }
+        }
+    }
+
+    /**
+     * Sets the listener receiving binary messages as raw bytes.
+     * @param listener The listener, or null to post binary messages as Base64 OnBinaryDataReceivedFromClient events
+     */
+    public void setBinaryDataListener(BinaryDataListener listener) {
+        binaryDataListener = listener;
+    }
+
+    /**
+     * Sends a single notification to a device.
+     * @param device The connected device
+     * @param packet The chunk to send
+     * @return true if the stack accepted the notification
+     */
+    @SuppressLint("MissingPermission")
+    private boolean notifyChunk(BluetoothDevice device, byte[] packet) {
         BluetoothGattCharacteristic characteristic = bluetoothGattServer
                 .getService(BLEPluginManager.SERVICE_UUID)
                 .getCharacteristic(BLEPluginManager.CHARACTERISTIC_UUID);
 
-        int mtu = 20; // Subtract the 3 bytes used by the ATT header
-        int dataLength = fullMessage.length();
-        int offset = 0;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+            return bluetoothGattServer.notifyCharacteristicChanged(device, characteristic, false, packet) == BluetoothStatusCodes.SUCCESS;
+        }
+        // The characteristic value is shared by all devices, only the event loop sets it
+        characteristic.setValue(packet);
+        return bluetoothGattServer.notifyCharacteristicChanged(device, characteristic, false);
+    }
 
-        while (offset < dataLength) {
-            int end = Math.min(offset + mtu, dataLength);
-            String packet = fullMessage.substring(offset, end);
-            Log.d(TAG, "sendDataToClient Chunk : "+ packet );
-            characteristic.setValue(packet.getBytes(StandardCharsets.UTF_8));
+    /**
+     * Returns the number of messages still queued for a connected device.
+     * @param address Address of the connected device
+     * @return Queue depth in messages, 0 if the device is not connected
+     */
+    public int getQueueDepth(String address) {
+        PeerSession session = getSession(address);
+        return session != null ? session.getOutbound().getPendingMessages() : 0;
+    }
 
-            for (BluetoothDevice device : connectedDevices) {
-                bluetoothGattServer.notifyCharacteristicChanged(device, characteristic, false);
-            }
+    /**
+     * Returns the effective ATT MTU negotiated with a connected device.
+     * @param address Address of the connected device
+     * @return MTU in bytes, the default MTU if none was negotiated
+     */
+    public int getMtu(String address) {
+        PeerSession session = getSession(address);
+        return session != null ? session.getMtu() : AttMtu.DEFAULT_MTU;
+    }
 
-            offset = end;
+    /**
+     * Returns the transfer metrics of the server and of each connected client.
+     * Throughput is measured since the previous call.
+     * @return JSON string representing the server metrics
+     */
+    public String getMetricsJson() {
+        long now = loop.nanoTime();
+        List<LinkEndpoint> endpoints = new ArrayList<>();
+        for (ClientLink link : links.values()) {
+            endpoints.add(link.link);
         }
+        return PayloadJson.getTransferMetricsJson(metrics, endpoints,
+                sendRate.sample(metrics.getBytesSent(), now),
+                receiveRate.sample(metrics.getBytesReceived(), now));
+    }
 
-
+    /**
+     * Returns the session of a connected device.
+     * @param address Address of the connected device
+     * @return The session, or null if the device is not connected
+     */
+    public PeerSession getSession(String address) {
+        ClientLink link = links.get(address);
+        return link != null ? link.session : null;
     }
 
 
@@ -300,5 +1128,9 @@ public class BluetoothServer {
     public void resetServer(){
         //deviceMap.clear();
         connectedDevices.clear();
+        for (ClientLink link : links.values()) {
+            link.close();
+        }
+        links.clear();
     }
 }
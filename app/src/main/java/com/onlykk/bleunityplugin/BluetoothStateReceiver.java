@@ -4,11 +4,16 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.util.Log;
-import com.unity3d.player.UnityPlayer;
 
 public class BluetoothStateReceiver extends BroadcastReceiver {
     private static final String TAG = "BluetoothStateReceiver";
 
+    private final UnityEventBus eventBus;
+
+    BluetoothStateReceiver(UnityEventBus eventBus) {
+        this.eventBus = eventBus;
+    }
+
     @Override
     public void onReceive(Context context, Intent intent) {
         final String action = intent.getAction();
@@ -18,19 +23,19 @@ public class BluetoothStateReceiver extends BroadcastReceiver {
             switch (state) {
                 case BluetoothAdapter.STATE_OFF:
                     Log.d(TAG, "Bluetooth is off");
-                    UnityPlayer.UnitySendMessage("BLEPlugin", "OnBluetoothStateChange", "off");
+                    eventBus.post("OnBluetoothStateChange", "off");
                     break;
                 case BluetoothAdapter.STATE_TURNING_OFF:
                     Log.d(TAG, "Bluetooth is turning off");
-                    UnityPlayer.UnitySendMessage("BLEPlugin", "OnBluetoothStateChange", "turning_off");
+                    eventBus.post("OnBluetoothStateChange", "turning_off");
                     break;
                 case BluetoothAdapter.STATE_ON:
                     Log.d(TAG, "Bluetooth is on");
-                    UnityPlayer.UnitySendMessage("BLEPlugin", "OnBluetoothStateChange", "on");
+                    eventBus.post("OnBluetoothStateChange", "on");
                     break;
                 case BluetoothAdapter.STATE_TURNING_ON:
                     Log.d(TAG, "Bluetooth is turning on");
-                    UnityPlayer.UnitySendMessage("BLEPlugin", "OnBluetoothStateChange", "turning_on");
+                    eventBus.post("OnBluetoothStateChange", "turning_on");
                     break;
             }
         }
@@ -3,8 +3,6 @@ package com.onlykk.bleunityplugin;
 import android.annotation.SuppressLint;
 import android.bluetooth.BluetoothDevice;
 
-import org.json.JSONObject;
-
 public class Utils {
 
     /**
@@ -15,19 +13,68 @@ public class Utils {
     @SuppressLint("MissingPermission")
     public static String getDeviceJson(BluetoothDevice device)
     {
-        // Create JSON object  - java.lang.ClassNotFoundException: com.google.gson.JsonObject
-        try {
-            JSONObject jsonObject = new JSONObject();
-            jsonObject.put("name", device.getName());
-            jsonObject.put("address", device.getAddress());
-            String deviceItemJson = jsonObject.toString();
-            return deviceItemJson;
+        if (device == null) {
+            return null;
         }
-        catch (Exception e)
-        {
+        return getDeviceJson(device.getName(), device.getAddress());
+    }
+
+    /**
+     * Converts a discovered Bluetooth device and its smoothed signal strength to a JSON string.
+     * @param device The Bluetooth device
+     * @param rssi Smoothed RSSI of the device
+     * @return JSON string representing the device
+     */
+    @SuppressLint("MissingPermission")
+    public static String getDeviceJson(BluetoothDevice device, int rssi)
+    {
+        if (device == null) {
             return null;
         }
+        return getDeviceJson(device.getName(), device.getAddress(), rssi);
+    }
+
+    /**
+     * Encodes a device name and address to a JSON string.
+     * @param name Device name, omitted if null
+     * @param address Device address
+     * @return JSON string representing the device
+     */
+    public static String getDeviceJson(String name, String address)
+    {
+        return PayloadJson.getDeviceJson(name, address);
     }
 
+    /**
+     * Encodes a device name, address and signal strength to a JSON string.
+     * @param name Device name, omitted if null
+     * @param address Device address
+     * @param rssi Smoothed RSSI of the device
+     * @return JSON string representing the device
+     */
+    public static String getDeviceJson(String name, String address, int rssi)
+    {
+        return PayloadJson.getDeviceJson(name, address, rssi);
+    }
+
+    /**
+     * Converts the statistics of a session to a JSON string.
+     * @param session The session
+     * @return JSON string representing the session statistics
+     */
+    public static String getSessionJson(PeerSession session)
+    {
+        return PayloadJson.getSessionJson(session);
+    }
+
+    /**
+     * Converts the statistics of a compressor to a JSON string.
+     * @param compressor The compressor
+     * @return JSON string representing the compression statistics
+     */
+    public static String getCompressionJson(FrameCompressor compressor)
+    {
+        return PayloadJson.getCompressionJson(compressor);
+    }
 
 }
@@ -0,0 +1,27 @@
+plugins {
+    id("java")
+    id("me.champeau.jmh")
+}
+
+java {
+    sourceCompatibility = JavaVersion.VERSION_1_8
+    targetCompatibility = JavaVersion.VERSION_1_8
+}
+
+dependencies {
+    jmh(project(":core"))
+    // Baseline for the device payload benchmark, the encoder the plugin used before JsonEncoder
+    jmh("org.json:json:20220924")
+}
+
+jmh {
+    jmhVersion.set("1.37")
+    // gc.alloc.rate and gc.alloc.rate.norm (bytes per operation) next to every timing
+    profilers.add("gc")
+    fork.set(1)
+    warmupIterations.set(3)
+    warmup.set("1s")
+    iterations.set(5)
+    timeOnIteration.set("1s")
+    resultFormat.set("JSON")
+}
@@ -0,0 +1,69 @@
+package com.onlykk.bleunityplugin;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Outbound path of one message: framing and cutting it into ATT-sized chunks through the
+ * flow-controlled queue, as BluetoothClient and BluetoothServer do before each write or notification.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ChunkingBenchmark {
+
+    @Param({"64", "1024", "16384", "262144"})
+    public int messageSize;
+
+    // Default MTU and the MTU most phones negotiate
+    @Param({"23", "247"})
+    public int mtu;
+
+    private String text;
+    private byte[] binary;
+    private int chunkSize;
+    private OutboundQueue queue;
+
+    @Setup
+    public void setUp() {
+        char[] chars = new char[messageSize];
+        Arrays.fill(chars, 'x');
+        text = new String(chars);
+        binary = new byte[messageSize];
+        chunkSize = AttMtu.chunkSize(mtu);
+        queue = new OutboundQueue(4);
+    }
+
+    @Benchmark
+    public int textMessage(Blackhole blackhole) {
+        queue.enqueue(FrameCodec.encode(text));
+        return drain(blackhole);
+    }
+
+    @Benchmark
+    public int binaryMessage(Blackhole blackhole) {
+        queue.enqueue(FrameCodec.encodeBinary(binary));
+        return drain(blackhole);
+    }
+
+    private int drain(Blackhole blackhole) {
+        int chunks = 0;
+        byte[] chunk;
+        while ((chunk = queue.nextChunk(chunkSize)) != null) {
+            blackhole.consume(chunk);
+            queue.onChunkComplete();
+            chunks++;
+        }
+        return chunks;
+    }
+}
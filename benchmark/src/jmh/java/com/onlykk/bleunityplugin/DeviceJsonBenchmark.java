@@ -0,0 +1,56 @@
+package com.onlykk.bleunityplugin;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Device payload encoding for UpdateDeviceList and the connection events: the JSONObject
+ * encoding the plugin used before, against {@link PayloadJson} on top of {@link JsonEncoder}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class DeviceJsonBenchmark {
+
+    // Length of the advertised device name
+    @Param({"8", "32", "128"})
+    public int nameLength;
+
+    private static final String ADDRESS = "AA:BB:CC:DD:EE:FF";
+
+    private String name;
+
+    @Setup
+    public void setUp() {
+        char[] chars = new char[nameLength];
+        Arrays.fill(chars, 'n');
+        // One character that needs escaping, as in real device names with quotes
+        chars[0] = '"';
+        name = new String(chars);
+    }
+
+    @Benchmark
+    public String jsonObject() throws JSONException {
+        JSONObject jsonObject = new JSONObject();
+        jsonObject.put("name", name);
+        jsonObject.put("address", ADDRESS);
+        jsonObject.put("rssi", -60);
+        return jsonObject.toString();
+    }
+
+    @Benchmark
+    public String jsonEncoder() {
+        return PayloadJson.getDeviceJson(name, ADDRESS, -60);
+    }
+}
@@ -0,0 +1,37 @@
+package com.onlykk.bleunityplugin;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Metrics recorded per chunk on a connection whose totals roll up into the client metrics.
+ * The gc profiler should report no allocation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MetricsBenchmark {
+
+    private final LinkMetrics totals = new LinkMetrics();
+    private final LinkMetrics link = new LinkMetrics(totals);
+    private long latencyMicros;
+
+    @Benchmark
+    public void recordChunk() {
+        latencyMicros = (latencyMicros * 31 + 7) & 0xFFFF;
+        link.onChunkSent(244);
+        link.onChunkComplete(latencyMicros);
+        link.onChunkReceived(244);
+    }
+
+    @Benchmark
+    public long percentile() {
+        return totals.getChunkLatency().getPercentile(99);
+    }
+}
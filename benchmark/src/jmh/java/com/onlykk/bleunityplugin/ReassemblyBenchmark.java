@@ -0,0 +1,65 @@
+package com.onlykk.bleunityplugin;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Inbound path of one message: feeding its chunks, as delivered by onCharacteristicChanged or
+ * onCharacteristicWriteRequest, into a peer session until the message is complete.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ReassemblyBenchmark {
+
+    @Param({"64", "1024", "16384", "262144"})
+    public int messageSize;
+
+    @Param({"23", "247"})
+    public int mtu;
+
+    private byte[][] chunks;
+    private PeerSession session;
+    private Blackhole blackhole;
+
+    @Setup
+    public void setUp(Blackhole blackhole) {
+        this.blackhole = blackhole;
+        byte[] frame = FrameCodec.encodeBinary(new byte[messageSize]);
+        int chunkSize = AttMtu.chunkSize(mtu);
+        chunks = new byte[(frame.length + chunkSize - 1) / chunkSize][];
+        for (int i = 0; i < chunks.length; i++) {
+            int offset = i * chunkSize;
+            chunks[i] = Arrays.copyOfRange(frame, offset, Math.min(offset + chunkSize, frame.length));
+        }
+        session = new PeerSession("AA:BB:CC:DD:EE:FF", new PeerSession.Listener() {
+            @Override
+            public void onMessage(PeerSession session, int channel, int flags, byte[] payload) {
+                ReassemblyBenchmark.this.blackhole.consume(payload);
+            }
+
+            @Override
+            public void onFrameDropped(PeerSession session, long length) {
+                throw new IllegalStateException("Frame dropped");
+            }
+        });
+    }
+
+    @Benchmark
+    public long reassemble() {
+        for (byte[] chunk : chunks) {
+            session.onChunkReceived(chunk);
+        }
+        return session.getMessagesReceived();
+    }
+}
@@ -1,5 +1,6 @@
 plugins {
     id("com.android.library") version "8.2.0" apply false
+    id("me.champeau.jmh") version "0.7.2" apply false
 }
 
 buildscript {
@@ -0,0 +1,14 @@
+plugins {
+    id("java-library")
+}
+
+// Protocol logic without Android types, shared by the plugin and the JVM benchmarks
+java {
+    sourceCompatibility = JavaVersion.VERSION_1_8
+    targetCompatibility = JavaVersion.VERSION_1_8
+}
+
+dependencies {
+    testImplementation("junit:junit:4.13.2")
+    testImplementation("org.json:json:20220924")
+}
@@ -0,0 +1,31 @@
+package com.onlykk.bleunityplugin;
+
+/**
+ * ATT MTU constants and the chunk size derived from a negotiated MTU.
+ */
+public final class AttMtu {
+
+    // MTU every LE link starts with before negotiation.
+    public static final int DEFAULT_MTU = 23;
+
+    // Largest MTU Android accepts in requestMtu.
+    public static final int MAX_MTU = 517;
+
+    // Opcode and attribute handle of a write or notification.
+    public static final int ATT_HEADER_SIZE = 3;
+
+    // A characteristic value can never be longer than this, whatever the MTU.
+    public static final int MAX_ATTRIBUTE_LENGTH = 512;
+
+    private AttMtu() {
+    }
+
+    /**
+     * Returns the largest chunk that fits in a single write or notification.
+     * @param mtu The effective ATT MTU of the link
+     * @return Chunk size in bytes
+     */
+    public static int chunkSize(int mtu) {
+        return Math.min(Math.max(mtu, DEFAULT_MTU) - ATT_HEADER_SIZE, MAX_ATTRIBUTE_LENGTH);
+    }
+}
@@ -0,0 +1,22 @@
+package com.onlykk.bleunityplugin;
+
+/**
+ * Receives binary messages as raw bytes, without a round trip through strings.
+ * Unity can implement it with an AndroidJavaProxy. Calls are made on the BLE event loop thread.
+ */
+public interface BinaryDataListener {
+
+    /**
+     * Called when a connected GATT server sent a binary message to the client.
+     * @param address Address of the server
+     * @param data The message bytes
+     */
+    void onDataReceivedFromServer(String address, byte[] data);
+
+    /**
+     * Called when a connected client sent a binary message to the GATT server.
+     * @param address Address of the client
+     * @param data The message bytes
+     */
+    void onDataReceivedFromClient(String address, byte[] data);
+}
@@ -0,0 +1,261 @@
+package com.onlykk.bleunityplugin;
+
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Dedicated thread owning all plugin state.
+ * Unity calls and Bluetooth callbacks are posted in through a lock-free MPSC queue and run one
+ * at a time on the loop thread, so the state they touch needs no synchronization.
+ * Delayed tasks are kept in a timer queue that only the loop thread touches.
+ */
+public class BleEventLoop implements TaskScheduler, Executor {
+
+    // Tasks run per turn before due timers get a chance
+    private static final int MAX_TASKS_PER_TURN = 256;
+
+    private static final class Timer implements Comparable<Timer> {
+        final Runnable task;
+        final long dueNanos;
+        final long sequence;
+
+        Timer(Runnable task, long dueNanos, long sequence) {
+            this.task = task;
+            this.dueNanos = dueNanos;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Timer other) {
+            long diff = dueNanos - other.dueNanos;
+            if (diff != 0) {
+                return diff < 0 ? -1 : 1;
+            }
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+
+    private final String name;
+    private final MpscQueue<Runnable> tasks = new MpscQueue<>();
+    // Only touched by the loop thread
+    private final PriorityQueue<Timer> timers = new PriorityQueue<>();
+    private long timerSequence;
+
+    private final AtomicBoolean started = new AtomicBoolean();
+    private final AtomicBoolean parked = new AtomicBoolean();
+    private volatile boolean running;
+    private volatile Thread thread;
+
+    public BleEventLoop(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Starts the loop thread. Tasks posted before the start run once it is up.
+     */
+    public void start() {
+        if (!started.compareAndSet(false, true)) {
+            return;
+        }
+        running = true;
+        Thread loopThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, name);
+        loopThread.setDaemon(true);
+        thread = loopThread;
+        loopThread.start();
+    }
+
+    /**
+     * Stops the loop thread. Pending tasks and timers are dropped.
+     */
+    public void quit() {
+        running = false;
+        Thread loopThread = thread;
+        if (loopThread != null) {
+            LockSupport.unpark(loopThread);
+        }
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Returns whether the caller runs on the loop thread.
+     * @return true on the loop thread
+     */
+    public boolean isLoopThread() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Posts a task to run on the loop thread. Safe to call from any thread.
+     * @param task The task to run
+     */
+    @Override
+    public void execute(Runnable task) {
+        tasks.offer(task);
+        if (parked.get()) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * Runs a task on the loop thread after a delay.
+     * @param task The task to run
+     * @param delayMs Delay in milliseconds
+     */
+    @Override
+    public void schedule(final Runnable task, long delayMs) {
+        final long dueNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMs));
+        if (isLoopThread()) {
+            addTimer(task, dueNanos);
+            return;
+        }
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                addTimer(task, dueNanos);
+            }
+        });
+    }
+
+    /**
+     * Cancels every pending run of a delayed task.
+     * @param task The task passed to {@link #schedule(Runnable, long)}
+     */
+    @Override
+    public void cancel(final Runnable task) {
+        if (isLoopThread()) {
+            removeTimers(task);
+            return;
+        }
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                removeTimers(task);
+            }
+        });
+    }
+
+    @Override
+    public long nanoTime() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Runs a task on the loop thread and waits for its result, for queries from other threads.
+     * Runs the task directly when called on the loop thread or while the loop is not running.
+     * @param task The task to run
+     * @return The task's result
+     */
+    public <T> T call(Callable<T> task) {
+        if (isLoopThread() || !running) {
+            try {
+                return task.call();
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        FutureTask<T> future = new FutureTask<>(task);
+        execute(future);
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for " + name, e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    private void addTimer(Runnable task, long dueNanos) {
+        timers.add(new Timer(task, dueNanos, timerSequence++));
+    }
+
+    private void removeTimers(Runnable task) {
+        Iterator<Timer> iterator = timers.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().task == task) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private void loop() {
+        while (running) {
+            runTasks();
+            long waitNanos = runDueTimers();
+            if (!running) {
+                break;
+            }
+
+            // Announce the park before the last look at the queue, a producer seeing it unparks us
+            parked.set(true);
+            if (tasks.isEmpty()) {
+                if (waitNanos < 0) {
+                    LockSupport.park(this);
+                } else if (waitNanos > 0) {
+                    LockSupport.parkNanos(this, waitNanos);
+                }
+            }
+            parked.set(false);
+        }
+    }
+
+    private void runTasks() {
+        for (int i = 0; i < MAX_TASKS_PER_TURN; i++) {
+            Runnable task = tasks.poll();
+            if (task == null) {
+                return;
+            }
+            runSafely(task);
+        }
+    }
+
+    /**
+     * Runs every timer that is due.
+     * @return Nanoseconds until the next timer is due, -1 if none is pending
+     */
+    private long runDueTimers() {
+        while (true) {
+            Timer next = timers.peek();
+            if (next == null) {
+                return -1;
+            }
+            long remaining = next.dueNanos - System.nanoTime();
+            if (remaining > 0) {
+                return remaining;
+            }
+            timers.poll();
+            runSafely(next.task);
+        }
+    }
+
+    private static void runSafely(Runnable task) {
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            // One failing callback must not take the loop and every link with it
+            e.printStackTrace();
+        }
+    }
+}
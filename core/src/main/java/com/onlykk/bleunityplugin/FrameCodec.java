@@ -0,0 +1,92 @@
+package com.onlykk.bleunityplugin;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Length-prefixed binary framing used on the GATT characteristic.
+ * Every message is sent as: [flags : 1 byte][payload length : 4 bytes, big endian][payload].
+ */
+public final class FrameCodec {
+
+    public static final int HEADER_SIZE = 5;
+
+    // Default upper bound for a single frame payload, anything larger is treated as corrupt.
+    public static final int DEFAULT_MAX_FRAME_LENGTH = 1024 * 1024;
+
+    // Set on frames carrying raw bytes, frames without it carry UTF-8 text
+    public static final int FLAG_BINARY = 0x01;
+
+    private FrameCodec() {
+    }
+
+    /**
+     * Encodes a text message into a frame.
+     * @param message The message to encode as UTF-8
+     * @return Frame bytes including the header
+     */
+    public static byte[] encode(String message) {
+        return encode(message.getBytes(StandardCharsets.UTF_8), 0);
+    }
+
+    /**
+     * Encodes a binary message into a frame.
+     * @param payload The raw message bytes
+     * @return Frame bytes including the header, with {@link #FLAG_BINARY} set
+     */
+    public static byte[] encodeBinary(byte[] payload) {
+        return encode(payload, 0, payload.length, FLAG_BINARY);
+    }
+
+    /**
+     * Encodes the remaining bytes of a buffer, heap or direct, into a binary frame.
+     * The buffer's position is left unchanged.
+     * @param payload The raw message bytes
+     * @return Frame bytes including the header, with {@link #FLAG_BINARY} set
+     */
+    public static byte[] encodeBinary(ByteBuffer payload) {
+        int length = payload.remaining();
+        byte[] frame = new byte[HEADER_SIZE + length];
+        ByteBuffer.wrap(frame)
+                .put((byte) FLAG_BINARY)
+                .putInt(length)
+                .put(payload.duplicate());
+        return frame;
+    }
+
+    /**
+     * Returns whether a frame carries raw bytes rather than text.
+     * @param flags Flags of the received frame
+     * @return true for a binary frame
+     */
+    public static boolean isBinary(int flags) {
+        return (flags & FLAG_BINARY) != 0;
+    }
+
+    /**
+     * Encodes a payload into a frame.
+     * @param payload The payload bytes
+     * @param flags Frame flags, only the lowest 8 bits are used
+     * @return Frame bytes including the header
+     */
+    public static byte[] encode(byte[] payload, int flags) {
+        return encode(payload, 0, payload.length, flags);
+    }
+
+    /**
+     * Encodes a slice of a payload into a frame.
+     * @param payload The payload bytes
+     * @param offset Offset of the first payload byte
+     * @param length Number of payload bytes
+     * @param flags Frame flags, only the lowest 8 bits are used
+     * @return Frame bytes including the header
+     */
+    public static byte[] encode(byte[] payload, int offset, int length, int flags) {
+        byte[] frame = new byte[HEADER_SIZE + length];
+        ByteBuffer.wrap(frame)
+                .put((byte) flags)
+                .putInt(length)
+                .put(payload, offset, length);
+        return frame;
+    }
+}
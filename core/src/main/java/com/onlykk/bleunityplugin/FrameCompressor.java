@@ -0,0 +1,279 @@
+package com.onlykk.bleunityplugin;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Optional per-message deflate compression on top of {@link FrameCodec}.
+ * A message is compressed only when it is large enough and the compressed form is actually
+ * smaller, and {@link #FLAG_COMPRESSED} in the frame header tells the receiver to inflate it.
+ * A compressed payload is [original length : 4 bytes, big endian][raw deflate data].
+ * Every thread reuses its own deflater, inflater and buffer, and statistics are lock-free counters.
+ */
+public class FrameCompressor {
+
+    public static final int FLAG_COMPRESSED = 0x02;
+
+    // Messages smaller than this span only a few chunks, compressing them rarely saves a chunk
+    public static final int DEFAULT_MIN_SIZE = 128;
+    public static final int DEFAULT_LEVEL = Deflater.BEST_SPEED;
+
+    // Size of the original length that precedes the deflate data
+    private static final int LENGTH_SIZE = 4;
+
+    private static final class Codec {
+        final Deflater deflater = new Deflater(DEFAULT_LEVEL, true);
+        final Inflater inflater = new Inflater(true);
+        byte[] buffer = new byte[1024];
+        int level = DEFAULT_LEVEL;
+    }
+
+    private static final ThreadLocal<Codec> CODEC = new ThreadLocal<Codec>() {
+        @Override
+        protected Codec initialValue() {
+            return new Codec();
+        }
+    };
+
+    private volatile boolean enabled = false;
+    private volatile int minSize = DEFAULT_MIN_SIZE;
+    private volatile int level = DEFAULT_LEVEL;
+
+    private final AtomicLong messagesEncoded = new AtomicLong();
+    private final AtomicLong messagesCompressed = new AtomicLong();
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+    private final AtomicLong compressNanos = new AtomicLong();
+    private final AtomicLong decompressNanos = new AtomicLong();
+
+    /**
+     * Configures outbound compression. Inbound compressed frames are always inflated.
+     * @param enabled true to compress messages that benefit from it
+     * @param minSize Smallest message size, in bytes, worth trying to compress
+     * @param level Deflate level, from 1 (fastest) to 9 (smallest)
+     */
+    public void configure(boolean enabled, int minSize, int level) {
+        this.minSize = Math.max(0, minSize);
+        this.level = Math.min(Deflater.BEST_COMPRESSION, Math.max(Deflater.BEST_SPEED, level));
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Encodes a text message into a frame, compressed if it pays off.
+     * @param message The message to encode as UTF-8
+     * @return Frame bytes including the header
+     */
+    public byte[] encode(String message) {
+        byte[] payload = message.getBytes(StandardCharsets.UTF_8);
+        return encode(payload, 0, payload.length, 0);
+    }
+
+    /**
+     * Encodes a binary message into a frame, compressed if it pays off.
+     * @param payload The raw message bytes
+     * @return Frame bytes including the header
+     */
+    public byte[] encodeBinary(byte[] payload) {
+        return encode(payload, 0, payload.length, FrameCodec.FLAG_BINARY);
+    }
+
+    /**
+     * Encodes the remaining bytes of a heap or direct buffer into a frame, compressed if it pays off.
+     * The buffer's position is left unchanged.
+     * @param payload The raw message bytes
+     * @return Frame bytes including the header
+     */
+    public byte[] encodeBinary(ByteBuffer payload) {
+        int length = payload.remaining();
+        if (!shouldTry(length)) {
+            count(length, length + FrameCodec.HEADER_SIZE, false);
+            return FrameCodec.encodeBinary(payload);
+        }
+        if (payload.hasArray()) {
+            return encode(payload.array(), payload.arrayOffset() + payload.position(), length, FrameCodec.FLAG_BINARY);
+        }
+        // The deflater only reads arrays on every supported API level
+        byte[] bytes = new byte[length];
+        payload.duplicate().get(bytes);
+        return encode(bytes, 0, length, FrameCodec.FLAG_BINARY);
+    }
+
+    /**
+     * Encodes a slice of a payload into a frame, compressed if it pays off.
+     * @param payload The payload bytes
+     * @param offset Offset of the first payload byte
+     * @param length Number of payload bytes
+     * @param flags Frame flags
+     * @return Frame bytes including the header
+     */
+    public byte[] encode(byte[] payload, int offset, int length, int flags) {
+        if (shouldTry(length)) {
+            long start = System.nanoTime();
+            byte[] frame = compress(payload, offset, length, flags);
+            compressNanos.addAndGet(System.nanoTime() - start);
+            if (frame != null) {
+                count(length, frame.length, true);
+                return frame;
+            }
+        }
+        count(length, length + FrameCodec.HEADER_SIZE, false);
+        return FrameCodec.encode(payload, offset, length, flags);
+    }
+
+    /**
+     * Returns the payload of a received frame, inflated if it was compressed.
+     * @param flags Flags of the received frame
+     * @param payload Payload of the received frame
+     * @return The message bytes, or null if a compressed payload is corrupt
+     */
+    public byte[] decode(int flags, byte[] payload) {
+        if ((flags & FLAG_COMPRESSED) == 0) {
+            return payload;
+        }
+        long start = System.nanoTime();
+        byte[] message = inflate(payload);
+        decompressNanos.addAndGet(System.nanoTime() - start);
+        return message;
+    }
+
+    private boolean shouldTry(int length) {
+        return enabled && length >= minSize && length > LENGTH_SIZE;
+    }
+
+    private void count(long in, long out, boolean compressed) {
+        messagesEncoded.incrementAndGet();
+        if (compressed) {
+            messagesCompressed.incrementAndGet();
+        }
+        bytesIn.addAndGet(in + FrameCodec.HEADER_SIZE);
+        bytesOut.addAndGet(out);
+    }
+
+    /**
+     * Deflates a payload into a frame.
+     * @return The compressed frame, or null if compression would not make the frame smaller
+     */
+    private byte[] compress(byte[] payload, int offset, int length, int flags) {
+        Codec codec = CODEC.get();
+        if (codec.level != level) {
+            codec.level = level;
+            codec.deflater.setLevel(level);
+        }
+        // Anything at or above the original size is not worth sending compressed
+        int limit = length - LENGTH_SIZE;
+        if (codec.buffer.length < limit) {
+            codec.buffer = new byte[limit];
+        }
+
+        Deflater deflater = codec.deflater;
+        deflater.reset();
+        deflater.setInput(payload, offset, length);
+        deflater.finish();
+        int compressedLength = 0;
+        while (!deflater.finished() && compressedLength < limit) {
+            compressedLength += deflater.deflate(codec.buffer, compressedLength, limit - compressedLength);
+        }
+        if (!deflater.finished() || compressedLength >= limit) {
+            return null;
+        }
+
+        int payloadLength = LENGTH_SIZE + compressedLength;
+        byte[] frame = new byte[FrameCodec.HEADER_SIZE + payloadLength];
+        ByteBuffer.wrap(frame)
+                .put((byte) (flags | FLAG_COMPRESSED))
+                .putInt(payloadLength)
+                .putInt(length)
+                .put(codec.buffer, 0, compressedLength);
+        return frame;
+    }
+
+    private static byte[] inflate(byte[] payload) {
+        if (payload.length < LENGTH_SIZE) {
+            return null;
+        }
+        int length = ByteBuffer.wrap(payload).getInt();
+        if (length < 0 || length > FrameCodec.DEFAULT_MAX_FRAME_LENGTH) {
+            return null;
+        }
+
+        Inflater inflater = CODEC.get().inflater;
+        inflater.reset();
+        inflater.setInput(payload, LENGTH_SIZE, payload.length - LENGTH_SIZE);
+        byte[] message = new byte[length];
+        int inflated = 0;
+        try {
+            while (inflated < length) {
+                int count = inflater.inflate(message, inflated, length - inflated);
+                if (count == 0) {
+                    // Truncated or finished early, either way the payload is corrupt
+                    break;
+                }
+                inflated += count;
+            }
+        } catch (DataFormatException e) {
+            return null;
+        }
+        return inflated == length ? message : null;
+    }
+
+    public long getMessagesEncoded() {
+        return messagesEncoded.get();
+    }
+
+    public long getMessagesCompressed() {
+        return messagesCompressed.get();
+    }
+
+    /**
+     * Returns the frame bytes the encoded messages would have taken without compression.
+     * @return Uncompressed size in bytes
+     */
+    public long getBytesIn() {
+        return bytesIn.get();
+    }
+
+    /**
+     * Returns the frame bytes actually produced for the encoded messages.
+     * @return Encoded size in bytes
+     */
+    public long getBytesOut() {
+        return bytesOut.get();
+    }
+
+    /**
+     * Returns how many times smaller the encoded frames are than they would be uncompressed.
+     * @return Compression ratio, 1 when nothing was encoded yet
+     */
+    public double getRatio() {
+        long out = bytesOut.get();
+        return out > 0 ? (double) bytesIn.get() / out : 1.0;
+    }
+
+    public long getCompressNanos() {
+        return compressNanos.get();
+    }
+
+    public long getDecompressNanos() {
+        return decompressNanos.get();
+    }
+
+    /**
+     * Resets the statistics.
+     */
+    public void resetStats() {
+        messagesEncoded.set(0);
+        messagesCompressed.set(0);
+        bytesIn.set(0);
+        bytesOut.set(0);
+        compressNanos.set(0);
+        decompressNanos.set(0);
+    }
+}
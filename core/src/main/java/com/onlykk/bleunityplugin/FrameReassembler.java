@@ -0,0 +1,114 @@
+package com.onlykk.bleunityplugin;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Incrementally rebuilds frames written by {@link FrameCodec} from arbitrarily sized chunks.
+ * Each received byte is copied exactly once, so reassembly is linear in the message size.
+ */
+public class FrameReassembler {
+
+    /**
+     * Receives the frames decoded by the reassembler.
+     */
+    public interface Listener {
+
+        /**
+         * Called once a complete frame has been received.
+         * @param flags Frame flags
+         * @param payload Frame payload, owned by the listener
+         */
+        void onFrame(int flags, byte[] payload);
+
+        /**
+         * Called when a frame header announces a payload larger than the allowed maximum.
+         * Such a header is corrupt: the rest of the chunk is discarded and reassembly restarts
+         * with a new frame at the next chunk.
+         * @param length Announced payload length
+         */
+        void onFrameDropped(long length);
+    }
+
+    private final Listener listener;
+    private final int maxFrameLength;
+
+    private final ByteBuffer header = ByteBuffer.allocate(FrameCodec.HEADER_SIZE);
+    private ByteBuffer body;
+    private int flags;
+
+    public FrameReassembler(Listener listener) {
+        this(listener, FrameCodec.DEFAULT_MAX_FRAME_LENGTH);
+    }
+
+    public FrameReassembler(Listener listener, int maxFrameLength) {
+        this.listener = listener;
+        this.maxFrameLength = maxFrameLength;
+    }
+
+    /**
+     * Feeds a received chunk into the reassembler.
+     * @param chunk The received bytes
+     */
+    public void feed(byte[] chunk) {
+        feed(chunk, 0, chunk.length);
+    }
+
+    /**
+     * Feeds a slice of a received chunk into the reassembler.
+     * @param chunk The received bytes
+     * @param offset Offset of the first byte to consume
+     * @param length Number of bytes to consume
+     */
+    public void feed(byte[] chunk, int offset, int length) {
+        ByteBuffer in = ByteBuffer.wrap(chunk, offset, length);
+        while (in.hasRemaining()) {
+            if (body == null) {
+                transfer(in, header);
+                if (header.hasRemaining()) {
+                    return;
+                }
+                header.flip();
+                flags = header.get() & 0xFF;
+                long payloadLength = header.getInt() & 0xFFFFFFFFL;
+                header.clear();
+
+                if (payloadLength > maxFrameLength) {
+                    // Skipping the announced length could swallow up to 4 GiB of valid frames
+                    reset();
+                    listener.onFrameDropped(payloadLength);
+                    return;
+                }
+                body = ByteBuffer.allocate((int) payloadLength);
+            }
+
+            transfer(in, body);
+            if (!body.hasRemaining()) {
+                byte[] payload = body.array();
+                body = null;
+                listener.onFrame(flags, payload);
+            }
+        }
+    }
+
+    /**
+     * Drops any partially received frame.
+     */
+    public void reset() {
+        header.clear();
+        body = null;
+    }
+
+    /**
+     * Returns true if a frame is partially received.
+     * @return true while in the middle of a frame
+     */
+    public boolean isPartial() {
+        return body != null || header.position() > 0;
+    }
+
+    private static void transfer(ByteBuffer src, ByteBuffer dst) {
+        int count = Math.min(src.remaining(), dst.remaining());
+        dst.put(src.array(), src.arrayOffset() + src.position(), count);
+        src.position(src.position() + count);
+    }
+}
@@ -0,0 +1,167 @@
+package com.onlykk.bleunityplugin;
+
+/**
+ * Streaming JSON object encoder for the payloads sent to Unity.
+ * Each thread reuses its own encoder and buffer, and strings are escaped straight into the buffer,
+ * so encoding an event allocates nothing but the resulting String.
+ * Fields with a null string value are omitted, like JSONObject.put does.
+ */
+public final class JsonEncoder {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static final ThreadLocal<JsonEncoder> ENCODER = new ThreadLocal<JsonEncoder>() {
+        @Override
+        protected JsonEncoder initialValue() {
+            return new JsonEncoder();
+        }
+    };
+
+    private final StringBuilder buffer = new StringBuilder(256);
+    private boolean firstField;
+
+    private JsonEncoder() {
+    }
+
+    /**
+     * Starts a new JSON object on the calling thread's encoder.
+     * @return The thread's encoder, reset to an empty object
+     */
+    public static JsonEncoder begin() {
+        JsonEncoder encoder = ENCODER.get();
+        encoder.buffer.setLength(0);
+        encoder.buffer.append('{');
+        encoder.firstField = true;
+        return encoder;
+    }
+
+    /**
+     * Appends a string field, skipped if the value is null.
+     * @param name Field name
+     * @param value Field value
+     * @return This encoder
+     */
+    public JsonEncoder field(String name, String value) {
+        if (value != null) {
+            appendName(name);
+            appendQuoted(buffer, value);
+        }
+        return this;
+    }
+
+    /**
+     * Appends a numeric field.
+     * @param name Field name
+     * @param value Field value
+     * @return This encoder
+     */
+    public JsonEncoder field(String name, long value) {
+        appendName(name);
+        buffer.append(value);
+        return this;
+    }
+
+    /**
+     * Appends a decimal field.
+     * @param name Field name
+     * @param value Field value, must be finite
+     * @return This encoder
+     */
+    public JsonEncoder field(String name, double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            throw new IllegalArgumentException("JSON does not allow non-finite numbers: " + value);
+        }
+        appendName(name);
+        buffer.append(value);
+        return this;
+    }
+
+    /**
+     * Appends a boolean field.
+     * @param name Field name
+     * @param value Field value
+     * @return This encoder
+     */
+    public JsonEncoder field(String name, boolean value) {
+        appendName(name);
+        buffer.append(value);
+        return this;
+    }
+
+    /**
+     * Appends a field whose value is already encoded JSON, skipped if the value is null.
+     * @param name Field name
+     * @param json Encoded JSON value
+     * @return This encoder
+     */
+    public JsonEncoder rawField(String name, CharSequence json) {
+        if (json != null) {
+            appendName(name);
+            buffer.append(json);
+        }
+        return this;
+    }
+
+    /**
+     * Closes the object and returns it.
+     * @return The encoded JSON object
+     */
+    public String end() {
+        buffer.append('}');
+        return buffer.toString();
+    }
+
+    private void appendName(String name) {
+        if (!firstField) {
+            buffer.append(',');
+        }
+        firstField = false;
+        appendQuoted(buffer, name);
+        buffer.append(':');
+    }
+
+    /**
+     * Appends a JSON string literal, escaping characters in place.
+     * @param sb The destination buffer
+     * @param value The string to quote, null is written as the literal null
+     */
+    public static void appendQuoted(StringBuilder sb, String value) {
+        if (value == null) {
+            sb.append("null");
+            return;
+        }
+        sb.append('"');
+        int length = value.length();
+        int start = 0;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c >= 0x20 && c != '"' && c != '\\') {
+                continue;
+            }
+            // Copy the unescaped run in one go, then the escape sequence
+            sb.append(value, start, i);
+            start = i + 1;
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    sb.append("\\u00").append(HEX[c >> 4]).append(HEX[c & 0xF]);
+            }
+        }
+        sb.append(value, start, length);
+        sb.append('"');
+    }
+}
@@ -0,0 +1,249 @@
+package com.onlykk.bleunityplugin;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Devices connected to before, kept on disk so a known device can be reconnected at launch without
+ * scanning for it first. The store holds at most {@code maxDevices} devices and evicts the one seen
+ * least recently when it is full.
+ * Not thread-safe, the store is owned by the event loop thread.
+ *
+ * File: [magic u8][version u8][count u8] then per device, least recently seen first:
+ * [address 6 bytes][last seen ms i64][name modified UTF-8, empty if unknown]
+ */
+public class KnownDeviceStore {
+
+    public static final int DEFAULT_MAX_DEVICES = 16;
+    // Bounded by the count byte of the file
+    public static final int MAX_DEVICES = 255;
+
+    static final int MAGIC = 0x4B;
+    static final int VERSION = 1;
+    private static final int ADDRESS_SIZE = 6;
+
+    /**
+     * A device connected to before.
+     */
+    public static final class Device {
+        public final String address;
+        // Null if the device was never seen with a name
+        public final String name;
+        public final long lastSeenMs;
+
+        Device(String address, String name, long lastSeenMs) {
+            this.address = address;
+            this.name = name;
+            this.lastSeenMs = lastSeenMs;
+        }
+    }
+
+    // Least recently seen first
+    private final LinkedHashMap<String, Device> devices = new LinkedHashMap<>();
+    private final int maxDevices;
+    private boolean dirty;
+
+    public KnownDeviceStore() {
+        this(DEFAULT_MAX_DEVICES);
+    }
+
+    /**
+     * @param maxDevices Number of devices kept, up to {@link #MAX_DEVICES}
+     */
+    public KnownDeviceStore(int maxDevices) {
+        this.maxDevices = Math.max(1, Math.min(MAX_DEVICES, maxDevices));
+    }
+
+    /**
+     * Records a device as seen, making it the most recently seen one and evicting the least recently seen if full.
+     * @param address Device address in the form 00:11:22:AA:BB:CC
+     * @param name Device name, or null to keep the name already known
+     * @param timeMs Wall clock time the device was seen
+     */
+    public void remember(String address, String name, long timeMs) {
+        address = normalize(address);
+        Device previous = devices.remove(address);
+        if (name == null && previous != null) {
+            name = previous.name;
+        }
+        devices.put(address, new Device(address, name, timeMs));
+        Iterator<Device> eldest = devices.values().iterator();
+        while (devices.size() > maxDevices) {
+            eldest.next();
+            eldest.remove();
+        }
+        dirty = true;
+    }
+
+    /**
+     * Returns a known device.
+     * @param address Device address, in either case
+     * @return The device, or null if it is not known or the address is invalid
+     */
+    public Device get(String address) {
+        return isValidAddress(address) ? devices.get(normalize(address)) : null;
+    }
+
+    /**
+     * Removes a known device.
+     * @param address Device address, in either case
+     * @return true if the device was known
+     */
+    public boolean forget(String address) {
+        if (!isValidAddress(address) || devices.remove(normalize(address)) == null) {
+            return false;
+        }
+        dirty = true;
+        return true;
+    }
+
+    public void clear() {
+        if (!devices.isEmpty()) {
+            devices.clear();
+            dirty = true;
+        }
+    }
+
+    /**
+     * Returns the known devices.
+     * @return The devices, most recently seen first
+     */
+    public List<Device> getDevices() {
+        List<Device> list = new ArrayList<>(devices.values());
+        for (int i = 0, j = list.size() - 1; i < j; i++, j--) {
+            Device device = list.get(i);
+            list.set(i, list.get(j));
+            list.set(j, device);
+        }
+        return list;
+    }
+
+    public int size() {
+        return devices.size();
+    }
+
+    public int getMaxDevices() {
+        return maxDevices;
+    }
+
+    /**
+     * Returns whether the store changed since it was loaded or last saved.
+     * @return true if the store needs saving
+     */
+    public boolean isDirty() {
+        return dirty;
+    }
+
+    /**
+     * Loads a store from a file. A missing, unreadable or corrupt file gives an empty store, the cache
+     * is rebuilt by the next connections.
+     * @param file The file
+     * @param maxDevices Number of devices kept, the least recently seen ones in the file are dropped beyond it
+     * @return The store
+     */
+    public static KnownDeviceStore load(File file, int maxDevices) {
+        KnownDeviceStore store = new KnownDeviceStore(maxDevices);
+        if (!file.exists()) {
+            return store;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readUnsignedByte() != MAGIC || in.readUnsignedByte() != VERSION) {
+                return store;
+            }
+            int count = in.readUnsignedByte();
+            byte[] address = new byte[ADDRESS_SIZE];
+            for (int i = 0; i < count; i++) {
+                in.readFully(address);
+                long lastSeenMs = in.readLong();
+                String name = in.readUTF();
+                store.remember(formatAddress(address), name.isEmpty() ? null : name, lastSeenMs);
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            store.devices.clear();
+        }
+        store.dirty = false;
+        return store;
+    }
+
+    /**
+     * Writes the store to a file, through a temporary file so a crash never leaves a partial store behind.
+     * @param file The file
+     * @throws IOException If the file cannot be written
+     */
+    public void save(File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeByte(MAGIC);
+            out.writeByte(VERSION);
+            out.writeByte(devices.size());
+            for (Device device : devices.values()) {
+                out.write(parseAddress(device.address));
+                out.writeLong(device.lastSeenMs);
+                out.writeUTF(device.name != null ? device.name : "");
+            }
+        }
+        if (!temp.renameTo(file)) {
+            // Windows style file systems do not replace on rename
+            if (!file.delete() || !temp.renameTo(file)) {
+                throw new IOException("Cannot replace " + file);
+            }
+        }
+        dirty = false;
+    }
+
+    /**
+     * Returns whether a string is a device address in the form 00:11:22:AA:BB:CC, in either case.
+     * @param address The string
+     * @return true if it is a valid address
+     */
+    public static boolean isValidAddress(String address) {
+        if (address == null || address.length() != ADDRESS_SIZE * 3 - 1) {
+            return false;
+        }
+        for (int i = 0; i < address.length(); i++) {
+            char c = address.charAt(i);
+            if (i % 3 == 2 ? c != ':' : Character.digit(c, 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String normalize(String address) {
+        if (!isValidAddress(address)) {
+            throw new IllegalArgumentException("Invalid device address " + address);
+        }
+        return address.toUpperCase(Locale.ROOT);
+    }
+
+    private static byte[] parseAddress(String address) {
+        byte[] bytes = new byte[ADDRESS_SIZE];
+        for (int i = 0; i < ADDRESS_SIZE; i++) {
+            bytes[i] = (byte) Integer.parseInt(address.substring(i * 3, i * 3 + 2), 16);
+        }
+        return bytes;
+    }
+
+    private static String formatAddress(byte[] bytes) {
+        StringBuilder address = new StringBuilder(ADDRESS_SIZE * 3 - 1);
+        for (int i = 0; i < ADDRESS_SIZE; i++) {
+            if (i > 0) {
+                address.append(':');
+            }
+            address.append(Character.toUpperCase(Character.forDigit((bytes[i] >> 4) & 0xF, 16)));
+            address.append(Character.toUpperCase(Character.forDigit(bytes[i] & 0xF, 16)));
+        }
+        return address.toString();
+    }
+}
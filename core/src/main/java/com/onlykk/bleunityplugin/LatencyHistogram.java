@@ -0,0 +1,116 @@
+package com.onlykk.bleunityplugin;
+
+import java.util.Arrays;
+
+/**
+ * Latency histogram with fixed power-of-two buckets in microseconds.
+ * Bucket 0 holds values below 1 us and bucket i holds values from 2^(i-1) to 2^i - 1 us,
+ * the last bucket everything above. Recording is a few arithmetic operations on preallocated
+ * arrays and never allocates.
+ * Not thread-safe, histograms are recorded and read on the event loop thread.
+ */
+public class LatencyHistogram {
+
+    public static final int BUCKETS = 32;
+
+    private final long[] counts = new long[BUCKETS];
+    private long count;
+    private long sumMicros;
+    private long maxMicros;
+
+    /**
+     * Returns the bucket a value falls into.
+     * @param micros Latency in microseconds
+     * @return Bucket index
+     */
+    public static int bucketOf(long micros) {
+        if (micros <= 0) {
+            return 0;
+        }
+        return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+    }
+
+    /**
+     * Returns the largest value a bucket holds.
+     * @param bucket Bucket index
+     * @return Upper bound in microseconds
+     */
+    public static long upperBoundOf(int bucket) {
+        return bucket >= BUCKETS - 1 ? Long.MAX_VALUE : (1L << bucket) - 1;
+    }
+
+    /**
+     * Records a latency.
+     * @param micros Latency in microseconds
+     */
+    public void record(long micros) {
+        counts[bucketOf(micros)]++;
+        count++;
+        sumMicros += Math.max(0, micros);
+        if (micros > maxMicros) {
+            maxMicros = micros;
+        }
+    }
+
+    /**
+     * Adds every value of another histogram to this one.
+     * @param other The histogram to add
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] += other.counts[i];
+        }
+        count += other.count;
+        sumMicros += other.sumMicros;
+        maxMicros = Math.max(maxMicros, other.maxMicros);
+    }
+
+    /**
+     * Returns an upper estimate of a percentile: the upper bound of the bucket it falls into,
+     * capped at the largest recorded value.
+     * @param percentile Percentile from 0 to 100
+     * @return Latency in microseconds, 0 if nothing was recorded
+     */
+    public long getPercentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(count * Math.max(0, Math.min(100, percentile)) / 100.0);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= Math.max(1, rank)) {
+                return Math.min(upperBoundOf(i), maxMicros);
+            }
+        }
+        return maxMicros;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getMeanMicros() {
+        return count > 0 ? sumMicros / count : 0;
+    }
+
+    public long getMaxMicros() {
+        return maxMicros;
+    }
+
+    /**
+     * Returns the number of values recorded in a bucket.
+     * @param bucket Bucket index
+     * @return Value count
+     */
+    public long getBucketCount(int bucket) {
+        return counts[bucket];
+    }
+
+    public void reset() {
+        Arrays.fill(counts, 0);
+        count = 0;
+        sumMicros = 0;
+        maxMicros = 0;
+    }
+}
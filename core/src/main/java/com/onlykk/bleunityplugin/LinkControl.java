@@ -0,0 +1,22 @@
+package com.onlykk.bleunityplugin;
+
+/**
+ * Radio parameters of a link that the protocol side may ask the BLE stack to change.
+ * On Android it maps to the connection priority and preferred PHY requests, in tests to a fake.
+ */
+public interface LinkControl {
+
+    /**
+     * Asks for a connection interval class.
+     * @param priority One of the {@link LinkTuner} priorities, same values as the BluetoothGatt constants
+     * @return false if the link cannot change its priority, like the peripheral side
+     */
+    boolean requestConnectionPriority(int priority);
+
+    /**
+     * Asks for a PHY in both directions. The PHY in effect is reported back later.
+     * @param phy One of the {@link LinkTuner} PHYs, same values as the BluetoothDevice constants
+     * @return false if the request could not be made
+     */
+    boolean requestPhy(int phy);
+}
@@ -0,0 +1,528 @@
+package com.onlykk.bleunityplugin;
+
+/**
+ * Protocol side of one link. Outbound frames are queued in the peer session and their chunks are
+ * handed to the transport as fast as the in-flight window and the transport allow. Chunks the
+ * transport refuses are retried after a delay, and received chunks are fed into the session.
+ * A chunk refused too many times fails the link rather than being skipped, which would corrupt its message.
+ * In coalescing mode small messages linger in the queue for a short while so that a burst of them
+ * is packed into full chunks, while large messages and explicit flushes are sent right away.
+ * The queue can be given a byte budget: a message that does not fit is refused, or evicts the oldest
+ * queued messages, and the listener hears when the queue reaches its high watermark and drains again.
+ * Until the link is set up, and while it is down and being reconnected, the endpoint is suspended:
+ * messages keep queueing and are sent once it is resumed, along with every message not completed on
+ * a lost connection.
+ * The same logic drives the Android GATT client and server and the simulated link.
+ * Not thread-safe, every call must come from the thread the scheduler runs its tasks on.
+ */
+public class LinkEndpoint implements Transport.Receiver {
+
+    /**
+     * Receives the fill level changes of the send buffer, so the application can throttle itself,
+     * and the failure of the link.
+     */
+    public interface Listener {
+
+        /**
+         * Called when the queued bytes reach the high watermark.
+         * @param link The link
+         */
+        void onHighWatermark(LinkEndpoint link);
+
+        /**
+         * Called when the queued bytes fall to the low watermark after reaching the high watermark,
+         * or when the link closes or loses its budget in between.
+         * @param link The link
+         */
+        void onDrained(LinkEndpoint link);
+
+        /**
+         * Called when a chunk cannot be sent or the transport reports it failed. The endpoint is suspended, since going on without the chunk
+         * would cut its message in two at the peer. The connection should be dropped, and the endpoint
+         * resumed on a new one or closed.
+         * @param link The link
+         */
+        void onLinkFailed(LinkEndpoint link);
+    }
+
+    // What a full send buffer does with a new message
+    public static final int OVERFLOW_REJECT = 0;
+    public static final int OVERFLOW_DROP_OLDEST = 1;
+    // Refused like OVERFLOW_REJECT, the caller is expected to wait for the drain before sending
+    public static final int OVERFLOW_BLOCK = 2;
+
+    // Consecutive refusals after which the link is failed
+    public static final int DEFAULT_MAX_RETRIES = 100;
+
+    private final PeerSession session;
+    private final Transport transport;
+    private final TaskScheduler scheduler;
+    private final long retryDelayMs;
+    private int maxRetries = DEFAULT_MAX_RETRIES;
+
+    private final LinkMetrics metrics;
+    // Send time, channel and data length of every chunk handed to the transport and not completed yet
+    private final TimestampRing chunksInFlight = new TimestampRing();
+    // Message progress of every channel used, created on first use
+    private final ChannelProgress[] channels = new ChannelProgress[OutboundQueue.MAX_CHANNELS];
+
+    private int retries;
+    private boolean closed;
+    private boolean suspended;
+
+    // Time small messages may wait for more to pack with, 0 to send at once
+    private long lingerMs;
+    // Queued bytes that end the linger, and the size from which a message is sent at once, 0 for one chunk
+    private int coalesceThreshold;
+    private boolean lingering;
+
+    // Bytes the outbound queue may hold, 0 for no limit
+    private long bufferCapacity;
+    private int overflowPolicy = OVERFLOW_REJECT;
+    private long highWatermark;
+    private long lowWatermark;
+    private boolean aboveHighWatermark;
+    private Listener listener;
+
+    /**
+     * Bytes queued and completed on one channel, to tell when the last chunk of a message completes.
+     */
+    private static final class ChannelProgress {
+        // Queue time and end offset of every message whose last chunk has not completed yet
+        final TimestampRing messagesInFlight = new TimestampRing();
+        long bytesQueued;
+        long bytesCompleted;
+    }
+
+    private final Runnable retry = new Runnable() {
+        @Override
+        public void run() {
+            pump();
+        }
+    };
+
+    private final Runnable lingerExpired = new Runnable() {
+        @Override
+        public void run() {
+            lingering = false;
+            pump();
+        }
+    };
+
+    /**
+     * @param session Session holding the reassembly buffer, outbound queue and MTU of the link
+     * @param transport The link the chunks are handed to
+     * @param scheduler Runs the retries of refused chunks
+     * @param retryDelayMs Delay before a refused chunk is handed to the transport again
+     */
+    public LinkEndpoint(PeerSession session, Transport transport, TaskScheduler scheduler, long retryDelayMs) {
+        this(session, transport, scheduler, retryDelayMs, new LinkMetrics());
+    }
+
+    /**
+     * @param session Session holding the reassembly buffer, outbound queue and MTU of the link
+     * @param transport The link the chunks are handed to
+     * @param scheduler Runs the retries of refused chunks and provides the clock for latencies
+     * @param retryDelayMs Delay before a refused chunk is handed to the transport again
+     * @param metrics Metrics the link records into
+     */
+    public LinkEndpoint(PeerSession session, Transport transport, TaskScheduler scheduler, long retryDelayMs, LinkMetrics metrics) {
+        this.session = session;
+        this.transport = transport;
+        this.scheduler = scheduler;
+        this.retryDelayMs = retryDelayMs;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Queues an encoded frame on the default channel and starts sending it if the window has room.
+     * @param frame The encoded frame
+     * @param acknowledged true if every chunk must be confirmed by the peer before the next one is sent
+     * @return true if the frame was queued, false if the link is closed or the send buffer is full
+     */
+    public boolean send(byte[] frame, boolean acknowledged) {
+        return send(OutboundQueue.DEFAULT_CHANNEL, frame, acknowledged);
+    }
+
+    /**
+     * Queues an encoded frame on a channel and starts sending it if the window has room.
+     * @param channel Channel id, only the default channel unless the session is multiplexed
+     * @param frame The encoded frame
+     * @param acknowledged true if every chunk must be confirmed by the peer before the next one is sent
+     * @return true if the frame was queued, false if the link is closed or the send buffer is full
+     */
+    public boolean send(int channel, byte[] frame, boolean acknowledged) {
+        if (closed || frame.length == 0) {
+            return false;
+        }
+        if (!makeRoom(channel, frame.length)) {
+            metrics.onMessageDropped(frame.length);
+            return false;
+        }
+        session.enqueueMessage(channel, frame, acknowledged);
+        ChannelProgress progress = progress(channel);
+        progress.bytesQueued += frame.length;
+        progress.messagesInFlight.add(scheduler.nanoTime(), progress.bytesQueued);
+        metrics.onMessageQueued(session.getOutbound().getPendingBytes());
+        if (lingerMs > 0 && !acknowledged && frame.length < getCoalesceThreshold()) {
+            if (!lingering) {
+                lingering = true;
+                scheduler.schedule(lingerExpired, lingerMs);
+            }
+        } else if (lingering) {
+            // A large or acknowledged message goes out at once and takes the small ones along
+            stopLingering();
+        }
+        pump();
+        return true;
+    }
+
+    /**
+     * Limits the bytes the outbound queue may hold. The high watermark is set to three quarters of
+     * the capacity and the low watermark to a quarter.
+     * @param capacityBytes Capacity in bytes, 0 for no limit
+     * @param policy One of the OVERFLOW constants, what a message that does not fit does
+     */
+    public void setBufferLimit(long capacityBytes, int policy) {
+        bufferCapacity = Math.max(0, capacityBytes);
+        overflowPolicy = policy;
+        setWatermarks(bufferCapacity * 3 / 4, bufferCapacity / 4);
+    }
+
+    /**
+     * Sets the fill levels at which the listener is told that the send buffer is filling up and drained.
+     * @param highBytes Queued bytes from which the buffer counts as filling up
+     * @param lowBytes Queued bytes at which a filled up buffer counts as drained again, below highBytes
+     */
+    public void setWatermarks(long highBytes, long lowBytes) {
+        highWatermark = Math.max(1, highBytes);
+        lowWatermark = Math.max(0, Math.min(lowBytes, highWatermark - 1));
+        updateWatermarks();
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public long getBufferCapacity() {
+        return bufferCapacity;
+    }
+
+    public int getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    public boolean isAboveHighWatermark() {
+        return aboveHighWatermark;
+    }
+
+    /**
+     * Checks that a message fits the send buffer, evicting the oldest queued messages under the drop oldest policy.
+     */
+    private boolean makeRoom(int channel, int length) {
+        if (bufferCapacity == 0) {
+            return true;
+        }
+        if (length > bufferCapacity) {
+            return false;
+        }
+        OutboundQueue outbound = session.getOutbound();
+        while (outbound.getPendingBytes() + length > bufferCapacity) {
+            int dropped = overflowPolicy == OVERFLOW_DROP_OLDEST ? outbound.dropOldest(channel) : 0;
+            if (dropped == 0) {
+                return false;
+            }
+            // The dropped message never completes, its successors end that much earlier
+            ChannelProgress progress = progress(outbound.getLastDroppedChannel());
+            progress.messagesInFlight.removeFromTail(outbound.getLastDroppedFramesBehind(), dropped);
+            progress.bytesQueued -= dropped;
+            metrics.onMessageDropped(dropped);
+        }
+        return true;
+    }
+
+    /**
+     * Tells the listener when the queued bytes cross the high watermark and fall back to the low one.
+     */
+    private void updateWatermarks() {
+        long pending = session.getOutbound().getPendingBytes();
+        if (!aboveHighWatermark && bufferCapacity > 0 && pending >= highWatermark) {
+            aboveHighWatermark = true;
+            if (listener != null) {
+                listener.onHighWatermark(this);
+            }
+        } else if (aboveHighWatermark && (bufferCapacity == 0 || closed || pending <= lowWatermark)) {
+            aboveHighWatermark = false;
+            if (listener != null) {
+                listener.onDrained(this);
+            }
+        }
+    }
+
+    /**
+     * Sends the small messages waiting for coalescing right away, for urgent messages.
+     */
+    public void flush() {
+        stopLingering();
+        pump();
+    }
+
+    /**
+     * Enables or disables coalescing of small messages.
+     * @param enabled true to pack small messages into shared chunks
+     * @param lingerMs Time a small message may wait for more to pack with, 0 to only pack what is already queued
+     * @param thresholdBytes Queued bytes that end the wait, messages this large are sent at once, 0 for one chunk
+     */
+    public void setCoalescing(boolean enabled, long lingerMs, int thresholdBytes) {
+        session.getOutbound().setCoalescing(enabled);
+        this.lingerMs = enabled ? Math.max(0, lingerMs) : 0;
+        this.coalesceThreshold = Math.max(0, thresholdBytes);
+        if (this.lingerMs == 0) {
+            flush();
+        }
+    }
+
+    /**
+     * Returns the queued byte count that ends the linger.
+     * @return Threshold in bytes, the data size of a chunk unless configured
+     */
+    public int getCoalesceThreshold() {
+        if (coalesceThreshold > 0) {
+            return coalesceThreshold;
+        }
+        return Math.max(1, session.getChunkSize() - session.getOutbound().getChunkHeaderSize());
+    }
+
+    private void stopLingering() {
+        if (lingering) {
+            lingering = false;
+            scheduler.cancel(lingerExpired);
+        }
+    }
+
+    private ChannelProgress progress(int channel) {
+        ChannelProgress progress = channels[channel];
+        if (progress == null) {
+            progress = new ChannelProgress();
+            channels[channel] = progress;
+        }
+        return progress;
+    }
+
+    /**
+     * Hands as many queued chunks to the transport as the in-flight window allows.
+     */
+    public void pump() {
+        if (closed) {
+            return;
+        }
+        if (!suspended) {
+            pumpChunks();
+        }
+        updateWatermarks();
+    }
+
+    private void pumpChunks() {
+        OutboundQueue outbound = session.getOutbound();
+        while (true) {
+            if (lingering && outbound.getPendingBytes() < getCoalesceThreshold()) {
+                // Too little to fill a chunk yet, wait for more messages or the end of the linger
+                return;
+            }
+            boolean acknowledged = outbound.isNextAcknowledged();
+            byte[] chunk = outbound.nextChunk(session.getChunkSize());
+            if (chunk == null) {
+                return;
+            }
+
+            if (transport.send(chunk, acknowledged)) {
+                retries = 0;
+                session.onChunkSent(chunk.length);
+                metrics.onChunkSent(chunk.length);
+                metrics.onMessagesPacked(outbound.getLastFramesStarted());
+                chunksInFlight.add(scheduler.nanoTime(), chunkRecord(outbound, chunk));
+                continue;
+            }
+
+            metrics.onSendRefused();
+            if (++retries > maxRetries) {
+                // The link keeps refusing, its messages are sent again whole on the next connection
+                fail();
+                return;
+            }
+
+            // The link buffer is full, hold the chunk until a send completes or the retry delay passes
+            outbound.retry(chunk);
+            if (outbound.getInFlight() == 0) {
+                scheduler.cancel(retry);
+                scheduler.schedule(retry, retryDelayMs);
+            }
+            return;
+        }
+    }
+
+    @Override
+    public void onChunkReceived(byte[] chunk) {
+        // Received while suspended as well, the peer may send before the new link is set up on this side
+        if (!closed) {
+            metrics.onChunkReceived(chunk.length);
+            session.onChunkReceived(chunk);
+        }
+    }
+
+    @Override
+    public void onSendComplete() {
+        if (closed || suspended) {
+            return;
+        }
+        session.getOutbound().onChunkComplete();
+        if (!chunksInFlight.isEmpty()) {
+            long now = scheduler.nanoTime();
+            metrics.onChunkComplete((now - chunksInFlight.peekTime()) / 1000);
+            long record = chunksInFlight.peekValue();
+            chunksInFlight.poll();
+            onChunkDone(record, now);
+        }
+        pump();
+    }
+
+    /**
+     * The oldest chunk in flight may not have reached the peer. Carrying on with the next one would cut
+     * its message in two, so the link is failed and the message is sent again whole on the next connection.
+     */
+    @Override
+    public void onSendFailed() {
+        if (closed || suspended) {
+            return;
+        }
+        metrics.onWriteFailed();
+        fail();
+    }
+
+    /**
+     * Packs the channel and data length of the chunk just released into one value.
+     */
+    private static long chunkRecord(OutboundQueue outbound, byte[] chunk) {
+        return ((long) outbound.getLastChannel() << 32) | (chunk.length - outbound.getChunkHeaderSize());
+    }
+
+    /**
+     * Advances the completed byte count of a chunk's channel and records the latency of every message it finishes.
+     */
+    private void onChunkDone(long record, long nowNanos) {
+        ChannelProgress progress = progress((int) (record >>> 32));
+        progress.bytesCompleted += (int) record;
+        while (!progress.messagesInFlight.isEmpty() && progress.messagesInFlight.peekValue() <= progress.bytesCompleted) {
+            metrics.onMessageComplete((nowNanos - progress.messagesInFlight.peekTime()) / 1000);
+            progress.messagesInFlight.poll();
+        }
+    }
+
+    /**
+     * Suspends the link after a chunk could not be sent or failed, and tells the listener.
+     */
+    private void fail() {
+        metrics.onChunkFailed();
+        suspend();
+        if (listener != null) {
+            listener.onLinkFailed(this);
+        }
+    }
+
+    @Override
+    public void onMtuChanged(int mtu) {
+        session.setMtu(mtu);
+    }
+
+    /**
+     * Holds the outbound messages while the link is not ready: before it is first set up, or after it was
+     * lost. The chunks in flight are forgotten and every message whose last chunk has not completed is
+     * sent again from its beginning after {@link #resume()}, so a message the peer received just before
+     * the link went down may arrive twice. Partly received inbound messages are lost with the link, while
+     * chunks received during the suspension come from the new connection and are reassembled.
+     */
+    public void suspend() {
+        if (closed || suspended) {
+            return;
+        }
+        suspended = true;
+        retries = 0;
+        scheduler.cancel(retry);
+        stopLingering();
+        chunksInFlight.clear();
+        OutboundQueue outbound = session.getOutbound();
+        outbound.rewind();
+        for (int channel = 0; channel < channels.length; channel++) {
+            ChannelProgress progress = channels[channel];
+            if (progress == null) {
+                continue;
+            }
+            // The messages queued again complete on the new link, the completed ones are done
+            progress.bytesCompleted = progress.bytesQueued - outbound.getPendingBytes(channel);
+            while (!progress.messagesInFlight.isEmpty() && progress.messagesInFlight.peekValue() <= progress.bytesCompleted) {
+                progress.messagesInFlight.poll();
+            }
+        }
+        session.resetInbound();
+    }
+
+    /**
+     * Starts sending the held messages on the new connection.
+     */
+    public void resume() {
+        if (suspended) {
+            suspended = false;
+            pump();
+        }
+    }
+
+    public boolean isSuspended() {
+        return suspended;
+    }
+
+    /**
+     * Stops sending, cancels pending retries and releases the session buffers.
+     */
+    public void close() {
+        closed = true;
+        scheduler.cancel(retry);
+        stopLingering();
+        chunksInFlight.clear();
+        // Anyone waiting for the buffer to drain is released
+        updateWatermarks();
+        for (ChannelProgress progress : channels) {
+            if (progress != null) {
+                progress.messagesInFlight.clear();
+            }
+        }
+        session.close();
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public PeerSession getSession() {
+        return session;
+    }
+
+    /**
+     * Sets how many consecutive refusals a chunk survives before the link is failed.
+     * @param maxRetries Maximum number of retries
+     */
+    public void setMaxRetries(int maxRetries) {
+        this.maxRetries = Math.max(0, maxRetries);
+    }
+
+    /**
+     * Returns the number of chunks the link failed on after the transport kept refusing them.
+     * @return Failed chunk count
+     */
+    public long getChunksFailed() {
+        return metrics.getChunksFailed();
+    }
+
+    public LinkMetrics getMetrics() {
+        return metrics;
+    }
+}
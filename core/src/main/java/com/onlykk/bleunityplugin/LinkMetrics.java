@@ -0,0 +1,234 @@
+package com.onlykk.bleunityplugin;
+
+/**
+ * Transfer counters and latency histograms of a link. A link's metrics may have a parent, such as
+ * the totals of the client or the server, which receives everything recorded on the link and keeps
+ * it after the link closes. Recording only updates fields and never allocates.
+ * Not thread-safe, metrics are recorded and read on the event loop thread.
+ */
+public class LinkMetrics {
+
+    private final LinkMetrics parent;
+
+    private long bytesSent;
+    private long chunksSent;
+    private long bytesReceived;
+    private long chunksReceived;
+    private long messagesQueued;
+    private long messagesCompleted;
+    private long sendsRefused;
+    private long chunksFailed;
+    // Writes or notifications the stack reported as failed
+    private long writesFailed;
+    private long retransmits;
+    private long maxQueuedBytes;
+    // Messages refused or evicted because the send buffer was full
+    private long messagesDropped;
+    private long bytesDropped;
+    // Chunks in which at least one message starts, and the messages starting in them
+    private long packedChunks;
+    private long packedMessages;
+
+    // From handing a chunk to the transport to its completion
+    private final LatencyHistogram chunkLatency = new LatencyHistogram();
+    // From queueing a message to the completion of its last chunk
+    private final LatencyHistogram messageLatency = new LatencyHistogram();
+
+    public LinkMetrics() {
+        this(null);
+    }
+
+    /**
+     * @param parent Metrics receiving everything recorded here as well, or null
+     */
+    public LinkMetrics(LinkMetrics parent) {
+        this.parent = parent;
+    }
+
+    /**
+     * Records a message queued for the peer.
+     * @param queuedBytes Bytes waiting in the outbound queue afterwards
+     */
+    public void onMessageQueued(long queuedBytes) {
+        messagesQueued++;
+        if (queuedBytes > maxQueuedBytes) {
+            maxQueuedBytes = queuedBytes;
+        }
+        if (parent != null) {
+            parent.onMessageQueued(queuedBytes);
+        }
+    }
+
+    public void onChunkSent(int length) {
+        chunksSent++;
+        bytesSent += length;
+        if (parent != null) {
+            parent.onChunkSent(length);
+        }
+    }
+
+    public void onChunkReceived(int length) {
+        chunksReceived++;
+        bytesReceived += length;
+        if (parent != null) {
+            parent.onChunkReceived(length);
+        }
+    }
+
+    /**
+     * Records how many messages start in a chunk handed to the transport.
+     * @param messages Messages starting in the chunk, 0 for a chunk in the middle of a message
+     */
+    public void onMessagesPacked(int messages) {
+        if (messages > 0) {
+            packedChunks++;
+            packedMessages += messages;
+        }
+        if (parent != null) {
+            parent.onMessagesPacked(messages);
+        }
+    }
+
+    /**
+     * Records a message refused or evicted because the send buffer of the link was full.
+     * @param length Length of the encoded message
+     */
+    public void onMessageDropped(int length) {
+        messagesDropped++;
+        bytesDropped += length;
+        if (parent != null) {
+            parent.onMessageDropped(length);
+        }
+    }
+
+    /**
+     * Records a send the transport refused because its buffer was full.
+     */
+    public void onSendRefused() {
+        sendsRefused++;
+        if (parent != null) {
+            parent.onSendRefused();
+        }
+    }
+
+    /**
+     * Records a chunk the link failed on after the transport kept refusing it.
+     */
+    public void onChunkFailed() {
+        chunksFailed++;
+        if (parent != null) {
+            parent.onChunkFailed();
+        }
+    }
+
+    /**
+     * Records a chunk the stack reported as failed after accepting it.
+     */
+    public void onWriteFailed() {
+        writesFailed++;
+        if (parent != null) {
+            parent.onWriteFailed();
+        }
+    }
+
+    /**
+     * Records a packet sent again by the reliable mode after a timeout or a gap.
+     */
+    public void onRetransmit() {
+        retransmits++;
+        if (parent != null) {
+            parent.onRetransmit();
+        }
+    }
+
+    /**
+     * Records the completion of a chunk.
+     * @param latencyMicros Time from handing the chunk to the transport to its completion
+     */
+    public void onChunkComplete(long latencyMicros) {
+        chunkLatency.record(latencyMicros);
+        if (parent != null) {
+            parent.onChunkComplete(latencyMicros);
+        }
+    }
+
+    /**
+     * Records the completion of the last chunk of a message.
+     * @param latencyMicros Time from queueing the message to the completion of its last chunk
+     */
+    public void onMessageComplete(long latencyMicros) {
+        messagesCompleted++;
+        messageLatency.record(latencyMicros);
+        if (parent != null) {
+            parent.onMessageComplete(latencyMicros);
+        }
+    }
+
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    public long getChunksSent() {
+        return chunksSent;
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    public long getChunksReceived() {
+        return chunksReceived;
+    }
+
+    public long getMessagesQueued() {
+        return messagesQueued;
+    }
+
+    public long getMessagesCompleted() {
+        return messagesCompleted;
+    }
+
+    public long getSendsRefused() {
+        return sendsRefused;
+    }
+
+    public long getChunksFailed() {
+        return chunksFailed;
+    }
+
+    public long getWritesFailed() {
+        return writesFailed;
+    }
+
+    public long getRetransmits() {
+        return retransmits;
+    }
+
+    public long getMaxQueuedBytes() {
+        return maxQueuedBytes;
+    }
+
+    public long getMessagesDropped() {
+        return messagesDropped;
+    }
+
+    public long getBytesDropped() {
+        return bytesDropped;
+    }
+
+    /**
+     * Returns the average number of messages starting in a chunk, among the chunks in which any message starts.
+     * @return 1 without coalescing, more when small messages share chunks
+     */
+    public double getCoalescingRatio() {
+        return packedChunks > 0 ? (double) packedMessages / packedChunks : 1;
+    }
+
+    public LatencyHistogram getChunkLatency() {
+        return chunkLatency;
+    }
+
+    public LatencyHistogram getMessageLatency() {
+        return messageLatency;
+    }
+}
@@ -0,0 +1,259 @@
+package com.onlykk.bleunityplugin;
+
+/**
+ * Adapts the connection priority and PHY of a link to its traffic.
+ * A backed up queue or a bulk message raises the priority to high and asks for the 2M PHY, so bursts
+ * get short connection intervals, and once the link has been idle for a while the priority drops back
+ * to balanced or low power to save energy. The parameters the stack reports are kept for reporting.
+ * Not thread-safe, every call must come from the thread the scheduler runs its tasks on.
+ */
+public class LinkTuner {
+
+    // Same values as BluetoothGatt.CONNECTION_PRIORITY_*
+    public static final int PRIORITY_BALANCED = 0;
+    public static final int PRIORITY_HIGH = 1;
+    public static final int PRIORITY_LOW_POWER = 2;
+
+    // Same values as BluetoothDevice.PHY_LE_*
+    public static final int PHY_LE_1M = 1;
+    public static final int PHY_LE_2M = 2;
+    public static final int PHY_LE_CODED = 3;
+
+    // Connection intervals are reported in units of 1.25 ms
+    public static final int INTERVAL_UNIT_MICROS = 1250;
+
+    public static final long DEFAULT_BACKLOG_BYTES = 2048;
+    public static final int DEFAULT_BULK_BYTES = 4096;
+    public static final long DEFAULT_IDLE_MS = 2000;
+
+    private final LinkControl control;
+    private final TaskScheduler scheduler;
+
+    private boolean enabled;
+    private long backlogBytes = DEFAULT_BACKLOG_BYTES;
+    private int bulkBytes = DEFAULT_BULK_BYTES;
+    private long idleMs = DEFAULT_IDLE_MS;
+    private int idlePriority = PRIORITY_BALANCED;
+    private boolean prefer2M = true;
+
+    private int requestedPriority = PRIORITY_BALANCED;
+    private boolean phyRequested;
+    private boolean boosted;
+    private long lastActivityNanos;
+    private long boosts;
+    private boolean closed;
+
+    // In effect as reported by the stack, 0 until reported
+    private int txPhy;
+    private int rxPhy;
+    private int intervalUnits;
+    private int peripheralLatency;
+    private int supervisionTimeoutUnits;
+
+    private final Runnable idleCheck = new Runnable() {
+        @Override
+        public void run() {
+            long idleNanos = scheduler.nanoTime() - lastActivityNanos;
+            long remainingMs = idleMs - idleNanos / 1000000;
+            if (remainingMs > 0) {
+                // There was traffic since the check was scheduled
+                scheduler.schedule(idleCheck, remainingMs);
+                return;
+            }
+            boosted = false;
+            requestPriority(idlePriority);
+        }
+    };
+
+    /**
+     * @param control The link whose parameters are tuned
+     * @param scheduler Runs the idle checks and provides the clock
+     */
+    public LinkTuner(LinkControl control, TaskScheduler scheduler) {
+        this.control = control;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Enables or disables tuning. Disabling drops a raised priority back to balanced.
+     * @param enabled true to adapt the link to its traffic
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        if (!enabled && boosted) {
+            boosted = false;
+            scheduler.cancel(idleCheck);
+            requestPriority(PRIORITY_BALANCED);
+        } else if (enabled && !boosted && requestedPriority != idlePriority) {
+            requestPriority(idlePriority);
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Sets what counts as a burst.
+     * @param backlogBytes Queued bytes from which the link is boosted
+     * @param bulkBytes Message size from which the link is boosted right away
+     */
+    public void setBoostThresholds(long backlogBytes, int bulkBytes) {
+        this.backlogBytes = Math.max(1, backlogBytes);
+        this.bulkBytes = Math.max(1, bulkBytes);
+    }
+
+    /**
+     * Sets when and where a boosted link drops back.
+     * @param idleMs Time without traffic after which the boost ends
+     * @param lowPower true to drop to low power instead of balanced, trading latency of the next message for energy
+     */
+    public void setIdlePolicy(long idleMs, boolean lowPower) {
+        this.idleMs = Math.max(1, idleMs);
+        this.idlePriority = lowPower ? PRIORITY_LOW_POWER : PRIORITY_BALANCED;
+    }
+
+    /**
+     * Sets whether a boost also asks for the 2M PHY. The PHY is kept after the boost ends,
+     * it halves the air time of every packet.
+     * @param prefer2M true to ask for the 2M PHY
+     */
+    public void setPrefer2MPhy(boolean prefer2M) {
+        this.prefer2M = prefer2M;
+    }
+
+    /**
+     * Records a message queued for the peer, boosting the link if it starts a burst.
+     * @param length Encoded message size
+     * @param queuedBytes Bytes waiting in the outbound queue afterwards
+     */
+    public void onMessageQueued(int length, long queuedBytes) {
+        if (!enabled || closed) {
+            return;
+        }
+        lastActivityNanos = scheduler.nanoTime();
+        if (!boosted && (length >= bulkBytes || queuedBytes >= backlogBytes)) {
+            boost();
+        }
+    }
+
+    /**
+     * Records traffic on the link, like a completed send or a received chunk, keeping a boost alive.
+     */
+    public void onActivity() {
+        if (boosted) {
+            lastActivityNanos = scheduler.nanoTime();
+        }
+    }
+
+    /**
+     * Records the PHY in effect, from the PHY update or read callbacks.
+     * @param txPhy Transmitter PHY
+     * @param rxPhy Receiver PHY
+     */
+    public void onPhyUpdate(int txPhy, int rxPhy) {
+        this.txPhy = txPhy;
+        this.rxPhy = rxPhy;
+    }
+
+    /**
+     * Records the connection parameters in effect, from the connection update callback.
+     * @param intervalUnits Connection interval in units of 1.25 ms
+     * @param peripheralLatency Connection events the peripheral may skip
+     * @param supervisionTimeoutUnits Supervision timeout in units of 10 ms
+     */
+    public void onConnectionUpdated(int intervalUnits, int peripheralLatency, int supervisionTimeoutUnits) {
+        this.intervalUnits = intervalUnits;
+        this.peripheralLatency = peripheralLatency;
+        this.supervisionTimeoutUnits = supervisionTimeoutUnits;
+    }
+
+    /**
+     * Forgets the requests and the parameters in effect after the link was lost, a new connection
+     * starts out balanced on the 1M PHY and is boosted again by its traffic.
+     */
+    public void reset() {
+        scheduler.cancel(idleCheck);
+        boosted = false;
+        phyRequested = false;
+        requestedPriority = PRIORITY_BALANCED;
+        txPhy = 0;
+        rxPhy = 0;
+        intervalUnits = 0;
+        peripheralLatency = 0;
+        supervisionTimeoutUnits = 0;
+    }
+
+    /**
+     * Stops the idle checks, the link is gone.
+     */
+    public void close() {
+        closed = true;
+        scheduler.cancel(idleCheck);
+    }
+
+    private void boost() {
+        boosted = true;
+        boosts++;
+        requestPriority(PRIORITY_HIGH);
+        if (prefer2M && !phyRequested && txPhy != PHY_LE_2M) {
+            phyRequested = control.requestPhy(PHY_LE_2M);
+        }
+        scheduler.cancel(idleCheck);
+        scheduler.schedule(idleCheck, idleMs);
+    }
+
+    private void requestPriority(int priority) {
+        if (priority != requestedPriority && control.requestConnectionPriority(priority)) {
+            requestedPriority = priority;
+        }
+    }
+
+    /**
+     * Returns the priority last granted to a request, balanced until the first one.
+     * @return One of the PRIORITY constants
+     */
+    public int getRequestedPriority() {
+        return requestedPriority;
+    }
+
+    public boolean isBoosted() {
+        return boosted;
+    }
+
+    /**
+     * Returns how many times traffic raised the link.
+     * @return Boost count
+     */
+    public long getBoosts() {
+        return boosts;
+    }
+
+    public int getTxPhy() {
+        return txPhy;
+    }
+
+    public int getRxPhy() {
+        return rxPhy;
+    }
+
+    /**
+     * Returns the connection interval in effect.
+     * @return Interval in microseconds, 0 until the stack reported it
+     */
+    public long getIntervalMicros() {
+        return (long) intervalUnits * INTERVAL_UNIT_MICROS;
+    }
+
+    public int getPeripheralLatency() {
+        return peripheralLatency;
+    }
+
+    /**
+     * Returns the supervision timeout in effect.
+     * @return Timeout in milliseconds, 0 until the stack reported it
+     */
+    public int getSupervisionTimeoutMs() {
+        return supervisionTimeoutUnits * 10;
+    }
+}
@@ -0,0 +1,68 @@
+package com.onlykk.bleunityplugin;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Unbounded lock-free multi-producer single-consumer queue.
+ * Producers append with a single atomic swap of the tail, the consumer takes from the head
+ * without any atomic operation. Any thread may offer, only one thread may poll.
+ * @param <T> Element type
+ */
+public final class MpscQueue<T> {
+
+    private static final class Node<T> {
+        volatile Node<T> next;
+        T value;
+
+        Node(T value) {
+            this.value = value;
+        }
+    }
+
+    private final AtomicReference<Node<T>> tail;
+    // Last consumed node, only touched by the consumer
+    private Node<T> head;
+
+    public MpscQueue() {
+        Node<T> stub = new Node<>(null);
+        head = stub;
+        tail = new AtomicReference<>(stub);
+    }
+
+    /**
+     * Appends an element. Safe to call from any thread.
+     * @param value The element, not null
+     */
+    public void offer(T value) {
+        if (value == null) {
+            throw new NullPointerException("value");
+        }
+        Node<T> node = new Node<>(value);
+        // Until the previous tail is linked the consumer sees the queue end before this node
+        Node<T> previous = tail.getAndSet(node);
+        previous.next = node;
+    }
+
+    /**
+     * Removes the oldest element. Must only be called by the consumer thread.
+     * @return The element, or null if the queue is empty
+     */
+    public T poll() {
+        Node<T> next = head.next;
+        if (next == null) {
+            return null;
+        }
+        T value = next.value;
+        next.value = null;
+        head = next;
+        return value;
+    }
+
+    /**
+     * Returns whether the consumer would find the queue empty. Must only be called by the consumer thread.
+     * @return true if no element is available
+     */
+    public boolean isEmpty() {
+        return head.next == null;
+    }
+}
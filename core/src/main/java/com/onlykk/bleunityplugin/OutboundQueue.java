@@ -0,0 +1,538 @@
+package com.onlykk.bleunityplugin;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+/**
+ * Flow-controlled queue of outbound frames for a single link.
+ * Frames are cut into chunks lazily, at the chunk size in effect when the chunk is released,
+ * and no more than {@code maxInFlight} chunks are handed to the stack before it confirms them.
+ * Chunks of acknowledged frames are always sent alone, one at a time.
+ * With coalescing enabled a chunk that ends a frame is filled up with the next frames of its channel,
+ * so a burst of small messages shares packets instead of sending one mostly empty packet each.
+ *
+ * Frames are queued on logical channels. Each channel is a FIFO of its own, and the next chunk is
+ * taken from the channel picked by a smooth weighted round robin, so a small message on a heavily
+ * weighted channel goes out within a chunk or two even while a large transfer is queued on another.
+ * In multiplexed mode every chunk starts with its channel id so the receiver can reassemble each
+ * channel separately. Without it only the default channel may be used and chunks carry no header.
+ *
+ * A frame stays in the queue until the stack has completed all of its chunks, so that after a lost
+ * link {@link #rewind()} can send it again from its beginning.
+ * Not thread-safe, the queue is owned by the event loop thread.
+ */
+public class OutboundQueue {
+
+    public static final int DEFAULT_CHANNEL = 0;
+    public static final int MAX_CHANNELS = 256;
+    // Bytes in front of every chunk in multiplexed mode
+    public static final int CHANNEL_HEADER_SIZE = 1;
+    public static final int DEFAULT_WEIGHT = 1;
+    public static final int MAX_WEIGHT = 1000;
+
+    /**
+     * Frames queued on one logical channel.
+     */
+    private static final class Channel {
+        final int id;
+        int weight = DEFAULT_WEIGHT;
+        // Scheduling credit of the smooth weighted round robin
+        int currentWeight;
+        final ArrayDeque<byte[]> frames = new ArrayDeque<>();
+        // Acknowledged flag of every queued frame, in the same order as frames
+        final ArrayDeque<Boolean> acknowledgedFrames = new ArrayDeque<>();
+        // Bytes of the head frame already released as chunks
+        int headOffset;
+        // Frames fully released whose last chunk has not completed yet, oldest first
+        final ArrayDeque<byte[]> releasedFrames = new ArrayDeque<>();
+        final ArrayDeque<Boolean> releasedAcknowledged = new ArrayDeque<>();
+        // Completed bytes of the oldest frame not completed yet, released or still at the head
+        int completedOffset;
+
+        Channel(int id) {
+            this.id = id;
+        }
+    }
+
+    private final Channel[] channelsById = new Channel[MAX_CHANNELS];
+    // Every channel used so far, in id order
+    private final ArrayList<Channel> channels = new ArrayList<>();
+    private boolean multiplexed;
+    private boolean coalescing;
+    private int maxInFlight;
+
+    private int pendingMessages;
+    private long pendingBytes;
+    private int inFlight;
+    // Channel and data length of every chunk in flight, oldest first
+    private final TimestampRing chunksInFlight = new TimestampRing();
+    private boolean acknowledgedInFlight;
+    private int lastChannel = DEFAULT_CHANNEL;
+    private int lastFramesStarted;
+    private int lastDroppedChannel = DEFAULT_CHANNEL;
+    private int lastDroppedFramesBehind;
+
+    // Chunk the stack refused, released again before anything else
+    private byte[] retryChunk;
+    private boolean retryAcknowledged;
+    private int retryChannel;
+    private int retryFramesStarted;
+
+    public OutboundQueue(int maxInFlight) {
+        setMaxInFlight(maxInFlight);
+        channel(DEFAULT_CHANNEL);
+    }
+
+    /**
+     * Appends a frame whose chunks may share the in-flight window.
+     * @param frame The encoded frame
+     */
+    public void enqueue(byte[] frame) {
+        enqueue(frame, false);
+    }
+
+    /**
+     * Appends a frame to the default channel.
+     * @param frame The encoded frame
+     * @param acknowledged true if every chunk of the frame must complete before the next one is released
+     */
+    public void enqueue(byte[] frame, boolean acknowledged) {
+        enqueue(DEFAULT_CHANNEL, frame, acknowledged);
+    }
+
+    /**
+     * Appends a frame to a channel.
+     * @param channelId Channel id, 0 to 255, only the default channel unless multiplexed
+     * @param frame The encoded frame
+     * @param acknowledged true if every chunk of the frame must complete before the next one is released
+     */
+    public void enqueue(int channelId, byte[] frame, boolean acknowledged) {
+        if (frame.length == 0) {
+            return;
+        }
+        Channel channel = channel(checkChannel(channelId));
+        channel.frames.add(frame);
+        channel.acknowledgedFrames.add(acknowledged);
+        pendingMessages++;
+        pendingBytes += frame.length;
+    }
+
+    /**
+     * Sets the share of the link a channel gets while other channels have data queued too.
+     * @param channelId Channel id
+     * @param weight Relative weight, higher weights go first
+     */
+    public void setChannelWeight(int channelId, int weight) {
+        channel(checkChannel(channelId)).weight = Math.max(1, Math.min(MAX_WEIGHT, weight));
+    }
+
+    public int getChannelWeight(int channelId) {
+        Channel channel = channelsById[checkChannel(channelId)];
+        return channel != null ? channel.weight : DEFAULT_WEIGHT;
+    }
+
+    /**
+     * Enables or disables the channel header. Must match the receiver and not change while frames are queued.
+     * @param multiplexed true to prefix every chunk with its channel id
+     */
+    public void setMultiplexed(boolean multiplexed) {
+        this.multiplexed = multiplexed;
+    }
+
+    public boolean isMultiplexed() {
+        return multiplexed;
+    }
+
+    /**
+     * Enables or disables packing the following frames of a channel into the space left after a frame ends.
+     * The receiver needs no setting, it reads any number of frames from a chunk.
+     * @param coalescing true to pack small frames together
+     */
+    public void setCoalescing(boolean coalescing) {
+        this.coalescing = coalescing;
+    }
+
+    public boolean isCoalescing() {
+        return coalescing;
+    }
+
+    /**
+     * Returns the bytes in front of the data in every chunk.
+     * @return Header size in bytes
+     */
+    public int getChunkHeaderSize() {
+        return multiplexed ? CHANNEL_HEADER_SIZE : 0;
+    }
+
+    /**
+     * Sets how many chunks may be handed to the stack before the oldest one completes.
+     * @param maxInFlight Size of the in-flight window
+     */
+    public void setMaxInFlight(int maxInFlight) {
+        this.maxInFlight = Math.max(1, maxInFlight);
+    }
+
+    /**
+     * Returns whether the next chunk belongs to an acknowledged frame.
+     * @return true if the next chunk must be sent as an acknowledged write
+     */
+    public boolean isNextAcknowledged() {
+        if (retryChunk != null) {
+            return retryAcknowledged;
+        }
+        Channel channel = selectChannel();
+        return channel != null && channel.acknowledgedFrames.peek();
+    }
+
+    /**
+     * Releases the next chunk if the in-flight window allows it.
+     * @param chunkSize Maximum chunk size of the link, including the channel header
+     * @return The chunk to send, or null if the queue is empty or the window is full
+     */
+    public byte[] nextChunk(int chunkSize) {
+        boolean acknowledged = isNextAcknowledged();
+        if (inFlight >= (acknowledged ? 1 : maxInFlight) || acknowledgedInFlight) {
+            return null;
+        }
+
+        byte[] chunk;
+        int header = getChunkHeaderSize();
+        if (retryChunk != null) {
+            chunk = retryChunk;
+            lastChannel = retryChannel;
+            lastFramesStarted = retryFramesStarted;
+            retryChunk = null;
+        } else {
+            Channel channel = selectChannel();
+            if (channel == null) {
+                return null;
+            }
+            charge(channel);
+
+            chunk = takeChunk(channel, Math.max(1, chunkSize - header), header);
+            lastChannel = channel.id;
+        }
+
+        pendingBytes -= chunk.length - header;
+        chunksInFlight.add(lastChannel, chunk.length - header);
+        inFlight++;
+        acknowledgedInFlight = acknowledged;
+        return chunk;
+    }
+
+    /**
+     * Marks the oldest in-flight chunk as completed by the stack, opening the window for the next one.
+     * The frames it completes leave the queue.
+     */
+    public void onChunkComplete() {
+        if (inFlight > 0) {
+            inFlight--;
+            complete(channelsById[(int) chunksInFlight.peekTime()], (int) chunksInFlight.peekValue());
+            chunksInFlight.poll();
+        }
+        if (inFlight == 0) {
+            acknowledgedInFlight = false;
+        }
+    }
+
+    private static void complete(Channel channel, int length) {
+        while (length > 0) {
+            byte[] oldest = channel.releasedFrames.peek();
+            if (oldest == null) {
+                // The rest lies in the head frame, which is still being released
+                channel.completedOffset += length;
+                return;
+            }
+            int count = Math.min(length, oldest.length - channel.completedOffset);
+            channel.completedOffset += count;
+            length -= count;
+            if (channel.completedOffset == oldest.length) {
+                channel.releasedFrames.poll();
+                channel.releasedAcknowledged.poll();
+                channel.completedOffset = 0;
+            }
+        }
+    }
+
+    /**
+     * Hands back a chunk the stack refused so it is released again first.
+     * @param chunk The chunk returned by the last call to {@link #nextChunk(int)}
+     */
+    public void retry(byte[] chunk) {
+        retryChunk = chunk;
+        retryAcknowledged = acknowledgedInFlight;
+        retryChannel = lastChannel;
+        retryFramesStarted = lastFramesStarted;
+        pendingBytes += chunk.length - getChunkHeaderSize();
+        chunksInFlight.removeLast();
+        if (inFlight > 0) {
+            inFlight--;
+        }
+        if (inFlight == 0) {
+            acknowledgedInFlight = false;
+        }
+    }
+
+    /**
+     * Drops every queued frame and resets the in-flight window.
+     */
+    public void clear() {
+        for (Channel channel : channels) {
+            channel.frames.clear();
+            channel.acknowledgedFrames.clear();
+            channel.headOffset = 0;
+            channel.releasedFrames.clear();
+            channel.releasedAcknowledged.clear();
+            channel.completedOffset = 0;
+            channel.currentWeight = 0;
+        }
+        pendingMessages = 0;
+        pendingBytes = 0;
+        inFlight = 0;
+        chunksInFlight.clear();
+        acknowledgedInFlight = false;
+        retryChunk = null;
+    }
+
+    /**
+     * Takes the queue back to the start of a new link after the old one was lost. The chunks in flight
+     * are forgotten and every frame not completed yet is sent again from its beginning, since the receiver
+     * dropped the part it had. A frame the peer received whole but whose completion was lost with the
+     * link is sent twice.
+     */
+    public void rewind() {
+        pendingBytes = 0;
+        for (Channel channel : channels) {
+            while (!channel.releasedFrames.isEmpty()) {
+                channel.frames.addFirst(channel.releasedFrames.pollLast());
+                channel.acknowledgedFrames.addFirst(channel.releasedAcknowledged.pollLast());
+                pendingMessages++;
+            }
+            channel.headOffset = 0;
+            channel.completedOffset = 0;
+            channel.currentWeight = 0;
+            for (byte[] frame : channel.frames) {
+                pendingBytes += frame.length;
+            }
+        }
+        inFlight = 0;
+        chunksInFlight.clear();
+        acknowledgedInFlight = false;
+        retryChunk = null;
+    }
+
+    /**
+     * Drops the oldest queued frame that is not acknowledged and has not started to be released,
+     * looking at the given channel first and then at every channel in id order. A frame already
+     * partly released stays, dropping it would corrupt the stream at the receiver.
+     * @param preferredChannel Channel to drop from first
+     * @return Length of the dropped frame, 0 if no frame can be dropped
+     */
+    public int dropOldest(int preferredChannel) {
+        Channel preferred = channelsById[checkChannel(preferredChannel)];
+        int length = preferred != null ? dropOldest(preferred) : 0;
+        for (int i = 0; length == 0 && i < channels.size(); i++) {
+            length = dropOldest(channels.get(i));
+        }
+        return length;
+    }
+
+    private int dropOldest(Channel channel) {
+        Iterator<byte[]> frames = channel.frames.iterator();
+        Iterator<Boolean> acknowledgedFrames = channel.acknowledgedFrames.iterator();
+        int behind = channel.frames.size();
+        boolean head = true;
+        while (frames.hasNext()) {
+            byte[] frame = frames.next();
+            boolean acknowledged = acknowledgedFrames.next();
+            behind--;
+            if (acknowledged || (head && channel.headOffset > 0)) {
+                head = false;
+                continue;
+            }
+            frames.remove();
+            acknowledgedFrames.remove();
+            pendingMessages--;
+            pendingBytes -= frame.length;
+            lastDroppedChannel = channel.id;
+            lastDroppedFramesBehind = behind;
+            if (channel.frames.isEmpty()) {
+                channel.currentWeight = 0;
+            }
+            return frame.length;
+        }
+        return 0;
+    }
+
+    /**
+     * Cuts the next chunk from the head of a channel, packing the following frames into the room left
+     * when coalescing. Frames a chunk ends move to the released frames of the channel.
+     */
+    private byte[] takeChunk(Channel channel, int room, int header) {
+        byte[] head = channel.frames.peek();
+        int length = Math.min(room, head.length - channel.headOffset);
+        if (coalescing && !channel.acknowledgedFrames.peek()) {
+            Iterator<byte[]> frames = channel.frames.iterator();
+            Iterator<Boolean> acknowledgedFrames = channel.acknowledgedFrames.iterator();
+            frames.next();
+            acknowledgedFrames.next();
+            while (length < room && frames.hasNext() && !acknowledgedFrames.next()) {
+                length += Math.min(room - length, frames.next().length);
+            }
+        }
+
+        byte[] chunk = new byte[header + length];
+        if (multiplexed) {
+            chunk[0] = (byte) channel.id;
+        }
+        int position = header;
+        lastFramesStarted = 0;
+        while (position < chunk.length) {
+            head = channel.frames.peek();
+            if (channel.headOffset == 0) {
+                lastFramesStarted++;
+            }
+            int count = Math.min(chunk.length - position, head.length - channel.headOffset);
+            System.arraycopy(head, channel.headOffset, chunk, position, count);
+            position += count;
+            channel.headOffset += count;
+            if (channel.headOffset == head.length) {
+                channel.releasedFrames.add(channel.frames.poll());
+                channel.releasedAcknowledged.add(channel.acknowledgedFrames.poll());
+                channel.headOffset = 0;
+                pendingMessages--;
+            }
+        }
+        if (channel.frames.isEmpty()) {
+            // An idle channel starts over, it keeps neither credit nor debt
+            channel.currentWeight = 0;
+        }
+        return chunk;
+    }
+
+    /**
+     * Returns the channel the next chunk is taken from: among the channels with frames queued, the one
+     * with the highest credit after adding its weight, the lowest id on a tie.
+     */
+    private Channel selectChannel() {
+        Channel selected = null;
+        for (int i = 0; i < channels.size(); i++) {
+            Channel channel = channels.get(i);
+            if (!channel.frames.isEmpty()
+                    && (selected == null || channel.currentWeight + channel.weight > selected.currentWeight + selected.weight)) {
+                selected = channel;
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * Updates the round robin credits for a chunk taken from a channel.
+     */
+    private void charge(Channel selected) {
+        int totalWeight = 0;
+        for (int i = 0; i < channels.size(); i++) {
+            Channel channel = channels.get(i);
+            if (!channel.frames.isEmpty()) {
+                channel.currentWeight += channel.weight;
+                totalWeight += channel.weight;
+            }
+        }
+        selected.currentWeight -= totalWeight;
+    }
+
+    private Channel channel(int id) {
+        Channel channel = channelsById[id];
+        if (channel == null) {
+            channel = new Channel(id);
+            channelsById[id] = channel;
+            int index = 0;
+            while (index < channels.size() && channels.get(index).id < id) {
+                index++;
+            }
+            channels.add(index, channel);
+        }
+        return channel;
+    }
+
+    private int checkChannel(int channelId) {
+        if (channelId < 0 || channelId >= MAX_CHANNELS || (channelId != DEFAULT_CHANNEL && !multiplexed)) {
+            throw new IllegalArgumentException("Invalid channel " + channelId + (multiplexed ? "" : ", channels are not enabled"));
+        }
+        return channelId;
+    }
+
+    /**
+     * Returns the number of messages not completely released yet.
+     * @return Queue depth in messages
+     */
+    public int getPendingMessages() {
+        return pendingMessages;
+    }
+
+    /**
+     * Returns the number of bytes not released yet.
+     * @return Queue depth in bytes
+     */
+    public long getPendingBytes() {
+        return pendingBytes;
+    }
+
+    /**
+     * Returns the number of bytes of a channel not released yet.
+     * @param channelId Channel id
+     * @return Queue depth of the channel in bytes, not counting a chunk waiting to be retried
+     */
+    public long getPendingBytes(int channelId) {
+        Channel channel = channelsById[channelId];
+        if (channel == null) {
+            return 0;
+        }
+        long bytes = -channel.headOffset;
+        for (byte[] frame : channel.frames) {
+            bytes += frame.length;
+        }
+        return bytes;
+    }
+
+    public int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * Returns the channel of the chunk last returned by {@link #nextChunk(int)}.
+     * @return Channel id
+     */
+    public int getLastChannel() {
+        return lastChannel;
+    }
+
+    /**
+     * Returns how many frames start in the chunk last returned by {@link #nextChunk(int)}.
+     * @return Number of frames, 0 for a chunk in the middle of a frame
+     */
+    public int getLastFramesStarted() {
+        return lastFramesStarted;
+    }
+
+    /**
+     * Returns the channel of the frame last dropped by {@link #dropOldest(int)}.
+     * @return Channel id
+     */
+    public int getLastDroppedChannel() {
+        return lastDroppedChannel;
+    }
+
+    /**
+     * Returns how many frames of its channel were queued after the frame last dropped by {@link #dropOldest(int)}.
+     * @return Number of newer frames on the channel
+     */
+    public int getLastDroppedFramesBehind() {
+        return lastDroppedFramesBehind;
+    }
+
+    public boolean isEmpty() {
+        return pendingMessages == 0 && retryChunk == null;
+    }
+}
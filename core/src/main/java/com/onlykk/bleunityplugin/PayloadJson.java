@@ -0,0 +1,322 @@
+package com.onlykk.bleunityplugin;
+
+import java.util.Collection;
+
+/**
+ * JSON payloads sent to Unity, built from plain values so they can be encoded and benchmarked off-device.
+ */
+public final class PayloadJson {
+
+    private PayloadJson() {
+    }
+
+    /**
+     * Encodes a device name and address to a JSON string.
+     * @param name Device name, omitted if null
+     * @param address Device address
+     * @return JSON string representing the device
+     */
+    public static String getDeviceJson(String name, String address)
+    {
+        return JsonEncoder.begin()
+                .field("name", name)
+                .field("address", address)
+                .end();
+    }
+
+    /**
+     * Encodes a device name, address and signal strength to a JSON string.
+     * @param name Device name, omitted if null
+     * @param address Device address
+     * @param rssi Smoothed RSSI of the device
+     * @return JSON string representing the device
+     */
+    public static String getDeviceJson(String name, String address, int rssi)
+    {
+        return JsonEncoder.begin()
+                .field("name", name)
+                .field("address", address)
+                .field("rssi", rssi)
+                .end();
+    }
+
+    /**
+     * Encodes a device connected to before to a JSON string.
+     * @param device The known device
+     * @return JSON string with the name, address and the wall clock time the device was last seen
+     */
+    public static String getKnownDeviceJson(KnownDeviceStore.Device device)
+    {
+        return JsonEncoder.begin()
+                .field("name", device.name)
+                .field("address", device.address)
+                .field("lastSeenMs", device.lastSeenMs)
+                .end();
+    }
+
+    /**
+     * Encodes a scheduled reconnection attempt to a JSON string.
+     * @param address Address of the device
+     * @param attempt Number of the attempt, from 1
+     * @param maxAttempts Attempts before giving up
+     * @param delayMs Time until the attempt
+     * @param status GATT status the link was lost or the previous attempt failed with
+     * @return JSON string representing the attempt
+     */
+    public static String getReconnectAttemptJson(String address, int attempt, int maxAttempts, long delayMs, int status)
+    {
+        return JsonEncoder.begin()
+                .field("address", address)
+                .field("attempt", attempt)
+                .field("maxAttempts", maxAttempts)
+                .field("delayMs", delayMs)
+                .field("status", status)
+                .end();
+    }
+
+    /**
+     * Encodes the end of a reconnection, successful or given up, to a JSON string.
+     * @param address Address of the device
+     * @param attempts Attempts made
+     * @param downtimeMs Time since the link was lost
+     * @return JSON string representing the reconnection
+     */
+    public static String getReconnectResultJson(String address, int attempts, long downtimeMs)
+    {
+        return JsonEncoder.begin()
+                .field("address", address)
+                .field("attempts", attempts)
+                .field("downtimeMs", downtimeMs)
+                .end();
+    }
+
+    /**
+     * Encodes a message received on a logical channel to a JSON string.
+     * @param address Address of the sending device
+     * @param channel Channel id
+     * @param data The message text, or the Base64 of a binary message
+     * @param binary true if data is Base64 encoded binary
+     * @return JSON string representing the message
+     */
+    public static String getChannelMessageJson(String address, int channel, String data, boolean binary)
+    {
+        JsonEncoder json = JsonEncoder.begin()
+                .field("address", address)
+                .field("channel", channel)
+                .field("data", data);
+        if (binary) {
+            json.field("binary", true);
+        }
+        return json.end();
+    }
+
+    /**
+     * Converts the radio parameters of a link to a JSON string.
+     * @param address Address of the device
+     * @param tuner The tuner of the link
+     * @return JSON string with the requested priority and the PHY and interval in effect
+     */
+    public static String getLinkParametersJson(String address, LinkTuner tuner)
+    {
+        int priority = tuner.getRequestedPriority();
+        return JsonEncoder.begin()
+                .field("address", address)
+                .field("priority", priority == LinkTuner.PRIORITY_HIGH ? "high" : priority == LinkTuner.PRIORITY_LOW_POWER ? "lowPower" : "balanced")
+                .field("boosted", tuner.isBoosted())
+                .field("txPhy", tuner.getTxPhy())
+                .field("rxPhy", tuner.getRxPhy())
+                .field("intervalMs", tuner.getIntervalMicros() / 1000.0)
+                .field("peripheralLatency", tuner.getPeripheralLatency())
+                .field("supervisionTimeoutMs", tuner.getSupervisionTimeoutMs())
+                .field("boosts", tuner.getBoosts())
+                .end();
+    }
+
+    /**
+     * Converts the fill level of the send buffer of a link to a JSON string.
+     * @param link The link
+     * @return JSON string with the queued bytes, the capacity and the messages dropped so far
+     */
+    public static String getSendBufferJson(LinkEndpoint link)
+    {
+        return JsonEncoder.begin()
+                .field("address", link.getSession().getAddress())
+                .field("queuedBytes", link.getSession().getOutbound().getPendingBytes())
+                .field("capacity", link.getBufferCapacity())
+                .field("messagesDropped", link.getMetrics().getMessagesDropped())
+                .end();
+    }
+
+    /**
+     * Converts the statistics of a session to a JSON string.
+     * @param session The session
+     * @return JSON string representing the session statistics
+     */
+    public static String getSessionJson(PeerSession session)
+    {
+        return JsonEncoder.begin()
+                .field("address", session.getAddress())
+                .field("mtu", session.getMtu())
+                .field("bytesReceived", session.getBytesReceived())
+                .field("chunksReceived", session.getChunksReceived())
+                .field("messagesReceived", session.getMessagesReceived())
+                .field("framesDropped", session.getFramesDropped())
+                .field("bytesSent", session.getBytesSent())
+                .field("chunksSent", session.getChunksSent())
+                .field("messagesSent", session.getMessagesSent())
+                .field("queuedMessages", session.getOutbound().getPendingMessages())
+                .field("queuedBytes", session.getOutbound().getPendingBytes())
+                .end();
+    }
+
+    /**
+     * Converts the statistics of a compressor to a JSON string.
+     * @param compressor The compressor
+     * @return JSON string representing the compression statistics
+     */
+    public static String getCompressionJson(FrameCompressor compressor)
+    {
+        return JsonEncoder.begin()
+                .field("enabled", compressor.isEnabled())
+                .field("messages", compressor.getMessagesEncoded())
+                .field("compressedMessages", compressor.getMessagesCompressed())
+                .field("bytesIn", compressor.getBytesIn())
+                .field("bytesOut", compressor.getBytesOut())
+                .field("ratio", compressor.getRatio())
+                .field("compressMicros", compressor.getCompressNanos() / 1000)
+                .field("decompressMicros", compressor.getDecompressNanos() / 1000)
+                .end();
+    }
+
+    /**
+     * Converts a latency histogram to a JSON string with its count, mean, percentiles and maximum.
+     * @param histogram The histogram
+     * @return JSON string with latencies in microseconds
+     */
+    public static String getLatencyJson(LatencyHistogram histogram)
+    {
+        return JsonEncoder.begin()
+                .field("count", histogram.getCount())
+                .field("mean", histogram.getMeanMicros())
+                .field("p50", histogram.getPercentile(50))
+                .field("p90", histogram.getPercentile(90))
+                .field("p99", histogram.getPercentile(99))
+                .field("max", histogram.getMaxMicros())
+                .end();
+    }
+
+    /**
+     * Converts the metrics of a link to a JSON string.
+     * @param link The link
+     * @return JSON string representing the link metrics
+     */
+    public static String getLinkMetricsJson(LinkEndpoint link)
+    {
+        PeerSession session = link.getSession();
+        LinkMetrics metrics = link.getMetrics();
+        // The encoder is reused per thread, so nested objects are encoded first
+        String chunkLatency = getLatencyJson(metrics.getChunkLatency());
+        String messageLatency = getLatencyJson(metrics.getMessageLatency());
+        return JsonEncoder.begin()
+                .field("address", session.getAddress())
+                .field("mtu", session.getMtu())
+                .field("bytesSent", metrics.getBytesSent())
+                .field("chunksSent", metrics.getChunksSent())
+                .field("bytesReceived", metrics.getBytesReceived())
+                .field("chunksReceived", metrics.getChunksReceived())
+                .field("messagesSent", metrics.getMessagesCompleted())
+                .field("messagesReceived", session.getMessagesReceived())
+                .field("queuedMessages", session.getOutbound().getPendingMessages())
+                .field("queuedBytes", session.getOutbound().getPendingBytes())
+                .field("maxQueuedBytes", metrics.getMaxQueuedBytes())
+                .field("inFlight", session.getOutbound().getInFlight())
+                .field("sendsRefused", metrics.getSendsRefused())
+                .field("chunksFailed", metrics.getChunksFailed())
+                .field("writesFailed", metrics.getWritesFailed())
+                .field("retransmits", metrics.getRetransmits())
+                .field("messagesDropped", metrics.getMessagesDropped())
+                .field("coalescingRatio", metrics.getCoalescingRatio())
+                .rawField("chunkLatencyUs", chunkLatency)
+                .rawField("messageLatencyUs", messageLatency)
+                .end();
+    }
+
+    /**
+     * Converts the totals of the client or the server and the metrics of its open links to a JSON string.
+     * @param totals Metrics of every link since the client or server was created
+     * @param links The open links
+     * @param sendRate Bytes sent per second since the previous snapshot
+     * @param receiveRate Bytes received per second since the previous snapshot
+     * @return JSON string representing the metrics
+     */
+    public static String getTransferMetricsJson(LinkMetrics totals, Collection<LinkEndpoint> links, double sendRate, double receiveRate)
+    {
+        StringBuilder linksJson = new StringBuilder("[");
+        for (LinkEndpoint link : links) {
+            if (linksJson.length() > 1) {
+                linksJson.append(',');
+            }
+            linksJson.append(getLinkMetricsJson(link));
+        }
+        linksJson.append(']');
+        String chunkLatency = getLatencyJson(totals.getChunkLatency());
+        String messageLatency = getLatencyJson(totals.getMessageLatency());
+        return JsonEncoder.begin()
+                .field("connections", links.size())
+                .field("sendRate", Math.round(sendRate))
+                .field("receiveRate", Math.round(receiveRate))
+                .field("bytesSent", totals.getBytesSent())
+                .field("chunksSent", totals.getChunksSent())
+                .field("bytesReceived", totals.getBytesReceived())
+                .field("chunksReceived", totals.getChunksReceived())
+                .field("messagesSent", totals.getMessagesCompleted())
+                .field("sendsRefused", totals.getSendsRefused())
+                .field("chunksFailed", totals.getChunksFailed())
+                .field("writesFailed", totals.getWritesFailed())
+                .field("retransmits", totals.getRetransmits())
+                .field("messagesDropped", totals.getMessagesDropped())
+                .field("coalescingRatio", totals.getCoalescingRatio())
+                .rawField("chunkLatencyUs", chunkLatency)
+                .rawField("messageLatencyUs", messageLatency)
+                .rawField("links", linksJson)
+                .end();
+    }
+
+    /**
+     * Converts scanner counters to a JSON string.
+     * @param callbacks Scan callbacks received, a batch counts once
+     * @param results Scan results received
+     * @param reported Device updates reported to Unity
+     * @param callbackRate Callbacks per second since the previous snapshot
+     * @param resultRate Results per second since the previous snapshot
+     * @return JSON string representing the scanner metrics
+     */
+    public static String getScanMetricsJson(long callbacks, long results, long reported, double callbackRate, double resultRate)
+    {
+        return JsonEncoder.begin()
+                .field("callbacks", callbacks)
+                .field("results", results)
+                .field("reported", reported)
+                .field("callbackRate", callbackRate)
+                .field("resultRate", resultRate)
+                .end();
+    }
+
+    /**
+     * Combines the client, server and scanner metrics into one snapshot.
+     * @param uptimeMs Time since the plugin was initialized
+     * @param client Client metrics JSON, omitted if null
+     * @param server Server metrics JSON, omitted if null
+     * @param scanner Scanner metrics JSON, omitted if null
+     * @return JSON string of the snapshot
+     */
+    public static String getMetricsJson(long uptimeMs, String client, String server, String scanner)
+    {
+        return JsonEncoder.begin()
+                .field("uptimeMs", uptimeMs)
+                .rawField("client", client)
+                .rawField("server", server)
+                .rawField("scanner", scanner)
+                .end();
+    }
+}
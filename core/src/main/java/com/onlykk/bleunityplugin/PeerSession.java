@@ -0,0 +1,224 @@
+package com.onlykk.bleunityplugin;
+
+/**
+ * Per-device link state: reassembly buffers, effective MTU and transfer statistics.
+ * Every connected peer owns its own session so reassembly of different peers never mixes,
+ * and in multiplexed mode every channel has its own reassembly buffer as well.
+ */
+public class PeerSession {
+
+    /**
+     * Receives the messages reassembled by a session.
+     */
+    public interface Listener {
+
+        /**
+         * Called once a complete message has been received from the peer.
+         * @param session The session the message belongs to
+         * @param channel Channel the message was sent on, {@link OutboundQueue#DEFAULT_CHANNEL} unless multiplexed
+         * @param flags Frame flags
+         * @param payload Message payload
+         */
+        void onMessage(PeerSession session, int channel, int flags, byte[] payload);
+
+        /**
+         * Called when the peer announced a frame larger than the allowed maximum.
+         * @param session The session the frame belongs to
+         * @param length Announced payload length
+         */
+        void onFrameDropped(PeerSession session, long length);
+    }
+
+    private final String address;
+    private final Listener listener;
+    // Reassembly buffer of every channel heard from, created on first use
+    private final FrameReassembler[] reassemblers = new FrameReassembler[OutboundQueue.MAX_CHANNELS];
+    private final OutboundQueue outbound = new OutboundQueue(1);
+
+    private volatile int mtu = AttMtu.DEFAULT_MTU;
+    // Bytes of every packet taken by a transport header, such as the reliable mode sequence number
+    private int chunkHeaderSize;
+
+    private long bytesReceived;
+    private long chunksReceived;
+    private long messagesReceived;
+    private long framesDropped;
+    private long bytesSent;
+    private long chunksSent;
+    private long messagesSent;
+
+    public PeerSession(String address, Listener listener) {
+        this.address = address;
+        this.listener = listener;
+        reassembler(OutboundQueue.DEFAULT_CHANNEL);
+    }
+
+    private FrameReassembler reassembler(final int channel) {
+        FrameReassembler reassembler = reassemblers[channel];
+        if (reassembler == null) {
+            reassembler = new FrameReassembler(new FrameReassembler.Listener() {
+                @Override
+                public void onFrame(int flags, byte[] payload) {
+                    messagesReceived++;
+                    listener.onMessage(PeerSession.this, channel, flags, payload);
+                }
+
+                @Override
+                public void onFrameDropped(long length) {
+                    framesDropped++;
+                    listener.onFrameDropped(PeerSession.this, length);
+                }
+            });
+            reassemblers[channel] = reassembler;
+        }
+        return reassembler;
+    }
+
+    /**
+     * Feeds a chunk received from the peer into this session's reassembly buffer.
+     * @param chunk The received bytes
+     */
+    public void onChunkReceived(byte[] chunk) {
+        chunksReceived++;
+        bytesReceived += chunk.length;
+        if (!outbound.isMultiplexed()) {
+            reassemblers[OutboundQueue.DEFAULT_CHANNEL].feed(chunk);
+        } else if (chunk.length > OutboundQueue.CHANNEL_HEADER_SIZE) {
+            reassembler(chunk[0] & 0xFF).feed(chunk, OutboundQueue.CHANNEL_HEADER_SIZE, chunk.length - OutboundQueue.CHANNEL_HEADER_SIZE);
+        }
+    }
+
+    /**
+     * Queues an encoded message for the peer.
+     * @param frame The encoded frame
+     */
+    public void enqueueMessage(byte[] frame) {
+        enqueueMessage(frame, false);
+    }
+
+    /**
+     * Queues an encoded message for the peer.
+     * @param frame The encoded frame
+     * @param acknowledged true if every chunk must be confirmed by the peer before the next one is sent
+     */
+    public void enqueueMessage(byte[] frame, boolean acknowledged) {
+        enqueueMessage(OutboundQueue.DEFAULT_CHANNEL, frame, acknowledged);
+    }
+
+    /**
+     * Queues an encoded message for the peer on a channel.
+     * @param channel Channel id, only the default channel unless multiplexed
+     * @param frame The encoded frame
+     * @param acknowledged true if every chunk must be confirmed by the peer before the next one is sent
+     */
+    public void enqueueMessage(int channel, byte[] frame, boolean acknowledged) {
+        outbound.enqueue(channel, frame, acknowledged);
+        messagesSent++;
+    }
+
+    /**
+     * Enables or disables multiplexed channels in both directions. Both peers must use the same
+     * setting, and it must be chosen before any data is exchanged.
+     * @param multiplexed true to prefix every chunk with its channel id
+     */
+    public void setMultiplexed(boolean multiplexed) {
+        outbound.setMultiplexed(multiplexed);
+    }
+
+    public boolean isMultiplexed() {
+        return outbound.isMultiplexed();
+    }
+
+    /**
+     * Records a chunk handed to the stack for the peer.
+     * @param length Chunk length in bytes
+     */
+    public void onChunkSent(int length) {
+        chunksSent++;
+        bytesSent += length;
+    }
+
+    /**
+     * Releases the reassembly buffer and the outbound queue of this session.
+     */
+    public void close() {
+        resetInbound();
+        outbound.clear();
+    }
+
+    /**
+     * Drops the partly received messages, after the link carrying them was lost.
+     */
+    public void resetInbound() {
+        for (FrameReassembler reassembler : reassemblers) {
+            if (reassembler != null) {
+                reassembler.reset();
+            }
+        }
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    /**
+     * Returns the flow-controlled queue of chunks waiting to be sent to the peer.
+     * @return The outbound queue
+     */
+    public OutboundQueue getOutbound() {
+        return outbound;
+    }
+
+    public int getMtu() {
+        return mtu;
+    }
+
+    public void setMtu(int mtu) {
+        this.mtu = mtu;
+    }
+
+    /**
+     * Returns the largest chunk that fits in a single write or notification on this link,
+     * less the transport header.
+     * @return Chunk size in bytes
+     */
+    public int getChunkSize() {
+        return Math.max(1, AttMtu.chunkSize(mtu) - chunkHeaderSize);
+    }
+
+    /**
+     * Reserves room in every packet for a header added by the transport.
+     * @param chunkHeaderSize Header size in bytes
+     */
+    public void setChunkHeaderSize(int chunkHeaderSize) {
+        this.chunkHeaderSize = Math.max(0, chunkHeaderSize);
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    public long getChunksReceived() {
+        return chunksReceived;
+    }
+
+    public long getMessagesReceived() {
+        return messagesReceived;
+    }
+
+    public long getFramesDropped() {
+        return framesDropped;
+    }
+
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    public long getChunksSent() {
+        return chunksSent;
+    }
+
+    public long getMessagesSent() {
+        return messagesSent;
+    }
+}
@@ -0,0 +1,31 @@
+package com.onlykk.bleunityplugin;
+
+/**
+ * Turns a growing total, like bytes sent, into a rate per second between two samples.
+ * Not thread-safe, sampled on the event loop thread.
+ */
+public class RateMeter {
+
+    private long lastTotal;
+    private long lastNanos;
+
+    /**
+     * @param startNanos Time the total started counting from
+     */
+    public RateMeter(long startNanos) {
+        this.lastNanos = startNanos;
+    }
+
+    /**
+     * Returns the rate since the previous sample and starts a new sampling period.
+     * @param total Current value of the total
+     * @param nowNanos Current time
+     * @return Growth of the total per second
+     */
+    public double sample(long total, long nowNanos) {
+        double rate = nowNanos > lastNanos ? (total - lastTotal) * 1e9 / (nowNanos - lastNanos) : 0;
+        lastTotal = total;
+        lastNanos = nowNanos;
+        return rate;
+    }
+}
@@ -0,0 +1,89 @@
+package com.onlykk.bleunityplugin;
+
+import java.util.Random;
+
+/**
+ * Delays between the attempts to reconnect a lost link: exponential backoff with jitter, within a
+ * budget of attempts. The delay doubles with every failed attempt up to a maximum, and a random part
+ * of it is taken off so that devices losing their links together do not retry in lockstep.
+ * Not thread-safe, a policy is owned by the event loop thread.
+ */
+public class ReconnectPolicy {
+
+    public static final int DEFAULT_MAX_ATTEMPTS = 8;
+    public static final long DEFAULT_INITIAL_DELAY_MS = 250;
+    public static final long DEFAULT_MAX_DELAY_MS = 8000;
+    // Share of every delay that is random, the delay lies between half and all of the backoff
+    public static final double JITTER = 0.5;
+
+    private final Random random;
+
+    private int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+    private long initialDelayMs = DEFAULT_INITIAL_DELAY_MS;
+    private long maxDelayMs = DEFAULT_MAX_DELAY_MS;
+
+    private int attempts;
+
+    public ReconnectPolicy() {
+        this(new Random());
+    }
+
+    /**
+     * @param random Source of the jitter
+     */
+    public ReconnectPolicy(Random random) {
+        this.random = random;
+    }
+
+    /**
+     * Sets the budget and the delays of the attempts.
+     * @param maxAttempts Attempts before giving up, 0 never to reconnect
+     * @param initialDelayMs Backoff before the first attempt
+     * @param maxDelayMs Largest backoff
+     */
+    public void configure(int maxAttempts, long initialDelayMs, long maxDelayMs) {
+        this.maxAttempts = Math.max(0, maxAttempts);
+        this.initialDelayMs = Math.max(1, initialDelayMs);
+        this.maxDelayMs = Math.max(this.initialDelayMs, maxDelayMs);
+    }
+
+    /**
+     * Counts the next attempt and returns how long to wait before it.
+     * @return Delay in milliseconds, or -1 if the budget is used up
+     */
+    public long nextDelayMs() {
+        if (attempts >= maxAttempts) {
+            return -1;
+        }
+        long backoff = initialDelayMs;
+        for (int i = 0; i < attempts && backoff < maxDelayMs; i++) {
+            backoff *= 2;
+        }
+        backoff = Math.min(backoff, maxDelayMs);
+        attempts++;
+        return backoff - (long) (backoff * JITTER * random.nextDouble());
+    }
+
+    /**
+     * Restores the full budget, after the link was reconnected.
+     */
+    public void reset() {
+        attempts = 0;
+    }
+
+    /**
+     * Returns the attempts counted since the last reset.
+     * @return Attempt count
+     */
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    public boolean isExhausted() {
+        return attempts >= maxAttempts;
+    }
+}
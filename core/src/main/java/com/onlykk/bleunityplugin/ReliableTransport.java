@@ -0,0 +1,509 @@
+package com.onlykk.bleunityplugin;
+
+import java.util.Arrays;
+
+/**
+ * Reliable delivery on top of a lossy transport, for links where a refused or failed write must
+ * not corrupt the message stream. Every chunk is sent as a DATA packet with a 16-bit sequence
+ * number and kept until the peer acknowledges it, with at most {@code window} packets outstanding.
+ * The receiver delivers chunks in order, buffers the ones that arrive after a gap, and answers
+ * with ACK packets carrying the next expected sequence number and a bitmap of the packets it
+ * already holds past it.
+ *
+ * Packets are only sent again when loss is evident: after the retransmission timeout, which
+ * follows the measured round trip time, or when an ACK reports later packets while an earlier one
+ * is still missing. Without loss the only overhead is the 3-byte header and one ACK per few chunks.
+ *
+ * Both peers must use reliable mode on a link, packets of the two modes cannot be told apart.
+ * Packets go to the lower transport unacknowledged, delivery is confirmed by the ACKs.
+ * Chunks handed to {@link #send(byte[], boolean)} complete once the peer acknowledged them.
+ * Not thread-safe, every call must come from the thread the scheduler runs its tasks on.
+ *
+ * DATA: [0x44][seq u16 BE][chunk]  ACK: [0x41][next expected seq u16 BE][received bitmap u32 BE]
+ */
+public class ReliableTransport implements Transport, Transport.Receiver {
+
+    /**
+     * Receives the failure of a link whose packets could not be delivered.
+     */
+    public interface Listener {
+
+        /**
+         * Called when a packet was sent the maximum number of times without being acknowledged.
+         * The transport is closed, the link should be disconnected.
+         */
+        void onLinkFailed();
+    }
+
+    public static final int HEADER_SIZE = 3;
+    public static final int ACK_SIZE = 7;
+
+    static final int TYPE_DATA = 0x44;
+    static final int TYPE_ACK = 0x41;
+
+    // Largest window, bounded by the width of the received bitmap in ACK packets
+    public static final int MAX_WINDOW = 32;
+    public static final int DEFAULT_WINDOW = 16;
+    // In-order packets received before an ACK is sent without waiting for the ACK delay
+    public static final int DEFAULT_ACK_EVERY = 4;
+    public static final long DEFAULT_ACK_DELAY_MS = 10;
+    public static final long INITIAL_RTO_MS = 500;
+    public static final long MIN_RTO_MS = 40;
+    public static final long MAX_RTO_MS = 5000;
+    // Transmissions of a single packet after which the link is declared failed
+    public static final int DEFAULT_MAX_TRANSMISSIONS = 10;
+
+    private static final int MASK = MAX_WINDOW - 1;
+    private static final int SEQ_MASK = 0xFFFF;
+
+    private final Transport lower;
+    private final TaskScheduler scheduler;
+    private final LinkMetrics metrics;
+    private Transport.Receiver receiver;
+    private Listener listener;
+
+    private int window = DEFAULT_WINDOW;
+    private int ackEvery = DEFAULT_ACK_EVERY;
+    private long ackDelayMs = DEFAULT_ACK_DELAY_MS;
+    private int maxTransmissions = DEFAULT_MAX_TRANSMISSIONS;
+    private boolean closed;
+
+    // Sender: outstanding packets by sequence number modulo the window
+    private final byte[][] unacked = new byte[MAX_WINDOW][];
+    private final long[] sentAtNanos = new long[MAX_WINDOW];
+    private final int[] transmissions = new int[MAX_WINDOW];
+    private final boolean[] selectivelyAcked = new boolean[MAX_WINDOW];
+    // Retransmissions the lower transport refused, sent again once it has room
+    private final boolean[] retransmitPending = new boolean[MAX_WINDOW];
+    private int sendBase;
+    private int nextSeq;
+
+    // Round trip estimation as in RFC 6298, in nanoseconds
+    private long smoothedRttNanos = -1;
+    private long rttVarianceNanos;
+    private long rtoNanos = INITIAL_RTO_MS * 1000000L;
+    private boolean retransmitTimerArmed;
+
+    // Receiver: packets received past a gap, by sequence number modulo the window
+    private final byte[][] outOfOrder = new byte[MAX_WINDOW][];
+    private int expectedSeq;
+    private int receivedSinceAck;
+    private boolean ackPending;
+    private boolean ackTimerArmed;
+
+    private long retransmits;
+    private long duplicatesReceived;
+    private long acksSent;
+    private long acksReceived;
+
+    private final Runnable retransmitTimeout = new Runnable() {
+        @Override
+        public void run() {
+            retransmitTimerArmed = false;
+            onRetransmitTimeout();
+        }
+    };
+
+    private final Runnable ackTimeout = new Runnable() {
+        @Override
+        public void run() {
+            ackTimerArmed = false;
+            if (receivedSinceAck > 0) {
+                sendAck();
+            }
+        }
+    };
+
+    /**
+     * @param lower The lossy transport the packets are sent on
+     * @param scheduler Runs the timers and provides the clock for round trip times
+     * @param metrics Metrics retransmissions are recorded into, or null
+     */
+    public ReliableTransport(Transport lower, TaskScheduler scheduler, LinkMetrics metrics) {
+        this.lower = lower;
+        this.scheduler = scheduler;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Sets the protocol side receiving the delivered chunks and completions.
+     * @param receiver The receiver, usually a {@link LinkEndpoint}
+     */
+    public void setReceiver(Transport.Receiver receiver) {
+        this.receiver = receiver;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Sets how many packets may be outstanding before the oldest is acknowledged.
+     * @param window Window size, at most {@link #MAX_WINDOW}
+     */
+    public void setWindow(int window) {
+        this.window = Math.max(1, Math.min(MAX_WINDOW, window));
+    }
+
+    public int getWindow() {
+        return window;
+    }
+
+    /**
+     * Sets when received packets are acknowledged. Gaps and duplicates are always acknowledged at once.
+     * @param ackEvery In-order packets acknowledged together
+     * @param ackDelayMs Longest time an in-order packet waits for its ACK
+     */
+    public void setAckPolicy(int ackEvery, long ackDelayMs) {
+        this.ackEvery = Math.max(1, ackEvery);
+        this.ackDelayMs = Math.max(0, ackDelayMs);
+    }
+
+    /**
+     * Sets how many times a packet is sent before the link is declared failed.
+     * @param maxTransmissions Maximum transmissions of a packet
+     */
+    public void setMaxTransmissions(int maxTransmissions) {
+        this.maxTransmissions = Math.max(1, maxTransmissions);
+    }
+
+    @Override
+    public boolean send(byte[] chunk, boolean acknowledged) {
+        if (closed || getInFlight() >= window) {
+            return false;
+        }
+        byte[] packet = new byte[chunk.length + HEADER_SIZE];
+        packet[0] = (byte) TYPE_DATA;
+        packet[1] = (byte) (nextSeq >> 8);
+        packet[2] = (byte) nextSeq;
+        System.arraycopy(chunk, 0, packet, HEADER_SIZE, chunk.length);
+        if (!lower.send(packet, false)) {
+            return false;
+        }
+
+        int index = nextSeq & MASK;
+        unacked[index] = packet;
+        sentAtNanos[index] = scheduler.nanoTime();
+        transmissions[index] = 1;
+        selectivelyAcked[index] = false;
+        retransmitPending[index] = false;
+        nextSeq = (nextSeq + 1) & SEQ_MASK;
+        armRetransmitTimer(rtoNanos);
+        return true;
+    }
+
+    @Override
+    public void onChunkReceived(byte[] packet) {
+        if (closed || packet.length == 0) {
+            return;
+        }
+        int type = packet[0] & 0xFF;
+        if (type == TYPE_DATA && packet.length >= HEADER_SIZE) {
+            onData(readShort(packet, 1), packet);
+        } else if (type == TYPE_ACK && packet.length >= ACK_SIZE) {
+            onAck(readShort(packet, 1), readInt(packet, 3));
+        }
+    }
+
+    @Override
+    public void onSendComplete() {
+        // The lower transport has room again, send what it refused before
+        flushPending();
+    }
+
+    @Override
+    public void onSendFailed() {
+        // A lost packet like any other, the retransmission timer sends it again
+        if (metrics != null) {
+            metrics.onWriteFailed();
+        }
+        flushPending();
+    }
+
+    @Override
+    public void onMtuChanged(int mtu) {
+        if (receiver != null) {
+            receiver.onMtuChanged(mtu);
+        }
+    }
+
+    /**
+     * Starts over after the link was lost, the peer starts a new session at sequence number 0 as well.
+     * Outstanding packets are dropped. The endpoint above keeps every frame until its last packet is
+     * acknowledged, so it sends the frames of the dropped packets again from their beginning.
+     */
+    public void reset() {
+        scheduler.cancel(retransmitTimeout);
+        scheduler.cancel(ackTimeout);
+        retransmitTimerArmed = false;
+        ackTimerArmed = false;
+        Arrays.fill(unacked, null);
+        Arrays.fill(outOfOrder, null);
+        Arrays.fill(retransmitPending, false);
+        sendBase = 0;
+        nextSeq = 0;
+        expectedSeq = 0;
+        receivedSinceAck = 0;
+        ackPending = false;
+        smoothedRttNanos = -1;
+        rttVarianceNanos = 0;
+        rtoNanos = INITIAL_RTO_MS * 1000000L;
+    }
+
+    /**
+     * Stops the timers and drops every outstanding and buffered packet.
+     */
+    public void close() {
+        closed = true;
+        scheduler.cancel(retransmitTimeout);
+        scheduler.cancel(ackTimeout);
+        retransmitTimerArmed = false;
+        ackTimerArmed = false;
+        Arrays.fill(unacked, null);
+        Arrays.fill(outOfOrder, null);
+    }
+
+    private void onData(int seq, byte[] packet) {
+        int offset = (seq - expectedSeq) & SEQ_MASK;
+        if (offset >= MAX_WINDOW) {
+            // Already delivered, the ACK was probably lost
+            duplicatesReceived++;
+            sendAck();
+            return;
+        }
+        if (offset > 0) {
+            // A gap: hold the packet and tell the sender right away
+            int index = seq & MASK;
+            if (outOfOrder[index] == null) {
+                outOfOrder[index] = packet;
+            } else {
+                duplicatesReceived++;
+            }
+            sendAck();
+            return;
+        }
+
+        deliver(packet);
+        expectedSeq = (expectedSeq + 1) & SEQ_MASK;
+        boolean gapFilled = false;
+        while (outOfOrder[expectedSeq & MASK] != null) {
+            byte[] buffered = outOfOrder[expectedSeq & MASK];
+            outOfOrder[expectedSeq & MASK] = null;
+            deliver(buffered);
+            expectedSeq = (expectedSeq + 1) & SEQ_MASK;
+            gapFilled = true;
+        }
+
+        if (gapFilled || ++receivedSinceAck >= ackEvery) {
+            sendAck();
+        } else if (!ackTimerArmed) {
+            ackTimerArmed = true;
+            scheduler.schedule(ackTimeout, ackDelayMs);
+        }
+    }
+
+    private void deliver(byte[] packet) {
+        if (receiver != null) {
+            receiver.onChunkReceived(Arrays.copyOfRange(packet, HEADER_SIZE, packet.length));
+        }
+    }
+
+    private void onAck(int nextExpected, int receivedBitmap) {
+        int acked = (nextExpected - sendBase) & SEQ_MASK;
+        if (acked > getInFlight()) {
+            // Stale or from a previous link
+            return;
+        }
+        acksReceived++;
+        long now = scheduler.nanoTime();
+        for (int i = 0; i < acked; i++) {
+            int index = sendBase & MASK;
+            if (transmissions[index] == 1) {
+                // Karn's rule: only packets sent once give an unambiguous sample
+                updateRto(now - sentAtNanos[index]);
+            }
+            unacked[index] = null;
+            retransmitPending[index] = false;
+            selectivelyAcked[index] = false;
+            sendBase = (sendBase + 1) & SEQ_MASK;
+        }
+
+        // Packets the peer holds past the gap
+        int highestHeld = -1;
+        for (int bit = 0; bit < MAX_WINDOW - 1; bit++) {
+            if ((receivedBitmap & (1 << bit)) != 0) {
+                int offset = bit + 1;
+                if (offset < getInFlight()) {
+                    selectivelyAcked[(sendBase + offset) & MASK] = true;
+                    highestHeld = offset;
+                }
+            }
+        }
+        // Everything missing below a held packet was lost, unless it was just sent again
+        long resendAfter = smoothedRttNanos > 0 ? smoothedRttNanos : rtoNanos / 2;
+        for (int offset = 0; offset < highestHeld; offset++) {
+            int index = (sendBase + offset) & MASK;
+            if (!selectivelyAcked[index] && now - sentAtNanos[index] >= resendAfter) {
+                retransmit(index, now);
+            }
+        }
+
+        if (getInFlight() == 0) {
+            scheduler.cancel(retransmitTimeout);
+            retransmitTimerArmed = false;
+        }
+
+        // Completions last, the receiver may send new chunks straight away
+        for (int i = 0; i < acked && receiver != null && !closed; i++) {
+            receiver.onSendComplete();
+        }
+    }
+
+    private void onRetransmitTimeout() {
+        if (closed || getInFlight() == 0) {
+            return;
+        }
+        long now = scheduler.nanoTime();
+        int index = sendBase & MASK;
+        long waited = now - sentAtNanos[index];
+        if (waited < rtoNanos) {
+            armRetransmitTimer(rtoNanos - waited);
+            return;
+        }
+        if (transmissions[index] >= maxTransmissions) {
+            close();
+            if (listener != null) {
+                listener.onLinkFailed();
+            }
+            return;
+        }
+        // Back off until an ACK arrives again
+        rtoNanos = Math.min(rtoNanos * 2, MAX_RTO_MS * 1000000L);
+        retransmit(index, now);
+        armRetransmitTimer(rtoNanos);
+    }
+
+    private void retransmit(int index, long now) {
+        transmissions[index]++;
+        sentAtNanos[index] = now;
+        retransmits++;
+        if (metrics != null) {
+            metrics.onRetransmit();
+        }
+        if (!lower.send(unacked[index], false)) {
+            retransmitPending[index] = true;
+        }
+    }
+
+    private void sendAck() {
+        receivedSinceAck = 0;
+        ackPending = true;
+        if (ackTimerArmed) {
+            scheduler.cancel(ackTimeout);
+            ackTimerArmed = false;
+        }
+        flushPending();
+    }
+
+    private void flushPending() {
+        if (closed) {
+            return;
+        }
+        if (ackPending) {
+            if (!lower.send(buildAck(), false)) {
+                return;
+            }
+            ackPending = false;
+            acksSent++;
+        }
+        int inFlight = getInFlight();
+        for (int offset = 0; offset < inFlight; offset++) {
+            int index = (sendBase + offset) & MASK;
+            if (retransmitPending[index]) {
+                if (!lower.send(unacked[index], false)) {
+                    return;
+                }
+                retransmitPending[index] = false;
+            }
+        }
+    }
+
+    private byte[] buildAck() {
+        int bitmap = 0;
+        for (int bit = 0; bit < MAX_WINDOW - 1; bit++) {
+            if (outOfOrder[(expectedSeq + bit + 1) & MASK] != null) {
+                bitmap |= 1 << bit;
+            }
+        }
+        return new byte[] {
+                (byte) TYPE_ACK,
+                (byte) (expectedSeq >> 8), (byte) expectedSeq,
+                (byte) (bitmap >>> 24), (byte) (bitmap >>> 16), (byte) (bitmap >>> 8), (byte) bitmap
+        };
+    }
+
+    private void updateRto(long rttNanos) {
+        if (smoothedRttNanos < 0) {
+            smoothedRttNanos = rttNanos;
+            rttVarianceNanos = rttNanos / 2;
+        } else {
+            rttVarianceNanos = (3 * rttVarianceNanos + Math.abs(smoothedRttNanos - rttNanos)) / 4;
+            smoothedRttNanos = (7 * smoothedRttNanos + rttNanos) / 8;
+        }
+        long rto = smoothedRttNanos + 4 * rttVarianceNanos;
+        rtoNanos = Math.max(MIN_RTO_MS * 1000000L, Math.min(MAX_RTO_MS * 1000000L, rto));
+    }
+
+    private void armRetransmitTimer(long delayNanos) {
+        if (!retransmitTimerArmed) {
+            retransmitTimerArmed = true;
+            // Round up, the timer checks the actual age of the oldest packet when it fires
+            scheduler.schedule(retransmitTimeout, (delayNanos + 999999) / 1000000);
+        }
+    }
+
+    private static int readShort(byte[] packet, int offset) {
+        return ((packet[offset] & 0xFF) << 8) | (packet[offset + 1] & 0xFF);
+    }
+
+    private static int readInt(byte[] packet, int offset) {
+        return ((packet[offset] & 0xFF) << 24) | ((packet[offset + 1] & 0xFF) << 16)
+                | ((packet[offset + 2] & 0xFF) << 8) | (packet[offset + 3] & 0xFF);
+    }
+
+    /**
+     * Returns the number of packets sent and not acknowledged yet.
+     * @return Outstanding packets
+     */
+    public int getInFlight() {
+        return (nextSeq - sendBase) & SEQ_MASK;
+    }
+
+    public long getRetransmits() {
+        return retransmits;
+    }
+
+    public long getDuplicatesReceived() {
+        return duplicatesReceived;
+    }
+
+    public long getAcksSent() {
+        return acksSent;
+    }
+
+    public long getAcksReceived() {
+        return acksReceived;
+    }
+
+    /**
+     * Returns the current retransmission timeout.
+     * @return Timeout in milliseconds
+     */
+    public long getRtoMs() {
+        return rtoNanos / 1000000L;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+}
@@ -0,0 +1,139 @@
+package com.onlykk.bleunityplugin;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collapses repeated advertisements into one entry per device address.
+ * Each entry keeps an exponentially smoothed RSSI and the last time it was seen, and only real
+ * changes are reported: a new device, a name change, or an RSSI move past the threshold,
+ * never more often than the minimum update interval per device.
+ * Not thread-safe, the deduplicator is owned by the event loop thread.
+ */
+public class ScanDeduplicator {
+
+    public static final int DEFAULT_RSSI_THRESHOLD = 6;
+    public static final long DEFAULT_MIN_UPDATE_INTERVAL_MS = 1000;
+    public static final float DEFAULT_SMOOTHING = 0.25f;
+
+    /**
+     * Deduplicated view of a discovered device.
+     */
+    public static final class Entry {
+        private final String address;
+        private String name;
+        private float smoothedRssi;
+        private long lastSeenMs;
+        private int reportedRssi;
+        private String reportedName;
+        private long lastReportedMs;
+
+        Entry(String address) {
+            this.address = address;
+        }
+
+        public String getAddress() {
+            return address;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getRssi() {
+            return Math.round(smoothedRssi);
+        }
+
+        public long getLastSeenMs() {
+            return lastSeenMs;
+        }
+    }
+
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+
+    private int rssiThreshold = DEFAULT_RSSI_THRESHOLD;
+    private long minUpdateIntervalMs = DEFAULT_MIN_UPDATE_INTERVAL_MS;
+    private float smoothing = DEFAULT_SMOOTHING;
+
+    /**
+     * Configures when a known device is reported again.
+     * @param rssiThreshold Smoothed RSSI change, in dB, that counts as a real change
+     * @param minUpdateIntervalMs Minimum time between two reports of the same device
+     * @param smoothing Weight of a new RSSI sample in the moving average, between 0 and 1
+     */
+    public void configure(int rssiThreshold, long minUpdateIntervalMs, float smoothing) {
+        this.rssiThreshold = Math.max(0, rssiThreshold);
+        this.minUpdateIntervalMs = Math.max(0, minUpdateIntervalMs);
+        this.smoothing = Math.min(1f, Math.max(0.01f, smoothing));
+    }
+
+    /**
+     * Records an advertisement.
+     * @param address Device address
+     * @param name Advertised device name, may be null
+     * @param rssi Received signal strength
+     * @param nowMs Current time in milliseconds
+     * @return The device entry if the advertisement should be reported, null otherwise
+     */
+    public Entry onAdvertisement(String address, String name, int rssi, long nowMs) {
+        Entry entry = entries.get(address);
+        if (entry == null) {
+            entry = new Entry(address);
+            entry.name = name;
+            entry.smoothedRssi = rssi;
+            entry.lastSeenMs = nowMs;
+            entries.put(address, entry);
+            return report(entry, nowMs);
+        }
+
+        entry.lastSeenMs = nowMs;
+        entry.smoothedRssi += smoothing * (rssi - entry.smoothedRssi);
+        if (name != null) {
+            entry.name = name;
+        }
+
+        boolean nameChanged = entry.name != null && !entry.name.equals(entry.reportedName);
+        boolean rssiMoved = Math.abs(entry.getRssi() - entry.reportedRssi) >= rssiThreshold;
+        if ((nameChanged || rssiMoved) && nowMs - entry.lastReportedMs >= minUpdateIntervalMs) {
+            return report(entry, nowMs);
+        }
+        return null;
+    }
+
+    private static Entry report(Entry entry, long nowMs) {
+        entry.reportedName = entry.name;
+        entry.reportedRssi = entry.getRssi();
+        entry.lastReportedMs = nowMs;
+        return entry;
+    }
+
+    /**
+     * Returns the entry of a device.
+     * @param address Device address
+     * @return The entry, or null if the device was not seen
+     */
+    public Entry get(String address) {
+        return entries.get(address);
+    }
+
+    /**
+     * Returns every discovered device, once each, in discovery order.
+     * @return The deduplicated devices
+     */
+    public List<Entry> getEntries() {
+        return new ArrayList<>(entries.values());
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Forgets every discovered device.
+     */
+    public void clear() {
+        entries.clear();
+    }
+}
@@ -0,0 +1,323 @@
+package com.onlykk.bleunityplugin;
+
+/**
+ * Duty-cycles BLE scanning: scan windows alternate with idle periods, and in adaptive mode the
+ * scan mode of each window follows the recent discovery rate and the number of active GATT links.
+ * Starts are rate limited so Android never sees more than {@link #MAX_STARTS_PER_PERIOD}
+ * scan starts within {@link #START_LIMIT_PERIOD_MS}. A scan that is not duty-cycled runs through
+ * the scheduler as one endless window, so its starts count against the same limit.
+ */
+public class ScanScheduler {
+
+    // Same values as ScanSettings.SCAN_MODE_*
+    public static final int MODE_LOW_POWER = 0;
+    public static final int MODE_BALANCED = 1;
+    public static final int MODE_LOW_LATENCY = 2;
+
+    // Android refuses an app's sixth scan start within 30 seconds
+    public static final int MAX_STARTS_PER_PERIOD = 5;
+    public static final long START_LIMIT_PERIOD_MS = 30000;
+    // Extra delay on top of the limit period, so clock skew never hits the platform limit
+    private static final long START_LIMIT_MARGIN_MS = 500;
+
+    public static final long DEFAULT_WINDOW_MS = 10000;
+    public static final long DEFAULT_IDLE_MS = 5000;
+    // Reports per window that count as a busy environment
+    public static final int DEFAULT_BUSY_THRESHOLD = 3;
+    // Windows without any report before dropping to low power
+    public static final int DEFAULT_QUIET_WINDOWS = 2;
+
+    /**
+     * Source of time, replaced by a fake clock in tests.
+     */
+    public interface Clock {
+        long nowMs();
+    }
+
+    /**
+     * Radio and timer operations the scheduler drives.
+     */
+    public interface Host {
+
+        /**
+         * Starts a scan.
+         * @param scanMode One of the MODE_* constants
+         */
+        void startScan(int scanMode);
+
+        /**
+         * Stops the running scan.
+         */
+        void stopScan();
+
+        /**
+         * Runs a task after a delay.
+         * @param task The task to run
+         * @param delayMs Delay in milliseconds
+         */
+        void schedule(Runnable task, long delayMs);
+
+        /**
+         * Cancels a scheduled task.
+         * @param task The task to cancel
+         */
+        void cancel(Runnable task);
+
+        /**
+         * Returns the number of GATT connections competing with the scan for radio time.
+         * @return Active connection count
+         */
+        int getActiveConnectionCount();
+    }
+
+    private final Host host;
+    private final Clock clock;
+
+    private long windowMs = DEFAULT_WINDOW_MS;
+    private long idleMs = DEFAULT_IDLE_MS;
+    private boolean adaptive = true;
+    private int busyThreshold = DEFAULT_BUSY_THRESHOLD;
+    private int quietWindowsForLowPower = DEFAULT_QUIET_WINDOWS;
+
+    // Times of the most recent scan starts, used as a ring buffer
+    private final long[] startTimes = new long[MAX_STARTS_PER_PERIOD];
+    private int startCount;
+    private int startIndex;
+
+    private boolean running;
+    // A single low latency window that never ends
+    private boolean continuous;
+    private boolean scanning;
+    private int currentMode = -1;
+    private int reportsInWindow;
+    private int lastWindowReports = -1;
+    private int quietWindows;
+
+    private final Runnable beginWindow = new Runnable() {
+        @Override
+        public void run() {
+            beginWindow();
+        }
+    };
+
+    private final Runnable endWindow = new Runnable() {
+        @Override
+        public void run() {
+            endWindow();
+        }
+    };
+
+    public ScanScheduler(Host host, Clock clock) {
+        this.host = host;
+        this.clock = clock;
+    }
+
+    /**
+     * Sets the schedule policy. Applies from the next scan window.
+     * @param windowMs Length of a scan window
+     * @param idleMs Length of the idle period between windows, 0 to scan continuously
+     * @param adaptive true to pick the scan mode from discovery rate and active connections
+     */
+    public void setPolicy(long windowMs, long idleMs, boolean adaptive) {
+        this.windowMs = Math.max(1, windowMs);
+        this.idleMs = Math.max(0, idleMs);
+        this.adaptive = adaptive;
+    }
+
+    /**
+     * Sets the thresholds of the adaptive mode.
+     * @param busyThreshold Reports per window above which the next window scans at low latency
+     * @param quietWindowsForLowPower Windows without reports before scanning at low power
+     */
+    public void setThresholds(int busyThreshold, int quietWindowsForLowPower) {
+        this.busyThreshold = Math.max(1, busyThreshold);
+        this.quietWindowsForLowPower = Math.max(1, quietWindowsForLowPower);
+    }
+
+    /**
+     * Starts the schedule with a scan window, or as soon as the start limit allows.
+     */
+    public void start() {
+        start(false);
+    }
+
+    /**
+     * Starts a low latency scan without windows, or as soon as the start limit allows.
+     */
+    public void startContinuous() {
+        start(true);
+    }
+
+    private void start(boolean continuous) {
+        if (running) {
+            return;
+        }
+        running = true;
+        this.continuous = continuous;
+        lastWindowReports = -1;
+        quietWindows = 0;
+        beginWindow();
+    }
+
+    /**
+     * Stops the schedule and the running scan.
+     */
+    public void stop() {
+        running = false;
+        host.cancel(beginWindow);
+        host.cancel(endWindow);
+        if (scanning) {
+            scanning = false;
+            host.stopScan();
+        }
+        currentMode = -1;
+    }
+
+    /**
+     * Stops the running scan and starts it again, as soon as the start limit allows,
+     * so new scan settings take effect. Does nothing if the schedule is not running.
+     */
+    public void restart() {
+        if (!running) {
+            return;
+        }
+        host.cancel(beginWindow);
+        host.cancel(endWindow);
+        if (scanning) {
+            scanning = false;
+            host.stopScan();
+        }
+        beginWindow();
+    }
+
+    /**
+     * Records that the scan reported a new or changed device.
+     */
+    public void onDeviceReported() {
+        reportsInWindow++;
+    }
+
+    public long getWindowMs() {
+        return windowMs;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Returns whether the schedule was started without windows.
+     * @return true for a continuous scan
+     */
+    public boolean isContinuous() {
+        return continuous;
+    }
+
+    public boolean isScanning() {
+        return scanning;
+    }
+
+    /**
+     * Returns the scan mode of the current or last window.
+     * @return One of the MODE_* constants, -1 before the first window
+     */
+    public int getCurrentMode() {
+        return currentMode;
+    }
+
+    private void beginWindow() {
+        if (!running) {
+            return;
+        }
+        int mode = chooseMode();
+        if (!startScan(mode)) {
+            return;
+        }
+        reportsInWindow = 0;
+        if (!continuous) {
+            host.schedule(endWindow, windowMs);
+        }
+    }
+
+    private void endWindow() {
+        if (!running) {
+            return;
+        }
+        lastWindowReports = reportsInWindow;
+        quietWindows = reportsInWindow == 0 ? quietWindows + 1 : 0;
+
+        if (idleMs > 0) {
+            scanning = false;
+            host.stopScan();
+            host.schedule(beginWindow, idleMs);
+            return;
+        }
+
+        // Continuous scanning only restarts when the mode changes, each restart costs a start
+        int mode = chooseMode();
+        if (mode != currentMode) {
+            scanning = false;
+            host.stopScan();
+            if (!startScan(mode)) {
+                return;
+            }
+        }
+        reportsInWindow = 0;
+        host.schedule(endWindow, windowMs);
+    }
+
+    /**
+     * Starts a scan if the start limit allows it, otherwise defers the window until it does.
+     * @param mode Scan mode
+     * @return true if the scan was started
+     */
+    private boolean startScan(int mode) {
+        long now = clock.nowMs();
+        long wait = getStartDelay(now);
+        if (wait > 0) {
+            host.schedule(beginWindow, wait);
+            return false;
+        }
+        startTimes[startIndex] = now;
+        startIndex = (startIndex + 1) % MAX_STARTS_PER_PERIOD;
+        startCount = Math.min(startCount + 1, MAX_STARTS_PER_PERIOD);
+
+        currentMode = mode;
+        scanning = true;
+        host.startScan(mode);
+        return true;
+    }
+
+    /**
+     * Returns how long to wait before another scan start stays within the platform limit.
+     * @param now Current time in milliseconds
+     * @return Delay in milliseconds, 0 if a start is allowed now
+     */
+    long getStartDelay(long now) {
+        if (startCount < MAX_STARTS_PER_PERIOD) {
+            return 0;
+        }
+        // The oldest recorded start is the one the ring buffer overwrites next
+        long oldest = startTimes[startIndex];
+        long allowedAt = oldest + START_LIMIT_PERIOD_MS + START_LIMIT_MARGIN_MS;
+        return Math.max(0, allowedAt - now);
+    }
+
+    private int chooseMode() {
+        if (continuous || !adaptive) {
+            return MODE_LOW_LATENCY;
+        }
+        boolean busy = lastWindowReports < 0 || lastWindowReports >= busyThreshold;
+        if (host.getActiveConnectionCount() > 0) {
+            // Leave radio time to the GATT links
+            return busy ? MODE_BALANCED : MODE_LOW_POWER;
+        }
+        if (busy) {
+            return MODE_LOW_LATENCY;
+        }
+        if (quietWindows >= quietWindowsForLowPower) {
+            return MODE_LOW_POWER;
+        }
+        return MODE_BALANCED;
+    }
+}
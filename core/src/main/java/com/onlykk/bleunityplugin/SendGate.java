@@ -0,0 +1,57 @@
+package com.onlykk.bleunityplugin;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Gate the application threads wait at before sending while any send buffer behind it is filling up.
+ * A gate belongs to a single link, for sends to one device, or is shared by several links, for sends
+ * to all of them. Every link whose buffer reaches its high watermark holds its gates until the buffer
+ * drains, and a gate opens when no link holds it anymore.
+ * Thread-safe, the event loop holds and releases the gate while application threads wait.
+ */
+public final class SendGate {
+
+    private int holds;
+
+    /**
+     * Closes the gate for one more link.
+     */
+    public synchronized void hold() {
+        holds++;
+    }
+
+    /**
+     * Releases the hold of one link, opening the gate and waking the waiting threads after the last one.
+     */
+    public synchronized void release() {
+        if (holds > 0 && --holds == 0) {
+            notifyAll();
+        }
+    }
+
+    public synchronized boolean isOpen() {
+        return holds == 0;
+    }
+
+    /**
+     * Waits until the gate is open.
+     * @param timeoutMs Longest time to wait
+     * @return true if the gate is open, false if the time ran out or the thread was interrupted
+     */
+    public synchronized boolean await(long timeoutMs) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        while (holds > 0) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            try {
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,288 @@
+package com.onlykk.bleunityplugin;
+
+import java.util.ArrayDeque;
+import java.util.Random;
+
+/**
+ * In-memory model of a BLE connection between a central and a peripheral, for running full
+ * client to server sessions on the JVM with deterministic timing.
+ * Packets move only at connection events, spaced by the connection interval, with a limited number
+ * of packets per direction and event. Each side buffers a limited number of packets, like the
+ * notification and write-without-response buffers of a real stack, and refuses sends when full.
+ * Acknowledged writes complete after the write response latency, unacknowledged packets as soon as
+ * they are transmitted. Lost packets are retransmitted at the next slot like the link layer does,
+ * or dropped for good when modelling loss above the link layer.
+ * Not thread-safe, driven by a {@link VirtualScheduler}.
+ */
+public class SimulatedLink {
+
+    public static final long DEFAULT_CONNECTION_INTERVAL_MICROS = 30000;
+    public static final int DEFAULT_PACKETS_PER_EVENT = 4;
+    public static final int DEFAULT_BUFFER_PACKETS = 8;
+    public static final long DEFAULT_WRITE_RESPONSE_LATENCY_MICROS = 30000;
+
+    private static final class Packet {
+        final byte[] chunk;
+        final boolean acknowledged;
+
+        Packet(byte[] chunk, boolean acknowledged) {
+            this.chunk = chunk;
+            this.acknowledged = acknowledged;
+        }
+    }
+
+    /**
+     * One end of the link. Sends go into its buffer and are transmitted to the other end.
+     */
+    public final class Side implements Transport {
+        private final ArrayDeque<Packet> buffer = new ArrayDeque<>();
+        private Transport.Receiver receiver;
+
+        private long packetsSent;
+        private long packetsRetransmitted;
+        private long packetsLost;
+        private long sendsRefused;
+
+        /**
+         * Sets the protocol side receiving this end's events.
+         * @param receiver The receiver, usually a {@link LinkEndpoint}
+         */
+        public void setReceiver(Transport.Receiver receiver) {
+            this.receiver = receiver;
+        }
+
+        @Override
+        public boolean send(byte[] chunk, boolean acknowledged) {
+            if (!open || buffer.size() >= bufferPackets || chunk.length > AttMtu.chunkSize(mtu)) {
+                sendsRefused++;
+                return false;
+            }
+            buffer.add(new Packet(chunk, acknowledged));
+            scheduleConnectionEvent();
+            return true;
+        }
+
+        public int getBufferedPackets() {
+            return buffer.size();
+        }
+
+        public long getPacketsSent() {
+            return packetsSent;
+        }
+
+        public long getPacketsRetransmitted() {
+            return packetsRetransmitted;
+        }
+
+        public long getPacketsLost() {
+            return packetsLost;
+        }
+
+        public long getSendsRefused() {
+            return sendsRefused;
+        }
+    }
+
+    private final VirtualScheduler scheduler;
+    private final Side central = new Side();
+    private final Side peripheral = new Side();
+
+    private int mtu = AttMtu.DEFAULT_MTU;
+    private long connectionIntervalMicros = DEFAULT_CONNECTION_INTERVAL_MICROS;
+    private int packetsPerEvent = DEFAULT_PACKETS_PER_EVENT;
+    private int bufferPackets = DEFAULT_BUFFER_PACKETS;
+    private long writeResponseLatencyMicros = DEFAULT_WRITE_RESPONSE_LATENCY_MICROS;
+    private double lossRate;
+    private boolean dropLostPackets;
+    private Random random = new Random(0);
+
+    private boolean open;
+    private boolean eventScheduled;
+    private long connectionEvents;
+
+    private final Runnable connectionEvent = new Runnable() {
+        @Override
+        public void run() {
+            eventScheduled = false;
+            connectionEvents++;
+            transmit(central, peripheral);
+            transmit(peripheral, central);
+            if (!central.buffer.isEmpty() || !peripheral.buffer.isEmpty()) {
+                scheduleConnectionEvent();
+            }
+        }
+    };
+
+    /**
+     * @param scheduler Virtual time source the link schedules its connection events on
+     */
+    public SimulatedLink(VirtualScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Connects the two sides and reports the MTU to both receivers.
+     */
+    public void open() {
+        open = true;
+        if (central.receiver != null) {
+            central.receiver.onMtuChanged(mtu);
+        }
+        if (peripheral.receiver != null) {
+            peripheral.receiver.onMtuChanged(mtu);
+        }
+    }
+
+    /**
+     * Disconnects the link, packets still buffered are discarded.
+     */
+    public void close() {
+        open = false;
+        central.buffer.clear();
+        peripheral.buffer.clear();
+        scheduler.cancel(connectionEvent);
+        eventScheduled = false;
+    }
+
+    /**
+     * Sets the negotiated ATT MTU, reported to both sides when the link opens.
+     * @param mtu MTU in bytes
+     */
+    public void setMtu(int mtu) {
+        this.mtu = Math.max(AttMtu.DEFAULT_MTU, Math.min(mtu, AttMtu.MAX_MTU));
+    }
+
+    /**
+     * Sets the time between connection events.
+     * @param intervalMicros Connection interval in microseconds, 7500 to 4000000 on real links
+     */
+    public void setConnectionIntervalMicros(long intervalMicros) {
+        this.connectionIntervalMicros = Math.max(1, intervalMicros);
+    }
+
+    /**
+     * Sets how many packets each direction may transmit per connection event.
+     * @param packetsPerEvent Packets per direction and event
+     */
+    public void setPacketsPerEvent(int packetsPerEvent) {
+        this.packetsPerEvent = Math.max(1, packetsPerEvent);
+    }
+
+    /**
+     * Sets how many packets each side buffers before refusing sends.
+     * @param bufferPackets Buffer capacity in packets
+     */
+    public void setBufferPackets(int bufferPackets) {
+        this.bufferPackets = Math.max(1, bufferPackets);
+    }
+
+    /**
+     * Sets the delay between an acknowledged write reaching the peer and its completion on the sender.
+     * @param latencyMicros Write response latency in microseconds
+     */
+    public void setWriteResponseLatencyMicros(long latencyMicros) {
+        this.writeResponseLatencyMicros = Math.max(0, latencyMicros);
+    }
+
+    /**
+     * Sets the chance of a transmission being lost.
+     * @param lossRate Probability from 0 to 1
+     * @param seed Seed of the loss pattern, the same seed gives the same losses
+     * @param drop true to drop lost packets for good, false to retransmit them at the next slot
+     */
+    public void setPacketLoss(double lossRate, long seed, boolean drop) {
+        this.lossRate = Math.max(0, Math.min(1, lossRate));
+        this.random = new Random(seed);
+        this.dropLostPackets = drop;
+    }
+
+    public Side getCentral() {
+        return central;
+    }
+
+    public Side getPeripheral() {
+        return peripheral;
+    }
+
+    public int getMtu() {
+        return mtu;
+    }
+
+    public long getConnectionIntervalMicros() {
+        return connectionIntervalMicros;
+    }
+
+    public long getConnectionEvents() {
+        return connectionEvents;
+    }
+
+    /**
+     * Returns the most application bytes the link can carry per second in one direction.
+     * @return Bytes per second when every slot carries a full chunk
+     */
+    public double getMaxThroughput() {
+        return (double) AttMtu.chunkSize(mtu) * packetsPerEvent * 1000000.0 / connectionIntervalMicros;
+    }
+
+    /**
+     * Schedules the next connection event if none is pending. Events fall on multiples of the
+     * connection interval and only happen while a side has packets buffered.
+     */
+    private void scheduleConnectionEvent() {
+        if (eventScheduled || !open) {
+            return;
+        }
+        eventScheduled = true;
+        long now = scheduler.nowMicros();
+        long next = (now / connectionIntervalMicros + 1) * connectionIntervalMicros;
+        scheduler.scheduleMicros(connectionEvent, next - now);
+    }
+
+    /**
+     * Moves up to a connection event's worth of packets from one side to the other.
+     * Packets queued by callbacks during the event may still use its remaining slots.
+     */
+    private void transmit(final Side from, Side to) {
+        for (int slot = 0; slot < packetsPerEvent && open && !from.buffer.isEmpty(); slot++) {
+            Packet packet = from.buffer.peek();
+            if (lossRate > 0 && random.nextDouble() < lossRate) {
+                if (!dropLostPackets) {
+                    // The link layer resends it in the next slot
+                    from.packetsRetransmitted++;
+                    continue;
+                }
+                from.buffer.poll();
+                from.packetsLost++;
+                complete(from, packet);
+                continue;
+            }
+            from.buffer.poll();
+            from.packetsSent++;
+            if (to.receiver != null) {
+                to.receiver.onChunkReceived(packet.chunk);
+            }
+            complete(from, packet);
+        }
+    }
+
+    /**
+     * Reports a packet as done to its sender, right away or after the write response latency.
+     */
+    private void complete(final Side from, Packet packet) {
+        if (from.receiver == null) {
+            return;
+        }
+        if (!packet.acknowledged) {
+            from.receiver.onSendComplete();
+            return;
+        }
+        scheduler.scheduleMicros(new Runnable() {
+            @Override
+            public void run() {
+                if (open) {
+                    from.receiver.onSendComplete();
+                }
+            }
+        }, writeResponseLatencyMicros);
+    }
+}
@@ -0,0 +1,253 @@
+package com.onlykk.bleunityplugin;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Frames over a reliable byte stream, such as an L2CAP connection-oriented channel.
+ * The stream already orders, segments and acknowledges the bytes, so frames are written whole,
+ * without chunks, in-flight window or write responses. A writer thread drains the outbound queue so a
+ * blocking write never stalls the event loop, and a reader thread reassembles inbound frames.
+ * Frames and the end of the stream are delivered through the callback executor, usually the event loop.
+ */
+public class StreamLink {
+
+    /**
+     * Receives the frames and the end of a stream link, on the callback executor.
+     */
+    public interface Listener {
+        /**
+         * Called once a complete frame has been received.
+         * @param link The link the frame arrived on
+         * @param flags Frame flags
+         * @param payload Frame payload, owned by the listener
+         */
+        void onFrame(StreamLink link, int flags, byte[] payload);
+
+        /**
+         * Called once when the stream ends or fails, but not after {@link #close()}.
+         * The frames {@link #send(byte[])} accepted but never wrote are handed back to take another path.
+         * @param link The closed link
+         * @param error The failure, or null if the peer closed the stream
+         * @param unsent Frames not written to the stream, in send order, owned by the listener
+         */
+        void onClosed(StreamLink link, IOException error, List<byte[]> unsent);
+    }
+
+    // Read buffer size, a few L2CAP SDUs
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    // Wakes the writer thread up when the link closes
+    private static final byte[] END_OF_STREAM = new byte[0];
+
+    private final String address;
+    private final InputStream in;
+    private final OutputStream out;
+    private final Closeable socket;
+    private final Executor callbacks;
+    private final Listener listener;
+
+    private final LinkedBlockingQueue<byte[]> outbound = new LinkedBlockingQueue<>();
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private final AtomicLong pendingBytes = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicLong framesSent = new AtomicLong();
+    private final AtomicLong framesReceived = new AtomicLong();
+
+    /**
+     * @param address Address of the peer
+     * @param in Stream of the bytes from the peer
+     * @param out Stream of the bytes to the peer
+     * @param socket Closed together with the link, unblocking the reader and writer threads
+     * @param callbacks Runs the listener calls
+     * @param listener Receives the frames and the end of the link
+     */
+    public StreamLink(String address, InputStream in, OutputStream out, Closeable socket, Executor callbacks, Listener listener) {
+        this.address = address;
+        this.in = in;
+        this.out = out;
+        this.socket = socket;
+        this.callbacks = callbacks;
+        this.listener = listener;
+    }
+
+    /**
+     * Starts the reader and writer threads.
+     */
+    public void start() {
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readLoop();
+            }
+        }, "StreamLink-reader-" + address);
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "StreamLink-writer-" + address);
+        reader.setDaemon(true);
+        writer.setDaemon(true);
+        reader.start();
+        writer.start();
+    }
+
+    /**
+     * Queues an encoded frame for the peer. Safe to call from any thread.
+     * @param frame The encoded frame
+     * @return false if the link is closed and the frame must take another path
+     */
+    public boolean send(byte[] frame) {
+        if (closed.get()) {
+            return false;
+        }
+        pendingBytes.addAndGet(frame.length);
+        outbound.offer(frame);
+        return true;
+    }
+
+    /**
+     * Closes the stream and drops the frames not written yet. The listener is not called.
+     */
+    public void close() {
+        if (closed.compareAndSet(false, true)) {
+            outbound.clear();
+            shutdown();
+        }
+    }
+
+    public boolean isOpen() {
+        return !closed.get();
+    }
+
+    private void readLoop() {
+        FrameReassembler reassembler = new FrameReassembler(new FrameReassembler.Listener() {
+            @Override
+            public void onFrame(final int flags, final byte[] payload) {
+                framesReceived.incrementAndGet();
+                callbacks.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!closed.get()) {
+                            listener.onFrame(StreamLink.this, flags, payload);
+                        }
+                    }
+                });
+            }
+
+            @Override
+            public void onFrameDropped(long length) {
+                // A byte stream has no chunk boundary to restart at, the link cannot resync
+                fail(new IOException("Corrupt frame header announcing " + length + " bytes"));
+            }
+        });
+        byte[] buffer = new byte[READ_BUFFER_SIZE];
+        try {
+            int count;
+            while ((count = in.read(buffer)) >= 0) {
+                bytesReceived.addAndGet(count);
+                reassembler.feed(buffer, 0, count);
+            }
+            fail(null);
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private void writeLoop() {
+        try {
+            while (true) {
+                byte[] frame = outbound.take();
+                if (frame == END_OF_STREAM) {
+                    return;
+                }
+                out.write(frame);
+                pendingBytes.addAndGet(-frame.length);
+                bytesSent.addAndGet(frame.length);
+                framesSent.incrementAndGet();
+                if (outbound.isEmpty()) {
+                    out.flush();
+                }
+            }
+        } catch (IOException e) {
+            fail(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Ends the link after the stream failed or the peer closed it, reporting it once with the frames not written.
+     * The frame being written at the time may have partly reached the peer, whose reassembler drops it with the stream.
+     */
+    private void fail(final IOException error) {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        final List<byte[]> unsent = new ArrayList<>();
+        outbound.drainTo(unsent);
+        shutdown();
+        callbacks.execute(new Runnable() {
+            @Override
+            public void run() {
+                // Frames a send racing the failure queued behind the end of the stream
+                for (Iterator<byte[]> it = outbound.iterator(); it.hasNext(); ) {
+                    byte[] frame = it.next();
+                    if (frame != END_OF_STREAM) {
+                        unsent.add(frame);
+                        it.remove();
+                    }
+                }
+                listener.onClosed(StreamLink.this, error, unsent);
+            }
+        });
+    }
+
+    private void shutdown() {
+        pendingBytes.set(0);
+        outbound.offer(END_OF_STREAM);
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    /**
+     * Returns the bytes queued and not written to the stream yet.
+     * @return Queue depth in bytes
+     */
+    public long getPendingBytes() {
+        return pendingBytes.get();
+    }
+
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    public long getFramesSent() {
+        return framesSent.get();
+    }
+
+    public long getFramesReceived() {
+        return framesReceived.get();
+    }
+}
@@ -0,0 +1,27 @@
+package com.onlykk.bleunityplugin;
+
+/**
+ * Runs delayed tasks on the thread that owns the protocol state.
+ * The event loop implements it with real time, the link simulator with virtual time.
+ */
+public interface TaskScheduler {
+
+    /**
+     * Runs a task after a delay.
+     * @param task The task to run
+     * @param delayMs Delay in milliseconds
+     */
+    void schedule(Runnable task, long delayMs);
+
+    /**
+     * Cancels every pending run of a task.
+     * @param task The task passed to {@link #schedule(Runnable, long)}
+     */
+    void cancel(Runnable task);
+
+    /**
+     * Returns the scheduler's current time, for measuring latencies on the same clock tasks run on.
+     * @return Time in nanoseconds from an arbitrary origin
+     */
+    long nanoTime();
+}
@@ -0,0 +1,82 @@
+package com.onlykk.bleunityplugin;
+
+/**
+ * FIFO of pairs of longs, usually a timestamp and a value, backed by primitive arrays, used to match
+ * completions with the sends they belong to. The arrays only grow when the queue outgrows them, so a link in steady
+ * state never allocates.
+ * Not thread-safe.
+ */
+final class TimestampRing {
+
+    private long[] times = new long[16];
+    private long[] values = new long[16];
+    private int head;
+    private int size;
+
+    void add(long time, long value) {
+        if (size == times.length) {
+            grow();
+        }
+        int tail = (head + size) & (times.length - 1);
+        times[tail] = time;
+        values[tail] = value;
+        size++;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    long peekTime() {
+        return times[head];
+    }
+
+    long peekValue() {
+        return values[head];
+    }
+
+    void poll() {
+        head = (head + 1) & (times.length - 1);
+        size--;
+    }
+
+    /**
+     * Removes the newest entry.
+     */
+    void removeLast() {
+        size--;
+    }
+
+    /**
+     * Removes the entry {@code fromTail} places before the newest one and lowers the values of the
+     * newer entries by {@code shift}, for a queued message dropped from the middle of a channel.
+     */
+    void removeFromTail(int fromTail, long shift) {
+        int mask = times.length - 1;
+        for (int i = size - 1 - fromTail; i < size - 1; i++) {
+            int index = (head + i) & mask;
+            int next = (head + i + 1) & mask;
+            times[index] = times[next];
+            values[index] = values[next] - shift;
+        }
+        size--;
+    }
+
+    void clear() {
+        head = 0;
+        size = 0;
+    }
+
+    private void grow() {
+        long[] newTimes = new long[times.length * 2];
+        long[] newValues = new long[values.length * 2];
+        for (int i = 0; i < size; i++) {
+            int index = (head + i) & (times.length - 1);
+            newTimes[i] = times[index];
+            newValues[i] = values[index];
+        }
+        times = newTimes;
+        values = newValues;
+        head = 0;
+    }
+}
@@ -0,0 +1,46 @@
+package com.onlykk.bleunityplugin;
+
+/**
+ * Packet level view of a link, between the protocol logic and the BLE stack.
+ * On Android it is a GATT write or notification, in tests a simulated link.
+ */
+public interface Transport {
+
+    /**
+     * Receives what the link reports back to the protocol side.
+     */
+    interface Receiver {
+
+        /**
+         * Called when a chunk arrived from the peer.
+         * @param chunk The received bytes
+         */
+        void onChunkReceived(byte[] chunk);
+
+        /**
+         * Called when the link is done with the oldest chunk handed to {@link #send(byte[], boolean)}:
+         * transmitted for unacknowledged chunks, confirmed by the peer for acknowledged ones.
+         */
+        void onSendComplete();
+
+        /**
+         * Called instead of {@link #onSendComplete()} when the link reports that the oldest chunk
+         * handed to {@link #send(byte[], boolean)} failed and may not have reached the peer.
+         */
+        void onSendFailed();
+
+        /**
+         * Called when the ATT MTU of the link changed.
+         * @param mtu The new MTU
+         */
+        void onMtuChanged(int mtu);
+    }
+
+    /**
+     * Hands a chunk to the link.
+     * @param chunk The chunk, at most the chunk size of the current MTU
+     * @param acknowledged true if the peer must confirm the chunk, like a GATT write with response
+     * @return true if the link accepted the chunk, false if its buffer is full for now
+     */
+    boolean send(byte[] chunk, boolean acknowledged);
+}
@@ -0,0 +1,252 @@
+package com.onlykk.bleunityplugin;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Central dispatch of plugin events to Unity.
+ * In immediate mode every event is forwarded as its own message. In batched mode events are
+ * queued, events of the same type and key are coalesced to the latest one, and the queue is
+ * flushed as a single JSON message per flush interval, or pulled by Unity on its frame tick.
+ */
+public class UnityEventBus {
+
+    /**
+     * Receives the messages the bus delivers to Unity.
+     */
+    public interface Sink {
+
+        /**
+         * Delivers a message to the Unity game object.
+         * @param method Name of the Unity method to call
+         * @param payload Message payload
+         */
+        void send(String method, String payload);
+    }
+
+    /**
+     * Runs delayed flushes.
+     */
+    public interface Scheduler {
+
+        /**
+         * Runs a task after a delay.
+         * @param task The task to run
+         * @param delayMs Delay in milliseconds
+         */
+        void schedule(Runnable task, long delayMs);
+    }
+
+    // Unity method receiving batches: {"events":[{"method":"...","payload":"..."}, ...]}
+    public static final String BATCH_METHOD = "OnEventBatch";
+
+    public static final long DEFAULT_FLUSH_INTERVAL_MS = 50;
+    public static final int DEFAULT_MAX_BATCH_SIZE = 64;
+    public static final int DEFAULT_MAX_PENDING_EVENTS = 512;
+
+    private static final class Event {
+        final String method;
+        final String key;
+        String payload;
+
+        Event(String method, String key, String payload) {
+            this.method = method;
+            this.key = key;
+            this.payload = payload;
+        }
+    }
+
+    private final Sink sink;
+    private final Scheduler scheduler;
+
+    private final List<Event> pending = new ArrayList<>();
+    private final StringBuilder batchBuffer = new StringBuilder(1024);
+    // Pending coalescable events by method and key
+    private final Map<String, Event> coalesced = new HashMap<>();
+
+    private boolean batched = false;
+    private long flushIntervalMs = DEFAULT_FLUSH_INTERVAL_MS;
+    private int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+    private int maxPendingEvents = DEFAULT_MAX_PENDING_EVENTS;
+    private boolean flushScheduled = false;
+
+    private long eventsPosted;
+    private long eventsCoalesced;
+    private long batchesSent;
+
+    private final Runnable scheduledFlush = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (UnityEventBus.this) {
+                flushScheduled = false;
+            }
+            flush();
+        }
+    };
+
+    public UnityEventBus(Sink sink, Scheduler scheduler) {
+        this.sink = sink;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Switches between immediate and batched delivery. Switching to immediate flushes pending events.
+     * @param batched true to batch events, false to deliver each event immediately
+     * @param flushIntervalMs Maximum time an event waits before being flushed
+     * @param maxBatchSize Maximum number of events per batch message
+     * @param maxPendingEvents Number of pending events that forces an early flush
+     */
+    public void configure(boolean batched, long flushIntervalMs, int maxBatchSize, int maxPendingEvents) {
+        synchronized (this) {
+            this.batched = batched;
+            this.flushIntervalMs = Math.max(0, flushIntervalMs);
+            this.maxBatchSize = Math.max(1, maxBatchSize);
+            this.maxPendingEvents = Math.max(1, maxPendingEvents);
+        }
+        if (!batched) {
+            while (flush()) {
+                // Drain everything queued while batching
+            }
+        }
+    }
+
+    public synchronized boolean isBatched() {
+        return batched;
+    }
+
+    /**
+     * Posts an event that is never coalesced, such as a received message.
+     * @param method Name of the Unity method
+     * @param payload Event payload
+     */
+    public void post(String method, String payload) {
+        post(method, null, payload);
+    }
+
+    /**
+     * Posts an event. A pending event with the same method and key is replaced by this one.
+     * @param method Name of the Unity method
+     * @param key Coalescing key, or null to never coalesce
+     * @param payload Event payload
+     */
+    public void post(String method, String key, String payload) {
+        boolean flushNow = false;
+        boolean scheduleFlush = false;
+        long delay;
+        synchronized (this) {
+            eventsPosted++;
+            if (!batched) {
+                delay = -1;
+            } else {
+                String coalesceKey = key != null ? method + '\u0000' + key : null;
+                Event existing = coalesceKey != null ? coalesced.get(coalesceKey) : null;
+                if (existing != null) {
+                    existing.payload = payload;
+                    eventsCoalesced++;
+                } else {
+                    Event event = new Event(method, coalesceKey, payload);
+                    pending.add(event);
+                    if (coalesceKey != null) {
+                        coalesced.put(coalesceKey, event);
+                    }
+                }
+
+                if (pending.size() >= maxPendingEvents) {
+                    flushNow = true;
+                } else if (!flushScheduled) {
+                    flushScheduled = true;
+                    scheduleFlush = true;
+                }
+                delay = flushIntervalMs;
+            }
+        }
+
+        if (delay < 0) {
+            sink.send(method, payload);
+        } else if (flushNow) {
+            flush();
+        } else if (scheduleFlush) {
+            scheduler.schedule(scheduledFlush, delay);
+        }
+    }
+
+    /**
+     * Sends up to one batch of pending events to Unity.
+     * @return true if a batch was sent
+     */
+    public boolean flush() {
+        String batch = pollBatch();
+        if (batch == null) {
+            return false;
+        }
+        sink.send(BATCH_METHOD, batch);
+        return true;
+    }
+
+    /**
+     * Removes up to one batch of pending events and returns it, for Unity to pull on its frame tick.
+     * @return The batch JSON, or null if no event is pending
+     */
+    public String pollBatch() {
+        String result;
+        boolean reschedule = false;
+        long delay;
+        synchronized (this) {
+            if (pending.isEmpty()) {
+                return null;
+            }
+            int count = Math.min(pending.size(), maxBatchSize);
+            // The batch buffer is reused across flushes, guarded by the bus lock
+            StringBuilder batch = batchBuffer;
+            batch.setLength(0);
+            batch.append("{\"events\":[");
+            for (int i = 0; i < count; i++) {
+                Event event = pending.get(i);
+                if (event.key != null) {
+                    coalesced.remove(event.key);
+                }
+                if (i > 0) {
+                    batch.append(',');
+                }
+                batch.append("{\"method\":");
+                JsonEncoder.appendQuoted(batch, event.method);
+                batch.append(",\"payload\":");
+                JsonEncoder.appendQuoted(batch, event.payload);
+                batch.append('}');
+            }
+            batch.append("]}");
+            result = batch.toString();
+            pending.subList(0, count).clear();
+            batchesSent++;
+
+            // Whatever did not fit goes out with the next flush
+            if (!pending.isEmpty() && !flushScheduled) {
+                flushScheduled = true;
+                reschedule = true;
+            }
+            delay = flushIntervalMs;
+        }
+        if (reschedule) {
+            scheduler.schedule(scheduledFlush, delay);
+        }
+        return result;
+    }
+
+    public synchronized int getPendingEvents() {
+        return pending.size();
+    }
+
+    public synchronized long getEventsPosted() {
+        return eventsPosted;
+    }
+
+    public synchronized long getEventsCoalesced() {
+        return eventsCoalesced;
+    }
+
+    public synchronized long getBatchesSent() {
+        return batchesSent;
+    }
+}
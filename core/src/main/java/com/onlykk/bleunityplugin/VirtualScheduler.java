@@ -0,0 +1,111 @@
+package com.onlykk.bleunityplugin;
+
+import java.util.Iterator;
+import java.util.PriorityQueue;
+
+/**
+ * Scheduler running on virtual time, for driving protocol code deterministically on the JVM.
+ * Time only advances when the caller runs tasks; tasks due at the same time run in the order
+ * they were scheduled. Not thread-safe, meant to be driven from a single thread.
+ */
+public class VirtualScheduler implements TaskScheduler {
+
+    private static final class Timer implements Comparable<Timer> {
+        final Runnable task;
+        final long dueMicros;
+        final long sequence;
+
+        Timer(Runnable task, long dueMicros, long sequence) {
+            this.task = task;
+            this.dueMicros = dueMicros;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Timer other) {
+            if (dueMicros != other.dueMicros) {
+                return dueMicros < other.dueMicros ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+
+    private final PriorityQueue<Timer> timers = new PriorityQueue<>();
+    private long nowMicros;
+    private long sequence;
+
+    @Override
+    public void schedule(Runnable task, long delayMs) {
+        scheduleMicros(task, delayMs * 1000);
+    }
+
+    /**
+     * Runs a task after a delay with microsecond resolution.
+     * @param task The task to run
+     * @param delayMicros Delay in microseconds
+     */
+    public void scheduleMicros(Runnable task, long delayMicros) {
+        timers.add(new Timer(task, nowMicros + Math.max(0, delayMicros), sequence++));
+    }
+
+    @Override
+    public void cancel(Runnable task) {
+        Iterator<Timer> it = timers.iterator();
+        while (it.hasNext()) {
+            if (it.next().task == task) {
+                it.remove();
+            }
+        }
+    }
+
+    @Override
+    public long nanoTime() {
+        return nowMicros * 1000;
+    }
+
+    /**
+     * Advances time to the next due task and runs it.
+     * @return true if a task ran, false if none is pending
+     */
+    public boolean runNext() {
+        Timer timer = timers.poll();
+        if (timer == null) {
+            return false;
+        }
+        nowMicros = Math.max(nowMicros, timer.dueMicros);
+        timer.task.run();
+        return true;
+    }
+
+    /**
+     * Runs tasks until none is pending.
+     * @param maxTasks Upper bound on the tasks run, guards against tasks rescheduling themselves forever
+     * @return The number of tasks run
+     */
+    public int runUntilIdle(int maxTasks) {
+        int ran = 0;
+        while (ran < maxTasks && runNext()) {
+            ran++;
+        }
+        return ran;
+    }
+
+    /**
+     * Runs every task due up to a point in time, then advances time to it.
+     * @param timeMicros The virtual time to advance to
+     */
+    public void runUntil(long timeMicros) {
+        while (!timers.isEmpty() && timers.peek().dueMicros <= timeMicros) {
+            runNext();
+        }
+        nowMicros = Math.max(nowMicros, timeMicros);
+    }
+
+    public long nowMicros() {
+        return nowMicros;
+    }
+
+    public int getPendingTasks() {
+        return timers.size();
+    }
+}
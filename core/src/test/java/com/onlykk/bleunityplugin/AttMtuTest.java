@@ -0,0 +1,39 @@
+package com.onlykk.bleunityplugin;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link AttMtu}.
+ */
+public class AttMtuTest {
+
+    private static int packetCount(int messageLength, int mtu) {
+        int frameLength = FrameCodec.HEADER_SIZE + messageLength;
+        int chunkSize = AttMtu.chunkSize(mtu);
+        return (frameLength + chunkSize - 1) / chunkSize;
+    }
+
+    @Test
+    public void chunkSize_subtractsAttHeader() {
+        assertEquals(20, AttMtu.chunkSize(AttMtu.DEFAULT_MTU));
+        assertEquals(182, AttMtu.chunkSize(185));
+    }
+
+    @Test
+    public void chunkSize_isCappedAtMaxAttributeLength() {
+        assertEquals(AttMtu.MAX_ATTRIBUTE_LENGTH, AttMtu.chunkSize(AttMtu.MAX_MTU));
+    }
+
+    @Test
+    public void chunkSize_neverDropsBelowDefault() {
+        assertEquals(20, AttMtu.chunkSize(0));
+    }
+
+    @Test
+    public void largeMtu_cutsPacketCountForTwoKilobyteMessage() {
+        assertEquals(103, packetCount(2048, AttMtu.DEFAULT_MTU));
+        assertEquals(5, packetCount(2048, AttMtu.MAX_MTU));
+    }
+}
@@ -0,0 +1,125 @@
+package com.onlykk.bleunityplugin;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link BleEventLoop}.
+ */
+public class BleEventLoopTest {
+
+    private final BleEventLoop loop = new BleEventLoop("TestLoop");
+    private final List<String> log = Collections.synchronizedList(new ArrayList<String>());
+
+    @After
+    public void tearDown() {
+        loop.quit();
+    }
+
+    private Runnable record(final String entry, final CountDownLatch done) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                log.add(entry);
+                if (done != null) {
+                    done.countDown();
+                }
+            }
+        };
+    }
+
+    @Test
+    public void execute_runsTasksInOrderOnTheLoopThread() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        loop.execute(record("posted before start", null));
+        loop.start();
+        loop.execute(record("first", null));
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                log.add(loop.isLoopThread() ? "on loop" : "elsewhere");
+                done.countDown();
+            }
+        });
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("posted before start", "first", "on loop"), log);
+        assertFalse(loop.isLoopThread());
+    }
+
+    @Test
+    public void schedule_runsTimersByDueTime() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(2);
+        loop.start();
+        loop.schedule(record("late", done), 60);
+        loop.schedule(record("early", done), 10);
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("early", "late"), log);
+    }
+
+    @Test
+    public void cancel_dropsPendingTimer() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(1);
+        Runnable cancelled = record("cancelled", null);
+        loop.start();
+        loop.schedule(cancelled, 20);
+        loop.cancel(cancelled);
+        loop.schedule(record("kept", done), 40);
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(Collections.singletonList("kept"), log);
+    }
+
+    @Test
+    public void call_returnsResultComputedOnTheLoop() {
+        loop.start();
+
+        Boolean onLoop = loop.call(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return loop.isLoopThread();
+            }
+        });
+
+        assertTrue(onLoop);
+    }
+
+    @Test
+    public void call_runsInlineWhileTheLoopIsNotRunning() {
+        String result = loop.call(new Callable<String>() {
+            @Override
+            public String call() {
+                return "inline";
+            }
+        });
+
+        assertEquals("inline", result);
+    }
+
+    @Test
+    public void failingTask_doesNotStopTheLoop() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(1);
+        loop.start();
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                throw new IllegalStateException("expected by test");
+            }
+        });
+        loop.execute(record("after failure", done));
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(Collections.singletonList("after failure"), log);
+    }
+}
@@ -0,0 +1,75 @@
+package com.onlykk.bleunityplugin;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link FrameCodec}.
+ */
+public class FrameCodecTest {
+
+    @Test
+    public void encodeText_clearsBinaryFlag() {
+        byte[] frame = FrameCodec.encode("h\u00e9llo");
+
+        assertFalse(FrameCodec.isBinary(frame[0]));
+        assertEquals(6, ByteBuffer.wrap(frame, 1, 4).getInt());
+    }
+
+    @Test
+    public void encodeBinary_setsFlagAndCopiesBytes() {
+        byte[] payload = {0, (byte) 0xFF, 42};
+        byte[] frame = FrameCodec.encodeBinary(payload);
+
+        assertTrue(FrameCodec.isBinary(frame[0]));
+        assertEquals(3, ByteBuffer.wrap(frame, 1, 4).getInt());
+        assertArrayEquals(payload, Arrays.copyOfRange(frame, FrameCodec.HEADER_SIZE, frame.length));
+    }
+
+    @Test
+    public void encodeBinary_directBufferLeavesPositionUnchanged() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(8);
+        buffer.put(new byte[]{1, 2, 3, 4, 5, 6, 7, 8});
+        buffer.position(2).limit(6);
+
+        byte[] frame = FrameCodec.encodeBinary(buffer);
+
+        assertEquals(2, buffer.position());
+        assertEquals(4, buffer.remaining());
+        assertArrayEquals(FrameCodec.encodeBinary(new byte[]{3, 4, 5, 6}), frame);
+    }
+
+    @Test
+    public void binaryFrame_roundTripsThroughReassembler() {
+        final byte[][] received = new byte[1][];
+        final int[] receivedFlags = new int[1];
+        FrameReassembler reassembler = new FrameReassembler(new FrameReassembler.Listener() {
+            @Override
+            public void onFrame(int flags, byte[] payload) {
+                receivedFlags[0] = flags;
+                received[0] = payload;
+            }
+
+            @Override
+            public void onFrameDropped(long length) {
+                fail();
+            }
+        });
+        byte[] payload = new byte[100];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) (i * 7);
+        }
+        byte[] frame = FrameCodec.encodeBinary(payload);
+
+        for (int offset = 0; offset < frame.length; offset += 20) {
+            reassembler.feed(frame, offset, Math.min(20, frame.length - offset));
+        }
+
+        assertTrue(FrameCodec.isBinary(receivedFlags[0]));
+        assertArrayEquals(payload, received[0]);
+    }
+}
@@ -0,0 +1,119 @@
+package com.onlykk.bleunityplugin;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link FrameCompressor}.
+ */
+public class FrameCompressorTest {
+
+    private static String repetitiveJson(int entries) {
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < entries; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append("{\"name\":\"player\",\"x\":").append(i % 10).append(",\"y\":0,\"state\":\"idle\"}");
+        }
+        return sb.append(']').toString();
+    }
+
+    private static byte[] payloadOf(byte[] frame) {
+        return Arrays.copyOfRange(frame, FrameCodec.HEADER_SIZE, frame.length);
+    }
+
+    @Test
+    public void disabled_encodesLikeFrameCodec() {
+        FrameCompressor compressor = new FrameCompressor();
+        String message = repetitiveJson(20);
+
+        assertArrayEquals(FrameCodec.encode(message), compressor.encode(message));
+        assertEquals(0, compressor.getMessagesCompressed());
+    }
+
+    @Test
+    public void compressibleText_isCompressedAndRoundTrips() {
+        FrameCompressor compressor = new FrameCompressor();
+        compressor.configure(true, 64, FrameCompressor.DEFAULT_LEVEL);
+        String message = repetitiveJson(50);
+
+        byte[] frame = compressor.encode(message);
+
+        assertTrue(frame.length * 3 < message.length());
+        assertTrue((frame[0] & FrameCompressor.FLAG_COMPRESSED) != 0);
+        assertFalse(FrameCodec.isBinary(frame[0]));
+        byte[] decoded = compressor.decode(frame[0], payloadOf(frame));
+        assertEquals(message, new String(decoded, StandardCharsets.UTF_8));
+        assertEquals(1, compressor.getMessagesCompressed());
+        assertTrue(compressor.getRatio() > 3);
+    }
+
+    @Test
+    public void incompressiblePayload_isSentAsIs() {
+        FrameCompressor compressor = new FrameCompressor();
+        compressor.configure(true, 64, FrameCompressor.DEFAULT_LEVEL);
+        byte[] noise = new byte[500];
+        new Random(42).nextBytes(noise);
+
+        byte[] frame = compressor.encodeBinary(noise);
+
+        assertArrayEquals(FrameCodec.encodeBinary(noise), frame);
+        assertEquals(1, compressor.getMessagesEncoded());
+        assertEquals(0, compressor.getMessagesCompressed());
+    }
+
+    @Test
+    public void smallMessage_isNotCompressed() {
+        FrameCompressor compressor = new FrameCompressor();
+        compressor.configure(true, 128, FrameCompressor.DEFAULT_LEVEL);
+        String message = "aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa";
+
+        assertArrayEquals(FrameCodec.encode(message), compressor.encode(message));
+    }
+
+    @Test
+    public void directBuffer_isCompressedWithBinaryFlag() {
+        FrameCompressor compressor = new FrameCompressor();
+        compressor.configure(true, 64, 9);
+        byte[] state = repetitiveJson(30).getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(state.length);
+        buffer.put(state).flip();
+
+        byte[] frame = compressor.encodeBinary(buffer);
+
+        assertEquals(0, buffer.position());
+        assertTrue(FrameCodec.isBinary(frame[0]));
+        assertArrayEquals(state, compressor.decode(frame[0], payloadOf(frame)));
+    }
+
+    @Test
+    public void corruptPayload_decodesToNull() {
+        FrameCompressor compressor = new FrameCompressor();
+        compressor.configure(true, 64, FrameCompressor.DEFAULT_LEVEL);
+        byte[] frame = compressor.encode(repetitiveJson(50));
+        byte[] payload = payloadOf(frame);
+
+        byte[] truncated = Arrays.copyOf(payload, payload.length / 2);
+        byte[] hugeLength = payload.clone();
+        hugeLength[0] = 0x7F;
+
+        assertNull(compressor.decode(FrameCompressor.FLAG_COMPRESSED, truncated));
+        assertNull(compressor.decode(FrameCompressor.FLAG_COMPRESSED, hugeLength));
+        assertNull(compressor.decode(FrameCompressor.FLAG_COMPRESSED, new byte[2]));
+    }
+
+    @Test
+    public void uncompressedFrame_decodesToSamePayload() {
+        FrameCompressor compressor = new FrameCompressor();
+        byte[] payload = {1, 2, 3};
+
+        assertSame(payload, compressor.decode(FrameCodec.FLAG_BINARY, payload));
+    }
+}
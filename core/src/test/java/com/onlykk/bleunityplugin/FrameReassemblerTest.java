@@ -0,0 +1,201 @@
+package com.onlykk.bleunityplugin;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link FrameCodec} and {@link FrameReassembler}.
+ */
+public class FrameReassemblerTest {
+
+    private static class RecordingListener implements FrameReassembler.Listener {
+        final List<String> messages = new ArrayList<>();
+        final List<Integer> flags = new ArrayList<>();
+        final List<Long> dropped = new ArrayList<>();
+
+        @Override
+        public void onFrame(int frameFlags, byte[] payload) {
+            flags.add(frameFlags);
+            messages.add(new String(payload, StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public void onFrameDropped(long length) {
+            dropped.add(length);
+        }
+    }
+
+    private static void feedInChunks(FrameReassembler reassembler, byte[] data, int chunkSize) {
+        for (int offset = 0; offset < data.length; offset += chunkSize) {
+            reassembler.feed(Arrays.copyOfRange(data, offset, Math.min(offset + chunkSize, data.length)));
+        }
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        int length = 0;
+        for (byte[] part : parts) {
+            length += part.length;
+        }
+        byte[] out = new byte[length];
+        int offset = 0;
+        for (byte[] part : parts) {
+            System.arraycopy(part, 0, out, offset, part.length);
+            offset += part.length;
+        }
+        return out;
+    }
+
+    private static String repeat(String s, int count) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            sb.append(s);
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void encode_writesHeaderAndPayload() {
+        byte[] frame = FrameCodec.encode(new byte[]{7, 8, 9}, 0x42);
+        assertArrayEquals(new byte[]{0x42, 0, 0, 0, 3, 7, 8, 9}, frame);
+    }
+
+    @Test
+    public void singleChunk_deliversMessage() {
+        RecordingListener listener = new RecordingListener();
+        new FrameReassembler(listener).feed(FrameCodec.encode("hello"));
+        assertEquals(Arrays.asList("hello"), listener.messages);
+        assertEquals(Arrays.asList(0), listener.flags);
+    }
+
+    @Test
+    public void fragmentedFrame_isReassembled() {
+        RecordingListener listener = new RecordingListener();
+        FrameReassembler reassembler = new FrameReassembler(listener);
+        String message = repeat("state-blob-", 400);
+
+        feedInChunks(reassembler, FrameCodec.encode(message), 20);
+
+        assertEquals(Arrays.asList(message), listener.messages);
+        assertFalse(reassembler.isPartial());
+    }
+
+    @Test
+    public void headerSplitAcrossChunks_isReassembled() {
+        RecordingListener listener = new RecordingListener();
+        FrameReassembler reassembler = new FrameReassembler(listener);
+
+        feedInChunks(reassembler, FrameCodec.encode("abc"), 1);
+
+        assertEquals(Arrays.asList("abc"), listener.messages);
+    }
+
+    @Test
+    public void payloadContainingOldEndMarker_isPreserved() {
+        RecordingListener listener = new RecordingListener();
+        String message = "before END_OF_MSG after";
+
+        feedInChunks(new FrameReassembler(listener), FrameCodec.encode(message), 20);
+
+        assertEquals(Arrays.asList(message), listener.messages);
+    }
+
+    @Test
+    public void multipleFramesInOneChunk_areAllDelivered() {
+        RecordingListener listener = new RecordingListener();
+        byte[] stream = concat(FrameCodec.encode("one"), FrameCodec.encode(""), FrameCodec.encode("three"));
+
+        new FrameReassembler(listener).feed(stream);
+
+        assertEquals(Arrays.asList("one", "", "three"), listener.messages);
+    }
+
+    @Test
+    public void frameBoundariesInsideChunks_areDelivered() {
+        RecordingListener listener = new RecordingListener();
+        FrameReassembler reassembler = new FrameReassembler(listener);
+        byte[] stream = concat(FrameCodec.encode("first message"), FrameCodec.encode("second"), FrameCodec.encode("third one"));
+
+        feedInChunks(reassembler, stream, 7);
+
+        assertEquals(Arrays.asList("first message", "second", "third one"), listener.messages);
+    }
+
+    @Test
+    public void interleavedSenders_useIndependentReassemblers() {
+        RecordingListener first = new RecordingListener();
+        RecordingListener second = new RecordingListener();
+        FrameReassembler a = new FrameReassembler(first);
+        FrameReassembler b = new FrameReassembler(second);
+        byte[] frameA = FrameCodec.encode(repeat("A", 50));
+        byte[] frameB = FrameCodec.encode(repeat("B", 45));
+
+        for (int offset = 0; offset < Math.max(frameA.length, frameB.length); offset += 20) {
+            if (offset < frameA.length) {
+                a.feed(Arrays.copyOfRange(frameA, offset, Math.min(offset + 20, frameA.length)));
+            }
+            if (offset < frameB.length) {
+                b.feed(Arrays.copyOfRange(frameB, offset, Math.min(offset + 20, frameB.length)));
+            }
+        }
+
+        assertEquals(Arrays.asList(repeat("A", 50)), first.messages);
+        assertEquals(Arrays.asList(repeat("B", 45)), second.messages);
+    }
+
+    @Test
+    public void oversizedFrame_isDroppedAndNextChunkStartsClean() {
+        RecordingListener listener = new RecordingListener();
+        FrameReassembler reassembler = new FrameReassembler(listener, 16);
+
+        reassembler.feed(Arrays.copyOf(FrameCodec.encode(repeat("x", 40)), 20));
+        reassembler.feed(FrameCodec.encode("ok"));
+
+        assertEquals(Arrays.asList(40L), listener.dropped);
+        assertEquals(Arrays.asList("ok"), listener.messages);
+    }
+
+    @Test
+    public void hugeAnnouncedLength_isDroppedWithoutAllocating() {
+        RecordingListener listener = new RecordingListener();
+        FrameReassembler reassembler = new FrameReassembler(listener);
+
+        reassembler.feed(new byte[]{0, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 1, 2, 3});
+
+        assertEquals(Arrays.asList(0xFFFFFFFFL), listener.dropped);
+        assertTrue(listener.messages.isEmpty());
+        assertFalse(reassembler.isPartial());
+    }
+
+    @Test
+    public void corruptedHeader_doesNotSwallowFollowingFrames() {
+        RecordingListener listener = new RecordingListener();
+        FrameReassembler reassembler = new FrameReassembler(listener);
+        byte[] corrupt = FrameCodec.encode("lost");
+        corrupt[1] = (byte) 0x7F;
+
+        reassembler.feed(concat(corrupt, FrameCodec.encode("swallowed with the chunk")));
+        feedInChunks(reassembler, concat(FrameCodec.encode("first"), FrameCodec.encode("second")), 20);
+
+        assertEquals(1, listener.dropped.size());
+        assertEquals(Arrays.asList("first", "second"), listener.messages);
+    }
+
+    @Test
+    public void reset_discardsPartialFrame() {
+        RecordingListener listener = new RecordingListener();
+        FrameReassembler reassembler = new FrameReassembler(listener);
+        byte[] frame = FrameCodec.encode("partial");
+
+        reassembler.feed(Arrays.copyOf(frame, 8));
+        reassembler.reset();
+        reassembler.feed(FrameCodec.encode("fresh"));
+
+        assertEquals(Arrays.asList("fresh"), listener.messages);
+    }
+}
@@ -0,0 +1,98 @@
+package com.onlykk.bleunityplugin;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link JsonEncoder}.
+ */
+public class JsonEncoderTest {
+
+    @Test
+    public void encodesFieldsInOrder() {
+        String json = JsonEncoder.begin()
+                .field("name", "Host")
+                .field("address", "AA:BB")
+                .field("rssi", -60)
+                .field("connected", true)
+                .end();
+
+        assertEquals("{\"name\":\"Host\",\"address\":\"AA:BB\",\"rssi\":-60,\"connected\":true}", json);
+    }
+
+    @Test
+    public void nullStrings_areOmitted() {
+        assertEquals("{\"address\":\"AA:BB\"}", PayloadJson.getDeviceJson(null, "AA:BB"));
+    }
+
+    @Test
+    public void strings_areEscaped() {
+        String json = JsonEncoder.begin().field("name", "a\"b\\c\nd\u0001").end();
+
+        assertEquals("{\"name\":\"a\\\"b\\\\c\\nd\\u0001\"}", json);
+    }
+
+    @Test
+    public void rawField_isWrittenVerbatim() {
+        String json = JsonEncoder.begin().rawField("device", "{\"a\":1}").end();
+
+        assertEquals("{\"device\":{\"a\":1}}", json);
+    }
+
+    @Test
+    public void encoder_isReusedOnTheSameThread() {
+        JsonEncoder first = JsonEncoder.begin();
+        first.field("a", 1).end();
+        JsonEncoder second = JsonEncoder.begin();
+
+        assertSame(first, second);
+        assertEquals("{\"b\":2}", second.field("b", 2).end());
+    }
+
+    @Test
+    public void outputMatchesJsonObject() throws Exception {
+        String name = "Player \"1\" \\ \t";
+        org.json.JSONObject expected = new org.json.JSONObject();
+        expected.put("name", name);
+        expected.put("address", "AA:BB:CC:DD:EE:FF");
+
+        org.json.JSONObject actual = new org.json.JSONObject(PayloadJson.getDeviceJson(name, "AA:BB:CC:DD:EE:FF"));
+
+        assertEquals(expected.getString("name"), actual.getString("name"));
+        assertEquals(expected.getString("address"), actual.getString("address"));
+    }
+
+    @Test
+    public void decimals_areWrittenAndNonFiniteRejected() {
+        assertEquals("{\"ratio\":2.5}", JsonEncoder.begin().field("ratio", 2.5).end());
+        try {
+            JsonEncoder.begin().field("ratio", Double.NaN);
+            fail();
+        } catch (IllegalArgumentException expected) {
+            // JSON has no NaN
+        }
+    }
+
+    @Test
+    public void metricsSnapshot_isValidJson() throws Exception {
+        LinkMetrics metrics = new LinkMetrics();
+        metrics.onChunkSent(20);
+        metrics.onChunkComplete(1500);
+        metrics.onMessageComplete(1500);
+        String json = PayloadJson.getMetricsJson(1000,
+                PayloadJson.getTransferMetricsJson(metrics, new java.util.ArrayList<LinkEndpoint>(), 12.5, 0),
+                null,
+                PayloadJson.getScanMetricsJson(3, 9, 2, 1.5, 4.5));
+
+        org.json.JSONObject snapshot = new org.json.JSONObject(json);
+        assertEquals(1000, snapshot.getLong("uptimeMs"));
+        assertFalse(snapshot.has("server"));
+        org.json.JSONObject client = snapshot.getJSONObject("client");
+        assertEquals(20, client.getLong("bytesSent"));
+        assertEquals(13, client.getLong("sendRate"));
+        assertEquals(0, client.getJSONArray("links").length());
+        assertEquals(1500, client.getJSONObject("chunkLatencyUs").getLong("max"));
+        assertEquals(9, snapshot.getJSONObject("scanner").getLong("results"));
+    }
+}
@@ -0,0 +1,100 @@
+package com.onlykk.bleunityplugin;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link KnownDeviceStore}.
+ */
+public class KnownDeviceStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void remember_evictsLeastRecentlySeen() {
+        KnownDeviceStore store = new KnownDeviceStore(2);
+        store.remember("00:11:22:33:44:01", "one", 1);
+        store.remember("00:11:22:33:44:02", "two", 2);
+        store.remember("00:11:22:33:44:01", null, 3);
+        store.remember("00:11:22:33:44:03", "three", 4);
+
+        List<KnownDeviceStore.Device> devices = store.getDevices();
+        assertEquals(2, devices.size());
+        assertEquals("00:11:22:33:44:03", devices.get(0).address);
+        // Seen again without a name, the known name is kept
+        assertEquals("one", devices.get(1).name);
+        assertNull(store.get("00:11:22:33:44:02"));
+    }
+
+    @Test
+    public void addresses_matchInEitherCase() {
+        KnownDeviceStore store = new KnownDeviceStore();
+        store.remember("aa:bb:cc:dd:ee:ff", "pad", 1);
+
+        assertEquals("AA:BB:CC:DD:EE:FF", store.get("aa:bb:cc:dd:ee:ff").address);
+        assertNull(store.get("not an address"));
+        assertTrue(store.forget("AA:BB:CC:DD:EE:FF"));
+        assertEquals(0, store.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void remember_rejectsInvalidAddress() {
+        new KnownDeviceStore().remember("00-11-22-33-44-55", "pad", 1);
+    }
+
+    @Test
+    public void save_roundTripsThroughCompactFile() throws IOException {
+        File file = new File(folder.getRoot(), "devices.bin");
+        KnownDeviceStore store = new KnownDeviceStore();
+        store.remember("00:11:22:33:44:01", "Host", 1700000000000L);
+        store.remember("00:11:22:33:44:02", null, 1700000001000L);
+        assertTrue(store.isDirty());
+        store.save(file);
+        assertFalse(store.isDirty());
+
+        // Header, then address, time and an empty or short name per device
+        assertEquals(3 + (6 + 8 + 2 + 4) + (6 + 8 + 2), file.length());
+        KnownDeviceStore loaded = KnownDeviceStore.load(file, KnownDeviceStore.DEFAULT_MAX_DEVICES);
+        List<KnownDeviceStore.Device> devices = loaded.getDevices();
+        assertEquals(2, devices.size());
+        assertEquals("00:11:22:33:44:02", devices.get(0).address);
+        assertNull(devices.get(0).name);
+        assertEquals("Host", devices.get(1).name);
+        assertEquals(1700000000000L, devices.get(1).lastSeenMs);
+        assertFalse(loaded.isDirty());
+    }
+
+    @Test
+    public void load_keepsMostRecentWhenBoundShrinks() throws IOException {
+        File file = new File(folder.getRoot(), "devices.bin");
+        KnownDeviceStore store = new KnownDeviceStore();
+        for (int i = 0; i < 5; i++) {
+            store.remember("00:11:22:33:44:0" + i, null, i);
+        }
+        store.save(file);
+
+        KnownDeviceStore loaded = KnownDeviceStore.load(file, 2);
+        assertEquals(2, loaded.size());
+        assertEquals("00:11:22:33:44:04", loaded.getDevices().get(0).address);
+    }
+
+    @Test
+    public void load_ignoresMissingAndCorruptFiles() throws IOException {
+        assertEquals(0, KnownDeviceStore.load(new File(folder.getRoot(), "missing.bin"), 4).size());
+
+        File file = folder.newFile("corrupt.bin");
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(new byte[]{KnownDeviceStore.MAGIC, KnownDeviceStore.VERSION, 3, 0, 1});
+        out.close();
+        assertEquals(0, KnownDeviceStore.load(file, 4).size());
+    }
+}
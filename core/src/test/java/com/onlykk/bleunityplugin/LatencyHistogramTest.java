@@ -0,0 +1,84 @@
+package com.onlykk.bleunityplugin;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link LatencyHistogram}.
+ */
+public class LatencyHistogramTest {
+
+    @Test
+    public void bucketOf_usesPowersOfTwo() {
+        assertEquals(0, LatencyHistogram.bucketOf(0));
+        assertEquals(1, LatencyHistogram.bucketOf(1));
+        assertEquals(2, LatencyHistogram.bucketOf(2));
+        assertEquals(2, LatencyHistogram.bucketOf(3));
+        assertEquals(11, LatencyHistogram.bucketOf(1024));
+        assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.bucketOf(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void valuesFallWithinTheirBucketBounds() {
+        for (long micros = 1; micros < 100000; micros = micros * 3 + 1) {
+            int bucket = LatencyHistogram.bucketOf(micros);
+            assertTrue(micros <= LatencyHistogram.upperBoundOf(bucket));
+            assertTrue(micros > LatencyHistogram.upperBoundOf(bucket - 1));
+        }
+    }
+
+    @Test
+    public void record_tracksCountMeanAndMax() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(100);
+        histogram.record(300);
+
+        assertEquals(2, histogram.getCount());
+        assertEquals(200, histogram.getMeanMicros());
+        assertEquals(300, histogram.getMaxMicros());
+    }
+
+    @Test
+    public void percentile_isBucketUpperBoundCappedAtMax() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 99; i++) {
+            histogram.record(1000);
+        }
+        histogram.record(50000);
+
+        assertEquals(1023, histogram.getPercentile(50));
+        assertEquals(1023, histogram.getPercentile(99));
+        assertEquals(50000, histogram.getPercentile(100));
+    }
+
+    @Test
+    public void percentile_ofEmptyHistogramIsZero() {
+        assertEquals(0, new LatencyHistogram().getPercentile(99));
+    }
+
+    @Test
+    public void add_mergesBucketsAndMax() {
+        LatencyHistogram first = new LatencyHistogram();
+        LatencyHistogram second = new LatencyHistogram();
+        first.record(10);
+        second.record(10);
+        second.record(5000);
+        first.add(second);
+
+        assertEquals(3, first.getCount());
+        assertEquals(2, first.getBucketCount(LatencyHistogram.bucketOf(10)));
+        assertEquals(5000, first.getMaxMicros());
+    }
+
+    @Test
+    public void reset_clearsEverything() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(42);
+        histogram.reset();
+
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMaxMicros());
+        assertEquals(0, histogram.getBucketCount(LatencyHistogram.bucketOf(42)));
+    }
+}
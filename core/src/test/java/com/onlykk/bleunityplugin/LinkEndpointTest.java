@@ -0,0 +1,427 @@
+package com.onlykk.bleunityplugin;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link LinkEndpoint}, driven by a scripted transport on virtual time.
+ */
+public class LinkEndpointTest {
+
+    private static final PeerSession.Listener IGNORE = new PeerSession.Listener() {
+        @Override
+        public void onMessage(PeerSession session, int channel, int flags, byte[] payload) {
+        }
+
+        @Override
+        public void onFrameDropped(PeerSession session, long length) {
+        }
+    };
+
+    private final List<byte[]> sent = new ArrayList<>();
+    private boolean accepting = true;
+    private VirtualScheduler scheduler;
+    private LinkMetrics totals;
+    private LinkEndpoint endpoint;
+
+    @Before
+    public void setUp() {
+        scheduler = new VirtualScheduler();
+        totals = new LinkMetrics();
+        endpoint = new LinkEndpoint(new PeerSession("peer", IGNORE), new Transport() {
+            @Override
+            public boolean send(byte[] chunk, boolean acknowledged) {
+                if (accepting) {
+                    sent.add(chunk);
+                }
+                return accepting;
+            }
+        }, scheduler, 5, new LinkMetrics(totals));
+    }
+
+    @Test
+    public void send_handsChunksUpToTheWindow() {
+        endpoint.getSession().getOutbound().setMaxInFlight(2);
+        endpoint.send(new byte[100], false);
+
+        assertEquals(2, sent.size());
+        endpoint.onSendComplete();
+        assertEquals(3, sent.size());
+    }
+
+    @Test
+    public void refusedChunk_isRetriedAfterDelay() {
+        accepting = false;
+        endpoint.send(new byte[10], false);
+        accepting = true;
+        scheduler.runUntil(4000);
+        assertTrue(sent.isEmpty());
+
+        scheduler.runUntil(5000);
+        assertEquals(1, sent.size());
+        assertEquals(1, endpoint.getMetrics().getSendsRefused());
+    }
+
+    @Test
+    public void link_failsAfterMaxRetries() {
+        final List<LinkEndpoint> failed = new ArrayList<>();
+        endpoint.setListener(new LinkEndpoint.Listener() {
+            @Override
+            public void onHighWatermark(LinkEndpoint link) {
+            }
+
+            @Override
+            public void onDrained(LinkEndpoint link) {
+            }
+
+            @Override
+            public void onLinkFailed(LinkEndpoint link) {
+                failed.add(link);
+            }
+        });
+        endpoint.setMaxRetries(2);
+        accepting = false;
+        endpoint.send(new byte[10], false);
+        scheduler.runUntilIdle(100);
+
+        assertEquals(1, failed.size());
+        assertTrue(endpoint.isSuspended());
+        assertEquals(1, endpoint.getChunksFailed());
+        assertEquals(3, endpoint.getMetrics().getSendsRefused());
+        assertEquals(1, totals.getChunksFailed());
+        assertEquals(10, endpoint.getSession().getOutbound().getPendingBytes());
+    }
+
+    @Test
+    public void failedWrite_failsTheLinkAndKeepsItsMessage() {
+        endpoint.send(new byte[30], false);
+        endpoint.onSendFailed();
+
+        assertTrue(endpoint.isSuspended());
+        assertEquals(1, endpoint.getMetrics().getWritesFailed());
+        assertEquals(1, totals.getWritesFailed());
+        assertEquals(0, endpoint.getMetrics().getMessagesCompleted());
+        assertEquals(30, endpoint.getSession().getOutbound().getPendingBytes());
+    }
+
+    @Test
+    public void failedLink_neverCutsAMessageAtThePeer() {
+        final List<String> received = new ArrayList<>();
+        PeerSession peer = new PeerSession("peer", new PeerSession.Listener() {
+            @Override
+            public void onMessage(PeerSession session, int channel, int flags, byte[] payload) {
+                received.add(new String(payload, StandardCharsets.UTF_8));
+            }
+
+            @Override
+            public void onFrameDropped(PeerSession session, long length) {
+                received.add("dropped " + length);
+            }
+        });
+        endpoint.setMaxRetries(2);
+        endpoint.getSession().getOutbound().setMaxInFlight(1);
+        endpoint.send(FrameCodec.encode("a message that takes three chunks"), false);
+        endpoint.send(FrameCodec.encode("next"), false);
+        peer.onChunkReceived(sent.get(0));
+
+        // The second chunk is refused until the link fails
+        accepting = false;
+        endpoint.onSendComplete();
+        scheduler.runUntilIdle(100);
+        assertTrue(endpoint.isSuspended());
+        assertEquals(1, endpoint.getChunksFailed());
+
+        // The peer starts the new connection with a fresh session and gets every message whole
+        peer.resetInbound();
+        accepting = true;
+        endpoint.resume();
+        for (int i = 0; i < 10; i++) {
+            endpoint.onSendComplete();
+        }
+        for (byte[] chunk : sent.subList(1, sent.size())) {
+            peer.onChunkReceived(chunk);
+        }
+        assertEquals(Arrays.asList("a message that takes three chunks", "next"), received);
+        assertTrue(endpoint.getSession().getOutbound().isEmpty());
+    }
+
+    @Test
+    public void latencies_areMeasuredOnTheSchedulerClock() {
+        endpoint.send(new byte[30], false);
+        scheduler.runUntil(2000);
+        endpoint.onSendComplete();
+        scheduler.runUntil(5000);
+        endpoint.onSendComplete();
+
+        LinkMetrics metrics = endpoint.getMetrics();
+        assertEquals(2, metrics.getChunkLatency().getCount());
+        assertEquals(3000, metrics.getChunkLatency().getMaxMicros());
+        assertEquals(1, metrics.getMessagesCompleted());
+        assertEquals(5000, metrics.getMessageLatency().getMaxMicros());
+    }
+
+    @Test
+    public void messageLatency_waitsForTheLastChunkOfEachMessage() {
+        endpoint.getSession().getOutbound().setMaxInFlight(8);
+        endpoint.send(new byte[30], false);
+        endpoint.send(new byte[10], false);
+        assertEquals(3, sent.size());
+
+        endpoint.onSendComplete();
+        assertEquals(0, endpoint.getMetrics().getMessagesCompleted());
+        endpoint.onSendComplete();
+        assertEquals(1, endpoint.getMetrics().getMessagesCompleted());
+        endpoint.onSendComplete();
+        assertEquals(2, endpoint.getMetrics().getMessagesCompleted());
+    }
+
+    @Test
+    public void metrics_areAddedToTheParent() {
+        endpoint.send(new byte[10], false);
+        endpoint.onChunkReceived(new byte[7]);
+
+        assertEquals(10, totals.getBytesSent());
+        assertEquals(1, totals.getChunksSent());
+        assertEquals(7, totals.getBytesReceived());
+        assertEquals(1, totals.getMessagesQueued());
+        assertEquals(10, totals.getMaxQueuedBytes());
+    }
+
+    @Test
+    public void close_stopsSendingAndRetries() {
+        accepting = false;
+        endpoint.send(new byte[10], false);
+        endpoint.close();
+        accepting = true;
+        scheduler.runUntilIdle(100);
+
+        assertTrue(sent.isEmpty());
+        assertTrue(endpoint.isClosed());
+    }
+
+    @Test
+    public void coalescing_holdsSmallMessagesUntilTheLingerEnds() {
+        endpoint.setCoalescing(true, 10, 0);
+        endpoint.send(new byte[5], false);
+        endpoint.send(new byte[5], false);
+        endpoint.send(new byte[5], false);
+        scheduler.runUntil(9000);
+        assertTrue(sent.isEmpty());
+
+        scheduler.runUntil(10000);
+        assertEquals(1, sent.size());
+        assertEquals(15, sent.get(0).length);
+        assertEquals(3.0, endpoint.getMetrics().getCoalescingRatio(), 0.001);
+    }
+
+    @Test
+    public void coalescing_sendsFullChunksAtOnce() {
+        endpoint.getSession().getOutbound().setMaxInFlight(4);
+        endpoint.setCoalescing(true, 10, 0);
+        for (int i = 0; i < 4; i++) {
+            endpoint.send(new byte[6], false);
+        }
+
+        assertEquals(1, sent.size());
+        assertEquals(20, sent.get(0).length);
+        scheduler.runUntil(10000);
+        assertEquals(2, sent.size());
+        assertEquals(4, sent.get(1).length);
+    }
+
+    @Test
+    public void coalescing_largeMessageTakesHeldOnesAlong() {
+        endpoint.getSession().getOutbound().setMaxInFlight(4);
+        endpoint.setCoalescing(true, 10, 0);
+        endpoint.send(new byte[5], false);
+        endpoint.send(new byte[30], false);
+
+        assertEquals(2, sent.size());
+        assertEquals(20, sent.get(0).length);
+        assertEquals(15, sent.get(1).length);
+    }
+
+    @Test
+    public void flush_sendsHeldMessages() {
+        endpoint.setCoalescing(true, 10, 0);
+        endpoint.send(new byte[5], false);
+        endpoint.flush();
+
+        assertEquals(1, sent.size());
+        scheduler.runUntilIdle(100);
+        assertEquals(1, sent.size());
+    }
+
+    @Test
+    public void bufferLimit_rejectsMessagesThatDoNotFit() {
+        endpoint.setBufferLimit(100, LinkEndpoint.OVERFLOW_REJECT);
+        assertTrue(endpoint.send(new byte[100], false));
+
+        // The first chunk left the queue, 80 bytes remain
+        assertFalse(endpoint.send(new byte[30], false));
+        assertTrue(endpoint.send(new byte[20], false));
+        assertFalse(endpoint.send(new byte[101], false));
+        assertEquals(100, endpoint.getSession().getOutbound().getPendingBytes());
+        assertEquals(2, endpoint.getMetrics().getMessagesDropped());
+        assertEquals(131, totals.getBytesDropped());
+    }
+
+    @Test
+    public void bufferLimit_dropsOldestMessagesNotStartedYet() {
+        endpoint.setBufferLimit(100, LinkEndpoint.OVERFLOW_DROP_OLDEST);
+        endpoint.send(new byte[50], false);
+        endpoint.send(new byte[40], false);
+        endpoint.send(new byte[30], false);
+
+        // The first message has started and stays, the second one makes room
+        assertTrue(endpoint.send(new byte[40], false));
+        assertEquals(1, endpoint.getMetrics().getMessagesDropped());
+        assertEquals(100, endpoint.getSession().getOutbound().getPendingBytes());
+
+        // Three chunks finish the first message and two more the third, not the dropped one
+        for (int i = 0; i < 5; i++) {
+            endpoint.onSendComplete();
+        }
+        assertEquals(2, endpoint.getMetrics().getMessagesCompleted());
+        endpoint.onSendComplete();
+        endpoint.onSendComplete();
+        assertEquals(3, endpoint.getMetrics().getMessagesCompleted());
+        assertTrue(endpoint.getSession().getOutbound().isEmpty());
+    }
+
+    @Test
+    public void watermarks_areReportedOncePerFill() {
+        final List<String> events = new ArrayList<>();
+        endpoint.setListener(new LinkEndpoint.Listener() {
+            @Override
+            public void onHighWatermark(LinkEndpoint link) {
+                events.add("high " + link.getSession().getOutbound().getPendingBytes());
+            }
+
+            @Override
+            public void onDrained(LinkEndpoint link) {
+                events.add("drained " + link.getSession().getOutbound().getPendingBytes());
+            }
+
+            @Override
+            public void onLinkFailed(LinkEndpoint link) {
+            }
+        });
+        endpoint.setBufferLimit(100, LinkEndpoint.OVERFLOW_REJECT);
+        endpoint.send(new byte[100], false);
+        endpoint.onSendComplete();
+        endpoint.onSendComplete();
+        assertEquals(1, events.size());
+
+        endpoint.onSendComplete();
+        endpoint.onSendComplete();
+        assertEquals(2, events.size());
+        assertEquals("high 80", events.get(0));
+        assertEquals("drained 20", events.get(1));
+    }
+
+    @Test
+    public void close_drainsAFilledBuffer() {
+        final int[] drained = new int[1];
+        endpoint.setListener(new LinkEndpoint.Listener() {
+            @Override
+            public void onHighWatermark(LinkEndpoint link) {
+            }
+
+            @Override
+            public void onDrained(LinkEndpoint link) {
+                drained[0]++;
+            }
+
+            @Override
+            public void onLinkFailed(LinkEndpoint link) {
+            }
+        });
+        endpoint.setBufferLimit(100, LinkEndpoint.OVERFLOW_BLOCK);
+        endpoint.send(new byte[100], false);
+        assertTrue(endpoint.isAboveHighWatermark());
+
+        endpoint.close();
+        assertEquals(1, drained[0]);
+        assertFalse(endpoint.isAboveHighWatermark());
+    }
+
+    @Test
+    public void newLink_sendsNothingUntilResumed() {
+        endpoint.suspend();
+        endpoint.send(new byte[30], false);
+        // The peer may send first, its messages are delivered
+        endpoint.onChunkReceived(FrameCodec.encode("ready"));
+        assertTrue(sent.isEmpty());
+        assertEquals(1, endpoint.getSession().getMessagesReceived());
+
+        endpoint.resume();
+        assertEquals(1, sent.size());
+    }
+
+    @Test
+    public void suspendedLink_holdsMessagesUntilResumed() {
+        endpoint.send(new byte[30], false);
+        endpoint.suspend();
+        accepting = false;
+        endpoint.send(new byte[10], false);
+        scheduler.runUntilIdle(100);
+
+        // Nothing is retried or given up while the link is down
+        assertEquals(1, sent.size());
+        assertEquals(0, endpoint.getMetrics().getSendsRefused());
+        assertEquals(40, endpoint.getSession().getOutbound().getPendingBytes());
+
+        accepting = true;
+        endpoint.resume();
+        assertFalse(endpoint.isSuspended());
+        assertEquals(20, sent.get(1).length);
+    }
+
+    @Test
+    public void resumedLink_resendsMessagesNotCompletedFromTheirBeginning() {
+        endpoint.getSession().getOutbound().setMaxInFlight(3);
+        endpoint.send(new byte[10], false);
+        endpoint.send(new byte[50], false);
+        assertEquals(3, sent.size());
+        endpoint.suspend();
+        // A completion of the lost link arriving late is ignored
+        endpoint.onSendComplete();
+        endpoint.resume();
+
+        // The first message was released but never completed, both are sent again whole
+        assertEquals(6, sent.size());
+        assertEquals(10, sent.get(3).length);
+        assertEquals(20, sent.get(4).length);
+        endpoint.onSendComplete();
+        assertEquals(1, endpoint.getMetrics().getMessagesCompleted());
+        endpoint.onSendComplete();
+        endpoint.onSendComplete();
+        assertEquals(1, endpoint.getMetrics().getMessagesCompleted());
+        endpoint.onSendComplete();
+        assertEquals(2, endpoint.getMetrics().getMessagesCompleted());
+        assertTrue(endpoint.getSession().getOutbound().isEmpty());
+    }
+
+    @Test
+    public void resumedLink_doesNotResendCompletedMessages() {
+        endpoint.getSession().getOutbound().setMaxInFlight(3);
+        endpoint.send(new byte[10], false);
+        endpoint.send(new byte[30], false);
+        endpoint.onSendComplete();
+        endpoint.suspend();
+        endpoint.resume();
+
+        assertEquals(1, endpoint.getMetrics().getMessagesCompleted());
+        assertEquals(5, sent.size());
+        assertEquals(20, sent.get(3).length);
+        assertEquals(10, sent.get(4).length);
+    }
+}
@@ -0,0 +1,296 @@
+package com.onlykk.bleunityplugin;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Throughput and latency suite running full client to server sessions of {@link LinkEndpoint}
+ * over a {@link SimulatedLink}. Timing is virtual, so results are the same on every run.
+ */
+public class LinkThroughputTest {
+
+    private static final int MAX_TASKS = 10000000;
+
+    /**
+     * One side of a session: its endpoint and the messages it reassembled, with their arrival times.
+     */
+    private static final class Peer implements PeerSession.Listener {
+        final VirtualScheduler scheduler;
+        final LinkEndpoint endpoint;
+        final List<byte[]> messages = new ArrayList<>();
+        final List<Long> receivedAt = new ArrayList<>();
+        final List<Integer> channels = new ArrayList<>();
+
+        Peer(String address, SimulatedLink.Side side, VirtualScheduler scheduler) {
+            this.scheduler = scheduler;
+            this.endpoint = new LinkEndpoint(new PeerSession(address, this), side, scheduler, 5);
+            side.setReceiver(endpoint);
+        }
+
+        @Override
+        public void onMessage(PeerSession session, int channel, int flags, byte[] payload) {
+            messages.add(payload);
+            receivedAt.add(scheduler.nowMicros());
+            channels.add(channel);
+        }
+
+        @Override
+        public void onFrameDropped(PeerSession session, long length) {
+            fail("Frame dropped");
+        }
+    }
+
+    private VirtualScheduler scheduler;
+    private SimulatedLink link;
+    private Peer client;
+    private Peer server;
+
+    @Before
+    public void setUp() {
+        scheduler = new VirtualScheduler();
+        link = new SimulatedLink(scheduler);
+        client = new Peer("server", link.getCentral(), scheduler);
+        server = new Peer("client", link.getPeripheral(), scheduler);
+    }
+
+    private static byte[] payload(int size) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) (i * 31 + 7);
+        }
+        return data;
+    }
+
+    /**
+     * Streams one message from the client and returns the application throughput in bytes per second.
+     */
+    private double streamToServer(int size, int windowSize) {
+        client.endpoint.getSession().getOutbound().setMaxInFlight(windowSize);
+        link.open();
+        byte[] data = payload(size);
+        client.endpoint.send(FrameCodec.encodeBinary(data), false);
+        scheduler.runUntilIdle(MAX_TASKS);
+
+        assertEquals(1, server.messages.size());
+        assertArrayEquals(data, server.messages.get(0));
+        return size * 1000000.0 / server.receivedAt.get(0);
+    }
+
+    @Test
+    public void streaming_approachesLinkCapacity() {
+        link.setMtu(247);
+        double throughput = streamToServer(64 * 1024, 8);
+
+        assertTrue(throughput <= link.getMaxThroughput());
+        assertTrue(throughput > 0.9 * link.getMaxThroughput());
+    }
+
+    @Test
+    public void streaming_scalesWithMtu() {
+        link.setMtu(23);
+        double small = streamToServer(16 * 1024, 8);
+
+        setUp();
+        link.setMtu(247);
+        double large = streamToServer(16 * 1024, 8);
+
+        assertTrue(large > 10 * small);
+    }
+
+    @Test
+    public void streaming_scalesWithConnectionInterval() {
+        link.setConnectionIntervalMicros(45000);
+        double slow = streamToServer(16 * 1024, 8);
+
+        setUp();
+        link.setConnectionIntervalMicros(7500);
+        double fast = streamToServer(16 * 1024, 8);
+
+        assertTrue(fast > 5 * slow);
+    }
+
+    @Test
+    public void acknowledgedWrites_areBoundByWriteResponse() {
+        link.setMtu(247);
+        link.open();
+        byte[] data = payload(16 * 1024);
+        client.endpoint.send(FrameCodec.encodeBinary(data), true);
+        scheduler.runUntilIdle(MAX_TASKS);
+        double acknowledged = data.length * 1000000.0 / server.receivedAt.get(0);
+
+        // One chunk per connection event plus the response latency
+        long chunks = client.endpoint.getSession().getChunksSent();
+        assertTrue(server.receivedAt.get(0) >= (chunks - 1) * SimulatedLink.DEFAULT_WRITE_RESPONSE_LATENCY_MICROS);
+        assertArrayEquals(data, server.messages.get(0));
+
+        setUp();
+        link.setMtu(247);
+        assertTrue(streamToServer(16 * 1024, 8) > 3 * acknowledged);
+    }
+
+    @Test
+    public void notificationBuffer_limitsServerThroughput() {
+        link.setMtu(247);
+        link.setBufferPackets(1);
+        link.open();
+        byte[] data = payload(16 * 1024);
+        server.endpoint.getSession().getOutbound().setMaxInFlight(8);
+        server.endpoint.send(FrameCodec.encodeBinary(data), false);
+        scheduler.runUntilIdle(MAX_TASKS);
+
+        assertArrayEquals(data, client.messages.get(0));
+        assertTrue(link.getPeripheral().getSendsRefused() > 0);
+        assertEquals(0, server.endpoint.getChunksFailed());
+    }
+
+    @Test
+    public void smallMessage_latencyIsOneConnectionInterval() {
+        link.setConnectionIntervalMicros(15000);
+        link.open();
+        scheduler.runUntil(1000);
+        client.endpoint.send(FrameCodec.encode("ping"), false);
+        scheduler.runUntilIdle(MAX_TASKS);
+
+        long latency = server.receivedAt.get(0) - 1000;
+        assertTrue(latency <= 15000);
+    }
+
+    /**
+     * Queues a bulk transfer, then a small control message once the transfer is under way,
+     * and returns the latency of the control message.
+     */
+    private long controlMessageLatency(boolean multiplexed) {
+        link.setMtu(247);
+        PeerSession sender = client.endpoint.getSession();
+        sender.getOutbound().setMaxInFlight(8);
+        sender.setMultiplexed(multiplexed);
+        server.endpoint.getSession().setMultiplexed(multiplexed);
+        int controlChannel = multiplexed ? 2 : OutboundQueue.DEFAULT_CHANNEL;
+        if (multiplexed) {
+            sender.getOutbound().setChannelWeight(controlChannel, 10);
+        }
+        link.open();
+        client.endpoint.send(multiplexed ? 1 : OutboundQueue.DEFAULT_CHANNEL, FrameCodec.encodeBinary(payload(32 * 1024)), false);
+        scheduler.runUntil(100000);
+        client.endpoint.send(controlChannel, FrameCodec.encode("pause"), false);
+        scheduler.runUntilIdle(MAX_TASKS);
+
+        assertEquals(2, server.messages.size());
+        int control = server.messages.get(0).length == "pause".length() ? 0 : 1;
+        assertEquals(controlChannel, (int) server.channels.get(control));
+        return server.receivedAt.get(control) - 100000;
+    }
+
+    @Test
+    public void weightedChannel_avoidsHeadOfLineBlocking() {
+        long shared = controlMessageLatency(false);
+
+        setUp();
+        long multiplexed = controlMessageLatency(true);
+
+        // On its own channel the control message overtakes the transfer, without it waits for all of it
+        assertEquals(2, server.channels.get(0).intValue());
+        // It still waits for the chunks already handed to the stack, two events at four packets each
+        assertTrue(multiplexed <= 3 * SimulatedLink.DEFAULT_CONNECTION_INTERVAL_MICROS);
+        assertTrue(shared > 10 * multiplexed);
+    }
+
+    /**
+     * Sends 60 small messages spread over one second and returns the packets they took.
+     */
+    private long sendInputBurst() {
+        link.open();
+        for (int i = 0; i < 60; i++) {
+            scheduler.runUntil(i * 16667L);
+            client.endpoint.send(FrameCodec.encode("input " + i), false);
+        }
+        scheduler.runUntilIdle(MAX_TASKS);
+
+        assertEquals(60, server.messages.size());
+        for (int i = 0; i < 60; i++) {
+            assertEquals("input " + i, new String(server.messages.get(i)));
+        }
+        return link.getCentral().getPacketsSent();
+    }
+
+    @Test
+    public void coalescing_packsBurstsOfSmallMessages() {
+        link.setMtu(185);
+        long separate = sendInputBurst();
+
+        setUp();
+        link.setMtu(185);
+        client.endpoint.setCoalescing(true, 50, 0);
+        long coalesced = sendInputBurst();
+
+        assertEquals(60, separate);
+        assertTrue(coalesced <= 21);
+        assertTrue(client.endpoint.getMetrics().getCoalescingRatio() >= 3);
+    }
+
+    @Test
+    public void roundTrip_echoTakesTwoDirections() {
+        link.setConnectionIntervalMicros(15000);
+        link.setMtu(185);
+        link.open();
+        final Peer echo = server;
+        scheduler.runUntil(1000);
+        client.endpoint.send(FrameCodec.encodeBinary(payload(1000)), false);
+        scheduler.runUntilIdle(MAX_TASKS);
+        echo.endpoint.send(FrameCodec.encodeBinary(echo.messages.get(0)), false);
+        scheduler.runUntilIdle(MAX_TASKS);
+
+        assertArrayEquals(payload(1000), client.messages.get(0));
+        long roundTrip = client.receivedAt.get(0) - 1000;
+        assertTrue(roundTrip >= 2 * 15000);
+    }
+
+    @Test
+    public void packetLoss_slowsDownButDeliversEverything() {
+        link.setMtu(247);
+        double clean = streamToServer(32 * 1024, 8);
+
+        setUp();
+        link.setMtu(247);
+        link.setPacketLoss(0.2, 1, false);
+        double lossy = streamToServer(32 * 1024, 8);
+
+        assertTrue(lossy < clean);
+        assertTrue(lossy > 0.5 * clean);
+    }
+
+    @Test
+    public void manyMessages_arriveInOrder() {
+        link.setMtu(100);
+        link.open();
+        client.endpoint.getSession().getOutbound().setMaxInFlight(4);
+        for (int i = 0; i < 50; i++) {
+            client.endpoint.send(FrameCodec.encodeBinary(payload(i * 17 + 1)), false);
+        }
+        scheduler.runUntilIdle(MAX_TASKS);
+
+        assertEquals(50, server.messages.size());
+        for (int i = 0; i < 50; i++) {
+            assertTrue(Arrays.equals(payload(i * 17 + 1), server.messages.get(i)));
+        }
+    }
+
+    @Test
+    public void timing_isDeterministic() {
+        link.setPacketLoss(0.1, 3, false);
+        streamToServer(8 * 1024, 4);
+        long first = server.receivedAt.get(0);
+
+        setUp();
+        link.setPacketLoss(0.1, 3, false);
+        streamToServer(8 * 1024, 4);
+
+        assertEquals(first, (long) server.receivedAt.get(0));
+    }
+}
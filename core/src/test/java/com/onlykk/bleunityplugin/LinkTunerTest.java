@@ -0,0 +1,167 @@
+package com.onlykk.bleunityplugin;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link LinkTuner}, against a fake link on virtual time.
+ */
+public class LinkTunerTest {
+
+    /**
+     * Link recording the requests it receives.
+     */
+    private static final class FakeLink implements LinkControl {
+        final List<Integer> priorities = new ArrayList<>();
+        final List<Integer> phys = new ArrayList<>();
+        boolean canChangePriority = true;
+
+        @Override
+        public boolean requestConnectionPriority(int priority) {
+            if (canChangePriority) {
+                priorities.add(priority);
+            }
+            return canChangePriority;
+        }
+
+        @Override
+        public boolean requestPhy(int phy) {
+            phys.add(phy);
+            return true;
+        }
+    }
+
+    private VirtualScheduler scheduler;
+    private FakeLink link;
+    private LinkTuner tuner;
+
+    @Before
+    public void setUp() {
+        scheduler = new VirtualScheduler();
+        link = new FakeLink();
+        tuner = new LinkTuner(link, scheduler);
+        tuner.setBoostThresholds(1000, 4000);
+        tuner.setIdlePolicy(500, false);
+        tuner.setEnabled(true);
+    }
+
+    @Test
+    public void smallMessages_leaveTheLinkAlone() {
+        tuner.onMessageQueued(20, 20);
+        tuner.onMessageQueued(20, 40);
+
+        assertFalse(tuner.isBoosted());
+        assertTrue(link.priorities.isEmpty());
+        assertTrue(link.phys.isEmpty());
+    }
+
+    @Test
+    public void backlog_raisesPriorityAndAsksFor2M() {
+        tuner.onMessageQueued(600, 600);
+        tuner.onMessageQueued(600, 1200);
+
+        assertTrue(tuner.isBoosted());
+        assertEquals(LinkTuner.PRIORITY_HIGH, tuner.getRequestedPriority());
+        assertEquals(1, link.priorities.size());
+        assertEquals(1, link.phys.size());
+        assertEquals(LinkTuner.PHY_LE_2M, (int) link.phys.get(0));
+    }
+
+    @Test
+    public void bulkMessage_boostsAtOnce() {
+        tuner.onMessageQueued(4000, 0);
+
+        assertTrue(tuner.isBoosted());
+        assertEquals(1, tuner.getBoosts());
+    }
+
+    @Test
+    public void idleLink_dropsBackToBalanced() {
+        tuner.onMessageQueued(4000, 4000);
+        scheduler.runUntil(499000);
+        assertTrue(tuner.isBoosted());
+
+        scheduler.runUntil(500000);
+        assertFalse(tuner.isBoosted());
+        assertEquals(LinkTuner.PRIORITY_BALANCED, tuner.getRequestedPriority());
+    }
+
+    @Test
+    public void traffic_keepsTheBoostAlive() {
+        tuner.onMessageQueued(4000, 4000);
+        for (int i = 1; i <= 10; i++) {
+            scheduler.runUntil(i * 200000L);
+            tuner.onActivity();
+        }
+        assertTrue(tuner.isBoosted());
+
+        scheduler.runUntilIdle(100);
+        assertFalse(tuner.isBoosted());
+        assertEquals(2500000, scheduler.nowMicros());
+        assertEquals(1, tuner.getBoosts());
+    }
+
+    @Test
+    public void lowPowerIdlePolicy_dropsBelowBalanced() {
+        tuner.setIdlePolicy(500, true);
+        tuner.setEnabled(true);
+        assertEquals(LinkTuner.PRIORITY_LOW_POWER, tuner.getRequestedPriority());
+
+        tuner.onMessageQueued(4000, 4000);
+        scheduler.runUntilIdle(100);
+        assertEquals(LinkTuner.PRIORITY_LOW_POWER, tuner.getRequestedPriority());
+        assertEquals(3, link.priorities.size());
+    }
+
+    @Test
+    public void phy_isRequestedOnceAndNotWhenAlreadyIn2M() {
+        tuner.onPhyUpdate(LinkTuner.PHY_LE_2M, LinkTuner.PHY_LE_2M);
+        tuner.onMessageQueued(4000, 4000);
+        assertTrue(link.phys.isEmpty());
+
+        setUp();
+        tuner.onMessageQueued(4000, 4000);
+        scheduler.runUntilIdle(100);
+        tuner.onMessageQueued(4000, 4000);
+        assertEquals(2, tuner.getBoosts());
+        assertEquals(1, link.phys.size());
+    }
+
+    @Test
+    public void peripheral_stillRequestsThePhy() {
+        link.canChangePriority = false;
+        tuner.onMessageQueued(4000, 4000);
+
+        assertTrue(tuner.isBoosted());
+        assertEquals(LinkTuner.PRIORITY_BALANCED, tuner.getRequestedPriority());
+        assertEquals(1, link.phys.size());
+    }
+
+    @Test
+    public void disabledTuner_onlyRecordsReports() {
+        tuner.setEnabled(false);
+        tuner.onMessageQueued(4000, 4000);
+        tuner.onPhyUpdate(LinkTuner.PHY_LE_2M, LinkTuner.PHY_LE_1M);
+        tuner.onConnectionUpdated(24, 0, 500);
+
+        assertFalse(tuner.isBoosted());
+        assertTrue(link.priorities.isEmpty());
+        assertEquals(30000, tuner.getIntervalMicros());
+        assertEquals(5000, tuner.getSupervisionTimeoutMs());
+        assertEquals(LinkTuner.PHY_LE_1M, tuner.getRxPhy());
+    }
+
+    @Test
+    public void disabling_dropsARaisedPriority() {
+        tuner.onMessageQueued(4000, 4000);
+        tuner.setEnabled(false);
+
+        assertEquals(LinkTuner.PRIORITY_BALANCED, tuner.getRequestedPriority());
+        assertEquals(0, scheduler.getPendingTasks());
+    }
+}
@@ -0,0 +1,82 @@
+package com.onlykk.bleunityplugin;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link MpscQueue}.
+ */
+public class MpscQueueTest {
+
+    @Test
+    public void poll_returnsElementsInOfferOrder() {
+        MpscQueue<String> queue = new MpscQueue<>();
+        assertTrue(queue.isEmpty());
+        assertNull(queue.poll());
+
+        queue.offer("a");
+        queue.offer("b");
+
+        assertFalse(queue.isEmpty());
+        assertEquals("a", queue.poll());
+        assertEquals("b", queue.poll());
+        assertNull(queue.poll());
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void offer_rejectsNull() {
+        new MpscQueue<String>().offer(null);
+    }
+
+    @Test
+    public void concurrentProducers_loseNothingAndKeepPerProducerOrder() throws InterruptedException {
+        final int producers = 4;
+        final int perProducer = 20000;
+        final MpscQueue<int[]> queue = new MpscQueue<>();
+        final CountDownLatch start = new CountDownLatch(1);
+
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            threads[p] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < perProducer; i++) {
+                        queue.offer(new int[]{producer, i});
+                    }
+                }
+            });
+            threads[p].start();
+        }
+        start.countDown();
+
+        int[] next = new int[producers];
+        int received = 0;
+        long deadline = System.currentTimeMillis() + 10000;
+        while (received < producers * perProducer && System.currentTimeMillis() < deadline) {
+            int[] element = queue.poll();
+            if (element == null) {
+                Thread.yield();
+                continue;
+            }
+            assertEquals(next[element[0]], element[1]);
+            next[element[0]]++;
+            received++;
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(producers * perProducer, received);
+        assertNull(queue.poll());
+    }
+}
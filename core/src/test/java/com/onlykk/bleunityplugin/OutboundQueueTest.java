@@ -0,0 +1,310 @@
+package com.onlykk.bleunityplugin;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link OutboundQueue}.
+ */
+public class OutboundQueueTest {
+
+    private static byte[] bytes(int length, int seed) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (seed + i);
+        }
+        return data;
+    }
+
+    @Test
+    public void nextChunk_waitsForCompletionBeforeReleasingMore() {
+        OutboundQueue queue = new OutboundQueue(1);
+        queue.enqueue(bytes(50, 0));
+
+        assertEquals(20, queue.nextChunk(20).length);
+        assertNull(queue.nextChunk(20));
+
+        queue.onChunkComplete();
+        assertEquals(20, queue.nextChunk(20).length);
+        queue.onChunkComplete();
+        assertEquals(10, queue.nextChunk(20).length);
+        queue.onChunkComplete();
+        assertNull(queue.nextChunk(20));
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void chunks_followFramesInOrder() {
+        OutboundQueue queue = new OutboundQueue(8);
+        byte[] first = bytes(5, 0);
+        byte[] second = bytes(7, 100);
+        queue.enqueue(first);
+        queue.enqueue(second);
+
+        assertArrayEquals(first, queue.nextChunk(20));
+        assertArrayEquals(second, queue.nextChunk(20));
+        assertEquals(2, queue.getInFlight());
+    }
+
+    @Test
+    public void chunkSize_isReadWhenChunkIsReleased() {
+        OutboundQueue queue = new OutboundQueue(1);
+        queue.enqueue(bytes(300, 0));
+
+        assertEquals(20, queue.nextChunk(20).length);
+        queue.onChunkComplete();
+        assertEquals(244, queue.nextChunk(244).length);
+        queue.onChunkComplete();
+        assertEquals(36, queue.nextChunk(244).length);
+    }
+
+    @Test
+    public void retry_releasesRefusedChunkFirst() {
+        OutboundQueue queue = new OutboundQueue(1);
+        queue.enqueue(bytes(30, 0));
+
+        byte[] refused = queue.nextChunk(20);
+        queue.retry(refused);
+
+        assertEquals(30, queue.getPendingBytes());
+        assertSame(refused, queue.nextChunk(20));
+    }
+
+    @Test
+    public void depth_tracksMessagesAndBytes() {
+        OutboundQueue queue = new OutboundQueue(1);
+        queue.enqueue(bytes(30, 0));
+        queue.enqueue(bytes(10, 0));
+
+        assertEquals(2, queue.getPendingMessages());
+        assertEquals(40, queue.getPendingBytes());
+
+        queue.nextChunk(20);
+        assertEquals(2, queue.getPendingMessages());
+        assertEquals(20, queue.getPendingBytes());
+
+        queue.onChunkComplete();
+        queue.nextChunk(20);
+        assertEquals(1, queue.getPendingMessages());
+        assertEquals(10, queue.getPendingBytes());
+    }
+
+    @Test
+    public void clear_resetsWindow() {
+        OutboundQueue queue = new OutboundQueue(1);
+        queue.enqueue(bytes(30, 0));
+        queue.nextChunk(20);
+
+        queue.clear();
+        queue.enqueue(bytes(5, 0));
+
+        assertNotNull(queue.nextChunk(20));
+        assertEquals(0, queue.getPendingBytes());
+    }
+
+    @Test
+    public void streamingFrames_shareTheWindow() {
+        OutboundQueue queue = new OutboundQueue(3);
+        queue.enqueue(bytes(100, 0), false);
+
+        assertNotNull(queue.nextChunk(20));
+        assertNotNull(queue.nextChunk(20));
+        assertNotNull(queue.nextChunk(20));
+        assertNull(queue.nextChunk(20));
+
+        queue.onChunkComplete();
+        assertNotNull(queue.nextChunk(20));
+        assertEquals(3, queue.getInFlight());
+    }
+
+    @Test
+    public void acknowledgedFrame_waitsForStreamToDrainAndIsSentAlone() {
+        OutboundQueue queue = new OutboundQueue(4);
+        queue.enqueue(bytes(20, 0), false);
+        queue.enqueue(bytes(40, 0), true);
+        queue.enqueue(bytes(20, 0), false);
+
+        assertFalse(queue.isNextAcknowledged());
+        assertNotNull(queue.nextChunk(20));
+        assertTrue(queue.isNextAcknowledged());
+        assertNull(queue.nextChunk(20));
+
+        queue.onChunkComplete();
+        assertNotNull(queue.nextChunk(20));
+        assertNull(queue.nextChunk(20));
+        queue.onChunkComplete();
+        assertNotNull(queue.nextChunk(20));
+        assertNull(queue.nextChunk(20));
+        queue.onChunkComplete();
+
+        assertFalse(queue.isNextAcknowledged());
+        assertNotNull(queue.nextChunk(20));
+    }
+
+    @Test
+    public void retry_keepsAcknowledgedFlag() {
+        OutboundQueue queue = new OutboundQueue(4);
+        queue.enqueue(bytes(10, 0), true);
+
+        byte[] refused = queue.nextChunk(20);
+        queue.retry(refused);
+
+        assertTrue(queue.isNextAcknowledged());
+        assertSame(refused, queue.nextChunk(20));
+    }
+
+    @Test
+    public void multiplexedChunks_startWithChannelId() {
+        OutboundQueue queue = new OutboundQueue(4);
+        queue.setMultiplexed(true);
+        queue.enqueue(7, bytes(30, 0), false);
+
+        byte[] chunk = queue.nextChunk(20);
+        assertEquals(20, chunk.length);
+        assertEquals(7, chunk[0]);
+        assertEquals(0, chunk[1]);
+        assertEquals(7, queue.getLastChannel());
+        assertEquals(11, queue.getPendingBytes());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void otherChannels_requireMultiplexing() {
+        new OutboundQueue(4).enqueue(1, bytes(10, 0), false);
+    }
+
+    @Test
+    public void weightedChannels_shareChunksByWeight() {
+        OutboundQueue queue = new OutboundQueue(1);
+        queue.setMultiplexed(true);
+        queue.setChannelWeight(1, 3);
+        queue.enqueue(1, bytes(200, 0), false);
+        queue.enqueue(2, bytes(200, 0), false);
+
+        StringBuilder order = new StringBuilder();
+        for (int i = 0; i < 8; i++) {
+            order.append(queue.nextChunk(11)[0]);
+            queue.onChunkComplete();
+        }
+
+        assertEquals("11211121", order.toString());
+    }
+
+    @Test
+    public void smallMessage_overtakesQueuedBulkTransfer() {
+        OutboundQueue queue = new OutboundQueue(1);
+        queue.setMultiplexed(true);
+        queue.setChannelWeight(5, 10);
+        queue.enqueue(0, bytes(1000, 0), false);
+        queue.nextChunk(20);
+        queue.onChunkComplete();
+
+        queue.enqueue(5, bytes(30, 0), false);
+        assertEquals(5, queue.nextChunk(20)[0]);
+        queue.onChunkComplete();
+        assertEquals(5, queue.nextChunk(20)[0]);
+        queue.onChunkComplete();
+
+        // With the control message gone the bulk transfer carries on
+        assertEquals(0, queue.nextChunk(20)[0]);
+    }
+
+    @Test
+    public void coalescing_packsFollowingFramesIntoTheChunk() {
+        OutboundQueue queue = new OutboundQueue(4);
+        queue.setCoalescing(true);
+        queue.enqueue(bytes(8, 0));
+        queue.enqueue(bytes(8, 8));
+        queue.enqueue(bytes(8, 16));
+
+        assertArrayEquals(bytes(20, 0), queue.nextChunk(20));
+        assertEquals(3, queue.getLastFramesStarted());
+        assertArrayEquals(bytes(4, 20), queue.nextChunk(20));
+        assertEquals(0, queue.getLastFramesStarted());
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void coalescing_stopsAtAcknowledgedFrame() {
+        OutboundQueue queue = new OutboundQueue(4);
+        queue.setCoalescing(true);
+        queue.enqueue(bytes(8, 0), false);
+        queue.enqueue(bytes(8, 0), true);
+
+        assertEquals(8, queue.nextChunk(20).length);
+        queue.onChunkComplete();
+        assertTrue(queue.isNextAcknowledged());
+        assertEquals(8, queue.nextChunk(20).length);
+    }
+
+    @Test
+    public void dropOldest_skipsStartedAndAcknowledgedFrames() {
+        OutboundQueue queue = new OutboundQueue(4);
+        queue.enqueue(bytes(30, 0), false);
+        queue.enqueue(bytes(10, 0), true);
+        queue.enqueue(bytes(10, 10), false);
+        queue.enqueue(bytes(10, 20), false);
+        queue.nextChunk(20);
+
+        assertEquals(10, queue.dropOldest(OutboundQueue.DEFAULT_CHANNEL));
+        assertEquals(1, queue.getLastDroppedFramesBehind());
+        assertEquals(3, queue.getPendingMessages());
+        assertEquals(30, queue.getPendingBytes());
+
+        // The rest of the started frame still follows its first chunk
+        assertArrayEquals(bytes(10, 20), queue.nextChunk(20));
+    }
+
+    @Test
+    public void rewind_restartsFramesNotCompletedAndForgetsInFlightChunks() {
+        OutboundQueue queue = new OutboundQueue(4);
+        queue.enqueue(bytes(10, 0));
+        queue.enqueue(bytes(30, 10));
+        queue.nextChunk(20);
+        queue.nextChunk(20);
+        assertEquals(2, queue.getInFlight());
+        assertEquals(10, queue.getPendingBytes(OutboundQueue.DEFAULT_CHANNEL));
+
+        queue.rewind();
+        assertEquals(0, queue.getInFlight());
+        assertEquals(2, queue.getPendingMessages());
+        assertEquals(40, queue.getPendingBytes());
+        // Both frames go out whole, the first one was released but never completed
+        assertArrayEquals(bytes(10, 0), queue.nextChunk(20));
+        assertArrayEquals(bytes(20, 10), queue.nextChunk(20));
+        assertArrayEquals(bytes(10, 30), queue.nextChunk(20));
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void rewind_forgetsCompletedFrames() {
+        OutboundQueue queue = new OutboundQueue(4);
+        queue.setCoalescing(true);
+        queue.enqueue(bytes(10, 0));
+        queue.enqueue(bytes(30, 10));
+        queue.nextChunk(20);
+        queue.nextChunk(20);
+        // The first chunk completes the first frame and half of the second
+        queue.onChunkComplete();
+
+        queue.rewind();
+        assertEquals(1, queue.getPendingMessages());
+        assertEquals(30, queue.getPendingBytes());
+        assertArrayEquals(bytes(20, 10), queue.nextChunk(20));
+        assertArrayEquals(bytes(10, 30), queue.nextChunk(20));
+    }
+
+    @Test
+    public void retry_keepsTheFrameOfTheRefusedChunkForRewind() {
+        OutboundQueue queue = new OutboundQueue(4);
+        queue.enqueue(bytes(10, 0));
+        queue.retry(queue.nextChunk(20));
+
+        queue.rewind();
+        assertEquals(1, queue.getPendingMessages());
+        assertArrayEquals(bytes(10, 0), queue.nextChunk(20));
+        queue.onChunkComplete();
+        queue.rewind();
+        assertTrue(queue.isEmpty());
+    }
+}
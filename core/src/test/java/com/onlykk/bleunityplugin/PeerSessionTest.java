@@ -0,0 +1,137 @@
+package com.onlykk.bleunityplugin;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link PeerSession}.
+ */
+public class PeerSessionTest {
+
+    private final List<String> received = new ArrayList<>();
+
+    private final PeerSession.Listener listener = new PeerSession.Listener() {
+        @Override
+        public void onMessage(PeerSession session, int channel, int flags, byte[] payload) {
+            String prefix = channel != OutboundQueue.DEFAULT_CHANNEL ? session.getAddress() + "#" + channel : session.getAddress();
+            received.add(prefix + "=" + new String(payload, StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public void onFrameDropped(PeerSession session, long length) {
+            received.add(session.getAddress() + " dropped " + length);
+        }
+    };
+
+    @Test
+    public void concurrentWriters_areReassembledInIsolation() {
+        PeerSession first = new PeerSession("AA:AA", listener);
+        PeerSession second = new PeerSession("BB:BB", listener);
+        byte[] frameA = FrameCodec.encode("player one moved to the left");
+        byte[] frameB = FrameCodec.encode("player two fired");
+
+        int chunkSize = first.getChunkSize();
+        for (int offset = 0; offset < Math.max(frameA.length, frameB.length); offset += chunkSize) {
+            if (offset < frameA.length) {
+                first.onChunkReceived(Arrays.copyOfRange(frameA, offset, Math.min(offset + chunkSize, frameA.length)));
+            }
+            if (offset < frameB.length) {
+                second.onChunkReceived(Arrays.copyOfRange(frameB, offset, Math.min(offset + chunkSize, frameB.length)));
+            }
+        }
+
+        assertEquals(Arrays.asList("AA:AA=player one moved to the left", "BB:BB=player two fired"), received);
+    }
+
+    @Test
+    public void statistics_countChunksAndMessages() {
+        PeerSession session = new PeerSession("AA:AA", listener);
+        byte[] frame = FrameCodec.encode("0123456789012345678901234567890123456789");
+
+        session.onChunkReceived(Arrays.copyOfRange(frame, 0, 20));
+        session.onChunkReceived(Arrays.copyOfRange(frame, 20, 40));
+        session.onChunkReceived(Arrays.copyOfRange(frame, 40, frame.length));
+        session.enqueueMessage(frame);
+        session.onChunkSent(20);
+
+        assertEquals(3, session.getChunksReceived());
+        assertEquals(frame.length, session.getBytesReceived());
+        assertEquals(1, session.getMessagesReceived());
+        assertEquals(1, session.getMessagesSent());
+        assertEquals(1, session.getChunksSent());
+        assertEquals(20, session.getBytesSent());
+        assertEquals(1, session.getOutbound().getPendingMessages());
+    }
+
+    @Test
+    public void mtu_drivesChunkSize() {
+        PeerSession session = new PeerSession("AA:AA", listener);
+        assertEquals(20, session.getChunkSize());
+
+        session.setMtu(247);
+
+        assertEquals(247, session.getMtu());
+        assertEquals(244, session.getChunkSize());
+    }
+
+    @Test
+    public void close_dropsPartialMessage() {
+        PeerSession session = new PeerSession("AA:AA", listener);
+        byte[] frame = FrameCodec.encode("interrupted");
+
+        session.onChunkReceived(Arrays.copyOf(frame, 6));
+        session.close();
+        session.onChunkReceived(FrameCodec.encode("next"));
+
+        assertEquals(Arrays.asList("AA:AA=next"), received);
+    }
+
+    @Test
+    public void close_dropsQueuedMessages() {
+        PeerSession session = new PeerSession("AA:AA", listener);
+        session.enqueueMessage(FrameCodec.encode("pending"));
+
+        session.close();
+
+        assertTrue(session.getOutbound().isEmpty());
+        assertEquals(0, session.getOutbound().getPendingBytes());
+    }
+
+    @Test
+    public void acknowledgedMessage_isQueuedAsAcknowledged() {
+        PeerSession session = new PeerSession("AA:AA", listener);
+        session.getOutbound().setMaxInFlight(4);
+
+        session.enqueueMessage(FrameCodec.encode("a control message longer than one chunk"), true);
+
+        assertEquals(1, session.getMessagesSent());
+        assertTrue(session.getOutbound().isNextAcknowledged());
+        assertNotNull(session.getOutbound().nextChunk(session.getChunkSize()));
+        assertNull(session.getOutbound().nextChunk(session.getChunkSize()));
+    }
+
+    @Test
+    public void interleavedChannels_areReassembledSeparately() {
+        PeerSession sender = new PeerSession("AA:AA", listener);
+        PeerSession receiver = new PeerSession("BB:BB", listener);
+        sender.setMultiplexed(true);
+        receiver.setMultiplexed(true);
+        sender.enqueueMessage(1, FrameCodec.encode("a long message on the first channel"), false);
+        sender.enqueueMessage(2, FrameCodec.encode("short on two"), false);
+
+        OutboundQueue outbound = sender.getOutbound();
+        byte[] chunk;
+        while ((chunk = outbound.nextChunk(sender.getChunkSize())) != null) {
+            receiver.onChunkReceived(chunk);
+            outbound.onChunkComplete();
+        }
+
+        assertEquals(Arrays.asList("BB:BB#2=short on two", "BB:BB#1=a long message on the first channel"), received);
+    }
+}
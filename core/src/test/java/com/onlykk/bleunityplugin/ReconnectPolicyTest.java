@@ -0,0 +1,83 @@
+package com.onlykk.bleunityplugin;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link ReconnectPolicy}.
+ */
+public class ReconnectPolicyTest {
+
+    /**
+     * Random source returning a fixed value, to pin the jitter.
+     */
+    private static final class FixedRandom extends Random {
+        private static final long serialVersionUID = 1L;
+
+        final double value;
+
+        FixedRandom(double value) {
+            this.value = value;
+        }
+
+        @Override
+        public double nextDouble() {
+            return value;
+        }
+    }
+
+    @Test
+    public void delays_doubleUpToTheMaximum() {
+        ReconnectPolicy policy = new ReconnectPolicy(new FixedRandom(0));
+        policy.configure(6, 100, 1000);
+
+        assertEquals(100, policy.nextDelayMs());
+        assertEquals(200, policy.nextDelayMs());
+        assertEquals(400, policy.nextDelayMs());
+        assertEquals(800, policy.nextDelayMs());
+        assertEquals(1000, policy.nextDelayMs());
+        assertEquals(1000, policy.nextDelayMs());
+    }
+
+    @Test
+    public void jitter_takesOffUpToHalfTheBackoff() {
+        ReconnectPolicy policy = new ReconnectPolicy(new FixedRandom(0.999999));
+        policy.configure(2, 100, 1000);
+
+        assertEquals(51, policy.nextDelayMs());
+        assertEquals(101, policy.nextDelayMs());
+
+        ReconnectPolicy random = new ReconnectPolicy(new Random(7));
+        random.configure(100, 400, 400);
+        for (int i = 0; i < 100; i++) {
+            long delay = random.nextDelayMs();
+            assertTrue(delay > 200 && delay <= 400);
+        }
+    }
+
+    @Test
+    public void budget_isRestoredByReset() {
+        ReconnectPolicy policy = new ReconnectPolicy(new FixedRandom(0));
+        policy.configure(2, 100, 1000);
+        policy.nextDelayMs();
+        policy.nextDelayMs();
+
+        assertTrue(policy.isExhausted());
+        assertEquals(-1, policy.nextDelayMs());
+        assertEquals(2, policy.getAttempts());
+
+        policy.reset();
+        assertEquals(100, policy.nextDelayMs());
+    }
+
+    @Test
+    public void zeroAttempts_neverReconnects() {
+        ReconnectPolicy policy = new ReconnectPolicy();
+        policy.configure(0, 100, 1000);
+
+        assertEquals(-1, policy.nextDelayMs());
+    }
+}
@@ -0,0 +1,433 @@
+package com.onlykk.bleunityplugin;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link ReliableTransport}, against a scripted transport and end to end
+ * over a lossy {@link SimulatedLink}.
+ */
+public class ReliableTransportTest {
+
+    private static final int MAX_TASKS = 10000000;
+
+    /**
+     * Lower transport recording what the reliable layer sends.
+     */
+    private static final class ScriptedTransport implements Transport {
+        final List<byte[]> packets = new ArrayList<>();
+        boolean accepting = true;
+
+        @Override
+        public boolean send(byte[] chunk, boolean acknowledged) {
+            if (accepting) {
+                packets.add(chunk);
+            }
+            return accepting;
+        }
+
+        byte[] last() {
+            return packets.get(packets.size() - 1);
+        }
+    }
+
+    /**
+     * Upper receiver recording delivered chunks, completions and failures.
+     */
+    private static final class Upper implements Transport.Receiver {
+        final List<byte[]> chunks = new ArrayList<>();
+        int completed;
+        int failed;
+
+        @Override
+        public void onChunkReceived(byte[] chunk) {
+            chunks.add(chunk);
+        }
+
+        @Override
+        public void onSendComplete() {
+            completed++;
+        }
+
+        @Override
+        public void onSendFailed() {
+            failed++;
+        }
+
+        @Override
+        public void onMtuChanged(int mtu) {
+        }
+    }
+
+    /**
+     * One side of a reliable session over the simulated link.
+     */
+    private static final class Peer implements PeerSession.Listener {
+        final ReliableTransport reliable;
+        final LinkEndpoint endpoint;
+        final List<byte[]> messages = new ArrayList<>();
+
+        Peer(String address, SimulatedLink.Side side, VirtualScheduler scheduler, boolean reliableMode) {
+            PeerSession session = new PeerSession(address, this);
+            session.getOutbound().setMaxInFlight(ReliableTransport.DEFAULT_WINDOW);
+            if (reliableMode) {
+                reliable = new ReliableTransport(side, scheduler, null);
+                session.setChunkHeaderSize(ReliableTransport.HEADER_SIZE);
+                endpoint = new LinkEndpoint(session, reliable, scheduler, 5);
+                reliable.setReceiver(endpoint);
+                side.setReceiver(reliable);
+            } else {
+                reliable = null;
+                endpoint = new LinkEndpoint(session, side, scheduler, 5);
+                side.setReceiver(endpoint);
+            }
+        }
+
+        @Override
+        public void onMessage(PeerSession session, int channel, int flags, byte[] payload) {
+            messages.add(payload);
+        }
+
+        @Override
+        public void onFrameDropped(PeerSession session, long length) {
+        }
+    }
+
+    private VirtualScheduler scheduler;
+    private ScriptedTransport lower;
+    private Upper upper;
+    private ReliableTransport reliable;
+
+    @Before
+    public void setUp() {
+        scheduler = new VirtualScheduler();
+        lower = new ScriptedTransport();
+        upper = new Upper();
+        reliable = new ReliableTransport(lower, scheduler, null);
+        reliable.setReceiver(upper);
+    }
+
+    private static byte[] data(int seq, byte... chunk) {
+        byte[] packet = new byte[chunk.length + ReliableTransport.HEADER_SIZE];
+        packet[0] = (byte) ReliableTransport.TYPE_DATA;
+        packet[1] = (byte) (seq >> 8);
+        packet[2] = (byte) seq;
+        System.arraycopy(chunk, 0, packet, ReliableTransport.HEADER_SIZE, chunk.length);
+        return packet;
+    }
+
+    private static byte[] ack(int nextExpected, int receivedBitmap) {
+        return new byte[] {
+                (byte) ReliableTransport.TYPE_ACK, (byte) (nextExpected >> 8), (byte) nextExpected,
+                (byte) (receivedBitmap >>> 24), (byte) (receivedBitmap >>> 16), (byte) (receivedBitmap >>> 8), (byte) receivedBitmap
+        };
+    }
+
+    private static byte[] payload(int size) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) (i * 13 + size);
+        }
+        return data;
+    }
+
+    @Test
+    public void send_prefixesSequenceNumbers() {
+        assertTrue(reliable.send(new byte[] {7}, false));
+        assertTrue(reliable.send(new byte[] {8}, false));
+
+        assertArrayEquals(data(0, (byte) 7), lower.packets.get(0));
+        assertArrayEquals(data(1, (byte) 8), lower.packets.get(1));
+        assertEquals(2, reliable.getInFlight());
+    }
+
+    @Test
+    public void send_refusedWhenWindowFull() {
+        reliable.setWindow(2);
+        reliable.send(new byte[1], false);
+        reliable.send(new byte[1], false);
+
+        assertFalse(reliable.send(new byte[1], false));
+    }
+
+    @Test
+    public void cumulativeAck_completesChunksInOrder() {
+        reliable.send(new byte[1], false);
+        reliable.send(new byte[1], false);
+        reliable.send(new byte[1], false);
+        reliable.onChunkReceived(ack(2, 0));
+
+        assertEquals(2, upper.completed);
+        assertEquals(1, reliable.getInFlight());
+    }
+
+    @Test
+    public void outOfOrderData_isHeldUntilTheGapFills() {
+        reliable.onChunkReceived(data(1, (byte) 2));
+        assertTrue(upper.chunks.isEmpty());
+        // The gap is reported at once, with the held packet in the bitmap
+        assertArrayEquals(ack(0, 1), lower.last());
+
+        reliable.onChunkReceived(data(0, (byte) 1));
+        assertEquals(2, upper.chunks.size());
+        assertArrayEquals(new byte[] {1}, upper.chunks.get(0));
+        assertArrayEquals(new byte[] {2}, upper.chunks.get(1));
+        assertArrayEquals(ack(2, 0), lower.last());
+    }
+
+    @Test
+    public void inOrderData_isAcknowledgedInBatches() {
+        reliable.setAckPolicy(4, 10);
+        for (int seq = 0; seq < 3; seq++) {
+            reliable.onChunkReceived(data(seq, (byte) seq));
+        }
+        assertTrue(lower.packets.isEmpty());
+
+        reliable.onChunkReceived(data(3, (byte) 3));
+        assertEquals(1, lower.packets.size());
+        assertArrayEquals(ack(4, 0), lower.last());
+    }
+
+    @Test
+    public void delayedAck_isSentAfterTheAckDelay() {
+        reliable.setAckPolicy(4, 10);
+        reliable.onChunkReceived(data(0, (byte) 0));
+        scheduler.runUntil(9000);
+        assertTrue(lower.packets.isEmpty());
+
+        scheduler.runUntil(10000);
+        assertArrayEquals(ack(1, 0), lower.last());
+    }
+
+    @Test
+    public void duplicateData_isAcknowledgedAgain() {
+        reliable.setAckPolicy(1, 10);
+        reliable.onChunkReceived(data(0, (byte) 0));
+        reliable.onChunkReceived(data(0, (byte) 0));
+
+        assertEquals(1, upper.chunks.size());
+        assertEquals(1, reliable.getDuplicatesReceived());
+        assertEquals(2, lower.packets.size());
+    }
+
+    @Test
+    public void selectiveAck_retransmitsTheGapBeforeTimeout() {
+        reliable.send(new byte[] {0}, false);
+        reliable.send(new byte[] {1}, false);
+        reliable.send(new byte[] {2}, false);
+        scheduler.runUntil(300000);
+        // Packets 1 and 2 arrived, 0 is missing
+        reliable.onChunkReceived(ack(0, 0x3));
+
+        assertEquals(1, reliable.getRetransmits());
+        assertArrayEquals(data(0, (byte) 0), lower.last());
+
+        // Repeated ACKs for the same gap do not resend it again right away
+        reliable.onChunkReceived(ack(0, 0x3));
+        assertEquals(1, reliable.getRetransmits());
+
+        reliable.onChunkReceived(ack(3, 0));
+        assertEquals(3, upper.completed);
+    }
+
+    @Test
+    public void timeout_retransmitsTheOldestPacket() {
+        reliable.send(new byte[] {5}, false);
+        scheduler.runUntil(ReliableTransport.INITIAL_RTO_MS * 1000 - 1);
+        assertEquals(1, lower.packets.size());
+
+        scheduler.runUntil(ReliableTransport.INITIAL_RTO_MS * 1000);
+        assertEquals(2, lower.packets.size());
+        assertArrayEquals(data(0, (byte) 5), lower.last());
+        assertEquals(2 * ReliableTransport.INITIAL_RTO_MS, reliable.getRtoMs());
+    }
+
+    @Test
+    public void failedWrite_isRetransmittedAndNotReportedUpward() {
+        LinkMetrics metrics = new LinkMetrics();
+        reliable = new ReliableTransport(lower, scheduler, metrics);
+        reliable.setReceiver(upper);
+        reliable.send(new byte[] {5}, false);
+        reliable.onSendFailed();
+        assertEquals(0, upper.failed);
+        assertEquals(0, upper.completed);
+        assertEquals(1, metrics.getWritesFailed());
+
+        scheduler.runUntil(ReliableTransport.INITIAL_RTO_MS * 1000);
+        assertEquals(2, lower.packets.size());
+        assertArrayEquals(data(0, (byte) 5), lower.last());
+    }
+
+    @Test
+    public void refusedRetransmission_isSentWhenTheLowerTransportHasRoom() {
+        reliable.send(new byte[] {5}, false);
+        lower.accepting = false;
+        scheduler.runUntil(ReliableTransport.INITIAL_RTO_MS * 1000);
+        assertEquals(1, lower.packets.size());
+
+        lower.accepting = true;
+        reliable.onSendComplete();
+        assertEquals(2, lower.packets.size());
+    }
+
+    @Test
+    public void rto_followsMeasuredRoundTrips() {
+        for (int i = 0; i < 10; i++) {
+            reliable.send(new byte[1], false);
+            scheduler.runUntil(scheduler.nowMicros() + 60000);
+            reliable.onChunkReceived(ack((i + 1) & 0xFFFF, 0));
+        }
+
+        assertTrue(reliable.getRtoMs() >= ReliableTransport.MIN_RTO_MS);
+        assertTrue(reliable.getRtoMs() < 120);
+    }
+
+    @Test
+    public void sequenceNumbers_wrapAround() {
+        reliable.setAckPolicy(1, 10);
+        for (int seq = 0; seq < 70000; seq++) {
+            reliable.onChunkReceived(data(seq & 0xFFFF, (byte) seq));
+        }
+
+        assertEquals(70000, upper.chunks.size());
+        assertEquals(0, reliable.getDuplicatesReceived());
+    }
+
+    @Test
+    public void unacknowledgedPacket_failsTheLinkAfterMaxTransmissions() {
+        final int[] failures = new int[1];
+        reliable.setMaxTransmissions(3);
+        reliable.setListener(new ReliableTransport.Listener() {
+            @Override
+            public void onLinkFailed() {
+                failures[0]++;
+            }
+        });
+        reliable.send(new byte[1], false);
+        scheduler.runUntilIdle(100);
+
+        assertEquals(1, failures[0]);
+        assertTrue(reliable.isClosed());
+        assertEquals(3, lower.packets.size());
+    }
+
+    @Test
+    public void lossyLink_deliversEverythingIntactInBothDirections() {
+        SimulatedLink link = new SimulatedLink(scheduler);
+        link.setMtu(185);
+        link.setPacketLoss(0.1, 11, true);
+        Peer client = new Peer("server", link.getCentral(), scheduler, true);
+        Peer server = new Peer("client", link.getPeripheral(), scheduler, true);
+        link.open();
+
+        for (int i = 0; i < 40; i++) {
+            client.endpoint.send(FrameCodec.encodeBinary(payload(i * 97 + 1)), false);
+            server.endpoint.send(FrameCodec.encodeBinary(payload(i * 53 + 2)), false);
+        }
+        scheduler.runUntilIdle(MAX_TASKS);
+
+        assertEquals(40, server.messages.size());
+        assertEquals(40, client.messages.size());
+        for (int i = 0; i < 40; i++) {
+            assertArrayEquals(payload(i * 97 + 1), server.messages.get(i));
+            assertArrayEquals(payload(i * 53 + 2), client.messages.get(i));
+        }
+        long lost = link.getCentral().getPacketsLost() + link.getPeripheral().getPacketsLost();
+        long retransmits = client.reliable.getRetransmits() + server.reliable.getRetransmits();
+        assertTrue(lost > 0);
+        // Lost ACKs are covered by later ones, so retransmissions stay close to the lost data packets
+        assertTrue(retransmits <= 2 * lost);
+    }
+
+    @Test
+    public void lossyLink_withoutReliableModeLosesMessages() {
+        SimulatedLink link = new SimulatedLink(scheduler);
+        link.setMtu(185);
+        link.setPacketLoss(0.1, 11, true);
+        Peer client = new Peer("server", link.getCentral(), scheduler, false);
+        Peer server = new Peer("client", link.getPeripheral(), scheduler, false);
+        link.open();
+
+        for (int i = 0; i < 40; i++) {
+            client.endpoint.send(FrameCodec.encodeBinary(payload(i * 97 + 1)), false);
+        }
+        scheduler.runUntilIdle(MAX_TASKS);
+
+        assertTrue(server.messages.size() < 40);
+    }
+
+    @Test
+    public void cleanLink_costsNoRetransmissionsAndFewAcks() {
+        SimulatedLink link = new SimulatedLink(scheduler);
+        link.setMtu(247);
+        Peer client = new Peer("server", link.getCentral(), scheduler, true);
+        Peer server = new Peer("client", link.getPeripheral(), scheduler, true);
+        link.open();
+
+        client.endpoint.send(FrameCodec.encodeBinary(payload(64 * 1024)), false);
+        scheduler.runUntilIdle(MAX_TASKS);
+
+        assertArrayEquals(payload(64 * 1024), server.messages.get(0));
+        long chunks = client.endpoint.getSession().getChunksSent();
+        assertEquals(0, client.reliable.getRetransmits());
+        assertTrue(server.reliable.getAcksSent() <= chunks / 2);
+        assertEquals(chunks, client.endpoint.getMetrics().getChunkLatency().getCount());
+    }
+
+    @Test
+    public void lostLink_resendsUnacknowledgedMessagesAfterResume() {
+        SimulatedLink link = new SimulatedLink(scheduler);
+        link.setMtu(185);
+        Peer client = new Peer("server", link.getCentral(), scheduler, true);
+        Peer server = new Peer("client", link.getPeripheral(), scheduler, true);
+        link.open();
+        for (int i = 0; i < 3; i++) {
+            client.endpoint.send(FrameCodec.encodeBinary(payload(300 + i)), false);
+        }
+        // Every packet of the three messages is in flight, none has reached the server yet
+        assertEquals(6, client.reliable.getInFlight());
+        assertEquals(0, client.endpoint.getSession().getOutbound().getPendingMessages());
+
+        // Both sides lose the link with the packets still buffered and start over on a new one
+        link.close();
+        client.endpoint.suspend();
+        client.reliable.reset();
+        server.endpoint.suspend();
+        server.reliable.reset();
+        link.open();
+        client.endpoint.resume();
+        server.endpoint.resume();
+        scheduler.runUntilIdle(MAX_TASKS);
+
+        assertEquals(3, server.messages.size());
+        for (int i = 0; i < 3; i++) {
+            assertArrayEquals(payload(300 + i), server.messages.get(i));
+        }
+        assertTrue(client.endpoint.getSession().getOutbound().isEmpty());
+        assertEquals(3, client.endpoint.getMetrics().getMessagesCompleted());
+    }
+
+    @Test
+    public void reset_startsOverAtSequenceZero() {
+        reliable.send(new byte[] {1}, false);
+        reliable.send(new byte[] {2}, false);
+        reliable.onChunkReceived(data(0, (byte) 9));
+        reliable.reset();
+
+        assertEquals(0, reliable.getInFlight());
+        reliable.send(new byte[] {3}, false);
+        assertArrayEquals(data(0, (byte) 3), lower.last());
+        // The old packets are not retransmitted on the new link
+        scheduler.runUntil(ReliableTransport.INITIAL_RTO_MS * 1000 - 1);
+        assertEquals(3, lower.packets.size());
+
+        // The peer's new session starts at 0 as well
+        reliable.onChunkReceived(data(0, (byte) 4));
+        assertEquals(2, upper.chunks.size());
+    }
+}
@@ -0,0 +1,83 @@
+package com.onlykk.bleunityplugin;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link ScanDeduplicator}.
+ */
+public class ScanDeduplicatorTest {
+
+    @Test
+    public void newDevice_isReported() {
+        ScanDeduplicator dedup = new ScanDeduplicator();
+
+        ScanDeduplicator.Entry entry = dedup.onAdvertisement("AA", "Host", -60, 0);
+
+        assertNotNull(entry);
+        assertEquals("Host", entry.getName());
+        assertEquals(-60, entry.getRssi());
+    }
+
+    @Test
+    public void repeatedAdvertisements_areCollapsed() {
+        ScanDeduplicator dedup = new ScanDeduplicator();
+        dedup.onAdvertisement("AA", "Host", -60, 0);
+
+        for (int i = 1; i <= 1000; i++) {
+            assertNull(dedup.onAdvertisement("AA", "Host", -60 + (i % 3), i * 10));
+        }
+
+        assertEquals(1, dedup.size());
+        assertEquals(10000, dedup.get("AA").getLastSeenMs());
+    }
+
+    @Test
+    public void rssiMovePastThreshold_isReportedAfterInterval() {
+        ScanDeduplicator dedup = new ScanDeduplicator();
+        dedup.configure(6, 1000, 1f);
+        dedup.onAdvertisement("AA", "Host", -60, 0);
+
+        assertNull(dedup.onAdvertisement("AA", "Host", -80, 500));
+        ScanDeduplicator.Entry entry = dedup.onAdvertisement("AA", "Host", -80, 1000);
+
+        assertNotNull(entry);
+        assertEquals(-80, entry.getRssi());
+    }
+
+    @Test
+    public void rssiSpike_isSmoothedAway() {
+        ScanDeduplicator dedup = new ScanDeduplicator();
+        dedup.configure(6, 0, 0.25f);
+        dedup.onAdvertisement("AA", "Host", -60, 0);
+
+        assertNull(dedup.onAdvertisement("AA", "Host", -75, 100));
+        assertEquals(-64, dedup.get("AA").getRssi());
+    }
+
+    @Test
+    public void nameChange_isReported() {
+        ScanDeduplicator dedup = new ScanDeduplicator();
+        dedup.configure(6, 0, 0.25f);
+        dedup.onAdvertisement("AA", null, -60, 0);
+
+        ScanDeduplicator.Entry entry = dedup.onAdvertisement("AA", "Host", -60, 10);
+
+        assertNotNull(entry);
+        assertEquals("Host", entry.getName());
+        assertNull(dedup.onAdvertisement("AA", null, -60, 20));
+    }
+
+    @Test
+    public void entries_areOnePerDeviceInDiscoveryOrder() {
+        ScanDeduplicator dedup = new ScanDeduplicator();
+        dedup.onAdvertisement("BB", "Second", -50, 0);
+        dedup.onAdvertisement("AA", "First", -50, 1);
+        dedup.onAdvertisement("BB", "Second", -50, 2);
+
+        assertEquals(2, dedup.getEntries().size());
+        assertEquals("BB", dedup.getEntries().get(0).getAddress());
+        assertEquals("AA", dedup.getEntries().get(1).getAddress());
+    }
+}
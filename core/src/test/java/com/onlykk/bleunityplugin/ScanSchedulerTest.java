@@ -0,0 +1,222 @@
+package com.onlykk.bleunityplugin;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link ScanScheduler}, driven by a fake clock.
+ */
+public class ScanSchedulerTest {
+
+    private static final class Timer {
+        final Runnable task;
+        final long dueMs;
+
+        Timer(Runnable task, long dueMs) {
+            this.task = task;
+            this.dueMs = dueMs;
+        }
+    }
+
+    private long now;
+    private int activeConnections;
+    private final List<Timer> timers = new ArrayList<>();
+    private final List<Long> startTimes = new ArrayList<>();
+    private final List<Integer> startModes = new ArrayList<>();
+    private int stops;
+    private ScanScheduler scheduler;
+
+    @Before
+    public void setUp() {
+        scheduler = new ScanScheduler(new ScanScheduler.Host() {
+            @Override
+            public void startScan(int scanMode) {
+                startTimes.add(now);
+                startModes.add(scanMode);
+            }
+
+            @Override
+            public void stopScan() {
+                stops++;
+            }
+
+            @Override
+            public void schedule(Runnable task, long delayMs) {
+                timers.add(new Timer(task, now + delayMs));
+            }
+
+            @Override
+            public void cancel(Runnable task) {
+                for (int i = timers.size() - 1; i >= 0; i--) {
+                    if (timers.get(i).task == task) {
+                        timers.remove(i);
+                    }
+                }
+            }
+
+            @Override
+            public int getActiveConnectionCount() {
+                return activeConnections;
+            }
+        }, new ScanScheduler.Clock() {
+            @Override
+            public long nowMs() {
+                return now;
+            }
+        });
+    }
+
+    // Advances the fake clock, running every timer that falls due in order
+    private void advanceTo(long targetMs) {
+        while (true) {
+            Timer next = null;
+            for (Timer timer : timers) {
+                if (timer.dueMs <= targetMs && (next == null || timer.dueMs < next.dueMs)) {
+                    next = timer;
+                }
+            }
+            if (next == null) {
+                break;
+            }
+            timers.remove(next);
+            now = next.dueMs;
+            next.task.run();
+        }
+        now = targetMs;
+    }
+
+    private void report(int count) {
+        for (int i = 0; i < count; i++) {
+            scheduler.onDeviceReported();
+        }
+    }
+
+    @Test
+    public void windowsAlternateWithIdlePeriods() {
+        scheduler.setPolicy(1000, 2000, false);
+        scheduler.start();
+
+        assertTrue(scheduler.isScanning());
+        advanceTo(1000);
+        assertFalse(scheduler.isScanning());
+        assertEquals(1, stops);
+        advanceTo(3000);
+        assertTrue(scheduler.isScanning());
+        assertEquals(2, startTimes.size());
+    }
+
+    @Test
+    public void firstWindow_scansAtLowLatency() {
+        scheduler.start();
+        assertEquals(ScanScheduler.MODE_LOW_LATENCY, scheduler.getCurrentMode());
+    }
+
+    @Test
+    public void adaptiveMode_followsDiscoveryRate() {
+        scheduler.setPolicy(1000, 1000, true);
+        scheduler.setThresholds(3, 2);
+        scheduler.start();
+
+        report(1);
+        advanceTo(2000);
+        assertEquals(ScanScheduler.MODE_BALANCED, scheduler.getCurrentMode());
+
+        advanceTo(4000);
+        assertEquals(ScanScheduler.MODE_BALANCED, scheduler.getCurrentMode());
+        advanceTo(6000);
+        assertEquals(ScanScheduler.MODE_LOW_POWER, scheduler.getCurrentMode());
+
+        report(5);
+        advanceTo(8000);
+        assertEquals(ScanScheduler.MODE_LOW_LATENCY, scheduler.getCurrentMode());
+    }
+
+    @Test
+    public void activeConnections_keepScanOffLowLatency() {
+        scheduler.setPolicy(1000, 1000, true);
+        activeConnections = 1;
+        scheduler.start();
+        assertEquals(ScanScheduler.MODE_BALANCED, scheduler.getCurrentMode());
+
+        advanceTo(2000);
+        assertEquals(ScanScheduler.MODE_LOW_POWER, scheduler.getCurrentMode());
+    }
+
+    @Test
+    public void startsNeverExceedPlatformLimit() {
+        scheduler.setPolicy(500, 500, false);
+        scheduler.start();
+
+        advanceTo(120000);
+
+        assertTrue(startTimes.size() > ScanScheduler.MAX_STARTS_PER_PERIOD);
+        for (int i = ScanScheduler.MAX_STARTS_PER_PERIOD; i < startTimes.size(); i++) {
+            long elapsed = startTimes.get(i) - startTimes.get(i - ScanScheduler.MAX_STARTS_PER_PERIOD);
+            assertTrue("Start " + i + " came " + elapsed + " ms after the fifth previous one",
+                    elapsed >= ScanScheduler.START_LIMIT_PERIOD_MS);
+        }
+    }
+
+    @Test
+    public void continuousScan_restartsOnlyWhenModeChanges() {
+        scheduler.setPolicy(1000, 0, true);
+        scheduler.start();
+
+        report(5);
+        advanceTo(1000);
+        assertEquals(1, startTimes.size());
+
+        advanceTo(2000);
+        assertEquals(2, startTimes.size());
+        assertEquals(ScanScheduler.MODE_BALANCED, (int) startModes.get(1));
+    }
+
+    @Test
+    public void stop_cancelsPendingWindows() {
+        scheduler.setPolicy(1000, 1000, false);
+        scheduler.start();
+
+        scheduler.stop();
+        advanceTo(10000);
+
+        assertFalse(scheduler.isRunning());
+        assertEquals(1, startTimes.size());
+        assertEquals(1, stops);
+    }
+
+    @Test
+    public void startContinuous_scansWithoutWindows() {
+        scheduler.setPolicy(1000, 1000, true);
+        scheduler.startContinuous();
+
+        advanceTo(10000);
+
+        assertTrue(scheduler.isScanning());
+        assertEquals(1, startTimes.size());
+        assertEquals(ScanScheduler.MODE_LOW_LATENCY, (int) startModes.get(0));
+        assertEquals(0, stops);
+    }
+
+    @Test
+    public void restart_waitsForTheStartLimit() {
+        scheduler.startContinuous();
+        for (int i = 1; i < ScanScheduler.MAX_STARTS_PER_PERIOD; i++) {
+            advanceTo(i * 100);
+            scheduler.restart();
+        }
+        assertEquals(ScanScheduler.MAX_STARTS_PER_PERIOD, startTimes.size());
+
+        scheduler.restart();
+        assertFalse(scheduler.isScanning());
+        assertEquals(ScanScheduler.MAX_STARTS_PER_PERIOD, startTimes.size());
+
+        advanceTo(ScanScheduler.START_LIMIT_PERIOD_MS + 1000);
+        assertTrue(scheduler.isScanning());
+        assertEquals(ScanScheduler.MAX_STARTS_PER_PERIOD + 1, startTimes.size());
+    }
+}
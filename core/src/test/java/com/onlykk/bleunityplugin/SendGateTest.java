@@ -0,0 +1,61 @@
+package com.onlykk.bleunityplugin;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link SendGate}.
+ */
+public class SendGateTest {
+
+    @Test
+    public void gate_opensAfterTheLastRelease() {
+        SendGate gate = new SendGate();
+        assertTrue(gate.isOpen());
+        gate.hold();
+        gate.hold();
+        gate.release();
+        assertFalse(gate.isOpen());
+        gate.release();
+        assertTrue(gate.isOpen());
+
+        // Extra releases do not leave the gate open for the next hold
+        gate.release();
+        gate.hold();
+        assertFalse(gate.isOpen());
+    }
+
+    @Test
+    public void await_timesOutWhileHeld() {
+        SendGate gate = new SendGate();
+        gate.hold();
+        long start = System.nanoTime();
+        assertFalse(gate.await(50));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+    }
+
+    @Test
+    public void release_wakesWaitingThread() throws InterruptedException {
+        final SendGate gate = new SendGate();
+        final AtomicBoolean opened = new AtomicBoolean();
+        final CountDownLatch done = new CountDownLatch(1);
+        gate.hold();
+        Thread waiter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                opened.set(gate.await(5000));
+                done.countDown();
+            }
+        });
+        waiter.start();
+
+        gate.release();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertTrue(opened.get());
+    }
+}
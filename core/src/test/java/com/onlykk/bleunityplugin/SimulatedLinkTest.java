@@ -0,0 +1,232 @@
+package com.onlykk.bleunityplugin;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link SimulatedLink} and {@link VirtualScheduler}.
+ */
+public class SimulatedLinkTest {
+
+    private static final class Recorder implements Transport.Receiver {
+        final VirtualScheduler scheduler;
+        final List<Long> receivedAt = new ArrayList<>();
+        final List<Long> completedAt = new ArrayList<>();
+        int mtu;
+
+        Recorder(VirtualScheduler scheduler) {
+            this.scheduler = scheduler;
+        }
+
+        @Override
+        public void onChunkReceived(byte[] chunk) {
+            receivedAt.add(scheduler.nowMicros());
+        }
+
+        @Override
+        public void onSendComplete() {
+            completedAt.add(scheduler.nowMicros());
+        }
+
+        @Override
+        public void onSendFailed() {
+        }
+
+        @Override
+        public void onMtuChanged(int mtu) {
+            this.mtu = mtu;
+        }
+    }
+
+    private VirtualScheduler scheduler;
+    private SimulatedLink link;
+    private Recorder central;
+    private Recorder peripheral;
+
+    @Before
+    public void setUp() {
+        scheduler = new VirtualScheduler();
+        link = new SimulatedLink(scheduler);
+        central = new Recorder(scheduler);
+        peripheral = new Recorder(scheduler);
+        link.getCentral().setReceiver(central);
+        link.getPeripheral().setReceiver(peripheral);
+    }
+
+    @Test
+    public void open_reportsMtuToBothSides() {
+        link.setMtu(247);
+        link.open();
+
+        assertEquals(247, central.mtu);
+        assertEquals(247, peripheral.mtu);
+    }
+
+    @Test
+    public void packets_moveAtConnectionEvents() {
+        link.setConnectionIntervalMicros(7500);
+        link.open();
+        scheduler.runUntil(1000);
+
+        assertTrue(link.getCentral().send(new byte[20], false));
+        scheduler.runUntilIdle(100);
+
+        assertEquals(1, peripheral.receivedAt.size());
+        assertEquals(7500L, (long) peripheral.receivedAt.get(0));
+        assertEquals(7500L, (long) central.completedAt.get(0));
+    }
+
+    @Test
+    public void packetsPerEvent_limitsEachEvent() {
+        link.setPacketsPerEvent(2);
+        link.open();
+        for (int i = 0; i < 4; i++) {
+            assertTrue(link.getPeripheral().send(new byte[20], false));
+        }
+        scheduler.runUntilIdle(100);
+
+        long interval = SimulatedLink.DEFAULT_CONNECTION_INTERVAL_MICROS;
+        assertEquals(4, central.receivedAt.size());
+        assertEquals(interval, (long) central.receivedAt.get(1));
+        assertEquals(2 * interval, (long) central.receivedAt.get(2));
+        assertEquals(2, link.getConnectionEvents());
+    }
+
+    @Test
+    public void send_refusedWhenBufferFull() {
+        link.setBufferPackets(2);
+        link.open();
+
+        assertTrue(link.getCentral().send(new byte[20], false));
+        assertTrue(link.getCentral().send(new byte[20], false));
+        assertFalse(link.getCentral().send(new byte[20], false));
+        assertEquals(1, link.getCentral().getSendsRefused());
+    }
+
+    @Test
+    public void send_refusedWhenChunkExceedsMtu() {
+        link.open();
+
+        assertFalse(link.getCentral().send(new byte[21], false));
+    }
+
+    @Test
+    public void send_refusedWhileClosed() {
+        assertFalse(link.getCentral().send(new byte[20], false));
+    }
+
+    @Test
+    public void acknowledgedWrite_completesAfterResponseLatency() {
+        link.setWriteResponseLatencyMicros(12000);
+        link.open();
+        link.getCentral().send(new byte[20], true);
+        scheduler.runUntilIdle(100);
+
+        long interval = SimulatedLink.DEFAULT_CONNECTION_INTERVAL_MICROS;
+        assertEquals(interval, (long) peripheral.receivedAt.get(0));
+        assertEquals(interval + 12000, (long) central.completedAt.get(0));
+    }
+
+    @Test
+    public void lostPackets_areRetransmitted() {
+        link.setPacketLoss(0.5, 42, false);
+        link.open();
+        for (int i = 0; i < 8; i++) {
+            link.getCentral().send(new byte[20], false);
+        }
+        scheduler.runUntilIdle(1000);
+
+        assertEquals(8, peripheral.receivedAt.size());
+        assertEquals(8, link.getCentral().getPacketsSent());
+        assertTrue(link.getCentral().getPacketsRetransmitted() > 0);
+    }
+
+    @Test
+    public void lostPackets_canBeDropped() {
+        link.setPacketLoss(0.5, 42, true);
+        link.open();
+        for (int i = 0; i < 8; i++) {
+            link.getCentral().send(new byte[20], false);
+        }
+        scheduler.runUntilIdle(1000);
+
+        long lost = link.getCentral().getPacketsLost();
+        assertTrue(lost > 0);
+        assertEquals(8 - lost, peripheral.receivedAt.size());
+        assertEquals(8, central.completedAt.size());
+    }
+
+    @Test
+    public void packetLoss_isDeterministicForSeed() {
+        assertEquals(retransmissionsFor(7), retransmissionsFor(7));
+    }
+
+    private long retransmissionsFor(long seed) {
+        VirtualScheduler scheduler = new VirtualScheduler();
+        SimulatedLink link = new SimulatedLink(scheduler);
+        link.setPacketLoss(0.3, seed, false);
+        link.open();
+        for (int i = 0; i < 8; i++) {
+            link.getCentral().send(new byte[20], false);
+        }
+        scheduler.runUntilIdle(1000);
+        return link.getCentral().getPacketsRetransmitted() * 1000 + scheduler.nowMicros();
+    }
+
+    @Test
+    public void close_discardsBufferedPackets() {
+        link.open();
+        link.getCentral().send(new byte[20], false);
+        link.close();
+        scheduler.runUntilIdle(100);
+
+        assertTrue(peripheral.receivedAt.isEmpty());
+        assertEquals(0, link.getCentral().getBufferedPackets());
+    }
+
+    @Test
+    public void scheduler_runsTasksInTimeThenSchedulingOrder() {
+        final List<String> order = new ArrayList<>();
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                order.add("b");
+            }
+        }, 2);
+        scheduler.scheduleMicros(new Runnable() {
+            @Override
+            public void run() {
+                order.add("a1");
+            }
+        }, 1000);
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                order.add("a2");
+            }
+        }, 1);
+        scheduler.runUntilIdle(10);
+
+        assertEquals("[a1, a2, b]", order.toString());
+        assertEquals(2000, scheduler.nowMicros());
+    }
+
+    @Test
+    public void scheduler_cancelRemovesTask() {
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                fail();
+            }
+        };
+        scheduler.schedule(task, 5);
+        scheduler.cancel(task);
+
+        assertFalse(scheduler.runNext());
+    }
+}
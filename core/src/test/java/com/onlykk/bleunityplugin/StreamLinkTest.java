@@ -0,0 +1,195 @@
+package com.onlykk.bleunityplugin;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link StreamLink}, over a loopback TCP connection standing in for an L2CAP channel.
+ */
+public class StreamLinkTest {
+
+    /**
+     * Executor collecting the listener calls, run one at a time by the test like an event loop.
+     */
+    private static final class Callbacks implements Executor {
+        final LinkedBlockingQueue<Runnable> tasks = new LinkedBlockingQueue<>();
+
+        @Override
+        public void execute(Runnable task) {
+            tasks.offer(task);
+        }
+
+        void runNext() throws InterruptedException {
+            Runnable task = tasks.poll(5, TimeUnit.SECONDS);
+            assertNotNull("Timed out waiting for a callback", task);
+            task.run();
+        }
+    }
+
+    /**
+     * Listener recording what one side receives.
+     */
+    private static final class Recorder implements StreamLink.Listener {
+        final List<byte[]> payloads = new ArrayList<>();
+        final List<Integer> flags = new ArrayList<>();
+        int closed;
+        IOException error;
+        List<byte[]> unsent;
+
+        @Override
+        public void onFrame(StreamLink link, int flags, byte[] payload) {
+            this.flags.add(flags);
+            payloads.add(payload);
+        }
+
+        @Override
+        public void onClosed(StreamLink link, IOException error, List<byte[]> unsent) {
+            closed++;
+            this.error = error;
+            this.unsent = unsent;
+        }
+    }
+
+    private final Callbacks callbacks = new Callbacks();
+    private final Recorder clientEvents = new Recorder();
+    private final Recorder serverEvents = new Recorder();
+    private StreamLink client;
+    private StreamLink server;
+
+    @Before
+    public void setUp() throws IOException {
+        ServerSocket listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        Socket clientSocket = new Socket(InetAddress.getLoopbackAddress(), listener.getLocalPort());
+        Socket serverSocket = listener.accept();
+        listener.close();
+        client = new StreamLink("server", clientSocket.getInputStream(), clientSocket.getOutputStream(), clientSocket, callbacks, clientEvents);
+        server = new StreamLink("client", serverSocket.getInputStream(), serverSocket.getOutputStream(), serverSocket, callbacks, serverEvents);
+        client.start();
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        client.close();
+        server.close();
+    }
+
+    private static byte[] payload(int size) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) (i * 31 + 7);
+        }
+        return data;
+    }
+
+    @Test
+    public void frames_arriveWholeAndInOrder() throws InterruptedException {
+        client.send(FrameCodec.encode("hello"));
+        client.send(FrameCodec.encodeBinary(payload(3)));
+        callbacks.runNext();
+        callbacks.runNext();
+
+        assertEquals("hello", new String(serverEvents.payloads.get(0)));
+        assertFalse(FrameCodec.isBinary(serverEvents.flags.get(0)));
+        assertArrayEquals(payload(3), serverEvents.payloads.get(1));
+        assertTrue(FrameCodec.isBinary(serverEvents.flags.get(1)));
+    }
+
+    @Test
+    public void largeFrame_isReassembledFromManyReads() throws InterruptedException {
+        byte[] data = payload(1024 * 1024);
+        server.send(FrameCodec.encodeBinary(data));
+        callbacks.runNext();
+
+        assertArrayEquals(data, clientEvents.payloads.get(0));
+        assertEquals(1, client.getFramesReceived());
+        assertEquals(data.length + FrameCodec.HEADER_SIZE, client.getBytesReceived());
+    }
+
+    @Test
+    public void peerClose_isReportedOnce() throws InterruptedException {
+        client.close();
+        callbacks.runNext();
+
+        assertEquals(1, serverEvents.closed);
+        assertFalse(server.isOpen());
+        assertFalse(server.send(FrameCodec.encode("late")));
+        // Closing a link does not report it to its own listener
+        assertEquals(0, clientEvents.closed);
+    }
+
+    @Test
+    public void peerClose_handsBackTheFramesNotWritten() throws Exception {
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch peerClosed = new CountDownLatch(1);
+        final CountDownLatch socketClosed = new CountDownLatch(1);
+        InputStream in = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                try {
+                    peerClosed.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                return -1;
+            }
+        };
+        // Blocks on the first frame like a stream whose peer stopped reading
+        OutputStream out = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                writing.countDown();
+                try {
+                    socketClosed.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                throw new IOException("Socket closed");
+            }
+        };
+        Closeable socket = new Closeable() {
+            @Override
+            public void close() {
+                socketClosed.countDown();
+            }
+        };
+        Recorder events = new Recorder();
+        StreamLink link = new StreamLink("peer", in, out, socket, callbacks, events);
+        link.start();
+        byte[] first = FrameCodec.encode("first");
+        byte[] second = FrameCodec.encode("second");
+        byte[] third = FrameCodec.encodeBinary(payload(3));
+        link.send(first);
+        assertTrue(writing.await(5, TimeUnit.SECONDS));
+        link.send(second);
+        link.send(third);
+
+        peerClosed.countDown();
+        callbacks.runNext();
+
+        assertEquals(1, events.closed);
+        assertNull(events.error);
+        // The frame being written is lost with the stream, the queued ones come back in order
+        assertEquals(2, events.unsent.size());
+        assertArrayEquals(second, events.unsent.get(0));
+        assertArrayEquals(third, events.unsent.get(1));
+        assertEquals(0, link.getPendingBytes());
+    }
+}
@@ -0,0 +1,145 @@
+package com.onlykk.bleunityplugin;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link UnityEventBus}.
+ */
+public class UnityEventBusTest {
+
+    private final List<String> sent = new ArrayList<>();
+    private final List<Runnable> scheduled = new ArrayList<>();
+    private UnityEventBus bus;
+
+    @Before
+    public void setUp() {
+        bus = new UnityEventBus(new UnityEventBus.Sink() {
+            @Override
+            public void send(String method, String payload) {
+                sent.add(method + ":" + payload);
+            }
+        }, new UnityEventBus.Scheduler() {
+            @Override
+            public void schedule(Runnable task, long delayMs) {
+                scheduled.add(task);
+            }
+        });
+    }
+
+    private void runScheduled() {
+        List<Runnable> tasks = new ArrayList<>(scheduled);
+        scheduled.clear();
+        for (Runnable task : tasks) {
+            task.run();
+        }
+    }
+
+    @Test
+    public void immediateMode_forwardsEveryEvent() {
+        bus.post("OnScanStarted", "");
+        bus.post("UpdateDeviceList", "AA", "{}");
+
+        assertEquals(2, sent.size());
+        assertEquals("OnScanStarted:", sent.get(0));
+        assertTrue(scheduled.isEmpty());
+    }
+
+    @Test
+    public void batchedMode_flushesOneBatchPerInterval() {
+        bus.configure(true, 50, 64, 512);
+        bus.post("OnDeviceConnected", "a");
+        bus.post("OnDataReceivedFromServer", "b");
+
+        assertTrue(sent.isEmpty());
+        assertEquals(1, scheduled.size());
+
+        runScheduled();
+
+        assertEquals(1, sent.size());
+        assertEquals("OnEventBatch:{\"events\":[{\"method\":\"OnDeviceConnected\",\"payload\":\"a\"},"
+                + "{\"method\":\"OnDataReceivedFromServer\",\"payload\":\"b\"}]}", sent.get(0));
+    }
+
+    @Test
+    public void sameTypeAndKey_isCoalescedToLatest() {
+        bus.configure(true, 50, 64, 512);
+        bus.post("UpdateDeviceList", "AA", "first");
+        bus.post("UpdateDeviceList", "BB", "other");
+        bus.post("UpdateDeviceList", "AA", "second");
+
+        String batch = bus.pollBatch();
+
+        assertEquals("{\"events\":[{\"method\":\"UpdateDeviceList\",\"payload\":\"second\"},"
+                + "{\"method\":\"UpdateDeviceList\",\"payload\":\"other\"}]}", batch);
+        assertEquals(1, bus.getEventsCoalesced());
+    }
+
+    @Test
+    public void messagesWithoutKey_areNeverCoalesced() {
+        bus.configure(true, 50, 64, 512);
+        bus.post("OnDataReceivedFromClient", "x");
+        bus.post("OnDataReceivedFromClient", "x");
+
+        assertEquals(2, bus.getPendingEvents());
+    }
+
+    @Test
+    public void maxBatchSize_splitsBatches() {
+        bus.configure(true, 50, 2, 512);
+        bus.post("A", "1");
+        bus.post("A", "2");
+        bus.post("A", "3");
+
+        runScheduled();
+        assertEquals(1, sent.size());
+        assertEquals(1, bus.getPendingEvents());
+
+        runScheduled();
+        assertEquals(2, sent.size());
+        assertEquals(0, bus.getPendingEvents());
+    }
+
+    @Test
+    public void maxPendingEvents_forcesEarlyFlush() {
+        bus.configure(true, 50, 64, 3);
+        bus.post("A", "1");
+        bus.post("A", "2");
+        assertTrue(sent.isEmpty());
+
+        bus.post("A", "3");
+
+        assertEquals(1, sent.size());
+    }
+
+    @Test
+    public void switchingToImmediate_drainsPendingEvents() {
+        bus.configure(true, 50, 1, 512);
+        bus.post("A", "1");
+        bus.post("A", "2");
+
+        bus.configure(false, 50, 1, 512);
+
+        assertEquals(2, sent.size());
+        assertEquals(0, bus.getPendingEvents());
+    }
+
+    @Test
+    public void payloads_areEscaped() {
+        bus.configure(true, 50, 64, 512);
+        bus.post("A", "{\"name\":\"a\\b\"}\n");
+
+        assertEquals("{\"events\":[{\"method\":\"A\",\"payload\":\"{\\\"name\\\":\\\"a\\\\b\\\"}\\n\"}]}", bus.pollBatch());
+    }
+
+    @Test
+    public void pollBatch_returnsNullWhenIdle() {
+        bus.configure(true, 50, 64, 512);
+        assertNull(bus.pollBatch());
+    }
+}
@@ -15,3 +15,5 @@ dependencyResolutionManagement {
 
 rootProject.name = "BLEUnityPlugin"
 include(":app")
+include(":core")
+include(":benchmark")